@@ -27,6 +27,21 @@ public interface BitIndex<T> extends IPersistent, IResource {
      */
     void put(T aObject, int aMask);
 
+    /**
+     * Remove object from the index.
+     *
+     * @param aObject object removed from the index
+     * @return <code>true</code> if object was present in the index
+     */
+    boolean remove(T aObject);
+
+    /**
+     * Get number of objects in the index.
+     *
+     * @return number of objects
+     */
+    int size();
+
     /**
      * Get iterator for selecting objects with specified properties. To select all record this method should be
      * invoked with (0, 0) parameters This iterator doesn't support remove() method. It is not possible to modify bit
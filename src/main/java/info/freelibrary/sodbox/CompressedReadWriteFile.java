@@ -6,10 +6,14 @@ import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import info.freelibrary.sodbox.impl.Bitmap;
 import info.freelibrary.sodbox.impl.Bytes;
@@ -17,9 +21,14 @@ import info.freelibrary.sodbox.impl.Page;
 
 /**
  * Compressed read-write database file. To work with compressed database file you should pass instance of this class
- * in <code>Storage.open</code> method
+ * in <code>Storage.open</code> method<BR>
+ * Pages are compressed by the codec specified by <code>setCodec</code> method (deflate by default). Tag of the codec
+ * is stored in the first byte of the compressed page, so file can contain pages compressed by different codecs: all
+ * codecs used in the file should be registered by <code>registerCodec</code> method (deflate and LZ codecs are
+ * registered by default). Each thread uses its own instances of the codecs, and batches of pages written by the page
+ * pool are compressed by several threads in parallel.
  */
-public class CompressedReadWriteFile implements IFile {
+public class CompressedReadWriteFile implements IBatchFile {
 
     static final int ALLOCATION_QUANTUM_LOG = 9;
 
@@ -27,6 +36,8 @@ public class CompressedReadWriteFile implements IFile {
 
     static final long MAX_PAGE_MAP_SIZE = 1000000;
 
+    static final int MIN_PAGES_PER_COMPRESSOR = 16; // batches smaller than this are compressed by the calling thread
+
     private static final String READ = "r";
 
     private static final String READWRITE = "rw";
@@ -43,12 +54,26 @@ public class CompressedReadWriteFile implements IFile {
 
     long myPageIndexCheckpointThreshold;
 
-    Deflater myDeflater;
+    final PageCodec[] myCodecs = new PageCodec[256];
+
+    final ThreadLocal<PageCodec[]> myThreadCodecs = new ThreadLocal<PageCodec[]>() {
 
-    Inflater myInflater;
+        @Override
+        protected PageCodec[] initialValue() {
+            return new PageCodec[256];
+        }
+    };
+
+    PageCodec myCodec;
 
     byte[] myCompressionBuffer;
 
+    byte[][] myBatchBuffers;
+
+    int myCompressionThreads = Runtime.getRuntime().availableProcessors();
+
+    ExecutorService myCompressionExecutor; // created on demand and reused by all batches until the file is closed
+
     RandomAccessFile myDataFile;
 
     RandomAccessFile myPageIndexFile;
@@ -125,8 +150,9 @@ public class CompressedReadWriteFile implements IFile {
             myPageIndexBuffer = myPageIndexChannel.map(aReadOnly ? FileChannel.MapMode.READ_ONLY
                     : FileChannel.MapMode.READ_WRITE, 0, // position
                     myPageIndexSize);
-            myDeflater = new Deflater();
-            myInflater = new Inflater();
+            myCodec = new DeflatePageCodec();
+            registerCodec(myCodec);
+            registerCodec(new LZPageCodec());
             myCompressionBuffer = new byte[Page.PAGE_SIZE];
 
             if (!aReadOnly) {
@@ -161,67 +187,216 @@ public class CompressedReadWriteFile implements IFile {
         }
     }
 
+    /**
+     * Register codec used to decompress pages with the tag of this codec.
+     *
+     * @param aCodec page codec
+     */
+    public void registerCodec(final PageCodec aCodec) {
+        myCodecs[aCodec.getTag()] = aCodec;
+    }
+
+    /**
+     * Set codec used to compress pages. Codec is registered if it was not registered before.
+     *
+     * @param aCodec page codec
+     */
+    public void setCodec(final PageCodec aCodec) {
+        if (myCodecs[aCodec.getTag()] == null) {
+            registerCodec(aCodec);
+        }
+
+        myCodec = aCodec;
+    }
+
+    /**
+     * Set maximal number of threads compressing batch of pages.
+     *
+     * @param aThreads number of threads, 1 to compress pages by the writing thread
+     */
+    public synchronized void setCompressionThreads(final int aThreads) {
+        myCompressionThreads = aThreads;
+        shutdownCompressionExecutor();
+    }
+
     @Override
     public void write(final long aPageAddress, final byte[] aBuffer) {
-        byte[] buffer = aBuffer;
+        if (aPageAddress == 0) {
+            writeData(0, aBuffer, aBuffer.length);
+        } else {
+            writePage(aPageAddress, myCompressionBuffer, compress(aBuffer, myCompressionBuffer));
+        }
+    }
 
-        try {
-            long pageOffs = 0;
-            int pageSize = buffer.length;
+    @Override
+    public void write(final long[] aPositions, final byte[][] aBuffers, final int aCount) {
+        if (myBatchBuffers == null || myBatchBuffers.length < aCount) {
+            myBatchBuffers = new byte[aCount][Page.PAGE_SIZE];
+        }
 
-            if (aPageAddress != 0) {
-                Assert.that(pageSize == Page.PAGE_SIZE);
-                Assert.that((aPageAddress & Page.PAGE_SIZE - 1) == 0);
+        final byte[][] buffers = myBatchBuffers;
+        final int[] sizes = new int[aCount];
+        final int nThreads = Math.min(myCompressionThreads, aCount / MIN_PAGES_PER_COMPRESSOR);
 
-                long pagePos = myPageMap.get(aPageAddress);
-                boolean firstUpdate = false;
+        if (nThreads <= 1) {
+            for (int i = 0; i < aCount; i++) {
+                sizes[i] = compress(aBuffers[i], buffers[i]);
+            }
+        } else {
+            final ExecutorService executor = getCompressionExecutor();
+            final ArrayList<Future<Object>> futures = new ArrayList<>(nThreads);
 
-                if (pagePos == 0) {
-                    final int bp = (int) (aPageAddress >>> Page.PAGE_SIZE_LOG - 3);
+            try {
+                for (int i = 0; i < nThreads; i++) {
+                    final int first = i;
 
-                    if (bp + 8 <= myPageIndexSize) {
-                        final byte[] posBuf = new byte[8];
-                        myPageIndexBuffer.position(bp);
-                        myPageIndexBuffer.get(posBuf, 0, 8);
-                        pagePos = Bytes.unpack8(posBuf, 0);
-                    }
+                    futures.add(executor.submit(new Callable<Object>() {
 
-                    firstUpdate = true;
-                }
+                        @Override
+                        public Object call() {
+                            for (int j = first; j < aCount; j += nThreads) {
+                                sizes[j] = compress(aBuffers[j], buffers[j]);
+                            }
 
-                pageSize = ((int) pagePos & Page.PAGE_SIZE - 1) + 1;
-                myDeflater.reset();
-                myDeflater.setInput(buffer, 0, buffer.length);
-                myDeflater.finish();
+                            return null;
+                        }
+                    }));
+                }
 
-                final int newPageSize = myDeflater.deflate(myCompressionBuffer);
+                for (final Future<Object> future : futures) {
+                    future.get();
+                }
+            } catch (final InterruptedException x) {
+                throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+            } catch (final ExecutionException x) {
+                if (x.getCause() instanceof StorageError) {
+                    throw (StorageError) x.getCause();
+                }
 
-                if (newPageSize == Page.PAGE_SIZE) {
-                    System.arraycopy(buffer, 0, myCompressionBuffer, 0, newPageSize);
+                throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+            } finally {
+                for (final Future<Object> future : futures) {
+                    future.cancel(true);
                 }
+            }
+        }
+
+        // space for the pages is allocated in the order of their addresses
+        for (int i = 0; i < aCount; i++) {
+            if (aPositions[i] == 0) {
+                writeData(0, aBuffers[i], aBuffers[i].length);
+            } else {
+                writePage(aPositions[i], buffers[i], sizes[i]);
+            }
+        }
+    }
 
-                buffer = myCompressionBuffer;
+    synchronized ExecutorService getCompressionExecutor() {
+        if (myCompressionExecutor == null) {
+            myCompressionExecutor = Executors.newFixedThreadPool(myCompressionThreads, aTask -> {
+                final Thread thread = new Thread(aTask, "CompressedReadWriteFile compressor");
 
-                final int newPageBitSize = newPageSize + ALLOCATION_QUANTUM - 1 >>> ALLOCATION_QUANTUM_LOG;
-                final int oldPageBitSize = pageSize + ALLOCATION_QUANTUM - 1 >>> ALLOCATION_QUANTUM_LOG;
+                // pool is shut down when the file is closed, but it should not prevent exit if file is not closed
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
 
-                if (firstUpdate || newPageBitSize != oldPageBitSize) {
-                    if (!firstUpdate) {
-                        Bitmap.free(myBitmap, pagePos >>> Page.PAGE_SIZE_LOG + ALLOCATION_QUANTUM_LOG, oldPageBitSize);
-                    }
+        return myCompressionExecutor;
+    }
 
-                    pageOffs = allocate(newPageBitSize);
-                } else {
-                    pageOffs = pagePos >>> Page.PAGE_SIZE_LOG;
+    synchronized void shutdownCompressionExecutor() {
+        if (myCompressionExecutor != null) {
+            myCompressionExecutor.shutdown();
+            myCompressionExecutor = null;
+        }
+    }
+
+    /**
+     * Compress the page by the codec of the current thread.
+     *
+     * @return size of the compressed page, which is equal to the page size if page is stored uncompressed
+     */
+    int compress(final byte[] aPage, final byte[] aBuffer) {
+        final int size = getCodec(myCodec.getTag()).compress(aPage, aBuffer);
+
+        if (size >= Page.PAGE_SIZE) {
+            System.arraycopy(aPage, 0, aBuffer, 0, Page.PAGE_SIZE);
+            return Page.PAGE_SIZE;
+        }
+
+        return size;
+    }
+
+    PageCodec getCodec(final int aTag) {
+        final PageCodec[] codecs = myThreadCodecs.get();
+
+        PageCodec codec = codecs[aTag];
+
+        if (codec == null) {
+            if (myCodecs[aTag] == null) {
+                throw new StorageError(StorageError.FILE_ACCESS_ERROR, "Unknown page codec " + aTag);
+            }
+
+            codec = myCodecs[aTag].newInstance();
+            codecs[aTag] = codec;
+        }
+
+        return codec;
+    }
+
+    /**
+     * Allocate space for the compressed page and write it to the data file.
+     */
+    private void writePage(final long aPageAddress, final byte[] aBuffer, final int aSize) {
+        Assert.that((aPageAddress & Page.PAGE_SIZE - 1) == 0);
+
+        try {
+            long pagePos = myPageMap.get(aPageAddress);
+            boolean firstUpdate = false;
+
+            if (pagePos == 0) {
+                final int bp = (int) (aPageAddress >>> Page.PAGE_SIZE_LOG - 3);
+
+                if (bp + 8 <= myPageIndexSize) {
+                    final byte[] posBuf = new byte[8];
+                    myPageIndexBuffer.position(bp);
+                    myPageIndexBuffer.get(posBuf, 0, 8);
+                    pagePos = Bytes.unpack8(posBuf, 0);
+                }
+
+                firstUpdate = true;
+            }
+
+            final int pageSize = ((int) pagePos & Page.PAGE_SIZE - 1) + 1;
+            final int newPageBitSize = aSize + ALLOCATION_QUANTUM - 1 >>> ALLOCATION_QUANTUM_LOG;
+            final int oldPageBitSize = pageSize + ALLOCATION_QUANTUM - 1 >>> ALLOCATION_QUANTUM_LOG;
+            final long pageOffs;
+
+            if (firstUpdate || newPageBitSize != oldPageBitSize) {
+                if (!firstUpdate) {
+                    Bitmap.free(myBitmap, pagePos >>> Page.PAGE_SIZE_LOG + ALLOCATION_QUANTUM_LOG, oldPageBitSize);
                 }
 
-                pageSize = newPageSize;
-                myPageMap.put(aPageAddress, pageOffs << Page.PAGE_SIZE_LOG | pageSize - 1, pagePos);
-                crypt(buffer, pageSize);
+                pageOffs = allocate(newPageBitSize);
+            } else {
+                pageOffs = pagePos >>> Page.PAGE_SIZE_LOG;
             }
 
+            myPageMap.put(aPageAddress, pageOffs << Page.PAGE_SIZE_LOG | aSize - 1, pagePos);
+            crypt(aBuffer, aSize);
+
             myDataFile.seek(pageOffs);
-            myDataFile.write(buffer, 0, pageSize);
+            myDataFile.write(aBuffer, 0, aSize);
+        } catch (final IOException details) {
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, details);
+        }
+    }
+
+    private void writeData(final long aOffset, final byte[] aBuffer, final int aSize) {
+        try {
+            myDataFile.seek(aOffset);
+            myDataFile.write(aBuffer, 0, aSize);
         } catch (final IOException details) {
             throw new StorageError(StorageError.FILE_ACCESS_ERROR, details);
         }
@@ -267,11 +442,8 @@ public class CompressedReadWriteFile implements IFile {
                 crypt(myCompressionBuffer, size);
 
                 if (size < Page.PAGE_SIZE) {
-                    myInflater.reset();
-                    myInflater.setInput(myCompressionBuffer, 0, size);
-                    rc = myInflater.inflate(aBuffer);
-
-                    Assert.that(rc == Page.PAGE_SIZE);
+                    getCodec(myCompressionBuffer[0] & 0xFF).decompress(myCompressionBuffer, size, aBuffer);
+                    rc = Page.PAGE_SIZE;
                 } else {
                     System.arraycopy(myCompressionBuffer, 0, aBuffer, 0, rc);
                 }
@@ -372,6 +544,8 @@ public class CompressedReadWriteFile implements IFile {
 
     @Override
     public void close() {
+        shutdownCompressionExecutor();
+
         try {
             myDataChannel.close();
             myDataFile.close();
@@ -485,6 +659,10 @@ public class CompressedReadWriteFile implements IFile {
     }
 
     private void crypt(final byte[] aBuffer, final int aLength) {
+        if (myPattern == null) {
+            return;
+        }
+
         for (int i = 0; i < aLength; i++) {
             aBuffer[i] ^= myPattern[i];
         }
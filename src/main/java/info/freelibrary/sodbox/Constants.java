@@ -9,6 +9,8 @@ public final class Constants {
 
     public static final String BACKGROUND_GC = "sodbox.background.gc";
 
+    public static final String BACKUP_RATE_LIMIT = "sodbox.backup.rate.limit";
+
     public static final String COMPATIBILITY_MODE = "sodbox.compatibility.mode";
 
     public static final String CONCURRENT_ITERATOR = "sodbox.concurrent.iterator";
@@ -25,6 +27,8 @@ public final class Constants {
 
     public static final String IMPLICIT_VALUES = "sodbox.implicit.values";
 
+    public static final String IMPORT_COMMIT_BATCH = "sodbox.import.commit.batch";
+
     public static final String LOCK_FILE = "sodbox.lock.file";
 
     public static final String MULTICLIENT_SUPPORT = "sodbox.multiclient.support";
@@ -37,10 +41,16 @@ public final class Constants {
 
     public static final String PAGE_POOL_LRU_LIMIT = "sodbox.page.pool.lru.limit";
 
+    public static final String PAGE_SIZE = "sodbox.page.size";
+
     public static final String RELOAD_OBJECTS_ON_ROLLBACK = "sodbox.reload.objects.on.rollback";
 
     public static final String REPLICATION_ACK = "sodbox.replication.ack";
 
+    public static final String REPLICATION_COMPRESSION = "sodbox.replication.compression";
+
+    public static final String REPLICATION_DELTA = "sodbox.replication.delta";
+
     public static final String REUSE_OID = "sodbox.reuse.oid";
 
     public static final String SERIALIZE_SYSTEM_COLLECTIONS = "sodbox.serialize.system.collections";
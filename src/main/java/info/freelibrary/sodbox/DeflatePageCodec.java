@@ -0,0 +1,79 @@
+
+package info.freelibrary.sodbox;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Page codec using <code>java.util.zip</code> deflate compression. Compressed page is zlib stream: its first byte is
+ * always 0x78, which is used as the tag of the codec. So pages written by the previous versions of
+ * <code>CompressedReadWriteFile</code> are decompressed by this codec.
+ */
+public class DeflatePageCodec implements PageCodec {
+
+    /**
+     * Tag of the codec: the first byte of zlib stream.
+     */
+    public static final int TAG = 0x78;
+
+    private final int myLevel;
+
+    private final Deflater myDeflater;
+
+    private final Inflater myInflater;
+
+    /**
+     * Create codec with default compression level.
+     */
+    public DeflatePageCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Create codec with the specified compression level.
+     *
+     * @param aLevel compression level (0-9)
+     */
+    public DeflatePageCodec(final int aLevel) {
+        myLevel = aLevel;
+        myDeflater = new Deflater(aLevel);
+        myInflater = new Inflater();
+    }
+
+    @Override
+    public int getTag() {
+        return TAG;
+    }
+
+    @Override
+    public int compress(final byte[] aPage, final byte[] aBuffer) {
+        myDeflater.reset();
+        myDeflater.setInput(aPage, 0, aPage.length);
+        myDeflater.finish();
+
+        final int size = myDeflater.deflate(aBuffer);
+
+        return myDeflater.finished() ? size : aPage.length;
+    }
+
+    @Override
+    public void decompress(final byte[] aBuffer, final int aLength, final byte[] aPage) {
+        myInflater.reset();
+        myInflater.setInput(aBuffer, 0, aLength);
+
+        try {
+            if (myInflater.inflate(aPage) != aPage.length) {
+                throw new StorageError(StorageError.FILE_ACCESS_ERROR);
+            }
+        } catch (final DataFormatException details) {
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, details);
+        }
+    }
+
+    @Override
+    public PageCodec newInstance() {
+        return new DeflatePageCodec(myLevel);
+    }
+
+}
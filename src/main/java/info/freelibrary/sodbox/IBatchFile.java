@@ -0,0 +1,19 @@
+
+package info.freelibrary.sodbox;
+
+/**
+ * Interface of file which can write a batch of pages at once. Page pool passes dirty pages to such file in batches,
+ * so that file can prepare pages (for example compress them) in parallel.
+ */
+public interface IBatchFile extends IFile {
+
+    /**
+     * Write batch of pages to the file.
+     *
+     * @param aPositions offsets of the pages in the file, in ascending order
+     * @param aBuffers arrays with data of the pages (size of each is equal to database page size)
+     * @param aCount number of pages in the batch
+     */
+    void write(long[] aPositions, byte[][] aBuffers, int aCount);
+
+}
@@ -59,7 +59,11 @@ public class IFileOutputStream extends OutputStream {
     @Override
     public void flush() throws IOException {
         final int dstOff = (int) (myCurrentPosition % Page.PAGE_SIZE);
-        myFile.write(myCurrentPosition - dstOff, myPage);
+
+        // A complete page was already written when it was filled
+        if (dstOff != 0) {
+            myFile.write(myCurrentPosition - dstOff, myPage);
+        }
     }
 
     @Override
@@ -27,6 +27,19 @@ public abstract class IterableIterator<T> implements Iterable<T>, Iterator<T> {
         return hasNext() ? next() : null;
     }
 
+    /**
+     * Skip the specified number of selected objects, for example to start iteration from the requested page of the
+     * selection. If less objects are left, iteration is finished. This implementation fetches the skipped objects;
+     * iterators of the random access indices and sorted collections skip them without fetching.
+     *
+     * @param aCount number of objects to skip
+     */
+    public void skip(final int aCount) {
+        for (int count = aCount; count > 0 && hasNext(); count--) {
+            next();
+        }
+    }
+
     /**
      * Get number of selected objects.
      *
@@ -0,0 +1,203 @@
+
+package info.freelibrary.sodbox;
+
+import java.util.Arrays;
+
+import info.freelibrary.sodbox.impl.Bytes;
+
+/**
+ * Fast page codec using LZ77 compression in the format of LZ4 block: sequences of literals followed by the match
+ * (offset and length of the repeated bytes). Matches are found using hash table of 4-byte sequences, so compression
+ * is performed in one pass without searching for the longest match. Compression ratio is lower than of deflate, but
+ * pages are compressed and decompressed several times faster.
+ */
+public class LZPageCodec implements PageCodec {
+
+    /**
+     * Tag of the codec.
+     */
+    public static final int TAG = 1;
+
+    static final int HASH_LOG = 12;
+
+    static final int MIN_MATCH = 4;
+
+    static final int LAST_LITERALS = 5; // end of the page is always encoded as literals
+
+    static final int MAX_OFFSET = 0xFFFF;
+
+    static final int SKIP_LOG = 6; // search is accelerated when no matches are found
+
+    private final int[] myHashTable = new int[1 << HASH_LOG];
+
+    @Override
+    public int getTag() {
+        return TAG;
+    }
+
+    @Override
+    public int compress(final byte[] aPage, final byte[] aBuffer) {
+        final int length = aPage.length;
+        final int matchLimit = length - LAST_LITERALS;
+
+        int anchor = 0;
+        int position = 0;
+        int size = 1;
+
+        Arrays.fill(myHashTable, -1);
+        aBuffer[0] = TAG;
+
+        while (position + MIN_MATCH <= matchLimit) {
+            final int sequence = Bytes.unpack4(aPage, position);
+            final int hash = sequence * -1640531535 >>> 32 - HASH_LOG;
+            final int candidate = myHashTable[hash];
+
+            myHashTable[hash] = position;
+
+            if (candidate < 0 || position - candidate > MAX_OFFSET || Bytes.unpack4(aPage, candidate) != sequence) {
+                position += 1 + (position - anchor >>> SKIP_LOG);
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+
+            while (position + matchLength < matchLimit && aPage[candidate + matchLength] == aPage[position +
+                    matchLength]) {
+                matchLength += 1;
+            }
+
+            size = writeSequence(aPage, anchor, position - anchor, position - candidate, matchLength, aBuffer, size);
+
+            if (size < 0) {
+                return length;
+            }
+
+            position += matchLength;
+            anchor = position;
+        }
+
+        size = writeSequence(aPage, anchor, length - anchor, 0, 0, aBuffer, size);
+
+        return size < 0 ? length : size;
+    }
+
+    @Override
+    public void decompress(final byte[] aBuffer, final int aLength, final byte[] aPage) {
+        int offset = 1;
+        int position = 0;
+
+        while (true) {
+            final int token = aBuffer[offset++] & 0xFF;
+
+            int literals = token >>> 4;
+
+            if (literals == 0xF) {
+                int b;
+
+                do {
+                    b = aBuffer[offset++] & 0xFF;
+                    literals += b;
+                } while (b == 0xFF);
+            }
+
+            System.arraycopy(aBuffer, offset, aPage, position, literals);
+            offset += literals;
+            position += literals;
+
+            if (offset >= aLength) {
+                break;
+            }
+
+            final int distance = aBuffer[offset] & 0xFF | (aBuffer[offset + 1] & 0xFF) << 8;
+
+            offset += 2;
+
+            int matchLength = token & 0xF;
+
+            if (matchLength == 0xF) {
+                int b;
+
+                do {
+                    b = aBuffer[offset++] & 0xFF;
+                    matchLength += b;
+                } while (b == 0xFF);
+            }
+
+            matchLength += MIN_MATCH;
+
+            final int match = position - distance;
+
+            if (distance == 0 || match < 0) {
+                throw new StorageError(StorageError.FILE_ACCESS_ERROR);
+            }
+
+            // source and destination of the match can overlap, so bytes are copied one by one
+            for (int index = 0; index < matchLength; index++) {
+                aPage[position + index] = aPage[match + index];
+            }
+
+            position += matchLength;
+        }
+
+        if (position != aPage.length || offset != aLength) {
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR);
+        }
+    }
+
+    @Override
+    public PageCodec newInstance() {
+        return new LZPageCodec();
+    }
+
+    /**
+     * Write the sequence of literals and the match.
+     *
+     * @return new size of compressed data or -1 if it doesn't fit in the buffer
+     */
+    private static int writeSequence(final byte[] aPage, final int aLiteralsOffset, final int aLiterals,
+            final int aDistance, final int aMatchLength, final byte[] aBuffer, final int aSize) {
+        int size = aSize;
+
+        if (size + 1 + aLiterals / 0xFF + 1 + aLiterals + 2 + aMatchLength / 0xFF + 1 >= aBuffer.length) {
+            return -1;
+        }
+
+        final int token = size++;
+
+        size = writeLength(aLiterals, aBuffer, size);
+        System.arraycopy(aPage, aLiteralsOffset, aBuffer, size, aLiterals);
+        size += aLiterals;
+
+        int matchToken = 0;
+
+        if (aMatchLength != 0) {
+            aBuffer[size++] = (byte) aDistance;
+            aBuffer[size++] = (byte) (aDistance >>> 8);
+
+            matchToken = Math.min(aMatchLength - MIN_MATCH, 0xF);
+            size = writeLength(aMatchLength - MIN_MATCH, aBuffer, size);
+        }
+
+        aBuffer[token] = (byte) (Math.min(aLiterals, 0xF) << 4 | matchToken);
+
+        return size;
+    }
+
+    private static int writeLength(final int aLength, final byte[] aBuffer, final int aSize) {
+        int size = aSize;
+
+        if (aLength >= 0xF) {
+            int length = aLength - 0xF;
+
+            while (length >= 0xFF) {
+                aBuffer[size++] = (byte) 0xFF;
+                length -= 0xFF;
+            }
+
+            aBuffer[size++] = (byte) length;
+        }
+
+        return size;
+    }
+
+}
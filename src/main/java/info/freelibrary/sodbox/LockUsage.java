@@ -0,0 +1,98 @@
+package info.freelibrary.sodbox;
+
+/**
+ * Information about waiting for the locks of the resources of the correspondent class. Instances of this class are
+ * created by Storage.getLockUsage method. Only lock requests which had to wait are counted, so the classes with the
+ * largest total wait time are the hot spots of the application.
+ */
+public class LockUsage {
+
+    /**
+     * Number of the buckets of the wait time histogram.
+     */
+    public static final int HISTOGRAM_SIZE = 32;
+
+    /**
+     * Class of the locked persistent resources.
+     */
+    public Class<?> myClass;
+
+    /**
+     * Number of lock requests which had to wait.
+     */
+    public long myWaitCount;
+
+    /**
+     * Total wait time in nanoseconds.
+     */
+    public long myTotalWaitTime;
+
+    /**
+     * Maximal wait time in nanoseconds.
+     */
+    public long myMaxWaitTime;
+
+    /**
+     * Number of lock requests refused because of the deadlock.
+     */
+    public long myDeadlockCount;
+
+    /**
+     * Histogram of the wait times: element <code>i</code> is number of waits which took less than
+     * <code>2<sup>i</sup></code> microseconds (and not less than <code>2<sup>i-1</sup></code>); last element also
+     * counts all longer waits.
+     */
+    public long[] myWaitHistogram = new long[HISTOGRAM_SIZE];
+
+    /**
+     * LockUsage constructor
+     */
+    public LockUsage(final Class<?> aClass) {
+        myClass = aClass;
+    }
+
+    /**
+     * Add the wait to the statistic.
+     *
+     * @param aWaitTime wait time in nanoseconds
+     * @param aDeadlock whether the lock was refused because of the deadlock
+     */
+    public void addWait(final long aWaitTime, final boolean aDeadlock) {
+        final long micros = aWaitTime / 1000;
+        final int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+
+        myWaitCount += 1;
+        myTotalWaitTime += aWaitTime;
+        myWaitHistogram[Math.min(bucket, HISTOGRAM_SIZE - 1)] += 1;
+
+        if (aWaitTime > myMaxWaitTime) {
+            myMaxWaitTime = aWaitTime;
+        }
+
+        if (aDeadlock) {
+            myDeadlockCount += 1;
+        }
+    }
+
+    /**
+     * Get approximate wait time percentile.
+     *
+     * @param aPercent percent of the waits (0..100)
+     * @return upper bound of the wait time in microseconds of the specified percent of the waits
+     */
+    public long getWaitPercentile(final double aPercent) {
+        final long count = (long) Math.ceil(myWaitCount * aPercent / 100);
+        long total = 0;
+
+        for (int index = 0; index < HISTOGRAM_SIZE; index++) {
+            total += myWaitHistogram[index];
+
+            if (total >= count) {
+                return 1L << index;
+            }
+        }
+
+        return 1L << HISTOGRAM_SIZE - 1;
+    }
+
+}
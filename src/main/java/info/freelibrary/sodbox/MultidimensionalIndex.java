@@ -2,6 +2,7 @@
 package info.freelibrary.sodbox;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 
 /**
@@ -82,10 +83,20 @@ public interface MultidimensionalIndex<T> extends IPersistent, IResource {
      */
     ArrayList<T> queryByExample(T aLow, T aHigh);
 
+    /**
+     * Add all objects of the specified collection to the index. If the index is empty, a balanced tree is built by
+     * recursively splitting the objects at the median of each dimension, so sorted or clustered input doesn't
+     * degenerate into deep chains. Otherwise the objects are inserted one by one.
+     *
+     * @param aCollection objects to be added to the index
+     * @return <tt>true</tt> if the index was changed as a result of the call
+     */
+    boolean addAll(Collection<? extends T> aCollection);
+
     /**
      * Optimize index to make search more efficient. This operation cause complete reconstruction of the index and so
-     * may take a long time. Also please notice that this method doesn't build the ideally balanced tree - it just
-     * reinserts elements in the tree in random order.
+     * may take a long time. The index is rebuilt as a balanced tree by splitting its members at the median of each
+     * dimension.
      */
     void optimize();
 
@@ -0,0 +1,43 @@
+
+package info.freelibrary.sodbox;
+
+/**
+ * Interface of codec compressing pages of <code>CompressedReadWriteFile</code>. The first byte of the compressed page
+ * is the tag of the codec, so pages compressed by different codecs can be stored in the same file. Codec instances
+ * are not required to be thread safe: each thread uses its own instance created by <code>newInstance</code> method.
+ */
+public interface PageCodec {
+
+    /**
+     * Get tag of this codec stored in the first byte of compressed page.
+     *
+     * @return tag of the codec
+     */
+    int getTag();
+
+    /**
+     * Compress the page.
+     *
+     * @param aPage page data
+     * @param aBuffer buffer receiving compressed data, starting with the tag of the codec (has the same size as page)
+     * @return size of compressed data or size of the page if page can not be compressed
+     */
+    int compress(byte[] aPage, byte[] aBuffer);
+
+    /**
+     * Decompress the page.
+     *
+     * @param aBuffer compressed data starting with the tag of the codec
+     * @param aLength size of compressed data
+     * @param aPage array receiving page data
+     */
+    void decompress(byte[] aBuffer, int aLength, byte[] aPage);
+
+    /**
+     * Create new instance of this codec with the same parameters.
+     *
+     * @return new instance of the codec
+     */
+    PageCodec newInstance();
+
+}
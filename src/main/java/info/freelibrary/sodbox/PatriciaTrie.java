@@ -2,6 +2,7 @@
 package info.freelibrary.sodbox;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 
 /**
  * PATRICIA trie (Practical Algorithm To Retrieve Information Coded In Alphanumeric). Tries are a kind of tree where
@@ -54,4 +55,14 @@ public interface PatriciaTrie<T> extends IPersistent, IResource {
      */
     ArrayList<T> elements();
 
+    /**
+     * Get iterator through the objects associated with the keys starting with specified prefix (including the key
+     * equal to the prefix). Iterator traverses the trie lazily, so iteration doesn't require memory proportional to
+     * the number of elements.
+     *
+     * @param aPrefix prefix of the keys
+     * @return iterator through the objects in the subtree of the prefix
+     */
+    Iterator<T> iterator(PatriciaTrieKey aPrefix);
+
 }
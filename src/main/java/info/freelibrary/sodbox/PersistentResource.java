@@ -1,12 +1,47 @@
-
 package info.freelibrary.sodbox;
 
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
- * Base class for persistent capable objects supporting locking.
+ * Base class for persistent capable objects supporting locking. Lock is owned by the transaction context of the
+ * thread (see {@link Storage#getTransactionContext()}), so locks follow the transaction when its context is passed to
+ * another thread. Waiting threads are parked using <code>java.util.concurrent</code> locks rather than object
+ * monitors, so waiting virtual threads don't pin their carrier threads.
+ * <p>
+ * Owners waiting for the locks form a wait-for graph. When a lock request would close a cycle in this graph, the
+ * request is refused with <code>StorageError(DEADLOCK)</code>: the application should roll back the transaction
+ * (releasing its locks) and may retry it. Lock requests which had to wait are reported to the storage (see
+ * {@link Storage#getLockUsage()}).
+ * </p>
  */
 public class PersistentResource extends Persistent implements IResource {
 
-    private transient Thread myOwner;
+    static final long DEADLOCK_CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private static final AtomicReferenceFieldUpdater<PersistentResource, Monitor> MONITOR_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(PersistentResource.class, Monitor.class, "myMonitor");
+
+    private static final Object[] NO_READERS = new Object[0];
+
+    // Wait-for graph: owner -> resource it waits for. It is changed and traversed holding the graph lock, and lock
+    // requests of the waiting owners are granted holding the same lock, so traversal sees consistent graph.
+    private static final ConcurrentHashMap<Object, PersistentResource> WAITING_FOR = new ConcurrentHashMap<>();
+
+    private static final ReentrantLock GRAPH_LOCK = new ReentrantLock();
+
+    private transient volatile Monitor myMonitor;
+
+    private transient volatile Object myOwner;
+
+    private transient volatile Object[] myReaders; // owner of each shared lock, used to detect deadlocks
 
     private transient int myNReaders;
 
@@ -28,146 +63,328 @@ public class PersistentResource extends Persistent implements IResource {
     }
 
     @Override
-    public synchronized void sharedLock() {
-        final Thread currThread = Thread.currentThread();
+    public void sharedLock() {
+        final Monitor monitor = getMonitor();
+        final Object owner = getOwner();
+
+        monitor.lock();
 
         try {
-            while (true) {
-                if (myOwner == currThread) {
-                    myNWriters += 1;
-                    break;
-                } else if (myNWriters == 0) {
-                    if (myStorage == null || myStorage.lockObject(this)) {
-                        myNReaders += 1;
-                    }
-                    break;
-                } else {
-                    wait();
-                }
+            if (!tryShared(owner)) {
+                await(monitor, owner, false, Long.MAX_VALUE);
             }
         } catch (final InterruptedException x) {
             throw new StorageError(StorageError.LOCK_FAILED);
+        } finally {
+            monitor.unlock();
         }
     }
 
     @Override
     public boolean sharedLock(final long aTimeout) {
-        final Thread currThread = Thread.currentThread();
-        final long startTime = System.currentTimeMillis();
-
-        synchronized (this) {
-            try {
-                while (true) {
-                    if (myOwner == currThread) {
-                        myNWriters += 1;
-                        return true;
-                    } else if (myNWriters == 0) {
-                        if (myStorage == null || myStorage.lockObject(this)) {
-                            myNReaders += 1;
-                        }
-                        return true;
-                    } else {
-                        long currTime = System.currentTimeMillis();
-                        if (currTime < startTime) {
-                            currTime = startTime;
-                        }
-                        if (startTime + aTimeout <= currTime) {
-                            return false;
-                        }
-                        wait(startTime + aTimeout - currTime);
-                    }
-                }
-            } catch (final InterruptedException x) {
-                return false;
-            }
+        final Monitor monitor = getMonitor();
+        final Object owner = getOwner();
+
+        monitor.lock();
+
+        try {
+            return tryShared(owner) || await(monitor, owner, false, TimeUnit.MILLISECONDS.toNanos(aTimeout));
+        } catch (final InterruptedException x) {
+            return false;
+        } finally {
+            monitor.unlock();
         }
     }
 
     @Override
-    public synchronized void exclusiveLock() {
-        final Thread currThread = Thread.currentThread();
+    public void exclusiveLock() {
+        final Monitor monitor = getMonitor();
+        final Object owner = getOwner();
+
+        monitor.lock();
 
         try {
-            while (true) {
-                if (myOwner == currThread) {
-                    myNWriters += 1;
-                    break;
-                } else if (myNReaders == 0 && myNWriters == 0) {
-                    myNWriters = 1;
-                    myOwner = currThread;
-                    if (myStorage != null) {
-                        myStorage.lockObject(this);
-                    }
-                    break;
-                } else {
-                    wait();
-                }
+            if (!tryExclusive(owner)) {
+                await(monitor, owner, true, Long.MAX_VALUE);
             }
         } catch (final InterruptedException x) {
             throw new StorageError(StorageError.LOCK_FAILED);
+        } finally {
+            monitor.unlock();
         }
     }
 
     @Override
     public boolean exclusiveLock(final long aTimeout) {
-        final Thread currThread = Thread.currentThread();
-        final long startTime = System.currentTimeMillis();
-
-        synchronized (this) {
-            try {
-                while (true) {
-                    if (myOwner == currThread) {
-                        myNWriters += 1;
-                        return true;
-                    } else if (myNReaders == 0 && myNWriters == 0) {
-                        myNWriters = 1;
-                        myOwner = currThread;
-                        if (myStorage != null) {
-                            myStorage.lockObject(this);
-                        }
-                        return true;
-                    } else {
-                        long currTime = System.currentTimeMillis();
-                        if (currTime < startTime) {
-                            currTime = startTime;
-                        }
-                        if (startTime + aTimeout <= currTime) {
-                            return false;
-                        }
-                        wait(startTime + aTimeout - currTime);
-                    }
+        final Monitor monitor = getMonitor();
+        final Object owner = getOwner();
+
+        monitor.lock();
+
+        try {
+            return tryExclusive(owner) || await(monitor, owner, true, TimeUnit.MILLISECONDS.toNanos(aTimeout));
+        } catch (final InterruptedException x) {
+            return false;
+        } finally {
+            monitor.unlock();
+        }
+    }
+
+    @Override
+    public void unlock() {
+        final Monitor monitor = getMonitor();
+
+        monitor.lock();
+
+        try {
+            if (myNWriters != 0) {
+                if (--myNWriters == 0) {
+                    myOwner = null;
+                    monitor.myUnlocked.signalAll();
+                }
+            } else if (myNReaders != 0) {
+                removeReader(getOwner());
+
+                if (--myNReaders == 0) {
+                    monitor.myUnlocked.signalAll();
                 }
-            } catch (final InterruptedException x) {
-                return false;
             }
+        } finally {
+            monitor.unlock();
         }
     }
 
     @Override
-    public synchronized void unlock() {
-        if (myNWriters != 0) {
-            if (--myNWriters == 0) {
+    public void reset() {
+        final Monitor monitor = getMonitor();
+
+        monitor.lock();
+
+        try {
+            if (myNWriters > 0) {
+                myNWriters = 0;
+                myNReaders = 0;
+                myReaders = null;
                 myOwner = null;
-                notifyAll();
+            } else if (myNReaders > 0) {
+                removeReader(getOwner());
+                myNReaders -= 1;
             }
-        } else if (myNReaders != 0) {
-            if (--myNReaders == 0) {
-                notifyAll();
+
+            monitor.myUnlocked.signalAll();
+        } finally {
+            monitor.unlock();
+        }
+    }
+
+    private boolean tryShared(final Object aOwner) {
+        if (myOwner == aOwner) {
+            myNWriters += 1;
+        } else if (myNWriters == 0) {
+            if (myStorage == null || myStorage.lockObject(this)) {
+                myNReaders += 1;
+                addReader(aOwner);
             }
+        } else {
+            return false;
         }
+
+        return true;
     }
 
-    @Override
-    public synchronized void reset() {
-        if (myNWriters > 0) {
-            myNWriters = 0;
-            myNReaders = 0;
-            myOwner = null;
-        } else if (myNReaders > 0) {
-            myNReaders -= 1;
+    private boolean tryExclusive(final Object aOwner) {
+        if (myOwner == aOwner) {
+            myNWriters += 1;
+        } else if (myNReaders == 0 && myNWriters == 0) {
+            myNWriters = 1;
+            myOwner = aOwner;
+
+            if (myStorage != null) {
+                myStorage.lockObject(this);
+            }
+        } else {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Wait until the lock is granted. Called holding the monitor of the resource.
+     *
+     * @param aMonitor monitor of the resource
+     * @param aOwner owner requesting the lock
+     * @param aExclusive whether exclusive lock is requested
+     * @param aTimeout timeout in nanoseconds, <code>Long.MAX_VALUE</code> to wait without timeout
+     * @return <code>true</code> if lock is granted, <code>false</code> if timeout is expired
+     * @throws StorageError DEADLOCK if waiting for the lock would cause a deadlock
+     */
+    private boolean await(final Monitor aMonitor, final Object aOwner, final boolean aExclusive,
+            final long aTimeout) throws InterruptedException {
+        final long start = System.nanoTime();
+
+        boolean granted = false;
+        boolean deadlock;
+
+        GRAPH_LOCK.lock();
+
+        try {
+            WAITING_FOR.put(aOwner, this);
+            deadlock = isDeadlocked(aOwner);
+        } finally {
+            GRAPH_LOCK.unlock();
+        }
+
+        try {
+            while (!deadlock) {
+                final long remaining = aTimeout == Long.MAX_VALUE ? Long.MAX_VALUE : aTimeout - (System.nanoTime() -
+                        start);
+
+                if (remaining <= 0) {
+                    break;
+                }
+
+                aMonitor.myUnlocked.awaitNanos(Math.min(remaining, DEADLOCK_CHECK_INTERVAL));
+
+                GRAPH_LOCK.lock();
+
+                try {
+                    if (aExclusive ? tryExclusive(aOwner) : tryShared(aOwner)) {
+                        WAITING_FOR.remove(aOwner);
+                        granted = true;
+                        break;
+                    }
+
+                    deadlock = isDeadlocked(aOwner);
+                } finally {
+                    GRAPH_LOCK.unlock();
+                }
+            }
+        } finally {
+            if (!granted) {
+                GRAPH_LOCK.lock();
+
+                try {
+                    WAITING_FOR.remove(aOwner);
+                } finally {
+                    GRAPH_LOCK.unlock();
+                }
+            }
+
+            if (myStorage != null) {
+                myStorage.lockWaitCompleted(this, System.nanoTime() - start, deadlock);
+            }
         }
 
-        notifyAll();
+        if (deadlock) {
+            throw new StorageError(StorageError.DEADLOCK);
+        }
+
+        return granted;
+    }
+
+    /**
+     * Check if the owner waiting for this resource waits, directly or through other waiting owners, for itself.
+     * Called holding the graph lock.
+     */
+    private boolean isDeadlocked(final Object aOwner) {
+        final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        final ArrayDeque<PersistentResource> resources = new ArrayDeque<>();
+
+        resources.add(this);
+
+        while (!resources.isEmpty()) {
+            final PersistentResource resource = resources.poll();
+            final Object writer = resource.myOwner;
+            final Object[] readers = resource.myReaders;
+
+            if (writer != null) {
+                if (writer == aOwner) {
+                    return true;
+                }
+
+                visit(writer, visited, resources);
+            }
+
+            if (readers != null) {
+                for (final Object reader : readers) {
+                    if (reader == aOwner) {
+                        return true;
+                    }
+
+                    visit(reader, visited, resources);
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static void visit(final Object aOwner, final Set<Object> aVisited,
+            final ArrayDeque<PersistentResource> aResources) {
+        if (aVisited.add(aOwner)) {
+            final PersistentResource resource = WAITING_FOR.get(aOwner);
+
+            if (resource != null) {
+                aResources.add(resource);
+            }
+        }
+    }
+
+    private void addReader(final Object aOwner) {
+        final Object[] readers = myReaders == null ? NO_READERS : myReaders;
+        final Object[] newReaders = new Object[readers.length + 1];
+
+        System.arraycopy(readers, 0, newReaders, 0, readers.length);
+        newReaders[readers.length] = aOwner;
+        myReaders = newReaders;
+    }
+
+    private void removeReader(final Object aOwner) {
+        final Object[] readers = myReaders;
+
+        if (readers == null || readers.length <= 1) {
+            myReaders = null;
+            return;
+        }
+
+        int index = readers.length - 1;
+
+        // shared lock can be released by the other thread, then any of the shared locks is removed
+        while (index > 0 && readers[index] != aOwner) {
+            index -= 1;
+        }
+
+        final Object[] newReaders = new Object[readers.length - 1];
+
+        System.arraycopy(readers, 0, newReaders, 0, index);
+        System.arraycopy(readers, index + 1, newReaders, index, readers.length - index - 1);
+        myReaders = newReaders;
+    }
+
+    private Object getOwner() {
+        return myStorage != null ? myStorage.getTransactionContext() : Thread.currentThread();
+    }
+
+    private Monitor getMonitor() {
+        final Monitor monitor = myMonitor;
+
+        if (monitor != null) {
+            return monitor;
+        }
+
+        // transient fields are not initialized when the object is loaded, so the monitor is created on demand
+        MONITOR_UPDATER.compareAndSet(this, null, new Monitor());
+
+        return myMonitor;
+    }
+
+    private static final class Monitor extends ReentrantLock {
+
+        private static final long serialVersionUID = 4563914785672342075L;
+
+        final Condition myUnlocked = newCondition();
+
     }
 
 }
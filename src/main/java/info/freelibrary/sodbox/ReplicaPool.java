@@ -0,0 +1,183 @@
+
+package info.freelibrary.sodbox;
+
+/**
+ * Pool of replicas distributing read-only transactions between the slave nodes. Read transaction is started at the
+ * connected slave with the smallest lag (number of master transactions not yet received by the slave), if this lag
+ * doesn't exceed the specified bound; slaves with the same lag are chosen by the number of running read
+ * transactions and are used in turn. If there is no such slave, transaction is started at the master.<BR>
+ * Usage:
+ *
+ * <pre>
+ * Storage storage = pool.beginRead();
+ *
+ * try {
+ *     MyRoot root = (MyRoot) storage.getRoot();
+ *     ...
+ * } finally {
+ *     pool.endRead(storage);
+ * }
+ * </pre>
+ */
+public class ReplicaPool {
+
+    private final ReplicationMasterStorage myMaster;
+
+    private final ReplicationSlaveStorage[] mySlaves;
+
+    private final int[] myActiveReads;
+
+    private final long[] myReads;
+
+    private long myMasterReads;
+
+    private int myNextReplica; // slave from which search is started, so that equal slaves are used in turn
+
+    private long myMaxLag;
+
+    /**
+     * Create pool of replicas. Read transactions are started at the master as cooperative transactions.
+     *
+     * @param aMaster replication master
+     * @param aSlaves slave nodes receiving pages from the master
+     * @param aMaxLag maximal number of master transactions which slave may not have received to be used for reading
+     */
+    public ReplicaPool(final ReplicationMasterStorage aMaster, final ReplicationSlaveStorage[] aSlaves,
+            final long aMaxLag) {
+        myMaster = aMaster;
+        mySlaves = aSlaves.clone();
+        myMaxLag = aMaxLag;
+        myActiveReads = new int[aSlaves.length];
+        myReads = new long[aSlaves.length];
+    }
+
+    /**
+     * Start read-only transaction.
+     *
+     * @return storage at which transaction is started: it should be passed to <code>endRead</code>
+     */
+    public Storage beginRead() {
+        final long transactionId = myMaster.getTransactionId();
+
+        int replica = -1;
+
+        synchronized (this) {
+            long minLag = myMaxLag;
+
+            for (int count = 0; count < mySlaves.length; count++) {
+                final int index = (myNextReplica + count) % mySlaves.length;
+                final long lag = getLag(index, transactionId);
+
+                if (lag < 0 || lag > minLag) {
+                    continue;
+                }
+
+                if (replica < 0 || lag < minLag || myActiveReads[index] < myActiveReads[replica]) {
+                    replica = index;
+                    minLag = lag;
+                }
+            }
+
+            if (replica >= 0) {
+                myNextReplica = replica + 1;
+                myActiveReads[replica] += 1;
+                myReads[replica] += 1;
+            } else {
+                myMasterReads += 1;
+            }
+        }
+
+        if (replica < 0) {
+            myMaster.beginCooperativeTransaction();
+            return myMaster;
+        }
+
+        final ReplicationSlaveStorage slave = mySlaves[replica];
+
+        slave.beginReplicationSlaveTransaction();
+
+        return slave;
+    }
+
+    /**
+     * End read-only transaction.
+     *
+     * @param aStorage storage returned by <code>beginRead</code>
+     */
+    public void endRead(final Storage aStorage) {
+        if (aStorage == myMaster) {
+            myMaster.endCooperativeTransaction();
+            return;
+        }
+
+        ((ReplicationSlaveStorage) aStorage).endReplicationSlaveTransaction();
+
+        synchronized (this) {
+            for (int index = 0; index < mySlaves.length; index++) {
+                if (mySlaves[index] == aStorage) {
+                    myActiveReads[index] -= 1;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get number of slave nodes in the pool.
+     */
+    public int getNumberOfReplicas() {
+        return mySlaves.length;
+    }
+
+    /**
+     * Get lag of the slave node.
+     *
+     * @param aReplica index of the slave node
+     * @return number of master transactions not yet received by the slave, -1 if slave is not connected to the master
+     */
+    public long getLag(final int aReplica) {
+        return getLag(aReplica, myMaster.getTransactionId());
+    }
+
+    /**
+     * Get number of read transactions started at the slave node.
+     *
+     * @param aReplica index of the slave node
+     */
+    public synchronized long getNumberOfReads(final int aReplica) {
+        return myReads[aReplica];
+    }
+
+    /**
+     * Get number of read transactions started at the master because there was no slave with acceptable lag.
+     */
+    public synchronized long getNumberOfMasterReads() {
+        return myMasterReads;
+    }
+
+    /**
+     * Get maximal lag of the slave node used for reading.
+     */
+    public synchronized long getMaxLag() {
+        return myMaxLag;
+    }
+
+    /**
+     * Set maximal lag of the slave node used for reading.
+     *
+     * @param aMaxLag maximal number of master transactions which slave may not have received
+     */
+    public synchronized void setMaxLag(final long aMaxLag) {
+        myMaxLag = aMaxLag;
+    }
+
+    private long getLag(final int aReplica, final long aTransactionId) {
+        final ReplicationSlaveStorage slave = mySlaves[aReplica];
+
+        if (!slave.isConnected()) {
+            return -1;
+        }
+
+        return Math.max(aTransactionId - slave.getReplicatedTransactionId(), 0);
+    }
+}
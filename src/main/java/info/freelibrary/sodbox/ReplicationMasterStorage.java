@@ -13,4 +13,20 @@ public interface ReplicationMasterStorage extends Storage {
      */
     int getNumberOfAvailableHosts();
 
+    /**
+     * Get identifier of the last committed transaction. Slave nodes report identifier of the last transaction they
+     * have received, so difference between them is the lag of the slave in transactions.
+     *
+     * @return identifier of the last committed transaction
+     */
+    long getTransactionId();
+
+    /**
+     * Get status of replication to the slave nodes: progress of synchronization of newly attached nodes and lag of
+     * the replication stream.
+     *
+     * @return status of each slave node
+     */
+    ReplicationStatus[] getReplicationStatus();
+
 }
@@ -19,4 +19,12 @@ public interface ReplicationSlaveStorage extends Storage {
      */
     void waitForModification();
 
+    /**
+     * Get identifier of the last master transaction received by this slave node.
+     *
+     * @return identifier of the last replicated transaction, which can be compared with
+     *         <code>ReplicationMasterStorage.getTransactionId()</code>
+     */
+    long getReplicatedTransactionId();
+
 }
@@ -0,0 +1,64 @@
+
+package info.freelibrary.sodbox;
+
+/**
+ * Status of replication to the slave node. Instances of this class are created by
+ * ReplicationMasterStorage.getReplicationStatus method. Newly attached or reconnected slave is first synchronized by
+ * the catch-up, which sends pages missed by the slave, and then receives the live stream of changed pages.
+ */
+public class ReplicationStatus {
+
+    /**
+     * Address of the slave node.
+     */
+    public String myHost;
+
+    /**
+     * Whether master is connected to the slave.
+     */
+    public boolean isConnected;
+
+    /**
+     * Whether slave is being synchronized by the catch-up.
+     */
+    public boolean isCatchingUp;
+
+    /**
+     * Number of passes of the last catch-up. The first pass sends all pages missed by the slave, next passes send
+     * pages changed during the previous pass.
+     */
+    public int myCatchUpPasses;
+
+    /**
+     * Total number of pages selected for sending by the passes of the last catch-up.
+     */
+    public long myCatchUpPages;
+
+    /**
+     * Number of pages already sent by the last catch-up.
+     */
+    public long myCatchUpSentPages;
+
+    /**
+     * Number of bytes (after compression) sent to the slave.
+     */
+    public long mySentBytes;
+
+    /**
+     * Size of frames queued for sending to the slave.
+     */
+    public long myQueuedBytes;
+
+    /**
+     * Number of frames created by the master but not yet sent to the slave.
+     */
+    public long myLagFrames;
+
+    /**
+     * ReplicationStatus constructor
+     */
+    public ReplicationStatus(final String aHost) {
+        myHost = aHost;
+    }
+
+}
@@ -128,6 +128,48 @@ public interface SortedCollection<T> extends IPersistent, IResource, Collection<
      */
     IterableIterator<T> iterator(Object aFrom, boolean aFromInclusive, Object aTo, boolean aToInclusive);
 
+    /**
+     * Get cursor for traversing collection members with key belonging to the specified range. Unlike iterator, the
+     * cursor doesn't fetch selected objects in memory: pages of the collection are traversed lazily, so the cursor
+     * requires constant memory. Collection should not be modified during traversal other than by remove() method of
+     * the cursor.
+     *
+     * @param aFrom inclusive low boundary. If <code>null</code> then low boundary is not specified.
+     * @param aTo inclusive high boundary. If <code>null</code> then high boundary is not specified.
+     * @param aOrder <code>GenericIndex.ASCENT_ORDER</code> or <code>GenericIndex.DESCENT_ORDER</code>
+     * @return selection cursor
+     */
+    IterableIterator<T> cursor(Object aFrom, Object aTo, int aOrder);
+
+    /**
+     * Get cursor for traversing collection members with key belonging to the specified range. Unlike iterator, the
+     * cursor doesn't fetch selected objects in memory: pages of the collection are traversed lazily, so the cursor
+     * requires constant memory. Collection should not be modified during traversal other than by remove() method of
+     * the cursor.
+     *
+     * @param aFrom low boundary. If <code>null</code> then low boundary is not specified.
+     * @param aFromInclusive specifies whether from boundary is inclusive or exclusive
+     * @param aTo high boundary. If <code>null</code> then high boundary is not specified.
+     * @param aToInclusive specifies whether till boundary is inclusive or exclusive
+     * @param aOrder <code>GenericIndex.ASCENT_ORDER</code> or <code>GenericIndex.DESCENT_ORDER</code>
+     * @param aSkip number of selected members to be skipped (members are skipped without fetching them)
+     * @param aLimit maximal number of members returned by the cursor, negative value means no limit
+     * @return selection cursor
+     */
+    IterableIterator<T> cursor(Object aFrom, boolean aFromInclusive, Object aTo, boolean aToInclusive, int aOrder,
+            int aSkip, int aLimit);
+
+    /**
+     * Add members sorted by the collection comparator. If the collection is empty, it is built bottom-up: members
+     * are packed in full pages which are then linked in balanced tree, so no rebalancing is needed. Otherwise
+     * members are added one by one. Members with duplicate keys are skipped if the collection is unique.
+     *
+     * @param aMembers iterator through the members in the order of the collection comparator
+     * @return number of added members
+     * @throws StorageError INVALID_OPERATION if the collection is empty and members are not sorted
+     */
+    int addAllSorted(Iterator<? extends T> aMembers);
+
     /**
      * Get comparator used in this collection.
      *
@@ -2,6 +2,7 @@
 package info.freelibrary.sodbox;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
@@ -11,6 +12,7 @@ import java.util.Properties;
 
 import info.freelibrary.sodbox.fulltext.FullTextIndex;
 import info.freelibrary.sodbox.fulltext.FullTextSearchHelper;
+import info.freelibrary.sodbox.fulltext.SegmentedFullTextIndex;
 import info.freelibrary.sodbox.impl.ThreadTransactionContext;
 
 /**
@@ -167,20 +169,60 @@ public interface Storage {
     void rollback();
 
     /**
-     * Backup current state of database.
+     * Create read-only snapshot of the last committed state of the database. Snapshot is a storage which can be used
+     * by any number of threads to load objects, starting from its root object, concurrently with the transactions of
+     * this storage: commits neither block nor are blocked by the snapshot readers. Locations of the objects visible in
+     * the snapshot are not reused and the object index pages overwritten by commits are preserved until the snapshot
+     * is closed, so long living snapshots increase the database size. Snapshot doesn't support modification of the
+     * objects, transactions and other storage-wide operations, and it is not supported in multiclient mode.
+     *
+     * @return snapshot storage, which should be closed when it is no longer needed
+     */
+    Storage createSnapshot();
+
+    /**
+     * Backup the last committed state of the database. The backup can be done while other threads keep working with
+     * the storage and committing transactions: pages are read directly from the database file, bypassing the page
+     * pool, and pages overwritten by a commit before they were copied are preserved until the backup reaches them.
+     * The produced image is a database file which can be opened as is. The backup speed can be limited with the
+     * "sodbox.backup.rate.limit" property (bytes per second).
      *
      * @param aOutstream output stream to which backup is done
      */
     void backup(OutputStream aOutstream) throws IOException;
 
     /**
-     * Backup current state of database to the file with specified path.
+     * Backup the last committed state of the database, or only the pages changed since an earlier backup. With zero
+     * transaction id this method produces the same full image as {@link #backup(OutputStream)}. Otherwise it writes
+     * an incremental backup containing only the pages written since the transaction with the specified id was
+     * committed; it should be applied with {@link #restore(String, String, InputStream)} to the database restored
+     * from that earlier backup. Changed pages are tracked in memory, so if the transaction preceded the opening of
+     * the storage, the incremental backup contains all the pages.
+     *
+     * @param aOutstream output stream to which backup is done
+     * @param aTransactionId id returned by the previous backup, or 0 for a full backup
+     * @return id of the transaction whose state was saved; pass it to the next incremental backup
+     */
+    long backup(OutputStream aOutstream, long aTransactionId) throws IOException;
+
+    /**
+     * Backup the last committed state of the database to the file with specified path.
      *
      * @param aFilePath path to the backup file
      * @param aCipherKey cipher key for the encryption of the backup file, null to disable encryption
      */
     void backup(String aFilePath, String aCipherKey) throws IOException;
 
+    /**
+     * Apply an incremental backup to the database file restored from the backup it is based on. The storage should
+     * not be opened.
+     *
+     * @param aFilePath path to the database file
+     * @param aCipherKey cipher key of the database file, null if it is not encrypted
+     * @param aIncrementalBackup stream with the incremental backup
+     */
+    void restore(String aFilePath, String aCipherKey, InputStream aIncrementalBackup) throws IOException;
+
     /**
      * Begin a cooperative thread transaction. With a cooperative transaction, multiple threads can work concurrently,
      * sharing the same transaction.
@@ -337,6 +379,28 @@ public interface Storage {
      */
     <K, V> IPersistentHash<K, V> createHash(int aPageSize, int aLoadFactor);
 
+    /**
+     * Create hash table using extendible hashing. Entries are packed in the bucket objects: key, value and hash code
+     * of the entry are stored inline (persistent keys and values are stored as references), so lookup of the key
+     * requires loading of just one bucket and no per-entry objects are created. Directory of the buckets is doubled
+     * on demand.
+     *
+     * @return persistent hash table
+     */
+    <K, V> IPersistentHash<K, V> createExtendibleHash();
+
+    /**
+     * Create hash table using extendible hashing. Entries are packed in the bucket objects: key, value and hash code
+     * of the entry are stored inline (persistent keys and values are stored as references), so lookup of the key
+     * requires loading of just one bucket and no per-entry objects are created. Directory of the buckets is doubled
+     * on demand.
+     *
+     * @param aBucketSize number of slots in the bucket (rounded up to power of two), the bucket is split when it is
+     *        filled by three quarters. Choose it so that bucket fits in one or two pages.
+     * @return persistent hash table
+     */
+    <K, V> IPersistentHash<K, V> createExtendibleHash(int aBucketSize);
+
     /**
      * Create scalable persistent map. This container can efficiently handle both small and large number of members.
      * For small maps, implementation uses sorted array. For large maps - B-Tree.
@@ -436,6 +500,32 @@ public interface Storage {
     <T> MultidimensionalIndex<T> createMultidimensionalIndex(Class aType, String[] aFieldNames,
             boolean aTreateZeroAsUndefinedValue);
 
+    /**
+     * Create new multidimensional index which keeps up to the specified number of objects in each leaf of the tree.
+     * Leaf buckets reduce the number of tree nodes and so the number of pages read by range queries.
+     *
+     * @param aComparator multidimensional comparator
+     * @param aBucketSize maximal number of objects in a leaf bucket, values less than two mean one object per node
+     * @return multidimensional index
+     */
+    <T> MultidimensionalIndex<T> createMultidimensionalIndex(MultidimensionalComparator<T> aComparator,
+            int aBucketSize);
+
+    /**
+     * Create new multidimensional index for specified fields of the class which keeps up to the specified number of
+     * objects in each leaf of the tree.
+     *
+     * @param aType class of objects included in this index
+     * @param aFieldNames name of the fields which are treated as index dimensions, if null then all declared fields
+     *        of the class are used.
+     * @param aTreateZeroAsUndefinedValue if value of scalar field in QBE object is 0 (default value) then assume that
+     *        condition is not defined for this field
+     * @param aBucketSize maximal number of objects in a leaf bucket, values less than two mean one object per node
+     * @return multidimensional index
+     */
+    <T> MultidimensionalIndex<T> createMultidimensionalIndex(Class<?> aType, String[] aFieldNames,
+            boolean aTreateZeroAsUndefinedValue, int aBucketSize);
+
     /**
      * Create new think index (index with large number of duplicated keys).
      *
@@ -446,6 +536,13 @@ public interface Storage {
      */
     <T> Index<T> createThickIndex(Class aType);
 
+    /**
+     * Create new bit index. Bit index is used to select object with specified set of (boolean) properties.
+     *
+     * @return persistent object implementing bit index
+     */
+    <T> BitIndex<T> createBitIndex();
+
     /**
      * Create new field index.
      *
@@ -701,6 +798,16 @@ public interface Storage {
      */
     FullTextIndex createFullTextIndex();
 
+    /**
+     * Create segmented full text search index. Instead of updating inverse lists of all words of the document, added
+     * documents are collected in memory and written as immutable segments, which are merged in the background.
+     *
+     * @param aHelper helper class which provides method for scanning, stemming and tuning query
+     * @param aBufferSize maximal number of documents in the in-memory segment
+     * @return segmented full text search index
+     */
+    SegmentedFullTextIndex createSegmentedFullTextIndex(FullTextSearchHelper aHelper, int aBufferSize);
+
     /**
      * Commit transaction (if needed) and close the storage.
      */
@@ -732,7 +839,11 @@ public interface Storage {
     void exportXML(Writer aWriter) throws IOException;
 
     /**
-     * Import data from XML file.
+     * Import data from XML file. Storage is not locked for the time of the import, so other threads are not blocked by
+     * it, but the imported objects should not be accessed until the import is completed. If the
+     * "sodbox.import.commit.batch" property is set, the transaction is committed after each batch of this number of
+     * imported objects and indices and at the end of the import, otherwise the import is committed by the
+     * application. Data should be imported in an empty storage.
      *
      * @param aReader XML document reader
      */
@@ -905,6 +1016,23 @@ public interface Storage {
      * will be blocked allowing thread performing commit to proceed.</TD>
      * </TR>
      * <TR>
+     * <TD><code>sodbox.replication.compression</code></TD>
+     * <TD>Boolean</TD>
+     * <TD>true</TD>
+     * <TD>Compress the frames sent by replication master to the slave nodes. Pages written by the master are sent to
+     * the slaves in batches (one frame per transaction commit or per batch of evicted pages), so the pages are
+     * compressed together.</TD>
+     * </TR>
+     * <TR>
+     * <TD><code>sodbox.replication.delta</code></TD>
+     * <TD>Boolean</TD>
+     * <TD>false</TD>
+     * <TD>Send to the statically attached slave nodes difference between new and previous versions of the page
+     * instead of the page itself. Together with compression it significantly reduces amount of transferred data when
+     * only small part of the page is changed, but requires master to read previous version of each written page.
+     * </TD>
+     * </TR>
+     * <TR>
      * <TD><code>sodbox.concurrent.iterator</code></TD>
      * <TD>Boolean</TD>
      * <TD>false</TD>
@@ -1010,6 +1138,16 @@ public interface Storage {
      * false it is possible to prohibit lookup of base classes. Please notice that lookup on base classes is also not
      * performed if "auto register table" mode is active.</TD>
      * </TR>
+     * <TR>
+     * <TD><code>sodbox.page.size</code></TD>
+     * <TD>int</TD>
+     * <TD>4096</TD>
+     * <TD>Size of the database page: power of two from 4096 to 65536 bytes. It is set by the JVM system property
+     * with this name, which is read once, so all storages of the JVM use the same page size. Page size is stored in
+     * the header of the created database; opening database created with another page size fails with
+     * <code>StorageError(INCOMPATIBLE_PAGE_SIZE)</code>. Storage property can not change the page size: value other
+     * than the page size of the JVM causes <code>StorageError(BAD_PROPERTY_VALUE)</code>.</TD>
+     * </TR>
      * </TABLE>
      *
      * @param aName name of the property
@@ -1090,6 +1228,40 @@ public interface Storage {
      */
     HashMap<Class, MemoryUsage> getMemoryDump();
 
+    /**
+     * Get statistic of waiting for the locks of persistent resources. Only lock requests which had to wait are
+     * counted. Sorting the result by total wait time gives the list of the hot locks of the application.
+     *
+     * @return map with class of the locked resource as key and <code>LockUsage</code> as value
+     */
+    HashMap<Class<?>, LockUsage> getLockUsage();
+
+    /**
+     * Register field index which should be automatically maintained by the storage. When object of the indexed class
+     * (or derived from it) is stored, the storage checks whether its indexed fields were changed and updates the
+     * index at transaction commit, so the application should not remove the object from the index before changing
+     * its key fields and put it back afterwards. Objects which packed image is not changed cost no index work. When
+     * the object is deallocated, it is immediately removed from the registered indices. New objects are included in
+     * the index when they are stored for the first time.
+     * <p>
+     * Registration is not persistent: indices should be registered each time the storage is opened. Index should
+     * contain all persistent instances of the indexed class at the moment of registration. Objects with
+     * <code>SelfSerializable</code> or custom serialized classes are not tracked. Keys are extracted from the copies
+     * of the objects decoded from their stored images, so the objects are not accessed while the indices are updated.
+     * </p>
+     *
+     * @param aIndex field index to be maintained
+     * @throws StorageError UNSUPPORTED_INDEX_TYPE if index is not created by this storage
+     */
+    void registerIndex(FieldIndex<?> aIndex);
+
+    /**
+     * Stop automatic maintenance of the field index. Pending changes of the index are still applied at commit.
+     *
+     * @param aIndex field index registered by <code>registerIndex</code> method
+     */
+    void unregisterIndex(FieldIndex<?> aIndex);
+
     /**
      * Get total size of all allocated objects in the database.
      */
@@ -1168,9 +1340,12 @@ public interface Storage {
 
     /**
      * Associate transaction context with the thread This method can be used by application to share the same
-     * transaction between multiple threads.
+     * transaction between multiple threads. Locks of <code>PersistentResource</code> objects are owned by the
+     * transaction context, so they move with it. Passing <code>null</code> detaches the current context from the
+     * thread (which gets a new context when it needs one), so a transaction can be suspended and later resumed in
+     * another thread, for example by a request served by several virtual threads.
      *
-     * @param aContext new transaction context
+     * @param aContext new transaction context or <code>null</code> to detach the current one
      * @return transaction context previously associated with this thread
      */
     ThreadTransactionContext setTransactionContext(ThreadTransactionContext aContext);
@@ -1291,6 +1466,15 @@ public interface Storage {
      */
     boolean lockObject(Object aObject);
 
+    /**
+     * This method is used internally by Sodbox to collect statistic of the lock requests which had to wait.
+     *
+     * @param aObject A locked object
+     * @param aWaitTime Wait time in nanoseconds
+     * @param aDeadlock True if lock was refused because of the deadlock
+     */
+    void lockWaitCompleted(Object aObject, long aWaitTime, boolean aDeadlock);
+
     /**
      * Removes object from the object cache.
      *
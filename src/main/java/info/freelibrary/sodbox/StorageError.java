@@ -80,6 +80,10 @@ public class StorageError extends RuntimeException {
 
     public static final int STORAGE_CANNOT_BE_CREATED = 37;
 
+    public static final int INCOMPATIBLE_PAGE_SIZE = 38;
+
+    public static final int DEADLOCK = 39;
+
     private static final long serialVersionUID = -1077039779052096595L;
 
     private static final String SPACE = " ";
@@ -97,7 +101,8 @@ public class StorageError extends RuntimeException {
         "Invalid replication node port", "Connection failure", "Too much objects",
         "Failed to insert document in full text index", "Index key is null", "Invalid operation",
         "Database is opened in read-only mode", "Not within serializable transaction context",
-        "Wrong cipher key for the encrypted database", "Storage cannot be created" };
+        "Wrong cipher key for the encrypted database", "Storage cannot be created",
+        "Database was created with different page size", "Deadlock detected, transaction should be rolled back" };
 
     private final int myErrorCode;
 
@@ -35,9 +35,9 @@ public class StorageFactory {
      * @param aReplicationSlaveNodes addresses of static replication slave nodes, i.e. hosts to which replication will
      *        be performed. Address is specified as NAME:PORT
      * @param aAsyncBufSize if value of this parameter is greater than zero then replication will be asynchronous,
-     *        done by separate thread and not blocking main application. Otherwise data is send to the slave nodes by
-     *        the same thread which updates the database. If space asynchronous buffer is exhausted, then main thread
-     *        will be also blocked until the data is send.
+     *        done by separate threads and not blocking main application. Otherwise transaction commit waits until the
+     *        data is sent to all slave nodes. If space asynchronous buffer is exhausted, then main thread will be also
+     *        blocked until the data is send.
      * @return new instance of the master storage (unopened, you should explicitly invoke open method)
      */
     public ReplicationMasterStorage createReplicationMasterStorage(final int aPort,
@@ -58,9 +58,9 @@ public class StorageFactory {
      * @param aReplicationSlaveNodes addresses of static replication slave nodes, i.e. hosts to which replication will
      *        be performed. Address is specified as NAME:PORT
      * @param aAsyncBufSize if value of this parameter is greater than zero then replication will be asynchronous,
-     *        done by separate thread and not blocking main application. Otherwise data is send to the slave nodes by
-     *        the same thread which updates the database. If space asynchronous buffer is exhausted, then main thread
-     *        will be also blocked until the data is send.
+     *        done by separate threads and not blocking main application. Otherwise transaction commit waits until the
+     *        data is sent to all slave nodes. If space asynchronous buffer is exhausted, then main thread will be also
+     *        blocked until the data is send.
      * @param aPageTimestampFile path to the file with pages timestamps. This file is used for synchronizing with
      *        master content of newly attached node
      * @return new instance of the master storage (unopened, you should explicitly invoke open method)
@@ -0,0 +1,206 @@
+
+package info.freelibrary.sodbox.fulltext;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Reusable tokenizer splitting the document text into terms. Analyzer reads the text in chunks into the character
+ * buffer, lower-cases the tokens, passes them through the chain of token filters (stop words, stemming,...) and
+ * interns them in the term dictionary. Identifiers of the terms and their positions are stored in primitive arrays,
+ * which are reused for the next document, so no objects are created per token.<BR>
+ * Analyzer can also produce character n-grams of the tokens: them are stored in addition to the token itself at the
+ * position of the n-gram in the text.<BR>
+ * Analyzer is not thread safe: each thread should use its own analyzer.
+ */
+public class Analyzer {
+
+    static final int READ_BUFFER_SIZE = 4096;
+
+    static final int INIT_TOKENS = 1024;
+
+    final FullTextSearchHelper myHelper;
+
+    final TokenFilter[] myFilters;
+
+    final int myMaxWordLength;
+
+    final char[] myReadBuffer = new char[READ_BUFFER_SIZE];
+
+    char[] myToken;
+
+    int myMinGram = 1;
+
+    int myMaxGram;
+
+    int[] myTermIds = new int[INIT_TOKENS];
+
+    int[] myPositions = new int[INIT_TOKENS];
+
+    int myNumberOfTokens;
+
+    /**
+     * Create analyzer.
+     *
+     * @param aHelper helper used to split the text into tokens
+     * @param aFilters chain of filters applied to the tokens
+     */
+    public Analyzer(final FullTextSearchHelper aHelper, final TokenFilter... aFilters) {
+        myHelper = aHelper;
+        myFilters = aFilters;
+        myMaxWordLength = aHelper.myMaxWordLength;
+        myToken = new char[myMaxWordLength + 1];
+    }
+
+    /**
+     * Enable generation of character n-grams.
+     *
+     * @param aMinGram minimal length of n-gram
+     * @param aMaxGram maximal length of n-gram, 0 to disable n-grams
+     */
+    public void setNGrams(final int aMinGram, final int aMaxGram) {
+        myMinGram = Math.max(aMinGram, 1);
+        myMaxGram = aMaxGram;
+    }
+
+    /**
+     * Split the text into terms. Results are available through <code>getTermIds</code> and
+     * <code>getPositions</code> until the next call of this method.
+     *
+     * @param aReader stream with document text
+     * @param aDictionary dictionary used to intern the terms
+     * @return number of extracted terms
+     */
+    public int analyze(final Reader aReader, final TermDictionary aDictionary) throws IOException {
+        final FullTextSearchHelper helper = myHelper;
+        final char[] token = myToken;
+
+        int position = 0;
+        int wordPosition = -1;
+        int length = 0;
+        int count;
+
+        myNumberOfTokens = 0;
+
+        read: while ((count = aReader.read(myReadBuffer)) > 0) {
+            for (int index = 0; index < count; index++) {
+                final char ch = myReadBuffer[index];
+
+                if (ch == 0) {
+                    break read;
+                }
+
+                if (helper.isWordChar(ch)) {
+                    if (wordPosition < 0) {
+                        wordPosition = position;
+                        length = 0;
+                    }
+
+                    if (length < token.length) {
+                        token[length] = Character.toLowerCase(ch);
+                    }
+
+                    length += 1;
+                } else if (wordPosition >= 0) {
+                    addToken(aDictionary, length, wordPosition);
+                    wordPosition = -1;
+                }
+
+                position += 1;
+            }
+        }
+
+        if (wordPosition >= 0) {
+            addToken(aDictionary, length, wordPosition);
+        }
+
+        return myNumberOfTokens;
+    }
+
+    /**
+     * Get normalized form of the query word.
+     *
+     * @param aWord word
+     * @return word passed through the chain of filters or null if the word should be ignored
+     */
+    public String normalize(final String aWord) {
+        final int length = aWord.length();
+
+        if (length > myMaxWordLength) {
+            return null;
+        }
+
+        for (int index = 0; index < length; index++) {
+            myToken[index] = Character.toLowerCase(aWord.charAt(index));
+        }
+
+        final int newLength = filter(length);
+
+        return newLength == 0 ? null : new String(myToken, 0, newLength);
+    }
+
+    /**
+     * Get identifiers of the terms extracted by the last call of <code>analyze</code>.
+     */
+    public int[] getTermIds() {
+        return myTermIds;
+    }
+
+    /**
+     * Get positions of the terms extracted by the last call of <code>analyze</code>.
+     */
+    public int[] getPositions() {
+        return myPositions;
+    }
+
+    /**
+     * Get number of the terms extracted by the last call of <code>analyze</code>.
+     */
+    public int getNumberOfTokens() {
+        return myNumberOfTokens;
+    }
+
+    private int filter(final int aLength) {
+        int length = aLength;
+
+        for (int index = 0; index < myFilters.length && length != 0; index++) {
+            length = myFilters[index].filter(myToken, length);
+        }
+
+        return length;
+    }
+
+    private void addToken(final TermDictionary aDictionary, final int aLength, final int aPosition) {
+        if (aLength > myMaxWordLength) {
+            return;
+        }
+
+        final int length = filter(aLength);
+
+        if (length == 0) {
+            return;
+        }
+
+        append(aDictionary.intern(myToken, 0, length), aPosition);
+
+        for (int gram = myMinGram; gram <= myMaxGram && gram < length; gram++) {
+            for (int start = 0; start + gram <= length; start++) {
+                append(aDictionary.intern(myToken, start, gram), aPosition + start);
+            }
+        }
+    }
+
+    private void append(final int aTermId, final int aPosition) {
+        final int count = myNumberOfTokens;
+
+        if (count == myTermIds.length) {
+            myTermIds = Arrays.copyOf(myTermIds, count * 2);
+            myPositions = Arrays.copyOf(myPositions, count * 2);
+        }
+
+        myTermIds[count] = aTermId;
+        myPositions[count] = aPosition;
+        myNumberOfTokens = count + 1;
+    }
+}
@@ -2,6 +2,7 @@
 package info.freelibrary.sodbox.fulltext;
 
 import java.io.Reader;
+import java.util.Collection;
 import java.util.Iterator;
 
 import info.freelibrary.sodbox.IPersistent;
@@ -31,6 +32,26 @@ public interface FullTextIndex extends IPersistent, IResource {
      */
     void add(Object aObject, Reader aText, String aLanguage);
 
+    /**
+     * Add batch of documents to the index. Texts of the documents are parsed by a pool of worker threads (so
+     * <code>FullTextSearchHelper</code> methods used for parsing should be thread safe) and inverse list of every word
+     * is updated once for the whole batch.
+     *
+     * @param aObjects documents to be added
+     */
+    void addAll(Collection<? extends FullTextSearchable> aObjects);
+
+    /**
+     * Add batch of documents to the index. Texts of the documents are parsed by a pool of worker threads (so
+     * <code>FullTextSearchHelper</code> methods used for parsing should be thread safe) and inverse list of every word
+     * is updated once for the whole batch.
+     *
+     * @param aObjects documents to be added
+     * @param aTexts document texts to be indexed
+     * @param aLanguages languages of the texts
+     */
+    void addAll(Object[] aObjects, Reader[] aTexts, String[] aLanguages);
+
     /**
      * Delete document from the index
      *
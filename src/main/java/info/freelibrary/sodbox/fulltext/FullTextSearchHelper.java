@@ -40,6 +40,19 @@ public class FullTextSearchHelper extends Persistent {
      */
     static final float[] OCCURRENCE_KIND_WEIGHTS = new float[0];
 
+    /**
+     * Whether the helper class overrides the methods parsing the text, so that its documents can't be parsed by the
+     * default analyzer. Reflection is used just once for each helper class.
+     */
+    private static final ClassValue<Boolean> PARSES_TEXT = new ClassValue<Boolean>() {
+
+        @Override
+        protected Boolean computeValue(final Class<?> aClass) {
+            return isOverridden(aClass, "parseText", Reader.class) || isOverridden(aClass, "getNormalForms",
+                    String.class, String.class) || isOverridden(aClass, "isStopWord", String.class);
+        }
+    };
+
     /**
      * Weight of nearness criteria in rank formula
      */
@@ -58,7 +71,9 @@ public class FullTextSearchHelper extends Persistent {
     /**
      * A stop list.
      */
-    protected transient HashSet myStopList;
+    protected transient HashSet<String> myStopList;
+
+    private transient TokenFilter myStopWordFilter;
 
     /**
      * Full text search helper constructor
@@ -128,9 +143,39 @@ public class FullTextSearchHelper extends Persistent {
         return (Occurrence[]) list.toArray(new Occurrence[list.size()]);
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Create analyzer used to split documents into terms. Returned analyzer skips the stop words and uses
+     * <code>isWordChar</code> to locate the words. Override this method to add stemming or n-grams filters: the same
+     * filters are applied to the words of the query.<BR>
+     * If <code>parseText</code>, <code>getNormalForms</code> or <code>isStopWord</code> methods are overridden and
+     * this method is not, null is returned and the documents are parsed using these methods.
+     *
+     * @return new analyzer or null if <code>parseText</code> should be used
+     */
+    public Analyzer createAnalyzer() {
+        if (PARSES_TEXT.get(getClass())) {
+            return null;
+        }
+
+        if (myStopWordFilter == null) {
+            myStopWordFilter = new StopWordFilter(myStopList);
+        }
+
+        return new Analyzer(this, myStopWordFilter);
+    }
+
+    private static boolean isOverridden(final Class<?> aClass, final String aName, final Class<?>... aTypes) {
+        try {
+            return aClass.getMethod(aName, aTypes).getDeclaringClass() != FullTextSearchHelper.class;
+        } catch (final NoSuchMethodException details) {
+            return true;
+        }
+    }
+
     protected void fillStopList() {
-        myStopList = new HashSet();
+        myStopList = new HashSet<>();
+        myStopWordFilter = null;
+
         for (int i = 0; i < STOP_WORDS.length; i++) {
             myStopList.add(STOP_WORDS[i]);
         }
@@ -288,9 +333,12 @@ public class FullTextSearchHelper extends Persistent {
 
         String myLanguage;
 
+        Analyzer myAnalyzer;
+
         QueryScanner(final String aQuery, final String aLanguage) {
             myQuery = aQuery;
             myLanguage = aLanguage;
+            myAnalyzer = createAnalyzer();
         }
 
         int scan() {
@@ -330,6 +378,13 @@ public class FullTextSearchHelper extends Persistent {
                         return myToken = TKN_OR;
                     } else if (word.equals(NOT)) {
                         return myToken = TKN_NOT;
+                    } else if (myAnalyzer != null) {
+                        word = myAnalyzer.normalize(word);
+
+                        if (word != null) {
+                            myWord = word;
+                            return myToken = TKN_WORD;
+                        }
                     } else {
                         word = word.toLowerCase();
 
@@ -0,0 +1,31 @@
+
+package info.freelibrary.sodbox.fulltext;
+
+/**
+ * Full text index which doesn't update the inverse index in place. Added documents are accumulated in the in-memory
+ * segment, which is written as an immutable segment of sorted inverse lists when it becomes full or when
+ * <code>flush</code> is called. Segments of the same size are merged in the background. Searches read all segments
+ * including the in-memory one.<BR>
+ * Changes of the index (both added and deleted documents) are flushed when the index is stored, so they are
+ * committed with the transaction. Results of the background merges are written to the storage by the thread using
+ * the index, when it adds documents, flushes the index or commits the transaction.
+ */
+public interface SegmentedFullTextIndex extends FullTextIndex {
+
+    /**
+     * Write the in-memory segment and the pending deletions to the storage. Results of the background merge received
+     * so far are written as well, and the merge is applied to the index when it is completed.
+     */
+    void flush();
+
+    /**
+     * Flush the index and merge all its segments in one. Deleted documents are removed from the inverse lists only by
+     * merges.
+     */
+    void merge();
+
+    /**
+     * Get number of persistent segments of the index
+     */
+    int getNumberOfSegments();
+}
@@ -0,0 +1,28 @@
+
+package info.freelibrary.sodbox.fulltext;
+
+import java.util.Collection;
+
+/**
+ * Token filter skipping the stop words.
+ */
+public class StopWordFilter implements TokenFilter {
+
+    private final TermDictionary myStopWords = new TermDictionary();
+
+    /**
+     * Create stop word filter.
+     *
+     * @param aStopWords lower-cased stop words
+     */
+    public StopWordFilter(final Collection<String> aStopWords) {
+        for (final String word : aStopWords) {
+            myStopWords.intern(word.toCharArray(), 0, word.length());
+        }
+    }
+
+    @Override
+    public int filter(final char[] aBuffer, final int aLength) {
+        return myStopWords.lookup(aBuffer, 0, aLength) >= 0 ? 0 : aLength;
+    }
+}
@@ -0,0 +1,185 @@
+
+package info.freelibrary.sodbox.fulltext;
+
+import java.util.Arrays;
+
+/**
+ * Dictionary assigning sequential identifiers to the terms. Terms are looked up by their characters, so string for
+ * the term is created only once, when it is requested for the first time. Dictionary is not thread safe: it is
+ * expected to be used for one batch of documents processed by one thread.
+ */
+public class TermDictionary {
+
+    static final int INIT_CAPACITY = 1024;
+
+    int[] myTable; // term identifier plus one, 0 for empty slot
+
+    int[] myHashCodes;
+
+    int[] myOffsets; // term characters are myChars[myOffsets[id]..myOffsets[id + 1]]
+
+    char[] myChars;
+
+    String[] myTerms;
+
+    int mySize;
+
+    /**
+     * Create empty dictionary.
+     */
+    public TermDictionary() {
+        clear();
+    }
+
+    /**
+     * Get identifier of the term, adding the term to the dictionary if it is not present.
+     *
+     * @param aBuffer buffer containing term characters
+     * @param aOffset offset of the term in the buffer
+     * @param aLength length of the term
+     * @return term identifier
+     */
+    public int intern(final char[] aBuffer, final int aOffset, final int aLength) {
+        final int hashCode = hashCode(aBuffer, aOffset, aLength);
+        final int mask = myTable.length - 1;
+
+        int slot = hashCode & mask;
+
+        while (myTable[slot] != 0) {
+            final int id = myTable[slot] - 1;
+
+            if (myHashCodes[id] == hashCode && equals(id, aBuffer, aOffset, aLength)) {
+                return id;
+            }
+
+            slot = slot + 1 & mask;
+        }
+
+        final int id = mySize++;
+
+        if (id == myHashCodes.length) {
+            myHashCodes = Arrays.copyOf(myHashCodes, id * 2);
+            myOffsets = Arrays.copyOf(myOffsets, id * 2 + 1);
+            myTerms = Arrays.copyOf(myTerms, id * 2);
+        }
+
+        final int offset = myOffsets[id];
+
+        if (offset + aLength > myChars.length) {
+            myChars = Arrays.copyOf(myChars, Math.max(myChars.length * 2, offset + aLength));
+        }
+
+        System.arraycopy(aBuffer, aOffset, myChars, offset, aLength);
+        myOffsets[id + 1] = offset + aLength;
+        myHashCodes[id] = hashCode;
+        myTable[slot] = id + 1;
+
+        if (mySize * 2 > myTable.length) {
+            rehash();
+        }
+
+        return id;
+    }
+
+    /**
+     * Get identifier of the term without adding it to the dictionary.
+     *
+     * @param aBuffer buffer containing term characters
+     * @param aOffset offset of the term in the buffer
+     * @param aLength length of the term
+     * @return term identifier or -1 if there is no such term in the dictionary
+     */
+    public int lookup(final char[] aBuffer, final int aOffset, final int aLength) {
+        final int hashCode = hashCode(aBuffer, aOffset, aLength);
+        final int mask = myTable.length - 1;
+
+        for (int slot = hashCode & mask; myTable[slot] != 0; slot = slot + 1 & mask) {
+            final int id = myTable[slot] - 1;
+
+            if (myHashCodes[id] == hashCode && equals(id, aBuffer, aOffset, aLength)) {
+                return id;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Get the term by its identifier.
+     *
+     * @param aId term identifier
+     * @return term string
+     */
+    public String getTerm(final int aId) {
+        String term = myTerms[aId];
+
+        if (term == null) {
+            term = new String(myChars, myOffsets[aId], myOffsets[aId + 1] - myOffsets[aId]);
+            myTerms[aId] = term;
+        }
+
+        return term;
+    }
+
+    /**
+     * Get number of terms in the dictionary.
+     */
+    public int size() {
+        return mySize;
+    }
+
+    /**
+     * Remove all terms from the dictionary.
+     */
+    public void clear() {
+        myTable = new int[INIT_CAPACITY * 2];
+        myHashCodes = new int[INIT_CAPACITY];
+        myOffsets = new int[INIT_CAPACITY + 1];
+        myChars = new char[INIT_CAPACITY * 8];
+        myTerms = new String[INIT_CAPACITY];
+        mySize = 0;
+    }
+
+    private void rehash() {
+        final int[] table = new int[myTable.length * 2];
+        final int mask = table.length - 1;
+
+        for (int id = 0; id < mySize; id++) {
+            int slot = myHashCodes[id] & mask;
+
+            while (table[slot] != 0) {
+                slot = slot + 1 & mask;
+            }
+
+            table[slot] = id + 1;
+        }
+
+        myTable = table;
+    }
+
+    private boolean equals(final int aId, final char[] aBuffer, final int aOffset, final int aLength) {
+        final int offset = myOffsets[aId];
+
+        if (myOffsets[aId + 1] - offset != aLength) {
+            return false;
+        }
+
+        for (int i = 0; i < aLength; i++) {
+            if (myChars[offset + i] != aBuffer[aOffset + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int hashCode(final char[] aBuffer, final int aOffset, final int aLength) {
+        int hashCode = 0;
+
+        for (int i = 0; i < aLength; i++) {
+            hashCode = 31 * hashCode + aBuffer[aOffset + i];
+        }
+
+        return hashCode ^ hashCode >>> 16;
+    }
+}
@@ -0,0 +1,19 @@
+
+package info.freelibrary.sodbox.fulltext;
+
+/**
+ * Filter of the analyzer chain. Filter processes the token in place, so it can be used to skip stop words or to
+ * perform stemming without creating objects for every token. Filters are shared by analyzers of different threads
+ * and so should not change their own state.
+ */
+public interface TokenFilter {
+
+    /**
+     * Process the lower-cased token.
+     *
+     * @param aBuffer buffer with token characters starting at zero offset, the token may be changed in place
+     * @param aLength length of the token
+     * @return new length of the token (not greater than the buffer length) or 0 if the token should be skipped
+     */
+    int filter(char[] aBuffer, int aLength);
+}
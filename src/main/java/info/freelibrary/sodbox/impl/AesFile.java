@@ -0,0 +1,413 @@
+package info.freelibrary.sodbox.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import info.freelibrary.sodbox.IBatchFile;
+import info.freelibrary.sodbox.IFile;
+import info.freelibrary.sodbox.StorageError;
+
+/**
+ * File encrypting pages with AES in CTR mode. Cipher is provided by JCE, so it uses hardware AES instructions when
+ * they are supported by the platform. Each page is stored in the record prefixed with the page write counter: the
+ * counter block of the page is composed from the page number and this counter, so the same key stream is never used
+ * twice. Write counters are reserved in large portions in the file header, which also keeps the salt used to derive
+ * the key from the password, the value used to check that the key is correct and the page size of the file.<BR>
+ * Use <code>migrate</code> method to convert database encrypted by <code>Rc4File</code> to this format.
+ */
+public class AesFile implements IBatchFile {
+
+    static final long MAGIC = 0x534f4442414553L; // "SODBAES"
+
+    static final int HEADER_SIZE = Page.PAGE_SIZE;
+
+    static final int RECORD_HEADER_SIZE = 16;
+
+    static final int RECORD_SIZE = Page.PAGE_SIZE + RECORD_HEADER_SIZE;
+
+    static final int SALT_SIZE = 16;
+
+    static final int KEY_SIZE = 128;
+
+    static final int KEY_ITERATIONS = 10000;
+
+    static final long COUNTER_RESERVE = 1 << 20;
+
+    private static final int MAGIC_OFFSET = 0;
+
+    private static final int SALT_OFFSET = 8;
+
+    private static final int CHECK_OFFSET = SALT_OFFSET + SALT_SIZE;
+
+    private static final int COUNTER_OFFSET = CHECK_OFFSET + 16;
+
+    private static final int PAGE_SIZE_OFFSET = COUNTER_OFFSET + 8;
+
+    private final IFile myFile;
+
+    private final byte[] myHeader = new byte[HEADER_SIZE];
+
+    private final SecretKeySpec myKey;
+
+    private final ThreadLocal<Cipher> myCipher = new ThreadLocal<Cipher>() {
+
+        @Override
+        protected Cipher initialValue() {
+            return newCipher();
+        }
+    };
+
+    private long myCounter; // last used write counter
+
+    private long myReservedCounter; // write counters up to this value are reserved in the file header
+
+    private long myLength; // number of page records in the file
+
+    private final byte[] myRecordBuffer = new byte[RECORD_SIZE];
+
+    private byte[] myBatchBuffer = new byte[0];
+
+    /**
+     * Creates an AesFile.
+     *
+     * @param aFilePath A path for the AesFile
+     * @param aReadOnly Whether the file is read only
+     * @param aNoFlush Whether the file is flushable
+     * @param aKey A key
+     */
+    public AesFile(final String aFilePath, final boolean aReadOnly, final boolean aNoFlush, final String aKey) {
+        this(new OSFile(aFilePath, aReadOnly, aNoFlush), aKey);
+    }
+
+    /**
+     * Creates an AesFile.
+     *
+     * @param aFile A file in which encrypted pages are stored
+     * @param aKey A key
+     */
+    public AesFile(final IFile aFile, final String aKey) {
+        myFile = aFile;
+
+        // header of the file created with other page size may be shorter or longer than the header of this one
+        final int headerSize = aFile.read(0, myHeader);
+        final boolean created = headerSize <= 0;
+
+        if (created) {
+            Arrays.fill(myHeader, (byte) 0);
+            Bytes.pack8(myHeader, MAGIC_OFFSET, MAGIC);
+            Bytes.pack4(myHeader, PAGE_SIZE_OFFSET, Page.PAGE_SIZE);
+
+            final byte[] salt = new byte[SALT_SIZE];
+
+            new SecureRandom().nextBytes(salt);
+            System.arraycopy(salt, 0, myHeader, SALT_OFFSET, SALT_SIZE);
+        } else if (headerSize < PAGE_SIZE_OFFSET + 4 || Bytes.unpack8(myHeader, MAGIC_OFFSET) != MAGIC) {
+            throw new StorageError(StorageError.DATABASE_CORRUPTED);
+        } else {
+            // files created before the page size was stored in the header use the default page size
+            final int storedPageSize = Bytes.unpack4(myHeader, PAGE_SIZE_OFFSET);
+            final int pageSize = storedPageSize == 0 ? 1 << Page.DEFAULT_PAGE_SIZE_LOG : storedPageSize;
+
+            if (pageSize != Page.PAGE_SIZE) {
+                throw new StorageError(StorageError.INCOMPATIBLE_PAGE_SIZE, Integer.toString(pageSize));
+            }
+
+            if (headerSize < HEADER_SIZE) {
+                throw new StorageError(StorageError.DATABASE_CORRUPTED);
+            }
+        }
+
+        myKey = deriveKey(aKey, Arrays.copyOfRange(myHeader, SALT_OFFSET, SALT_OFFSET + SALT_SIZE));
+
+        final byte[] check = new byte[16];
+
+        crypt(-1, 0, check, 0, check, 0, check.length);
+
+        if (created) {
+            System.arraycopy(check, 0, myHeader, CHECK_OFFSET, check.length);
+        } else {
+            for (int index = 0; index < check.length; index++) {
+                if (check[index] != myHeader[CHECK_OFFSET + index]) {
+                    throw new StorageError(StorageError.WRONG_CIPHER_KEY);
+                }
+            }
+
+            myCounter = Bytes.unpack8(myHeader, COUNTER_OFFSET);
+        }
+
+        myLength = getRecordCount();
+    }
+
+    /**
+     * Checks whether the file at the supplied path can be opened by AesFile: it doesn't exist, is empty or starts with
+     * the AesFile header. Otherwise it is assumed to be encrypted by <code>Rc4File</code>.
+     *
+     * @param aFilePath A path to the file
+     * @return True if the file is not encrypted by <code>Rc4File</code>
+     */
+    public static boolean isAesFile(final String aFilePath) {
+        final File file = new File(aFilePath);
+
+        if (file.length() == 0) {
+            return true;
+        }
+
+        final byte[] magic = new byte[8];
+
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            if (inputStream.read(magic) < magic.length) {
+                return false;
+            }
+        } catch (final IOException details) {
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, details);
+        }
+
+        return Bytes.unpack8(magic, 0) == MAGIC;
+    }
+
+    /**
+     * Copies all pages of the database file encrypted by <code>Rc4File</code> (or any other file) to the AesFile.
+     * Target file should be empty.
+     *
+     * @param aSource A source file, for example <code>Rc4File</code> opened with the old key
+     * @param aTarget An empty AesFile
+     */
+    public static void migrate(final IFile aSource, final AesFile aTarget) {
+        final int batchSize = 64;
+        final long[] positions = new long[batchSize];
+        final byte[][] pages = new byte[batchSize][Page.PAGE_SIZE];
+        final long length = aSource.length() & ~(Page.PAGE_SIZE - 1);
+
+        int count = 0;
+
+        for (long position = 0; position < length; position += Page.PAGE_SIZE) {
+            if (aSource.read(position, pages[count]) < Page.PAGE_SIZE) {
+                break;
+            }
+
+            positions[count++] = position;
+
+            if (count == batchSize) {
+                aTarget.write(positions, pages, count);
+                count = 0;
+            }
+        }
+
+        if (count != 0) {
+            aTarget.write(positions, pages, count);
+        }
+
+        aTarget.sync();
+    }
+
+    @Override
+    public synchronized void write(final long aPosition, final byte[] aBytes) {
+        final long page = aPosition / Page.PAGE_SIZE;
+        final int offset = (int) (aPosition % Page.PAGE_SIZE);
+
+        if (offset + aBytes.length > Page.PAGE_SIZE) {
+            throw new IllegalArgumentException();
+        }
+
+        if (offset != 0 || aBytes.length != Page.PAGE_SIZE) {
+            // partial page write: merge with existing page content
+            final byte[] buffer = new byte[Page.PAGE_SIZE];
+
+            read(page * Page.PAGE_SIZE, buffer);
+            System.arraycopy(aBytes, 0, buffer, offset, aBytes.length);
+            write(page * Page.PAGE_SIZE, buffer);
+            return;
+        }
+
+        encrypt(page, aBytes, myRecordBuffer, 0);
+        myFile.write(HEADER_SIZE + page * RECORD_SIZE, myRecordBuffer);
+
+        if (page >= myLength) {
+            myLength = page + 1;
+        }
+    }
+
+    @Override
+    public synchronized void write(final long[] aPositions, final byte[][] aBuffers, final int aCount) {
+        int start = 0;
+
+        while (start < aCount) {
+            final long firstPage = aPositions[start] / Page.PAGE_SIZE;
+
+            int end = start + 1;
+
+            while (end < aCount && aPositions[end] == aPositions[end - 1] + Page.PAGE_SIZE) {
+                end += 1;
+            }
+
+            if (aPositions[start] % Page.PAGE_SIZE != 0) {
+                for (int index = start; index < end; index++) {
+                    write(aPositions[index], aBuffers[index]);
+                }
+            } else {
+                // contiguous pages are stored in adjacent records and are written using single write operation
+                final int size = (end - start) * RECORD_SIZE;
+
+                if (myBatchBuffer.length != size) {
+                    myBatchBuffer = new byte[size];
+                }
+
+                for (int index = start; index < end; index++) {
+                    encrypt(firstPage + index - start, aBuffers[index], myBatchBuffer, (index - start) * RECORD_SIZE);
+                }
+
+                myFile.write(HEADER_SIZE + firstPage * RECORD_SIZE, myBatchBuffer);
+
+                if (firstPage + end - start > myLength) {
+                    myLength = firstPage + end - start;
+                }
+            }
+
+            start = end;
+        }
+    }
+
+    @Override
+    public int read(final long aPosition, final byte[] aBytes) {
+        final long page = aPosition / Page.PAGE_SIZE;
+        final int offset = (int) (aPosition % Page.PAGE_SIZE);
+        final int length = Math.min(aBytes.length, Page.PAGE_SIZE - offset);
+        final byte[] record = new byte[RECORD_HEADER_SIZE + offset + length];
+        final int read = myFile.read(HEADER_SIZE + page * RECORD_SIZE, record);
+
+        if (read < RECORD_HEADER_SIZE) {
+            return 0;
+        }
+
+        final long counter = Bytes.unpack8(record, 0);
+        final int size = Math.min(read - RECORD_HEADER_SIZE - offset, length);
+
+        if (counter == 0) {
+            // page was never written
+            Arrays.fill(aBytes, 0, length, (byte) 0);
+            return length;
+        }
+
+        if (size <= 0) {
+            return 0;
+        }
+
+        crypt(page, counter, record, RECORD_HEADER_SIZE, aBytes, offset, size);
+
+        return size;
+    }
+
+    @Override
+    public synchronized void close() {
+        myFile.close();
+    }
+
+    @Override
+    public boolean tryLock(final boolean aSharedLock) {
+        return myFile.tryLock(aSharedLock);
+    }
+
+    @Override
+    public synchronized void lock(final boolean aSharedLock) {
+        myFile.lock(aSharedLock);
+        myLength = getRecordCount();
+
+        // other process may have used counters reserved by this one
+        myReservedCounter = myCounter;
+    }
+
+    @Override
+    public void unlock() {
+        myFile.unlock();
+    }
+
+    @Override
+    public void sync() {
+        myFile.sync();
+    }
+
+    @Override
+    public synchronized long length() {
+        return myLength * Page.PAGE_SIZE;
+    }
+
+    private long getRecordCount() {
+        final long size = myFile.length() - HEADER_SIZE;
+        return size > 0 ? (size + RECORD_SIZE - 1) / RECORD_SIZE : 0;
+    }
+
+    private void encrypt(final long aPage, final byte[] aBytes, final byte[] aRecord, final int aOffset) {
+        if (myCounter >= myReservedCounter) {
+            reserveCounters();
+        }
+
+        final long counter = ++myCounter;
+
+        Bytes.pack8(aRecord, aOffset, counter);
+        Bytes.pack8(aRecord, aOffset + 8, 0);
+        crypt(aPage, counter, aBytes, 0, aRecord, aOffset + RECORD_HEADER_SIZE, Page.PAGE_SIZE);
+    }
+
+    private void reserveCounters() {
+        final byte[] header = new byte[HEADER_SIZE];
+
+        if (myFile.read(0, header) == HEADER_SIZE && Bytes.unpack8(header, MAGIC_OFFSET) == MAGIC) {
+            myCounter = Math.max(myCounter, Bytes.unpack8(header, COUNTER_OFFSET));
+        }
+
+        myReservedCounter = myCounter + COUNTER_RESERVE;
+        Bytes.pack8(myHeader, COUNTER_OFFSET, myReservedCounter);
+
+        // reservation should be persistent before any of reserved counters is stored in the page record
+        myFile.write(0, myHeader);
+        myFile.sync();
+    }
+
+    private void crypt(final long aPage, final long aCounter, final byte[] aSource, final int aSourceOffset,
+            final byte[] aTarget, final int aTargetOffset, final int aLength) {
+        final byte[] iv = new byte[16];
+
+        // low bits of the counter block are incremented by the cipher for each 16 byte block of the page
+        Bytes.pack8(iv, 0, aPage);
+        Bytes.pack8(iv, 8, aCounter << Page.PAGE_SIZE_LOG - 4);
+
+        try {
+            final Cipher cipher = myCipher.get();
+
+            cipher.init(Cipher.ENCRYPT_MODE, myKey, new IvParameterSpec(iv));
+            cipher.doFinal(aSource, aSourceOffset, aLength, aTarget, aTargetOffset);
+        } catch (final GeneralSecurityException details) {
+            throw new StorageError(StorageError.WRONG_CIPHER_KEY, details);
+        }
+    }
+
+    private static SecretKeySpec deriveKey(final String aKey, final byte[] aSalt) {
+        try {
+            final SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            final PBEKeySpec spec = new PBEKeySpec(aKey.toCharArray(), aSalt, KEY_ITERATIONS, KEY_SIZE);
+
+            return new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "AES");
+        } catch (final GeneralSecurityException details) {
+            throw new StorageError(StorageError.WRONG_CIPHER_KEY, details);
+        }
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance("AES/CTR/NoPadding");
+        } catch (final GeneralSecurityException details) {
+            throw new StorageError(StorageError.WRONG_CIPHER_KEY, details);
+        }
+    }
+
+}
@@ -16,7 +16,7 @@ import info.freelibrary.sodbox.IterableIterator;
 import info.freelibrary.sodbox.Key;
 import info.freelibrary.sodbox.StorageError;
 
-class AltBtreeFieldIndex<T> extends AltBtree<T> implements FieldIndex<T> {
+class AltBtreeFieldIndex<T> extends AltBtree<T> implements FieldIndex<T>, StoredKeyIndex {
 
     String myClassName;
 
@@ -174,6 +174,19 @@ class AltBtreeFieldIndex<T> extends AltBtree<T> implements FieldIndex<T> {
         return key != null && super.removeIfExists(key, aObject);
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean insertStoredKey(final Object aImage, final Object aObject) {
+        final Key key = extractKey(aImage);
+        return key != null && super.insert(key, (T) aObject, false) == null;
+    }
+
+    @Override
+    public boolean removeStoredKey(final Object aImage, final Object aObject) {
+        final Key key = extractKey(aImage);
+        return key != null && super.removeIfExists(key, aObject);
+    }
+
     @Override
     public boolean containsObject(final T aObject) {
         final Key key = extractKey(aObject);
@@ -15,7 +15,7 @@ import info.freelibrary.sodbox.IterableIterator;
 import info.freelibrary.sodbox.Key;
 import info.freelibrary.sodbox.StorageError;
 
-class AltBtreeMultiFieldIndex<T> extends AltBtree<T> implements FieldIndex<T> {
+class AltBtreeMultiFieldIndex<T> extends AltBtree<T> implements FieldIndex<T>, StoredKeyIndex {
 
     String myClassName;
 
@@ -142,6 +142,17 @@ class AltBtreeMultiFieldIndex<T> extends AltBtree<T> implements FieldIndex<T> {
         return super.removeIfExists(extractKey(aObject), aObject);
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean insertStoredKey(final Object aImage, final Object aObject) {
+        return super.put(extractKey(aImage), (T) aObject);
+    }
+
+    @Override
+    public boolean removeStoredKey(final Object aImage, final Object aObject) {
+        return super.removeIfExists(extractKey(aImage), aObject);
+    }
+
     @Override
     public T remove(final Key aKey) {
         return super.remove(convertKey(aKey));
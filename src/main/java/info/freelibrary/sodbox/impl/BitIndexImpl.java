@@ -0,0 +1,638 @@
+
+package info.freelibrary.sodbox.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import info.freelibrary.sodbox.BitIndex;
+import info.freelibrary.sodbox.IStoreable;
+import info.freelibrary.sodbox.Index;
+import info.freelibrary.sodbox.IterableIterator;
+import info.freelibrary.sodbox.Key;
+import info.freelibrary.sodbox.Persistent;
+import info.freelibrary.sodbox.PersistentResource;
+import info.freelibrary.sodbox.Storage;
+import info.freelibrary.sodbox.StorageError;
+
+/**
+ * Bit index storing a compressed bitmap of OIDs for each bit of the mask. OID space is split in chunks of 64K OIDs and
+ * each chunk keeps the set of the OIDs present in the index and one set per bit: a set is stored as a sorted array of
+ * the low bits of the OIDs while it is sparse and as a bitmap when it becomes dense. Selection is done by intersecting
+ * the sets of the required bits and subtracting the sets of the bits which should be cleared. Changes are collected
+ * in memory and applied to the sets when the index is stored, so every set is updated at most once per transaction.
+ */
+public class BitIndexImpl<T> extends PersistentResource implements BitIndex<T>, IStoreable {
+
+    private static final long serialVersionUID = 6983638932837969766L;
+
+    static final int CHUNK_BITS = 16;
+
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    static final int CHUNK_WORDS = CHUNK_SIZE / 64;
+
+    static final int MAX_ARRAY_SIZE = 4096; // sparse set is converted to bitmap when it gets more elements
+
+    static final int MIN_BITMAP_SIZE = MAX_ARRAY_SIZE / 2; // bitmap is converted back to array below this size
+
+    static final int MASK_BITS = 32;
+
+    static final long REMOVED = -1; // marker of the removed object in the pending changes
+
+    Index<Chunk> myChunks;
+
+    int mySize;
+
+    transient HashMap<Integer, Long> myPendingChanges; // OID -> new mask (as unsigned int) or REMOVED
+
+    /**
+     * Creates a bit index.
+     *
+     * @param aStorage A database storage
+     */
+    BitIndexImpl(final StorageImpl aStorage) {
+        super(aStorage);
+
+        myChunks = aStorage.<Chunk>createIndex(int.class, true);
+    }
+
+    BitIndexImpl() {
+    }
+
+    @Override
+    public int getMask(final T aObject) {
+        final int oid = getStorage().getOid(aObject);
+
+        if (myPendingChanges != null) {
+            final Long change = myPendingChanges.get(oid);
+
+            if (change != null) {
+                if (change == REMOVED) {
+                    throw new StorageError(StorageError.KEY_NOT_FOUND);
+                }
+
+                return (int) (long) change;
+            }
+        }
+
+        final Chunk chunk = oid == 0 ? null : myChunks.get(new Key(oid >>> CHUNK_BITS));
+        final int low = oid & CHUNK_SIZE - 1;
+
+        if (chunk == null || !chunk.getObjects().contains(low)) {
+            throw new StorageError(StorageError.KEY_NOT_FOUND);
+        }
+
+        return chunk.getMask(low);
+    }
+
+    @Override
+    public void put(final T aObject, final int aMask) {
+        final int oid = getStorage().makePersistent(aObject);
+
+        if (myPendingChanges == null) {
+            myPendingChanges = new HashMap<>();
+        }
+
+        myPendingChanges.put(oid, aMask & 0xFFFFFFFFL);
+        modify();
+    }
+
+    @Override
+    public boolean remove(final T aObject) {
+        final int oid = getStorage().getOid(aObject);
+
+        if (oid == 0) {
+            return false;
+        }
+
+        final Long change = myPendingChanges != null ? myPendingChanges.get(oid) : null;
+        final boolean present;
+
+        if (change != null) {
+            present = change != REMOVED;
+        } else {
+            final Chunk chunk = myChunks.get(new Key(oid >>> CHUNK_BITS));
+            present = chunk != null && chunk.getObjects().contains(oid & CHUNK_SIZE - 1);
+        }
+
+        if (present) {
+            if (myPendingChanges == null) {
+                myPendingChanges = new HashMap<>();
+            }
+
+            myPendingChanges.put(oid, REMOVED);
+            modify();
+        }
+
+        return present;
+    }
+
+    @Override
+    public int size() {
+        applyPendingChanges();
+        return mySize;
+    }
+
+    @Override
+    public IterableIterator<T> iterator(final int aSet, final int aClear) {
+        applyPendingChanges();
+        return new BitIndexIterator<>(this, aSet, aClear);
+    }
+
+    @Override
+    public void onStore() {
+        applyPendingChanges();
+    }
+
+    @Override
+    public void deallocate() {
+        for (final Chunk chunk : myChunks) {
+            chunk.deallocate();
+        }
+
+        myChunks.deallocate();
+        super.deallocate();
+    }
+
+    /**
+     * Apply changes collected since the last store to the persistent sets. Changes are sorted by OID, so each chunk
+     * is visited once and each of its sets is merged with all its changes at once.
+     */
+    void applyPendingChanges() {
+        if (myPendingChanges == null || myPendingChanges.isEmpty()) {
+            return;
+        }
+
+        final int[] oids = new int[myPendingChanges.size()];
+        int count = 0;
+
+        for (final Integer oid : myPendingChanges.keySet()) {
+            oids[count++] = oid;
+        }
+
+        Arrays.sort(oids);
+
+        final int[][] added = new int[MASK_BITS + 1][];
+        final int[][] removed = new int[MASK_BITS + 1][];
+        final int[] addedCount = new int[MASK_BITS + 1];
+        final int[] removedCount = new int[MASK_BITS + 1];
+
+        for (int start = 0; start < count;) {
+            final int high = oids[start] >>> CHUNK_BITS;
+
+            int end = start + 1;
+
+            while (end < count && oids[end] >>> CHUNK_BITS == high) {
+                end += 1;
+            }
+
+            Chunk chunk = myChunks.get(new Key(high));
+
+            if (chunk == null) {
+                chunk = new Chunk(getStorage());
+                myChunks.put(new Key(high), chunk);
+            }
+
+            Arrays.fill(addedCount, 0);
+            Arrays.fill(removedCount, 0);
+
+            for (int index = start; index < end; index++) {
+                final int low = oids[index] & CHUNK_SIZE - 1;
+                final long change = myPendingChanges.get(oids[index]);
+                final boolean present = chunk.getObjects().contains(low);
+                final int oldMask = present ? chunk.getMask(low) : 0;
+                final int newMask = change == REMOVED ? 0 : (int) change;
+
+                if (change == REMOVED ? present : !present) {
+                    // last slot is used for the set of the objects present in the index
+                    final int[][] target = present ? removed : added;
+                    final int[] targetCount = present ? removedCount : addedCount;
+
+                    addChange(target, targetCount, MASK_BITS, low, end - start);
+                    mySize += present ? -1 : 1;
+                }
+
+                for (int bits = oldMask ^ newMask; bits != 0; bits &= bits - 1) {
+                    final int bit = Integer.numberOfTrailingZeros(bits);
+
+                    if ((newMask & 1 << bit) != 0) {
+                        addChange(added, addedCount, bit, low, end - start);
+                    } else {
+                        addChange(removed, removedCount, bit, low, end - start);
+                    }
+                }
+            }
+
+            for (int bit = 0; bit <= MASK_BITS; bit++) {
+                if (addedCount[bit] != 0 || removedCount[bit] != 0) {
+                    chunk.update(bit, added[bit], addedCount[bit], removed[bit], removedCount[bit]);
+                }
+            }
+
+            if (chunk.myObjects.myCardinality == 0) {
+                myChunks.remove(new Key(high), chunk);
+                chunk.deallocate();
+            }
+
+            start = end;
+        }
+
+        myPendingChanges.clear();
+    }
+
+    private static void addChange(final int[][] aChanges, final int[] aCounts, final int aBit, final int aLow,
+            final int aMaxCount) {
+        if (aChanges[aBit] == null || aChanges[aBit].length < aMaxCount) {
+            aChanges[aBit] = new int[aMaxCount];
+        }
+
+        aChanges[aBit][aCounts[aBit]++] = aLow;
+    }
+
+    /**
+     * Sets of the OIDs of one chunk: OIDs present in the index and OIDs having each of the mask bits set.
+     */
+    static class Chunk extends Persistent {
+
+        private static final long serialVersionUID = -8851113666030505143L;
+
+        Container myObjects;
+
+        Container[] myBits;
+
+        Chunk() {
+        }
+
+        Chunk(final Storage aStorage) {
+            super(aStorage);
+
+            myObjects = new Container(aStorage);
+            myBits = new Container[MASK_BITS];
+        }
+
+        @Override
+        public boolean recursiveLoading() {
+            return false;
+        }
+
+        Container getObjects() {
+            myObjects.load();
+            return myObjects;
+        }
+
+        Container getBit(final int aBit) {
+            final Container container = myBits[aBit];
+
+            if (container != null) {
+                container.load();
+            }
+
+            return container;
+        }
+
+        int getMask(final int aLow) {
+            int mask = 0;
+
+            for (int bit = 0; bit < MASK_BITS; bit++) {
+                final Container container = getBit(bit);
+
+                if (container != null && container.contains(aLow)) {
+                    mask |= 1 << bit;
+                }
+            }
+
+            return mask;
+        }
+
+        void update(final int aBit, final int[] aAdded, final int aAddedCount, final int[] aRemoved,
+                final int aRemovedCount) {
+            Container container = aBit == MASK_BITS ? getObjects() : getBit(aBit);
+
+            if (container == null) {
+                container = new Container(getStorage());
+                myBits[aBit] = container;
+                modify();
+            }
+
+            container.update(aAdded, aAddedCount, aRemoved, aRemovedCount);
+
+            if (container.myCardinality == 0 && aBit != MASK_BITS) {
+                myBits[aBit] = null;
+                container.deallocate();
+                modify();
+            }
+        }
+
+        @Override
+        public void deallocate() {
+            myObjects.deallocate();
+
+            for (int bit = 0; bit < MASK_BITS; bit++) {
+                if (myBits[bit] != null) {
+                    myBits[bit].deallocate();
+                }
+            }
+
+            super.deallocate();
+        }
+    }
+
+    /**
+     * Set of the low bits of the OIDs of one chunk: sorted array while the set is sparse, bitmap when it is dense.
+     */
+    static class Container extends Persistent {
+
+        private static final long serialVersionUID = 315144738581219097L;
+
+        int myCardinality;
+
+        char[] myValues;
+
+        long[] myWords;
+
+        Container() {
+        }
+
+        Container(final Storage aStorage) {
+            super(aStorage);
+
+            myValues = new char[0];
+        }
+
+        boolean isBitmap() {
+            return myWords != null;
+        }
+
+        boolean contains(final int aLow) {
+            if (myWords != null) {
+                return (myWords[aLow >>> 6] & 1L << aLow) != 0;
+            }
+
+            return Arrays.binarySearch(myValues, 0, myCardinality, (char) aLow) >= 0;
+        }
+
+        /**
+         * Merge the changes into the set.
+         *
+         * @param aAdded ascending low bits of the added OIDs, not present in the set
+         * @param aAddedCount number of added OIDs
+         * @param aRemoved ascending low bits of the removed OIDs, present in the set
+         * @param aRemovedCount number of removed OIDs
+         */
+        void update(final int[] aAdded, final int aAddedCount, final int[] aRemoved, final int aRemovedCount) {
+            final int cardinality = myCardinality + aAddedCount - aRemovedCount;
+
+            if (myWords == null && cardinality > MAX_ARRAY_SIZE) {
+                myWords = new long[CHUNK_WORDS];
+
+                for (int index = 0; index < myCardinality; index++) {
+                    myWords[myValues[index] >>> 6] |= 1L << myValues[index];
+                }
+
+                myValues = null;
+            }
+
+            if (myWords != null) {
+                for (int index = 0; index < aAddedCount; index++) {
+                    myWords[aAdded[index] >>> 6] |= 1L << aAdded[index];
+                }
+
+                for (int index = 0; index < aRemovedCount; index++) {
+                    myWords[aRemoved[index] >>> 6] &= ~(1L << aRemoved[index]);
+                }
+
+                if (cardinality < MIN_BITMAP_SIZE) {
+                    final char[] values = new char[cardinality];
+                    int count = 0;
+
+                    for (int index = 0; index < CHUNK_WORDS; index++) {
+                        for (long word = myWords[index]; word != 0; word &= word - 1) {
+                            values[count++] = (char) (index << 6 | Long.numberOfTrailingZeros(word));
+                        }
+                    }
+
+                    myValues = values;
+                    myWords = null;
+                }
+            } else {
+                final char[] values = new char[cardinality];
+                int count = 0;
+                int added = 0;
+                int removed = 0;
+
+                for (int index = 0; index < myCardinality; index++) {
+                    final char value = myValues[index];
+
+                    while (added < aAddedCount && aAdded[added] < value) {
+                        values[count++] = (char) aAdded[added++];
+                    }
+
+                    if (removed < aRemovedCount && aRemoved[removed] == value) {
+                        removed += 1;
+                    } else {
+                        values[count++] = value;
+                    }
+                }
+
+                while (added < aAddedCount) {
+                    values[count++] = (char) aAdded[added++];
+                }
+
+                myValues = values;
+            }
+
+            myCardinality = cardinality;
+            modify();
+        }
+
+        /**
+         * Copy the set to the bitmap.
+         */
+        void copyTo(final long[] aWords) {
+            if (myWords != null) {
+                System.arraycopy(myWords, 0, aWords, 0, CHUNK_WORDS);
+            } else {
+                Arrays.fill(aWords, 0);
+
+                for (int index = 0; index < myCardinality; index++) {
+                    aWords[myValues[index] >>> 6] |= 1L << myValues[index];
+                }
+            }
+        }
+
+        /**
+         * Intersect the bitmap with the set.
+         */
+        void and(final long[] aWords) {
+            if (myWords != null) {
+                for (int index = 0; index < CHUNK_WORDS; index++) {
+                    aWords[index] &= myWords[index];
+                }
+            } else {
+                int next = 0;
+
+                for (int index = 0; index < CHUNK_WORDS; index++) {
+                    long mask = 0;
+
+                    while (next < myCardinality && myValues[next] >>> 6 == index) {
+                        mask |= 1L << myValues[next++];
+                    }
+
+                    aWords[index] &= mask;
+                }
+            }
+        }
+
+        /**
+         * Subtract the set from the bitmap.
+         */
+        void andNot(final long[] aWords) {
+            if (myWords != null) {
+                for (int index = 0; index < CHUNK_WORDS; index++) {
+                    aWords[index] &= ~myWords[index];
+                }
+            } else {
+                for (int index = 0; index < myCardinality; index++) {
+                    aWords[myValues[index] >>> 6] &= ~(1L << myValues[index]);
+                }
+            }
+        }
+    }
+
+    static class BitIndexIterator<T> extends IterableIterator<T> {
+
+        private final Storage myStorage;
+
+        private final Iterator<Map.Entry<Object, Chunk>> myChunkIterator;
+
+        private final int mySet;
+
+        private final int myClear;
+
+        private final long[] myWords = new long[CHUNK_WORDS];
+
+        private int[] myOids = new int[0];
+
+        private int myCount;
+
+        private int myPosition;
+
+        BitIndexIterator(final BitIndexImpl<T> aIndex, final int aSet, final int aClear) {
+            myStorage = aIndex.getStorage();
+            myChunkIterator = aIndex.myChunks.entryIterator();
+            mySet = aSet;
+            myClear = aClear;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (myPosition == myCount) {
+                if (!myChunkIterator.hasNext()) {
+                    return false;
+                }
+
+                final Map.Entry<Object, Chunk> entry = myChunkIterator.next();
+
+                select((Integer) entry.getKey() << CHUNK_BITS, entry.getValue());
+            }
+
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return (T) myStorage.getObjectByOID(myOids[myPosition++]);
+        }
+
+        /**
+         * Select OIDs of the chunk matching the masks.
+         */
+        private void select(final int aBase, final Chunk aChunk) {
+            final Container[] required = new Container[Integer.bitCount(mySet) + 1];
+            final Container[] excluded = new Container[Integer.bitCount(myClear)];
+            int requiredCount = 0;
+            int excludedCount = 0;
+            int smallest = 0;
+
+            myCount = 0;
+            myPosition = 0;
+            required[requiredCount++] = aChunk.getObjects();
+
+            for (int bits = mySet; bits != 0; bits &= bits - 1) {
+                final Container container = aChunk.getBit(Integer.numberOfTrailingZeros(bits));
+
+                if (container == null) {
+                    return; // no object of the chunk has this bit
+                }
+
+                if (container.myCardinality < required[smallest].myCardinality) {
+                    smallest = requiredCount;
+                }
+
+                required[requiredCount++] = container;
+            }
+
+            for (int bits = myClear; bits != 0; bits &= bits - 1) {
+                final Container container = aChunk.getBit(Integer.numberOfTrailingZeros(bits));
+
+                if (container != null) {
+                    excluded[excludedCount++] = container;
+                }
+            }
+
+            final Container first = required[smallest];
+
+            if (myOids.length < first.myCardinality) {
+                myOids = new int[Math.max(first.myCardinality, Math.min(myOids.length * 2, CHUNK_SIZE))];
+            }
+
+            if (!first.isBitmap()) {
+                // sparse set: check each of its elements in the other sets
+                candidates:
+                for (int index = 0; index < first.myCardinality; index++) {
+                    final int low = first.myValues[index];
+
+                    for (int jndex = 0; jndex < requiredCount; jndex++) {
+                        if (jndex != smallest && !required[jndex].contains(low)) {
+                            continue candidates;
+                        }
+                    }
+
+                    for (int jndex = 0; jndex < excludedCount; jndex++) {
+                        if (excluded[jndex].contains(low)) {
+                            continue candidates;
+                        }
+                    }
+
+                    myOids[myCount++] = aBase | low;
+                }
+            } else {
+                first.copyTo(myWords);
+
+                for (int index = 0; index < requiredCount; index++) {
+                    if (index != smallest) {
+                        required[index].and(myWords);
+                    }
+                }
+
+                for (int index = 0; index < excludedCount; index++) {
+                    excluded[index].andNot(myWords);
+                }
+
+                for (int index = 0; index < CHUNK_WORDS; index++) {
+                    for (long word = myWords[index]; word != 0; word &= word - 1) {
+                        myOids[myCount++] = aBase | index << 6 | Long.numberOfTrailingZeros(word);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -60,18 +60,49 @@ class Btree<T> extends PersistentCollection<T> implements Index<T> {
         isUniqueKeyIndex = aUniqueRestriction;
     }
 
-    Btree(final byte[] aObject, final int aOffset) {
+    /**
+     * Unpacks the header of the B-tree stored in the database without loading the object.
+     *
+     * @param aObject packed object
+     * @param aOffset offset of the fields of the object
+     * @param aFormatVersion format version of the database, which determines the order of the packed fields
+     */
+    Btree(final byte[] aObject, final int aOffset, final int aFormatVersion) {
         int offset = aOffset;
 
-        myHeight = Bytes.unpack4(aObject, offset);
-        offset += 4;
-        myNumOfElems = Bytes.unpack4(aObject, offset);
-        offset += 4;
-        myRoot = Bytes.unpack4(aObject, offset);
-        offset += 4;
-        myType = Bytes.unpack4(aObject, offset);
-        offset += 4;
-        isUniqueKeyIndex = aObject[offset] != 0;
+        if (aFormatVersion >= 2) {
+            // fields are packed in name order
+            isUniqueKeyIndex = aObject[offset] != 0;
+            offset += 1;
+            myHeight = Bytes.unpack4(aObject, offset);
+            offset += 4;
+            myNumOfElems = Bytes.unpack4(aObject, offset);
+            offset += 4;
+            myRoot = Bytes.unpack4(aObject, offset);
+            offset += 4;
+            myType = Bytes.unpack4(aObject, offset);
+        } else if (!ClassDescriptor.hasReverseMembersOrder) {
+            // fields are packed in declaration order
+            myRoot = Bytes.unpack4(aObject, offset);
+            offset += 4;
+            myHeight = Bytes.unpack4(aObject, offset);
+            offset += 4;
+            myType = Bytes.unpack4(aObject, offset);
+            offset += 4;
+            myNumOfElems = Bytes.unpack4(aObject, offset);
+            offset += 4;
+            isUniqueKeyIndex = aObject[offset] != 0;
+        } else {
+            isUniqueKeyIndex = aObject[offset] != 0;
+            offset += 1;
+            myNumOfElems = Bytes.unpack4(aObject, offset);
+            offset += 4;
+            myType = Bytes.unpack4(aObject, offset);
+            offset += 4;
+            myHeight = Bytes.unpack4(aObject, offset);
+            offset += 4;
+            myRoot = Bytes.unpack4(aObject, offset);
+        }
     }
 
     static int checkType(final Class aClass) {
@@ -0,0 +1,296 @@
+package info.freelibrary.sodbox.impl;
+
+import java.util.ArrayList;
+
+import info.freelibrary.sodbox.Key;
+
+/**
+ * Builds the pages of an empty B-tree from the keys added in ascending order, as the references of an index are read
+ * from its XML export. Pages of each level are filled from the left without searching and splitting them, and each
+ * page is written to the page pool once, when it is complete. A full page of the upper level is kept until the next
+ * page of its level gets a key, so that its last child can be moved to the next page if no other child follows.
+ */
+final class BtreeBuilder {
+
+    private final Btree myIndex;
+
+    private final StorageImpl myStorage;
+
+    private final int myType;
+
+    /* Pages being filled at each level of the tree, starting with the leaves */
+    private final ArrayList<BuiltPage> myOpenPages = new ArrayList<>();
+
+    /* Full pages of each level which are not written yet */
+    private final ArrayList<BuiltPage> myFullPages = new ArrayList<>();
+
+    BtreeBuilder(final Btree aIndex) {
+        myIndex = aIndex;
+        myStorage = (StorageImpl) aIndex.getStorage();
+        myType = aIndex.myType;
+    }
+
+    /**
+     * Adds the key to the last leaf page. Duplicate of the key of the unique index is ignored, as it is by the
+     * insertion in the index.
+     *
+     * @param aKey A key which is not less than the previously added keys
+     * @param aOid An OID of the object referenced by the key
+     * @return False if the key is less than the previous key, in which case it is not added
+     */
+    boolean add(final Key aKey, final int aOid) {
+        final Key key = myIndex.checkKey(aKey);
+
+        BuiltPage leaf = myOpenPages.isEmpty() ? null : myOpenPages.get(0);
+
+        if (leaf != null) {
+            final int diff = compare(key, leaf.myPage, leaf.myCount - 1);
+
+            if (diff < 0) {
+                return false;
+            } else if (diff == 0 && myIndex.isUniqueKeyIndex) {
+                return true;
+            }
+
+            if (!fits(key, leaf.myCount + 1, leaf.mySize)) {
+                addChild(1, leaf);
+                leaf = null;
+            }
+        }
+
+        if (leaf == null) {
+            leaf = new BuiltPage();
+
+            if (myOpenPages.isEmpty()) {
+                myOpenPages.add(leaf);
+                myFullPages.add(null);
+            } else {
+                myOpenPages.set(0, leaf);
+            }
+        }
+
+        leaf.mySize = putKey(leaf.myPage, leaf.myCount, leaf.mySize, key, aOid);
+        leaf.myCount += 1;
+        leaf.myLastKey = key;
+        myIndex.myNumOfElems += 1;
+
+        return true;
+    }
+
+    /**
+     * Writes the pages left at each level and sets the root of the index. The index can be updated by the regular
+     * insertion afterwards.
+     */
+    void finish() {
+        for (int level = 0; level < myOpenPages.size(); level++) {
+            final BuiltPage page = myOpenPages.get(level);
+            final BuiltPage full = myFullPages.get(level);
+
+            if (full != null) {
+                if (page.myCount == 0) {
+                    moveLastChild(full, page);
+                }
+
+                addChild(level + 1, full);
+            } else if (level == myOpenPages.size() - 1) {
+                myIndex.myRoot = page.write();
+                myIndex.myHeight = level + 1;
+                break;
+            }
+
+            addChild(level + 1, page);
+        }
+
+        myOpenPages.clear();
+        myFullPages.clear();
+    }
+
+    /**
+     * Writes the complete child page and adds it to the last page of the upper level. The key of the previous child
+     * is added along with it, since the internal page keeps the largest key of each child except the last one.
+     */
+    private void addChild(final int aLevel, final BuiltPage aChild) {
+        final int childId = aChild.write();
+
+        if (myOpenPages.size() == aLevel) {
+            myOpenPages.add(null);
+            myFullPages.add(null);
+        }
+
+        BuiltPage page = myOpenPages.get(aLevel);
+
+        if (page != null && !fits(page.myLastKey, page.myCount + 2, page.mySize)) {
+            myFullPages.set(aLevel, page);
+            page = null;
+        }
+
+        if (page == null) {
+            page = new BuiltPage();
+            setChild(page.myPage, 0, childId);
+            myOpenPages.set(aLevel, page);
+        } else {
+            page.mySize = putKey(page.myPage, page.myCount, page.mySize, page.myLastKey, getChild(page.myPage,
+                    page.myCount));
+            page.myCount += 1;
+            setChild(page.myPage, page.myCount, childId);
+
+            final BuiltPage full = myFullPages.get(aLevel);
+
+            if (full != null) {
+                myFullPages.set(aLevel, null);
+                addChild(aLevel + 1, full);
+            }
+        }
+
+        page.myLastKey = aChild.myLastKey;
+    }
+
+    /**
+     * Moves the last child of the full page to the page which has no other child, so that both pages have keys.
+     */
+    private void moveLastChild(final BuiltPage aFull, final BuiltPage aPage) {
+        final int movedId = getChild(aFull.myPage, aFull.myCount);
+        final int childId = getChild(aPage.myPage, 0);
+        final Key movedKey = aFull.myLastKey;
+        final BtreeKey lastKey = new BtreeKey(null, 0);
+        final int last = aFull.myCount - 1;
+
+        // previous child becomes the last child of the full page, so its key is removed
+        if (myType == ClassDescriptor.TP_STRING) {
+            lastKey.getStr(aFull.myPage, last);
+            aFull.mySize -= BtreePage.getKeyStrSize(aFull.myPage, last) * 2;
+        } else if (myType == ClassDescriptor.TP_ARRAY_OF_BYTES) {
+            lastKey.getByteArray(aFull.myPage, last);
+            aFull.mySize -= BtreePage.getKeyStrSize(aFull.myPage, last);
+        } else {
+            lastKey.extract(aFull.myPage, BtreePage.FIRST_KEY_OFFSET + last * ClassDescriptor.SIZE_OF[myType],
+                    myType);
+        }
+
+        aFull.myCount = last;
+        aFull.myLastKey = lastKey.myKey;
+
+        aPage.mySize = putKey(aPage.myPage, 0, 0, movedKey, movedId);
+        aPage.myCount = 1;
+        setChild(aPage.myPage, 1, childId);
+    }
+
+    private int compare(final Key aKey, final Page aPage, final int aIndex) {
+        if (myType == ClassDescriptor.TP_STRING) {
+            return BtreePage.compareStr(aKey, aPage, aIndex);
+        } else if (myType == ClassDescriptor.TP_ARRAY_OF_BYTES) {
+            return myIndex.compareByteArrays(aKey, aPage, aIndex);
+        } else {
+            return BtreePage.compare(aKey, aPage, aIndex);
+        }
+    }
+
+    /**
+     * Checks whether the key fits in the page.
+     *
+     * @param aKey A key to add
+     * @param aItems A number of items of the page with the key, including the reference to the last child of the
+     *        internal page
+     * @param aSize A size of the string or byte array keys of the page
+     */
+    private boolean fits(final Key aKey, final int aItems, final int aSize) {
+        if (myType == ClassDescriptor.TP_STRING) {
+            return aSize + ((char[]) aKey.myObjectValue).length * 2 + aItems * BtreePage.STRING_KEY_SIZE <=
+                    BtreePage.KEY_SPACE;
+        } else if (myType == ClassDescriptor.TP_ARRAY_OF_BYTES) {
+            return aSize + ((byte[]) aKey.myObjectValue).length + aItems * BtreePage.STRING_KEY_SIZE <=
+                    BtreePage.KEY_SPACE;
+        } else {
+            return aItems <= BtreePage.KEY_SPACE / (4 + ClassDescriptor.SIZE_OF[myType]);
+        }
+    }
+
+    /**
+     * Puts the key and the OID in the item of the page.
+     *
+     * @return A new size of the string or byte array keys of the page
+     */
+    private int putKey(final Page aPage, final int aIndex, final int aSize, final Key aKey, final int aOid) {
+        if (myType == ClassDescriptor.TP_STRING) {
+            final char[] chars = (char[]) aKey.myObjectValue;
+            final int size = aSize + chars.length * 2;
+
+            BtreePage.setKeyStrOffs(aPage, aIndex, BtreePage.KEY_SPACE - size);
+            BtreePage.setKeyStrSize(aPage, aIndex, chars.length);
+            BtreePage.setKeyStrOid(aPage, aIndex, aOid);
+            BtreePage.setKeyStrChars(aPage, BtreePage.KEY_SPACE - size, chars);
+
+            return size;
+        } else if (myType == ClassDescriptor.TP_ARRAY_OF_BYTES) {
+            final byte[] bytes = (byte[]) aKey.myObjectValue;
+            final int size = aSize + bytes.length;
+
+            BtreePage.setKeyStrOffs(aPage, aIndex, BtreePage.KEY_SPACE - size);
+            BtreePage.setKeyStrSize(aPage, aIndex, bytes.length);
+            BtreePage.setKeyStrOid(aPage, aIndex, aOid);
+            BtreePage.setKeyBytes(aPage, BtreePage.KEY_SPACE - size, bytes);
+
+            return size;
+        } else {
+            new BtreeKey(aKey, aOid).pack(aPage, aIndex);
+
+            return aSize;
+        }
+    }
+
+    private int getChild(final Page aPage, final int aIndex) {
+        if (myType == ClassDescriptor.TP_STRING || myType == ClassDescriptor.TP_ARRAY_OF_BYTES) {
+            return BtreePage.getKeyStrOid(aPage, aIndex);
+        } else {
+            return BtreePage.getReference(aPage, BtreePage.MAX_ITEMS - aIndex - 1);
+        }
+    }
+
+    private void setChild(final Page aPage, final int aIndex, final int aOid) {
+        if (myType == ClassDescriptor.TP_STRING || myType == ClassDescriptor.TP_ARRAY_OF_BYTES) {
+            BtreePage.setKeyStrOid(aPage, aIndex, aOid);
+        } else {
+            BtreePage.setReference(aPage, BtreePage.MAX_ITEMS - aIndex - 1, aOid);
+        }
+    }
+
+    /**
+     * Page which is filled outside of the page pool.
+     */
+    private class BuiltPage {
+
+        final Page myPage = new Page();
+
+        int myCount; // number of keys
+
+        int mySize; // size of the string or byte array keys
+
+        Key myLastKey; // largest key of the page and its children
+
+        BuiltPage() {
+            myPage.myData = new byte[Page.PAGE_SIZE];
+        }
+
+        /**
+         * Allocates the page in the storage and writes it to the page pool.
+         *
+         * @return An OID of the page
+         */
+        int write() {
+            BtreePage.setnItems(myPage, myCount);
+            BtreePage.setSize(myPage, mySize);
+
+            synchronized (myStorage) {
+                final int pageId = myStorage.allocatePage();
+                final Page page = myStorage.putPage(pageId);
+
+                System.arraycopy(myPage.myData, 0, page.myData, 0, Page.PAGE_SIZE);
+                myStorage.myPool.unfix(page);
+
+                return pageId;
+            }
+        }
+
+    }
+
+}
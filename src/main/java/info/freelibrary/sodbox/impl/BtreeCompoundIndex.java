@@ -32,6 +32,7 @@ class BtreeCompoundIndex<T> extends Btree<T> implements Index<T> {
     BtreeCompoundIndex(final int[] aTypes, final boolean aUniqueRestriction) {
         myTypes = aTypes;
         isUniqueKeyIndex = aUniqueRestriction;
+        myType = ClassDescriptor.TP_ARRAY_OF_BYTES;
     }
 
     static int getCompoundKeyComponentType(final Class aClass) {
@@ -34,7 +34,7 @@ class FieldValue implements Comparable<FieldValue> {
 
 }
 
-class BtreeFieldIndex<T> extends Btree<T> implements FieldIndex<T> {
+class BtreeFieldIndex<T> extends Btree<T> implements FieldIndex<T>, StoredKeyIndex {
 
     String myClassName;
 
@@ -208,6 +208,19 @@ class BtreeFieldIndex<T> extends Btree<T> implements FieldIndex<T> {
         return key != null && super.removeIfExists(key, aObject);
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean insertStoredKey(final Object aImage, final Object aObject) {
+        final Key key = extractKey(aImage);
+        return key != null && super.insert(key, (T) aObject, false) >= 0;
+    }
+
+    @Override
+    public boolean removeStoredKey(final Object aImage, final Object aObject) {
+        final Key key = extractKey(aImage);
+        return key != null && super.removeIfExists(key, aObject);
+    }
+
     @Override
     public boolean containsObject(final T aObject) {
         final Key key = extractKey(aObject);
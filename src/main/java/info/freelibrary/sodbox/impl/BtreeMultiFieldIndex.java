@@ -43,7 +43,7 @@ class MultiFieldValue implements Comparable<MultiFieldValue> {
 
 }
 
-class BtreeMultiFieldIndex<T> extends Btree<T> implements FieldIndex<T> {
+class BtreeMultiFieldIndex<T> extends Btree<T> implements FieldIndex<T>, StoredKeyIndex {
 
     String myClassName;
 
@@ -602,6 +602,17 @@ class BtreeMultiFieldIndex<T> extends Btree<T> implements FieldIndex<T> {
         return super.removeIfExists(extractKey(aObject), aObject);
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean insertStoredKey(final Object aImage, final Object aObject) {
+        return super.put(extractKey(aImage), (T) aObject);
+    }
+
+    @Override
+    public boolean removeStoredKey(final Object aImage, final Object aObject) {
+        return super.removeIfExists(extractKey(aImage), aObject);
+    }
+
     @Override
     public T remove(final Key aKey) {
         return super.remove(convertKey(aKey));
@@ -19,15 +19,17 @@ final class BtreePage {
 
     private static final String ASSERTION_MSG = "String fits in the B-Tree page";
 
+    // sizes and offsets are stored as unsigned 16-bit values, so they fit in pages up to 64 KB
+
     private BtreePage() {
     }
 
     static int getnItems(final Page aPage) {
-        return Bytes.unpack2(aPage.myData, 0);
+        return Bytes.unpack2(aPage.myData, 0) & 0xFFFF;
     }
 
     static int getSize(final Page aPage) {
-        return Bytes.unpack2(aPage.myData, 2);
+        return Bytes.unpack2(aPage.myData, 2) & 0xFFFF;
     }
 
     static int getKeyStrOid(final Page aPage, final int aIndex) {
@@ -35,11 +37,11 @@ final class BtreePage {
     }
 
     static int getKeyStrSize(final Page aPage, final int aIndex) {
-        return Bytes.unpack2(aPage.myData, FIRST_KEY_OFFSET + aIndex * 8 + 4);
+        return Bytes.unpack2(aPage.myData, FIRST_KEY_OFFSET + aIndex * 8 + 4) & 0xFFFF;
     }
 
     static int getKeyStrOffs(final Page aPage, final int aIndex) {
-        return Bytes.unpack2(aPage.myData, FIRST_KEY_OFFSET + aIndex * 8 + 6);
+        return Bytes.unpack2(aPage.myData, FIRST_KEY_OFFSET + aIndex * 8 + 6) & 0xFFFF;
     }
 
     static int getReference(final Page aPage, final int aIndex) {
@@ -0,0 +1,855 @@
+package info.freelibrary.sodbox.impl;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import info.freelibrary.sodbox.IPersistent;
+import info.freelibrary.sodbox.IPersistentHash;
+import info.freelibrary.sodbox.Persistent;
+import info.freelibrary.sodbox.PersistentResource;
+import info.freelibrary.sodbox.Storage;
+
+/**
+ * Persistent hash table using extendible hashing. Directory maps low bits of the hash code to the bucket, bucket
+ * keeps hash codes, keys and values of its entries in arrays organized as open addressing hash table with linear
+ * probing. Keys and values of value types are packed in the bucket object itself, persistent ones are stored as
+ * references and loaded on demand, so lookup loads directory (usually cached) and single bucket. Overflowed bucket
+ * is split in two, doubling the directory when the bucket is referenced by single directory entry.
+ */
+class ExtendibleHashImpl<K, V> extends PersistentResource implements IPersistentHash<K, V> {
+
+    private static final long serialVersionUID = 5176570885568419788L;
+
+    static final int MIN_BUCKET_SIZE = 8;
+
+    // low bits of hash code select bucket and high bits select slot in the bucket, so they should not overlap
+    static final int MAX_DIRECTORY_DEPTH = 24;
+
+    Directory myDirectory;
+
+    int myElementCount;
+
+    int myBucketSize;
+
+    transient volatile Set<Entry<K, V>> myEntrySet;
+
+    transient volatile Set<K> myKeySet;
+
+    transient volatile Collection<V> myValues;
+
+    ExtendibleHashImpl(final Storage aStorage, final int aBucketSize) {
+        super(aStorage);
+
+        int bucketSize = MIN_BUCKET_SIZE;
+
+        while (bucketSize < aBucketSize) {
+            bucketSize <<= 1;
+        }
+
+        myBucketSize = bucketSize;
+    }
+
+    ExtendibleHashImpl() {
+    }
+
+    @Override
+    public boolean recursiveLoading() {
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return myElementCount;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return myElementCount == 0;
+    }
+
+    @Override
+    public boolean containsValue(final Object aValue) {
+        final Iterator<Entry<K, V>> iterator = entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            final V value = iterator.next().getValue();
+
+            if (aValue == null ? value == null : aValue.equals(value)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean containsKey(final Object aKey) {
+        return getEntry(aKey) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(final Object aKey) {
+        if (myDirectory != null) {
+            final int hashCode = aKey.hashCode();
+            final Bucket bucket = getDirectory().findBucket(hashCode);
+            final int slot = bucket.find(aKey, hashCode);
+
+            if (slot >= 0) {
+                return (V) loadIfPersistent(bucket.myValues[slot]);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public Entry<K, V> getEntry(final Object aKey) {
+        if (myDirectory != null) {
+            final int hashCode = aKey.hashCode();
+            final Bucket bucket = getDirectory().findBucket(hashCode);
+            final int slot = bucket.find(aKey, hashCode);
+
+            if (slot >= 0) {
+                return new HashEntry(bucket.myKeys[slot], bucket.myValues[slot]);
+            }
+        }
+
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V put(final K aKey, final V aValue) {
+        final int hashCode = aKey.hashCode();
+
+        if (myDirectory == null) {
+            myDirectory = new Directory(getStorage(), myBucketSize);
+            modify();
+        }
+
+        final Directory directory = getDirectory();
+
+        while (true) {
+            final int index = directory.getIndex(hashCode);
+            final Bucket bucket = directory.getBucket(index);
+            final int slot = bucket.find(aKey, hashCode);
+
+            if (slot >= 0) {
+                final V prevValue = (V) loadIfPersistent(bucket.myValues[slot]);
+
+                bucket.myValues[slot] = aValue;
+                bucket.modify();
+
+                return prevValue;
+            }
+
+            if (bucket.isFull()) {
+                directory.split(index, bucket);
+            } else {
+                bucket.insert(aKey, aValue, hashCode);
+                myElementCount += 1;
+                modify();
+
+                return null;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V remove(final Object aKey) {
+        if (myDirectory != null) {
+            final int hashCode = aKey.hashCode();
+            final Bucket bucket = getDirectory().findBucket(hashCode);
+            final int slot = bucket.find(aKey, hashCode);
+
+            if (slot >= 0) {
+                final V value = (V) loadIfPersistent(bucket.myValues[slot]);
+
+                bucket.remove(slot);
+                myElementCount -= 1;
+                modify();
+
+                return value;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void putAll(final Map<? extends K, ? extends V> aMap) {
+        final Iterator<? extends Entry<? extends K, ? extends V>> iterator = aMap.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            final Entry<? extends K, ? extends V> e = iterator.next();
+
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    @Override
+    public void clear() {
+        if (myDirectory != null) {
+            getDirectory().deallocate();
+            myDirectory = null;
+            myElementCount = 0;
+            modify();
+        }
+    }
+
+    @Override
+    public void deallocate() {
+        if (myDirectory != null) {
+            getDirectory().deallocate();
+        }
+
+        super.deallocate();
+    }
+
+    @Override
+    public Set<K> keySet() {
+        if (myKeySet == null) {
+            myKeySet = new AbstractSet<K>() {
+
+                @Override
+                public Iterator<K> iterator() {
+                    return new Iterator<K>() {
+
+                        private final Iterator<Entry<K, V>> myKeyIterator = entrySet().iterator();
+
+                        @Override
+                        public boolean hasNext() {
+                            return myKeyIterator.hasNext();
+                        }
+
+                        @Override
+                        public K next() {
+                            return myKeyIterator.next().getKey();
+                        }
+
+                        @Override
+                        public void remove() {
+                            myKeyIterator.remove();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return ExtendibleHashImpl.this.size();
+                }
+
+                @Override
+                public boolean contains(final Object aKey) {
+                    return ExtendibleHashImpl.this.containsKey(aKey);
+                }
+            };
+        }
+
+        return myKeySet;
+    }
+
+    @Override
+    public Collection<V> values() {
+        if (myValues == null) {
+            myValues = new AbstractCollection<V>() {
+
+                @Override
+                public Iterator<V> iterator() {
+                    return new Iterator<V>() {
+
+                        private final Iterator<Entry<K, V>> myValuesIterator = entrySet().iterator();
+
+                        @Override
+                        public boolean hasNext() {
+                            return myValuesIterator.hasNext();
+                        }
+
+                        @Override
+                        public V next() {
+                            return myValuesIterator.next().getValue();
+                        }
+
+                        @Override
+                        public void remove() {
+                            myValuesIterator.remove();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return ExtendibleHashImpl.this.size();
+                }
+
+                @Override
+                public boolean contains(final Object aValue) {
+                    return ExtendibleHashImpl.this.containsValue(aValue);
+                }
+            };
+        }
+
+        return myValues;
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        if (myEntrySet == null) {
+            myEntrySet = new AbstractSet<Entry<K, V>>() {
+
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return ExtendibleHashImpl.this.size();
+                }
+
+                @SuppressWarnings("unchecked")
+                @Override
+                public boolean remove(final Object aObject) {
+                    if (!(aObject instanceof Map.Entry)) {
+                        return false;
+                    }
+
+                    final Map.Entry<K, V> entry = (Map.Entry<K, V>) aObject;
+
+                    if (contains(entry)) {
+                        ExtendibleHashImpl.this.remove(entry.getKey());
+
+                        return true;
+                    }
+
+                    return false;
+                }
+
+                @SuppressWarnings("unchecked")
+                @Override
+                public boolean contains(final Object aEntry) {
+                    if (!(aEntry instanceof Map.Entry)) {
+                        return false;
+                    }
+
+                    final Entry<K, V> entry = (Entry<K, V>) aEntry;
+                    final Entry<K, V> found = getEntry(entry.getKey());
+
+                    if (found == null) {
+                        return false;
+                    }
+
+                    return entry.getValue() == null ? found.getValue() == null : entry.getValue().equals(found
+                            .getValue());
+                }
+            };
+        }
+
+        return myEntrySet;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean equals(final Object aObject) {
+        if (aObject == this) {
+            return true;
+        }
+
+        if (!(aObject instanceof Map)) {
+            return false;
+        }
+
+        final Map<K, V> map = (Map<K, V>) aObject;
+
+        if (map.size() != size()) {
+            return false;
+        }
+
+        try {
+            final Iterator<Entry<K, V>> iterator = entrySet().iterator();
+
+            while (iterator.hasNext()) {
+                final Entry<K, V> e = iterator.next();
+                final K key = e.getKey();
+                final V value = e.getValue();
+
+                if (value == null) {
+                    if (!(map.get(key) == null && map.containsKey(key))) {
+                        return false;
+                    }
+                } else {
+                    if (!value.equals(map.get(key))) {
+                        return false;
+                    }
+                }
+            }
+        } catch (final ClassCastException details) {
+            return false;
+        } catch (final NullPointerException details) {
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        final Iterator<Entry<K, V>> iterator = entrySet().iterator();
+
+        int h = 0;
+
+        while (iterator.hasNext()) {
+            h += iterator.next().hashCode();
+        }
+
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuffer buffer = new StringBuffer();
+        final Iterator<Entry<K, V>> iterator = entrySet().iterator();
+
+        buffer.append("{");
+
+        boolean hasNext = iterator.hasNext();
+
+        while (hasNext) {
+            final Entry<K, V> e = iterator.next();
+            final K key = e.getKey();
+            final V value = e.getValue();
+
+            buffer.append(key == this ? "(this Hash)" : key);
+            buffer.append("=");
+            buffer.append(value == this ? "(this Hash)" : value);
+
+            hasNext = iterator.hasNext();
+
+            if (hasNext) {
+                buffer.append(", ");
+            }
+        }
+
+        buffer.append("}");
+
+        return buffer.toString();
+    }
+
+    private Directory getDirectory() {
+        myDirectory.load();
+        return myDirectory;
+    }
+
+    /**
+     * Mix bits of the hash code, so that both low bits (used to select bucket) and high bits (used to select slot in
+     * the bucket) are well distributed even for poor hash functions like the one of <code>Integer</code>.
+     */
+    static int mix(final int aHashCode) {
+        int h = aHashCode;
+
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+
+        return h;
+    }
+
+    static Object loadIfPersistent(final Object aObject) {
+        if (aObject instanceof IPersistent) {
+            ((IPersistent) aObject).load();
+        }
+
+        return aObject;
+    }
+
+    static class Directory extends Persistent {
+
+        private static final long serialVersionUID = -5602483422851107023L;
+
+        int myDepth;
+
+        Bucket[] myBuckets;
+
+        Directory(final Storage aStorage, final int aBucketSize) {
+            super(aStorage);
+
+            myBuckets = new Bucket[] { new Bucket(aStorage, aBucketSize) };
+        }
+
+        Directory() {
+        }
+
+        @Override
+        public boolean recursiveLoading() {
+            return false;
+        }
+
+        int getIndex(final int aHashCode) {
+            return mix(aHashCode) & (1 << myDepth) - 1;
+        }
+
+        Bucket getBucket(final int aIndex) {
+            final Bucket bucket = myBuckets[aIndex];
+
+            bucket.load();
+
+            return bucket;
+        }
+
+        Bucket findBucket(final int aHashCode) {
+            return getBucket(getIndex(aHashCode));
+        }
+
+        /**
+         * Split the bucket referenced by specified directory entry. If all entries of the bucket have the same bit
+         * used to split it (or directory can not be extended any more), bucket is enlarged instead.
+         */
+        void split(final int aIndex, final Bucket aBucket) {
+            final int bit = 1 << aBucket.myDepth;
+
+            if (aBucket.myDepth == MAX_DIRECTORY_DEPTH || !aBucket.isSplittable(bit)) {
+                aBucket.resize(aBucket.myKeys.length << 1);
+                return;
+            }
+
+            if (aBucket.myDepth == myDepth) {
+                final Bucket[] buckets = new Bucket[myBuckets.length << 1];
+
+                System.arraycopy(myBuckets, 0, buckets, 0, myBuckets.length);
+                System.arraycopy(myBuckets, 0, buckets, myBuckets.length, myBuckets.length);
+
+                myBuckets = buckets;
+                myDepth += 1;
+            }
+
+            final Bucket sibling = aBucket.split(bit);
+
+            for (int index = aIndex & bit - 1 | bit; index < myBuckets.length; index += bit << 1) {
+                myBuckets[index] = sibling;
+            }
+
+            modify();
+        }
+
+        @Override
+        public void deallocate() {
+            for (int index = 0; index < myBuckets.length; index++) {
+                final Bucket bucket = getBucket(index);
+
+                // bucket of depth d is referenced by each 2^d-th entry, the first reference is below 2^d
+                if (index < 1 << bucket.myDepth) {
+                    bucket.deallocate();
+                }
+            }
+
+            super.deallocate();
+        }
+    }
+
+    static class Bucket extends Persistent {
+
+        private static final long serialVersionUID = 4978125591519831385L;
+
+        int myDepth;
+
+        int mySize;
+
+        int[] myHashCodes;
+
+        Object[] myKeys; // null is used to mark free slot
+
+        Object[] myValues;
+
+        Bucket(final Storage aStorage, final int aCapacity) {
+            super(aStorage);
+
+            myHashCodes = new int[aCapacity];
+            myKeys = new Object[aCapacity];
+            myValues = new Object[aCapacity];
+        }
+
+        Bucket() {
+        }
+
+        @Override
+        public boolean recursiveLoading() {
+            return false;
+        }
+
+        boolean isFull() {
+            return (mySize + 1) * 4 > myKeys.length * 3;
+        }
+
+        int getSlot(final int aHashCode) {
+            return mix(aHashCode) >>> 32 - Integer.numberOfTrailingZeros(myKeys.length);
+        }
+
+        int find(final Object aKey, final int aHashCode) {
+            final int mask = myKeys.length - 1;
+
+            for (int slot = getSlot(aHashCode); myKeys[slot] != null; slot = slot + 1 & mask) {
+                if (myHashCodes[slot] == aHashCode) {
+                    final Object key = loadIfPersistent(myKeys[slot]);
+
+                    if (key == aKey || key.equals(aKey)) {
+                        return slot;
+                    }
+                }
+            }
+
+            return -1;
+        }
+
+        void insert(final Object aKey, final Object aValue, final int aHashCode) {
+            add(aKey, aValue, aHashCode);
+            modify();
+        }
+
+        private void add(final Object aKey, final Object aValue, final int aHashCode) {
+            final int mask = myKeys.length - 1;
+
+            int slot = getSlot(aHashCode);
+
+            while (myKeys[slot] != null) {
+                slot = slot + 1 & mask;
+            }
+
+            myHashCodes[slot] = aHashCode;
+            myKeys[slot] = aKey;
+            myValues[slot] = aValue;
+            mySize += 1;
+        }
+
+        /**
+         * Remove entry from the slot using backward shift deletion: subsequent entries of the probe sequence are
+         * moved to the freed slot unless it precedes their home slot, so no tombstones are needed.
+         */
+        void remove(final int aSlot) {
+            final int mask = myKeys.length - 1;
+
+            int hole = aSlot;
+
+            for (int slot = hole + 1 & mask; myKeys[slot] != null; slot = slot + 1 & mask) {
+                final int home = getSlot(myHashCodes[slot]);
+
+                if ((slot - home & mask) >= (slot - hole & mask)) {
+                    myHashCodes[hole] = myHashCodes[slot];
+                    myKeys[hole] = myKeys[slot];
+                    myValues[hole] = myValues[slot];
+                    hole = slot;
+                }
+            }
+
+            myHashCodes[hole] = 0;
+            myKeys[hole] = null;
+            myValues[hole] = null;
+            mySize -= 1;
+            modify();
+        }
+
+        boolean isSplittable(final int aBit) {
+            int count = 0;
+
+            for (int index = 0; index < myKeys.length; index++) {
+                if (myKeys[index] != null && (mix(myHashCodes[index]) & aBit) != 0) {
+                    count += 1;
+                }
+            }
+
+            return count != 0 && count != mySize;
+        }
+
+        /**
+         * Move entries having the specified bit set to the new bucket.
+         */
+        Bucket split(final int aBit) {
+            final Bucket sibling = new Bucket(getStorage(), myKeys.length);
+            final int[] hashCodes = myHashCodes;
+            final Object[] keys = myKeys;
+            final Object[] values = myValues;
+
+            myHashCodes = new int[keys.length];
+            myKeys = new Object[keys.length];
+            myValues = new Object[keys.length];
+            mySize = 0;
+            myDepth += 1;
+            sibling.myDepth = myDepth;
+
+            for (int index = 0; index < keys.length; index++) {
+                if (keys[index] != null) {
+                    final Bucket bucket = (mix(hashCodes[index]) & aBit) != 0 ? sibling : this;
+
+                    bucket.add(keys[index], values[index], hashCodes[index]);
+                }
+            }
+
+            modify();
+
+            return sibling;
+        }
+
+        void resize(final int aCapacity) {
+            final int[] hashCodes = myHashCodes;
+            final Object[] keys = myKeys;
+            final Object[] values = myValues;
+
+            myHashCodes = new int[aCapacity];
+            myKeys = new Object[aCapacity];
+            myValues = new Object[aCapacity];
+            mySize = 0;
+
+            for (int index = 0; index < keys.length; index++) {
+                if (keys[index] != null) {
+                    add(keys[index], values[index], hashCodes[index]);
+                }
+            }
+
+            modify();
+        }
+    }
+
+    class HashEntry implements Entry<K, V> {
+
+        final K myKey;
+
+        V myValue;
+
+        @SuppressWarnings("unchecked")
+        HashEntry(final Object aKey, final Object aValue) {
+            myKey = (K) loadIfPersistent(aKey);
+            myValue = (V) loadIfPersistent(aValue);
+        }
+
+        @Override
+        public K getKey() {
+            return myKey;
+        }
+
+        @Override
+        public V getValue() {
+            return myValue;
+        }
+
+        @Override
+        public V setValue(final V aValue) {
+            final V prevValue = myValue;
+
+            put(myKey, aValue);
+            myValue = aValue;
+
+            return prevValue;
+        }
+
+        @Override
+        public boolean equals(final Object aObject) {
+            if (!(aObject instanceof Map.Entry)) {
+                return false;
+            }
+
+            final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) aObject;
+
+            return myKey.equals(entry.getKey()) && (myValue == null ? entry.getValue() == null : myValue.equals(
+                    entry.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            return myKey.hashCode() ^ (myValue == null ? 0 : myValue.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return myKey + "=" + myValue;
+        }
+    }
+
+    /**
+     * Iterator through the buckets in directory order. Entries of the bucket are copied when iterator reaches it,
+     * so removing of the current entry (which may shift entries inside the bucket) doesn't affect the iteration.
+     */
+    class EntryIterator implements Iterator<Entry<K, V>> {
+
+        int myIndex;
+
+        Object[] myKeys = new Object[0];
+
+        Object[] myValues = new Object[0];
+
+        int myPosition;
+
+        HashEntry myCurrent;
+
+        EntryIterator() {
+            nextBucket();
+        }
+
+        private void nextBucket() {
+            myPosition = 0;
+            myKeys = new Object[0];
+
+            if (myDirectory == null) {
+                return;
+            }
+
+            final Directory directory = getDirectory();
+
+            while (myIndex < directory.myBuckets.length) {
+                final int index = myIndex++;
+                final Bucket bucket = directory.getBucket(index);
+
+                if (index < 1 << bucket.myDepth && bucket.mySize != 0) {
+                    myKeys = new Object[bucket.mySize];
+                    myValues = new Object[bucket.mySize];
+
+                    for (int slot = 0, count = 0; slot < bucket.myKeys.length; slot++) {
+                        if (bucket.myKeys[slot] != null) {
+                            myKeys[count] = bucket.myKeys[slot];
+                            myValues[count++] = bucket.myValues[slot];
+                        }
+                    }
+
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return myPosition < myKeys.length;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            myCurrent = new HashEntry(myKeys[myPosition], myValues[myPosition]);
+
+            if (++myPosition == myKeys.length) {
+                nextBucket();
+            }
+
+            return myCurrent;
+        }
+
+        @Override
+        public void remove() {
+            if (myCurrent == null) {
+                throw new IllegalStateException();
+            }
+
+            ExtendibleHashImpl.this.remove(myCurrent.myKey);
+            myCurrent = null;
+        }
+    }
+}
@@ -5,8 +5,22 @@ import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import info.freelibrary.sodbox.Assert;
 import info.freelibrary.sodbox.Index;
@@ -16,6 +30,7 @@ import info.freelibrary.sodbox.Persistent;
 import info.freelibrary.sodbox.PersistentResource;
 import info.freelibrary.sodbox.Storage;
 import info.freelibrary.sodbox.StorageError;
+import info.freelibrary.sodbox.fulltext.Analyzer;
 import info.freelibrary.sodbox.fulltext.FullTextIndex;
 import info.freelibrary.sodbox.fulltext.FullTextQuery;
 import info.freelibrary.sodbox.fulltext.FullTextQueryBinaryOp;
@@ -27,6 +42,7 @@ import info.freelibrary.sodbox.fulltext.FullTextSearchHit;
 import info.freelibrary.sodbox.fulltext.FullTextSearchResult;
 import info.freelibrary.sodbox.fulltext.FullTextSearchable;
 import info.freelibrary.sodbox.fulltext.Occurrence;
+import info.freelibrary.sodbox.fulltext.TermDictionary;
 
 public class FullTextIndexImpl extends PersistentResource implements FullTextIndex {
 
@@ -36,12 +52,24 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
 
     static final int COMPRESSION_OVERHEAD = 8;
 
+    static final int MIN_DOCUMENTS_PER_PARSER = 16;
+
+    static final int MAX_DICTIONARY_SIZE = 64 * 1024;
+
+    static final long PARSER_KEEP_ALIVE_SECONDS = 60;
+
     protected Index myInverseIndex;
 
     protected Index myDocuments;
 
     protected FullTextSearchHelper myHelper;
 
+    transient Analyzer myAnalyzer;
+
+    transient TermDictionary myDictionary;
+
+    transient ExecutorService myParserExecutor;
+
     /**
      * Creates a full-text index.
      *
@@ -49,21 +77,53 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
      * @param aSearchHelper A full text search helper
      */
     public FullTextIndexImpl(final Storage aStorage, final FullTextSearchHelper aSearchHelper) {
+        this(aStorage, aSearchHelper, aStorage.createIndex(String.class, true));
+    }
+
+    /**
+     * Creates a full-text index with the specified inverse index, which may be <code>null</code> if a subclass keeps
+     * the inverse lists elsewhere.
+     *
+     * @param aStorage A database storage
+     * @param aSearchHelper A full text search helper
+     * @param aInverseIndex An index of inverse lists by word
+     */
+    protected FullTextIndexImpl(final Storage aStorage, final FullTextSearchHelper aSearchHelper,
+            final Index aInverseIndex) {
         super(aStorage);
 
         this.myHelper = aSearchHelper;
-        myInverseIndex = aStorage.createIndex(String.class, true);
+        myInverseIndex = aInverseIndex;
         myDocuments = aStorage.createIndex(Object.class, true);
     }
 
-    @SuppressWarnings("unused")
-    private FullTextIndexImpl() {
+    FullTextIndexImpl() {
     }
 
     @Override
     public Iterator<Keyword> getKeywords(final String aPrefix) {
-        return new KeywordIterator(myInverseIndex.entryIterator(new Key(aPrefix), new Key(aPrefix + Character.MAX_VALUE,
-                false), Index.ASCENT_ORDER));
+        return new KeywordIterator(getInverseLists(aPrefix));
+    }
+
+    /**
+     * Gets the inverse list of the word.
+     *
+     * @param aWord normal form of the word
+     * @return inverse list or <code>null</code> if there are no documents containing the word
+     */
+    protected InverseList getInverseList(final String aWord) {
+        return (InverseList) myInverseIndex.get(aWord);
+    }
+
+    /**
+     * Gets the inverse lists of the words with the specified prefix.
+     *
+     * @param aPrefix prefix of the words
+     * @return iterator of map entries with the word as the key and its inverse list as the value, in word order
+     */
+    protected Iterator getInverseLists(final String aPrefix) {
+        return myInverseIndex.entryIterator(new Key(aPrefix), new Key(aPrefix + Character.MAX_VALUE, false),
+                Index.ASCENT_ORDER);
     }
 
     @Override
@@ -91,9 +151,266 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
         add(aObject, aObject.getText(), aObject.getLanguage());
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void add(final Object aObject, final Reader aText, final String aLanguage) {
+        addAll(new Object[] { aObject }, new Reader[] { aText }, new String[] { aLanguage });
+    }
+
+    @Override
+    public void addAll(final Collection<? extends FullTextSearchable> aObjects) {
+        final Object[] objects = aObjects.toArray();
+        final Reader[] texts = new Reader[objects.length];
+        final String[] languages = new String[objects.length];
+
+        for (int i = 0; i < objects.length; i++) {
+            texts[i] = ((FullTextSearchable) objects[i]).getText();
+            languages[i] = ((FullTextSearchable) objects[i]).getLanguage();
+        }
+
+        addAll(objects, texts, languages);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void addAll(final Object[] aObjects, final Reader[] aTexts, final String[] aLanguages) {
+        final ParsedDocument[] docs = parseDocuments(aObjects, aTexts, aLanguages);
+        final TreeMap<String, ArrayList<Posting>> postings = new TreeMap<>();
+        final IdentityHashMap<Object, ParsedDocument> last = new IdentityHashMap<>();
+        final Storage storage = getStorage();
+
+        for (int i = 0; i < docs.length; i++) {
+            last.put(docs[i].myObject, docs[i]);
+        }
+
+        for (int i = 0; i < docs.length; i++) {
+            final ParsedDocument parsed = docs[i];
+
+            if (last.get(parsed.myObject) != parsed) { // document is added once more later in the batch
+                continue;
+            }
+
+            delete(parsed.myObject);
+
+            if (parsed.myWords.length > 0) {
+                final Document doc = new Document(storage, parsed.myObject);
+
+                myDocuments.put(new Key(parsed.myObject), doc);
+
+                final int oid = storage.getOid(parsed.myObject);
+
+                for (int j = 0; j < parsed.myWords.length; j++) {
+                    ArrayList<Posting> list = postings.get(parsed.myWords[j]);
+
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        postings.put(parsed.myWords[j], list);
+                    }
+
+                    list.add(new Posting(oid, doc, parsed.myOccurrences[j]));
+                }
+            }
+        }
+
+        for (final Map.Entry<String, ArrayList<Posting>> entry : postings.entrySet()) {
+            final ArrayList<Posting> list = entry.getValue();
+            final int n = list.size();
+            final int[] oids = new int[n];
+            final DocumentOccurrences[] occurrences = new DocumentOccurrences[n];
+
+            Collections.sort(list);
+
+            for (int i = 0; i < n; i++) {
+                oids[i] = list.get(i).myOID;
+                occurrences[i] = list.get(i).myOccurrences;
+            }
+
+            InverseList inverseList = (InverseList) myInverseIndex.get(entry.getKey());
+
+            if (inverseList == null) {
+                inverseList = new InverseList(storage, oids[0], occurrences[0], occurrences[0].getFrequency());
+                inverseList.addAll(oids, occurrences, 1);
+                myInverseIndex.put(entry.getKey(), inverseList);
+            } else {
+                inverseList.addAll(oids, occurrences, 0);
+            }
+
+            for (int i = 0; i < n; i++) {
+                if (inverseList.isCompressed) {
+                    list.get(i).myDocument.myOccurrences.add(inverseList);
+                } else {
+                    occurrences[i].myInverseList = inverseList;
+                    occurrences[i].modify();
+                    list.get(i).myDocument.myOccurrences.add(occurrences[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the texts of the documents: large batches are split between worker threads.
+     */
+    ParsedDocument[] parseDocuments(final Object[] aObjects, final Reader[] aTexts, final String[] aLanguages) {
+        final ParsedDocument[] docs = new ParsedDocument[aObjects.length];
+        final int nThreads = Math.min(Runtime.getRuntime().availableProcessors(), docs.length /
+                MIN_DOCUMENTS_PER_PARSER);
+
+        if (nThreads <= 1) {
+            for (int i = 0; i < docs.length; i++) {
+                docs[i] = parseDocument(aObjects[i], aTexts[i], aLanguages[i]);
+            }
+
+            return docs;
+        }
+
+        final ExecutorService executor = getParserExecutor();
+        final ArrayList<Future<Object>> futures = new ArrayList<>(nThreads);
+
+        try {
+            for (int i = 0; i < nThreads; i++) {
+                final int first = i;
+
+                futures.add(executor.submit(new Callable<Object>() {
+
+                    @Override
+                    public Object call() {
+                        final Analyzer analyzer = myHelper.createAnalyzer();
+                        final TermDictionary dictionary = new TermDictionary();
+
+                        for (int j = first; j < docs.length; j += nThreads) {
+                            docs[j] = parseDocument(aObjects[j], aTexts[j], aLanguages[j], analyzer, dictionary);
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+
+            for (final Future<Object> future : futures) {
+                future.get();
+            }
+        } catch (final InterruptedException x) {
+            throw new StorageError(StorageError.FULL_TEXT_INDEX_ERROR, x);
+        } catch (final ExecutionException x) {
+            if (x.getCause() instanceof StorageError) {
+                throw (StorageError) x.getCause();
+            }
+
+            throw new StorageError(StorageError.FULL_TEXT_INDEX_ERROR, x);
+        } finally {
+            for (final Future<Object> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        return docs;
+    }
+
+    /**
+     * Gets the pool of the parser threads shared by all batches added to this index. Threads are stopped when they
+     * are idle for a while, so the pool does not need to be shut down when the index is no longer used.
+     */
+    synchronized ExecutorService getParserExecutor() {
+        if (myParserExecutor == null) {
+            final int nThreads = Runtime.getRuntime().availableProcessors();
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(nThreads, nThreads,
+                    PARSER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), aTask -> {
+                        final Thread thread = new Thread(aTask, "FullTextIndex parser");
+
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+
+            executor.allowCoreThreadTimeOut(true);
+            myParserExecutor = executor;
+        }
+
+        return myParserExecutor;
+    }
+
+    synchronized void shutdownParserExecutor() {
+        if (myParserExecutor != null) {
+            myParserExecutor.shutdown();
+            myParserExecutor = null;
+        }
+    }
+
+    /**
+     * Splits the text of the document into terms using the analyzer of this index.
+     */
+    ParsedDocument parseDocument(final Object aObject, final Reader aText, final String aLanguage) {
+        if (myDictionary == null) {
+            myAnalyzer = myHelper.createAnalyzer();
+            myDictionary = new TermDictionary();
+        } else if (myDictionary.size() > MAX_DICTIONARY_SIZE) {
+            myDictionary.clear();
+        }
+
+        return parseDocument(aObject, aText, aLanguage, myAnalyzer, myDictionary);
+    }
+
+    /**
+     * Splits the text of the document into terms and encodes occurrences of each of them. Only the helper, the
+     * analyzer and the dictionary are used, so documents can be parsed concurrently by the threads having their own
+     * analyzers and dictionaries.
+     */
+    ParsedDocument parseDocument(final Object aObject, final Reader aText, final String aLanguage,
+            final Analyzer aAnalyzer, final TermDictionary aDictionary) {
+        if (aAnalyzer == null) {
+            return parseOccurrences(aObject, aText, aLanguage);
+        }
+
+        final int count;
+
+        try {
+            count = aAnalyzer.analyze(aText, aDictionary);
+        } catch (final IOException x) {
+            throw new StorageError(StorageError.FULL_TEXT_INDEX_ERROR, x);
+        }
+
+        final int[] termIds = aAnalyzer.getTermIds();
+        final int[] positions = aAnalyzer.getPositions();
+        final long[] tokens = new long[count];
+
+        int nTerms = 0;
+
+        for (int i = 0; i < count; i++) {
+            tokens[i] = (long) termIds[i] << 32 | positions[i];
+        }
+
+        Arrays.sort(tokens);
+
+        for (int i = 0; i < count; i++) {
+            positions[i] = (int) tokens[i]; // positions of the tokens are already copied, so buffer can be reused
+
+            if (i == 0 || tokens[i] >>> 32 != tokens[i - 1] >>> 32) {
+                nTerms += 1;
+            }
+        }
+
+        final String[] words = new String[nTerms];
+        final DocumentOccurrences[] docs = new DocumentOccurrences[nTerms];
+
+        for (int i = 0, j = 0, k = 0; i < count; i = j) {
+            final int termId = (int) (tokens[i] >>> 32);
+            final DocumentOccurrences d = new DocumentOccurrences();
+
+            while (++j < count && (int) (tokens[j] >>> 32) == termId) {
+            }
+
+            d.myNumWordsInDoc = count;
+            d.setOccurrences(positions, i, j);
+            words[k] = aDictionary.getTerm(termId);
+            docs[k++] = d;
+        }
+
+        return new ParsedDocument(aObject, words, docs);
+    }
+
+    /**
+     * Splits the text of the document into words using <code>parseText</code> method of the helper and encodes
+     * occurrences of every normal form of the words.
+     */
+    private ParsedDocument parseOccurrences(final Object aObject, final Reader aText, final String aLanguage) {
         final Occurrence[] occurrences;
 
         try {
@@ -102,12 +419,12 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
             throw new StorageError(StorageError.FULL_TEXT_INDEX_ERROR, x);
         }
 
-        delete(aObject);
+        final ArrayList<String> words = new ArrayList<>();
+        final ArrayList<DocumentOccurrences> docs = new ArrayList<>();
 
         if (occurrences.length > 0) {
-            final Document doc = new Document(getStorage(), aObject);
+            final HashSet<String> normalForms = new HashSet<>();
 
-            myDocuments.put(new Key(aObject), doc);
             Arrays.sort(occurrences);
             String word = occurrences[0].myWord;
             int i = 0;
@@ -116,23 +433,27 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
                 final Occurrence occ = occurrences[j];
 
                 if (!occ.myWord.equals(word)) {
-                    addReference(doc, word, occurrences, i, j, aLanguage);
+                    parseWord(word, occurrences, i, j, aLanguage, normalForms, words, docs);
                     word = occ.myWord;
                     i = j;
                 }
             }
 
-            addReference(doc, word, occurrences, i, occurrences.length, aLanguage);
+            parseWord(word, occurrences, i, occurrences.length, aLanguage, normalForms, words, docs);
         }
+
+        return new ParsedDocument(aObject, words.toArray(new String[words.size()]), docs.toArray(
+                new DocumentOccurrences[docs.size()]));
     }
 
-    @SuppressWarnings("unchecked")
-    private void addReference(final Document aDoc, final String aWord, final Occurrence[] aOccurrences,
-            final int aFrom, final int aTo) {
+    private void parseWord(final String aWord, final Occurrence[] aOccurrences, final int aFrom, final int aTo,
+            final String aLanguage, final HashSet<String> aNormalForms, final ArrayList<String> aWords,
+            final ArrayList<DocumentOccurrences> aDocs) {
+        final String[] normalForms = myHelper.getNormalForms(aWord, aLanguage);
         final DocumentOccurrences d = new DocumentOccurrences();
         final int[] occ = new int[aTo - aFrom];
 
-        d.myNumWordsInDoc = aOccurrences.length;
+        boolean isNormalForm = false;
 
         for (int i = aFrom; i < aTo; i++) {
             occ[i - aFrom] = aOccurrences[i].myPosition | aOccurrences[i].myKind << OCC_KIND_OFFSET;
@@ -140,37 +461,29 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
 
         d.setOccurrences(occ);
 
-        final int oid = getStorage().getOid(aDoc.myObject);
-        InverseList list = (InverseList) myInverseIndex.get(aWord);
-
-        if (list == null) {
-            list = new InverseList(getStorage(), oid, d);
-            myInverseIndex.put(aWord, list);
-        } else {
-            list.add(oid, d);
-        }
-
-        d.myInverseList = list;
-        d.modify();
-        aDoc.myOccurrences.add(d);
-    }
-
-    private void addReference(final Document aDoc, final String aWord, final Occurrence[] aOccurrences,
-            final int aFrom, final int aTo, final String aLanguage) {
-        final String[] normalForms = myHelper.getNormalForms(aWord, aLanguage);
-
-        boolean isNormalForm = false;
-
         for (int i = 0; i < normalForms.length; i++) {
             if (aWord.equals(normalForms[i])) {
                 isNormalForm = true;
             }
 
-            addReference(aDoc, normalForms[i], aOccurrences, aFrom, aTo);
+            addNormalForm(normalForms[i], d.myOccurrences, aOccurrences.length, aNormalForms, aWords, aDocs);
         }
 
         if (!isNormalForm) {
-            addReference(aDoc, aWord, aOccurrences, aFrom, aTo);
+            addNormalForm(aWord, d.myOccurrences, aOccurrences.length, aNormalForms, aWords, aDocs);
+        }
+    }
+
+    private static void addNormalForm(final String aWord, final byte[] aOccurrences, final int aNumWordsInDoc,
+            final HashSet<String> aNormalForms, final ArrayList<String> aWords,
+            final ArrayList<DocumentOccurrences> aDocs) {
+        if (aNormalForms.add(aWord)) { // different words of the document may have the same normal form
+            final DocumentOccurrences d = new DocumentOccurrences();
+
+            d.myNumWordsInDoc = aNumWordsInDoc;
+            d.myOccurrences = aOccurrences;
+            aWords.add(aWord);
+            aDocs.add(d);
         }
     }
 
@@ -180,11 +493,19 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
         final Document doc = (Document) myDocuments.get(key);
 
         if (doc != null) {
+            final int oid = getStorage().getOid(aObject);
+
             for (int i = 0, n = doc.myOccurrences.size(); i < n; i++) {
-                final DocumentOccurrences d = (DocumentOccurrences) doc.myOccurrences.get(i);
+                final Object reference = doc.myOccurrences.get(i);
+
+                if (reference instanceof InverseList) { // compressed list keeps the occurrences itself
+                    ((InverseList) reference).remove(oid);
+                } else {
+                    final DocumentOccurrences d = (DocumentOccurrences) reference;
 
-                d.myInverseList.remove(getStorage().getOid(aObject));
-                d.deallocate();
+                    d.myInverseList.remove(oid);
+                    d.deallocate();
+                }
             }
 
             myDocuments.remove(key);
@@ -194,6 +515,7 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
 
     @Override
     public void deallocate() {
+        shutdownParserExecutor();
         clear();
         super.deallocate();
     }
@@ -229,14 +551,18 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
         byte[] myOccurrences;
 
         final void setOccurrences(final int[] aOccurrences) {
-            final int len = aOccurrences.length;
-            final Compressor compressor = new Compressor(new byte[len * 4 + COMPRESSION_OVERHEAD]);
+            setOccurrences(aOccurrences, 0, aOccurrences.length);
+        }
 
-            int i = 0;
+        final void setOccurrences(final int[] aOccurrences, final int aFrom, final int aTo) {
+            final int len = aTo;
+            final Compressor compressor = new Compressor(new byte[(aTo - aFrom) * 4 + COMPRESSION_OVERHEAD]);
+
+            int i = aFrom;
             int prevOcc = -1;
 
             compressor.encodeStart();
-            compressor.encode(len);
+            compressor.encode(aTo - aFrom);
 
             do {
                 final int kind = aOccurrences[i] >>> OCC_KIND_OFFSET;
@@ -260,6 +586,14 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
             myOccurrences = compressor.encodeStop();
         }
 
+        final int getFrequency() {
+            final Compressor compressor = new Compressor(myOccurrences);
+
+            compressor.decodeStart();
+
+            return compressor.decode();
+        }
+
         final int[] getOccurrences() {
             final Compressor compressor = new Compressor(myOccurrences);
             int i = 0;
@@ -283,11 +617,49 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
         }
     }
 
+    /**
+     * Words of the parsed document with the encoded occurrences of each of them.
+     */
+    static class ParsedDocument {
+
+        final Object myObject;
+
+        final String[] myWords;
+
+        final DocumentOccurrences[] myOccurrences;
+
+        ParsedDocument(final Object aObject, final String[] aWords, final DocumentOccurrences[] aOccurrences) {
+            myObject = aObject;
+            myWords = aWords;
+            myOccurrences = aOccurrences;
+        }
+    }
+
+    static class Posting implements Comparable<Posting> {
+
+        final int myOID;
+
+        final Document myDocument;
+
+        final DocumentOccurrences myOccurrences;
+
+        Posting(final int aOID, final Document aDocument, final DocumentOccurrences aOccurrences) {
+            myOID = aOID;
+            myDocument = aDocument;
+            myOccurrences = aOccurrences;
+        }
+
+        @Override
+        public int compareTo(final Posting aPosting) {
+            return myOID < aPosting.myOID ? -1 : myOID == aPosting.myOID ? 0 : 1;
+        }
+    }
+
     static class Document extends Persistent {
 
         Object myObject;
 
-        Link myOccurrences;
+        Link myOccurrences; // occurrences in the uncompressed inverse lists or the compressed lists themselves
 
         Document() {
         }
@@ -300,34 +672,257 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
         }
     }
 
+    /**
+     * Range of postings of an inverse list with the parameters bounding the rank of any of them. Blocks are ordered by
+     * OID: a block contains the postings with OIDs greater than the last OID of the previous block and not greater
+     * than its own last OID (the last block is open-ended).<BR>
+     * Blocks of compressed inverse lists contain the postings themselves: OIDs are delta encoded and bit packed, and
+     * the occurrences are kept in the separate object, which is loaded only if the document is evaluated.
+     */
+    static class PostingBlock extends Persistent {
+
+        private static final long serialVersionUID = -6912962386580345021L;
+
+        int myFirstOID;
+
+        int myLastOID;
+
+        int mySize; // number of postings added to the block
+
+        int myMaxFrequency;
+
+        int myMinWordsInDoc;
+
+        byte[] myOIDs; // bit width followed by the packed differences between the adjacent OIDs minus one
+
+        PostingData myData;
+
+        PostingBlock() {
+        }
+
+        PostingBlock(final Storage aStorage) {
+            super(aStorage);
+
+            myMinWordsInDoc = Integer.MAX_VALUE;
+        }
+
+        @Override
+        public boolean recursiveLoading() {
+            return false;
+        }
+
+        int[] getOIDs() {
+            final int[] oids = new int[mySize];
+
+            if (mySize != 0) {
+                final int width = myOIDs[0];
+                final long mask = (1L << width) - 1;
+
+                long acc = 0;
+                int bits = 0;
+                int pos = 1;
+
+                oids[0] = myFirstOID;
+
+                for (int i = 1; i < mySize; i++) {
+                    while (bits < width) {
+                        acc |= (long) (myOIDs[pos++] & 0xFF) << bits;
+                        bits += 8;
+                    }
+
+                    oids[i] = oids[i - 1] + (int) (acc & mask) + 1;
+                    acc >>>= width;
+                    bits -= width;
+                }
+            }
+
+            return oids;
+        }
+
+        /**
+         * Stores the postings in the block.
+         */
+        void setPostings(final int[] aOIDs, final int[] aNumWordsInDoc, final byte[][] aOccurrences, final int aFrom,
+                final int aTo) {
+            final int size = aTo - aFrom;
+
+            int maxDelta = 0;
+            int dataSize = 0;
+
+            myMaxFrequency = 0;
+            myMinWordsInDoc = Integer.MAX_VALUE;
+
+            for (int i = aFrom; i < aTo; i++) {
+                if (i > aFrom) {
+                    maxDelta |= aOIDs[i] - aOIDs[i - 1] - 1;
+                }
+
+                dataSize += aOccurrences[i].length;
+                myMaxFrequency = Math.max(myMaxFrequency, getFrequency(aOccurrences[i]));
+                myMinWordsInDoc = Math.min(myMinWordsInDoc, aNumWordsInDoc[i]);
+            }
+
+            final int width = 32 - Integer.numberOfLeadingZeros(maxDelta);
+            final byte[] packed = new byte[1 + ((size - 1) * width + 7 >>> 3)];
+
+            long acc = 0;
+            int bits = 0;
+            int pos = 1;
+
+            packed[0] = (byte) width;
+
+            for (int i = aFrom + 1; i < aTo; i++) {
+                acc |= (long) (aOIDs[i] - aOIDs[i - 1] - 1) << bits;
+                bits += width;
+
+                while (bits >= 8) {
+                    packed[pos++] = (byte) acc;
+                    acc >>>= 8;
+                    bits -= 8;
+                }
+            }
+
+            if (bits > 0) {
+                packed[pos] = (byte) acc;
+            }
+
+            final int[] offsets = new int[size + 1];
+            final byte[] occurrences = new byte[dataSize];
+
+            for (int i = aFrom; i < aTo; i++) {
+                final byte[] occ = aOccurrences[i];
+
+                System.arraycopy(occ, 0, occurrences, offsets[i - aFrom], occ.length);
+                offsets[i - aFrom + 1] = offsets[i - aFrom] + occ.length;
+            }
+
+            if (myData == null) {
+                myData = new PostingData();
+            } else {
+                myData.load();
+            }
+
+            myData.myNumWordsInDoc = Arrays.copyOfRange(aNumWordsInDoc, aFrom, aTo);
+            myData.myOffsets = offsets;
+            myData.myOccurrences = occurrences;
+            myData.modify();
+            myFirstOID = aOIDs[aFrom];
+            myLastOID = aOIDs[aTo - 1];
+            myOIDs = packed;
+            mySize = size;
+            modify();
+        }
+
+        DocumentOccurrences getDocumentOccurrences(final int aIndex) {
+            final DocumentOccurrences d = new DocumentOccurrences();
+
+            myData.load();
+            d.myNumWordsInDoc = myData.myNumWordsInDoc[aIndex];
+            d.myOccurrences = Arrays.copyOfRange(myData.myOccurrences, myData.myOffsets[aIndex],
+                    myData.myOffsets[aIndex + 1]);
+
+            return d;
+        }
+
+        byte[][] getOccurrences() {
+            final byte[][] occurrences = new byte[mySize][];
+
+            myData.load();
+
+            for (int i = 0; i < mySize; i++) {
+                occurrences[i] = Arrays.copyOfRange(myData.myOccurrences, myData.myOffsets[i], myData.myOffsets[i +
+                        1]);
+            }
+
+            return occurrences;
+        }
+
+        int[] getNumWordsInDoc() {
+            myData.load();
+
+            return myData.myNumWordsInDoc;
+        }
+
+        @Override
+        public void deallocate() {
+            if (myData != null) {
+                myData.deallocate();
+            }
+
+            super.deallocate();
+        }
+
+        static int getFrequency(final byte[] aOccurrences) {
+            final Compressor compressor = new Compressor(aOccurrences);
+
+            compressor.decodeStart();
+
+            return compressor.decode();
+        }
+    }
+
+    /**
+     * Occurrences of the postings of a posting block, in the format of <code>DocumentOccurrences</code>.
+     */
+    static class PostingData extends Persistent {
+
+        private static final long serialVersionUID = -629204981445360811L;
+
+        int[] myNumWordsInDoc;
+
+        int[] myOffsets;
+
+        byte[] myOccurrences;
+    }
+
     static class InverseList extends Btree {
 
         static final int BTREE_THRESHOLD = 500;
 
+        static final int POSTING_BLOCK_SIZE = 128;
+
         int[] myOIDs;
 
         Link myDocs;
 
-        @SuppressWarnings("unchecked")
-        InverseList(final Storage aDB, final int aOID, final DocumentOccurrences aDoc) {
+        Link myBlocks; // null in lists created before block metadata was introduced
+
+        int myMaxFrequency;
+
+        int myMinWordsInDoc;
+
+        boolean isCompressed; // postings are stored in the blocks rather than in the array or the B-tree
+
+        int mySize; // number of postings of the compressed list
+
+        InverseList(final Storage aDB, final int aOID, final DocumentOccurrences aDoc, final int aFrequency) {
             super(int.class, true);
 
-            myDocs = aDB.createLink(1);
-            myDocs.add(aDoc);
-            myOIDs = new int[1];
-            myOIDs[0] = aOID;
+            myBlocks = aDB.createLink(1);
+            myMinWordsInDoc = Integer.MAX_VALUE;
+            isCompressed = true;
             assignOid(aDB, 0, false);
+            addAll(new int[] { aOID }, new DocumentOccurrences[] { aDoc }, 0);
         }
 
         InverseList() {
         }
 
+        @Override
+        public boolean recursiveLoading() {
+            return false; // posting blocks are loaded on demand
+        }
+
         @Override
         public int size() {
-            return myOIDs != null ? myOIDs.length : super.size();
+            return isCompressed ? mySize : myOIDs != null ? myOIDs.length : super.size();
         }
 
         int first() {
+            if (isCompressed) {
+                return mySize == 0 ? 0 : ((PostingBlock) myBlocks.get(0)).myFirstOID;
+            }
+
             if (myOIDs != null) {
                 return myOIDs[0];
             }
@@ -338,6 +933,10 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
         }
 
         int last() {
+            if (isCompressed) {
+                return mySize == 0 ? 0 : ((PostingBlock) myBlocks.get(myBlocks.size() - 1)).myLastOID;
+            }
+
             if (myOIDs != null) {
                 return myOIDs[myOIDs.length - 1];
             }
@@ -348,6 +947,10 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
         }
 
         Iterator iterator(final int aOID) {
+            if (isCompressed) {
+                return new BlockIterator(aOID);
+            }
+
             final int[] os = myOIDs;
 
             if (os != null) {
@@ -371,7 +974,18 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
         }
 
         @SuppressWarnings("unchecked")
-        void add(final int aOID, final DocumentOccurrences aDocs) {
+        void add(final int aOID, final DocumentOccurrences aDocs, final int aFrequency) {
+            if (isCompressed) {
+                addAll(new int[] { aOID }, new DocumentOccurrences[] { aDocs }, 0);
+                return;
+            }
+
+            if (myBlocks == null) {
+                buildBlocks();
+            }
+
+            addToBlock(aOID, aFrequency, aDocs.myNumWordsInDoc);
+
             int[] os = myOIDs;
 
             if (os == null || os.length >= BTREE_THRESHOLD) {
@@ -388,34 +1002,199 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
             } else {
                 final int n = os.length;
 
-                int l = 0;
-                int r = n;
+                int l = 0;
+                int r = n;
+
+                while (l < r) {
+                    final int m = l + r >>> 1;
+
+                    if (os[m] < aOID) {
+                        l = m + 1;
+                    } else {
+                        r = m;
+                    }
+                }
+
+                os = new int[n + 1];
+
+                System.arraycopy(myOIDs, 0, os, 0, r);
+
+                os[r] = aOID;
+
+                System.arraycopy(myOIDs, r, os, r + 1, n - r);
+
+                myDocs.insert(r, aDocs);
+                myOIDs = os;
+                modify();
+            }
+        }
+
+        /**
+         * Adds postings of the documents with the specified OIDs in ascending order.
+         */
+        @SuppressWarnings("unchecked")
+        void addAll(final int[] aOIDs, final DocumentOccurrences[] aDocs, final int aFrom) {
+            if (isCompressed) {
+                for (int i = aFrom, j; i < aOIDs.length; i = j) {
+                    final int blockIndex = Math.min(findBlockIndex(aOIDs[i]), myBlocks.size() - 1);
+                    final boolean isLast = blockIndex == myBlocks.size() - 1;
+
+                    j = i + 1;
+
+                    if (isLast) {
+                        j = aOIDs.length;
+                    } else {
+                        final int lastOID = ((PostingBlock) myBlocks.get(blockIndex)).myLastOID;
+
+                        while (j < aOIDs.length && aOIDs[j] <= lastOID) {
+                            j += 1;
+                        }
+                    }
+
+                    insert(blockIndex, aOIDs, aDocs, i, j);
+                }
+
+                return;
+            }
+
+            if (myBlocks == null) {
+                buildBlocks();
+            }
+
+            for (int i = aFrom; i < aOIDs.length; i++) {
+                addToBlock(aOIDs[i], aDocs[i].getFrequency(), aDocs[i].myNumWordsInDoc);
+            }
+
+            final int[] os = myOIDs;
+
+            if (os != null && os.length + aOIDs.length - aFrom <= BTREE_THRESHOLD) {
+                final int[] merged = new int[os.length + aOIDs.length - aFrom];
+
+                for (int i = 0, j = aFrom, k = 0; k < merged.length; k++) {
+                    if (j == aOIDs.length || i < os.length && os[i] < aOIDs[j]) {
+                        merged[k] = os[i++];
+                    } else {
+                        myDocs.insert(k, aDocs[j]);
+                        merged[k] = aOIDs[j++];
+                    }
+                }
+
+                myOIDs = merged;
+                modify();
+            } else {
+                if (os != null) {
+                    for (int i = 0; i < os.length; i++) {
+                        super.put(new Key(os[i]), myDocs.get(i));
+                    }
+
+                    myOIDs = null;
+                    myDocs = null;
+                }
+
+                for (int i = aFrom; i < aOIDs.length; i++) {
+                    super.put(new Key(aOIDs[i]), aDocs[i]);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        final void addToBlock(final int aOID, final int aFrequency, final int aNumWordsInDoc) {
+            final int n = myBlocks.size();
+
+            PostingBlock block = n == 0 ? null : (PostingBlock) myBlocks.get(n - 1);
+
+            if (block == null || aOID > block.myLastOID && block.mySize >= POSTING_BLOCK_SIZE) {
+                block = new PostingBlock(getStorage());
+                myBlocks.add(block);
+                modify();
+            } else if (aOID < block.myLastOID) {
+                block = findBlock(aOID);
+            }
+
+            if (aOID > block.myLastOID) {
+                block.myLastOID = aOID;
+            }
+
+            if (aFrequency > block.myMaxFrequency) {
+                block.myMaxFrequency = aFrequency;
+            }
+
+            if (aNumWordsInDoc < block.myMinWordsInDoc) {
+                block.myMinWordsInDoc = aNumWordsInDoc;
+            }
+
+            block.mySize += 1;
+            block.modify();
+
+            if (aFrequency > myMaxFrequency || aNumWordsInDoc < myMinWordsInDoc) {
+                myMaxFrequency = Math.max(myMaxFrequency, aFrequency);
+                myMinWordsInDoc = Math.min(myMinWordsInDoc, aNumWordsInDoc);
+                modify();
+            }
+        }
+
+        final PostingBlock findBlock(final int aOID) {
+            int l = 0;
+            int r = myBlocks.size() - 1;
 
-                while (l < r) {
-                    final int m = l + r >>> 1;
+            while (l < r) {
+                final int m = l + r >>> 1;
 
-                    if (os[m] < aOID) {
-                        l = m + 1;
-                    } else {
-                        r = m;
-                    }
+                if (((PostingBlock) myBlocks.get(m)).myLastOID < aOID) {
+                    l = m + 1;
+                } else {
+                    r = m;
                 }
+            }
 
-                os = new int[n + 1];
+            return (PostingBlock) myBlocks.get(r);
+        }
 
-                System.arraycopy(myOIDs, 0, os, 0, r);
+        final void buildBlocks() {
+            final Iterator iterator = iterator(0);
 
-                os[r] = aOID;
+            myBlocks = getStorage().createLink();
+            myMinWordsInDoc = Integer.MAX_VALUE;
 
-                System.arraycopy(myOIDs, r, os, r + 1, n - r);
+            while (iterator.hasNext()) {
+                final Map.Entry entry = (Map.Entry) iterator.next();
+                final DocumentOccurrences d = (DocumentOccurrences) entry.getValue();
 
-                myDocs.insert(r, aDocs);
-                myOIDs = os;
-                modify();
+                addToBlock(((Integer) entry.getKey()).intValue(), d.getFrequency(), d.myNumWordsInDoc);
             }
+
+            modify();
         }
 
         void remove(final int aOID) {
+            if (isCompressed) {
+                final int blockIndex = findBlockIndex(aOID);
+                final PostingBlock block = (PostingBlock) myBlocks.get(blockIndex);
+                final int[] oids = block.getOIDs();
+                final int position = Arrays.binarySearch(oids, aOID);
+
+                Assert.that(position >= 0);
+
+                if (block.mySize == 1) {
+                    myBlocks.remove(blockIndex);
+                    block.deallocate();
+                } else {
+                    final int[] numWordsInDoc = block.getNumWordsInDoc();
+                    final byte[][] occurrences = block.getOccurrences();
+                    final int n = block.mySize - 1;
+
+                    System.arraycopy(oids, position + 1, oids, position, n - position);
+                    System.arraycopy(numWordsInDoc, position + 1, numWordsInDoc, position, n - position);
+                    System.arraycopy(occurrences, position + 1, occurrences, position, n - position);
+                    block.setPostings(oids, numWordsInDoc, occurrences, 0, n);
+                }
+
+                mySize -= 1;
+                modify();
+
+                return;
+            }
+
             final int[] os = myOIDs;
 
             if (os != null) {
@@ -449,6 +1228,196 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
             }
         }
 
+        /**
+         * Index of the first block which may contain the OID: block with last OID not smaller than the specified one
+         * or the number of blocks if there is no such block.
+         */
+        final int findBlockIndex(final int aOID) {
+            int l = 0;
+            int r = myBlocks.size();
+
+            while (l < r) {
+                final int m = l + r >>> 1;
+
+                if (((PostingBlock) myBlocks.get(m)).myLastOID < aOID) {
+                    l = m + 1;
+                } else {
+                    r = m;
+                }
+            }
+
+            return r;
+        }
+
+        /**
+         * Inserts the postings in the block of the compressed list. Full last block is followed by the new blocks if
+         * the postings are appended to the list, overflowed blocks are split.
+         */
+        @SuppressWarnings("unchecked")
+        final void insert(final int aBlockIndex, final int[] aOIDs, final DocumentOccurrences[] aDocs,
+                final int aFrom, final int aTo) {
+            final int nAdded = aTo - aFrom;
+
+            PostingBlock block = aBlockIndex < 0 ? null : (PostingBlock) myBlocks.get(aBlockIndex);
+            int position = aBlockIndex + 1;
+            int[] oids;
+            int[] numWordsInDoc;
+            byte[][] occurrences;
+            int n;
+
+            if (block == null || aBlockIndex == myBlocks.size() - 1 && aOIDs[aFrom] > block.myLastOID &&
+                    block.mySize >= POSTING_BLOCK_SIZE) {
+                oids = Arrays.copyOfRange(aOIDs, aFrom, aTo);
+                numWordsInDoc = new int[nAdded];
+                occurrences = new byte[nAdded][];
+
+                for (int i = 0; i < nAdded; i++) {
+                    numWordsInDoc[i] = aDocs[aFrom + i].myNumWordsInDoc;
+                    occurrences[i] = aDocs[aFrom + i].myOccurrences;
+                }
+
+                n = nAdded;
+                block = null;
+            } else {
+                final int[] blockOIDs = block.getOIDs();
+                final int[] blockNumWordsInDoc = block.getNumWordsInDoc();
+                final byte[][] blockOccurrences = block.getOccurrences();
+                final int blockSize = block.mySize;
+
+                n = blockSize + nAdded;
+                oids = new int[n];
+                numWordsInDoc = new int[n];
+                occurrences = new byte[n][];
+
+                for (int i = 0, j = aFrom, k = 0; k < n; k++) {
+                    if (j == aTo || i < blockSize && blockOIDs[i] < aOIDs[j]) {
+                        oids[k] = blockOIDs[i];
+                        numWordsInDoc[k] = blockNumWordsInDoc[i];
+                        occurrences[k] = blockOccurrences[i++];
+                    } else {
+                        oids[k] = aOIDs[j];
+                        numWordsInDoc[k] = aDocs[j].myNumWordsInDoc;
+                        occurrences[k] = aDocs[j++].myOccurrences;
+                    }
+                }
+
+                position = aBlockIndex;
+            }
+
+            // Blocks with up to twice the normal size are not split to avoid splitting on each insert
+            final int nBlocks = block != null && n <= 2 * POSTING_BLOCK_SIZE ? 1 : (n + POSTING_BLOCK_SIZE - 1) /
+                    POSTING_BLOCK_SIZE;
+
+            for (int i = 0; i < nBlocks; i++) {
+                final int from = (int) ((long) n * i / nBlocks);
+                final int to = (int) ((long) n * (i + 1) / nBlocks);
+
+                if (block == null) {
+                    block = new PostingBlock(getStorage());
+                    myBlocks.insert(position, block);
+                }
+
+                block.setPostings(oids, numWordsInDoc, occurrences, from, to);
+                myMaxFrequency = Math.max(myMaxFrequency, block.myMaxFrequency);
+                myMinWordsInDoc = Math.min(myMinWordsInDoc, block.myMinWordsInDoc);
+                position += 1;
+                block = null;
+            }
+
+            mySize += nAdded;
+            modify();
+        }
+
+        @Override
+        public void deallocate() {
+            if (myBlocks != null) {
+                for (int i = 0, n = myBlocks.size(); i < n; i++) {
+                    ((PostingBlock) myBlocks.get(i)).deallocate();
+                }
+            }
+
+            super.deallocate();
+        }
+
+        /**
+         * Iterator of the compressed list: OIDs of the current block are decoded, the occurrences are loaded only when
+         * the value of the entry is requested.
+         */
+        class BlockIterator implements Iterator {
+
+            int myBlockIndex;
+
+            PostingBlock myBlock;
+
+            int[] myBlockOIDs;
+
+            int myPosition;
+
+            BlockIterator(final int aOID) {
+                myBlockIndex = findBlockIndex(aOID);
+
+                if (myBlockIndex < myBlocks.size()) {
+                    myBlock = (PostingBlock) myBlocks.get(myBlockIndex);
+                    myBlockOIDs = myBlock.getOIDs();
+                    myPosition = Arrays.binarySearch(myBlockOIDs, aOID);
+
+                    if (myPosition < 0) {
+                        myPosition = -myPosition - 1;
+                    }
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (myBlock != null && myPosition == myBlockOIDs.length) {
+                    if (++myBlockIndex < myBlocks.size()) {
+                        myBlock = (PostingBlock) myBlocks.get(myBlockIndex);
+                        myBlockOIDs = myBlock.getOIDs();
+                    } else {
+                        myBlock = null;
+                    }
+
+                    myPosition = 0;
+                }
+
+                return myBlock != null;
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                final PostingBlock block = myBlock;
+                final int index = myPosition++;
+                final int oid = myBlockOIDs[index];
+
+                return new Map.Entry() {
+
+                    @Override
+                    public Object getKey() {
+                        return Integer.valueOf(oid);
+                    }
+
+                    @Override
+                    public Object getValue() {
+                        return block.getDocumentOccurrences(index);
+                    }
+
+                    @Override
+                    public Object setValue(final Object aValue) {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        }
+
         class InverstListIterator implements Iterator {
 
             int myIndex;
@@ -518,10 +1487,22 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
 
         Iterator myIterator;
 
+        double myIdf;
+
+        double myRankBound; // maximal rank of the keyword in any document
+
+        int myBlock; // posting block containing the last checked document
+
+        int myBlockLastOID;
+
+        double myBlockRankBound;
+
         KeywordList(final String aWord) {
             myWord = aWord;
             myKeywordLength = aWord.length();
             mySameAs = -1;
+            myBlock = -1;
+            myBlockLastOID = -1;
         }
     }
 
@@ -588,6 +1569,8 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
 
         static final double DENSITY_MAGIC = 2;
 
+        static final double RANK_BOUND_PRECISION = 1.000001;
+
         KeywordList[] myKeywords;
 
         ArrayList myKeywordList;
@@ -598,12 +1581,30 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
 
         float[] myOccurrenceKindWeight;
 
+        float myMaxOccurrenceKindWeight;
+
+        double myAverageWords;
+
+        double myNearnessBound; // factor by which nearness can increase the rank of a document
+
         @SuppressWarnings("unchecked")
         @Override
         public void visit(final FullTextQueryMatchOp aMatchOp) {
             aMatchOp.myWordInQueryIndex = myKeywordList.size();
             final KeywordList kwd = new KeywordList(aMatchOp.myWord);
-            kwd.myList = (InverseList) myInverseIndex.get(aMatchOp.myWord);
+
+            for (int i = 0; i < myKeywordList.size(); i++) {
+                final KeywordList other = (KeywordList) myKeywordList.get(i);
+
+                if (other.myWord.equals(aMatchOp.myWord)) {
+                    kwd.myList = other.myList;
+                }
+            }
+
+            if (kwd.myList == null) {
+                kwd.myList = getInverseList(aMatchOp.myWord);
+            }
+
             myKeywordList.add(kwd);
         }
 
@@ -760,7 +1761,7 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
                 case FullTextQuery.AND:
                 case FullTextQuery.NEAR:
                     do {
-                        left = intersect(aDoc, ((FullTextQueryBinaryOp) aQuery).myLeft);
+                        left = intersect(doc, ((FullTextQueryBinaryOp) aQuery).myLeft);
 
                         if (left == Integer.MAX_VALUE) {
                             return left;
@@ -776,65 +1777,68 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
 
                     return left < right ? left : right;
                 case FullTextQuery.MATCH:
-                case FullTextQuery.STRICT_MATCH: {
-                    final KeywordList kwd = myKeywords[((FullTextQueryMatchOp) aQuery).myWordInQueryIndex];
+                case FullTextQuery.STRICT_MATCH:
+                    return advance(myKeywords[((FullTextQueryMatchOp) aQuery).myWordInQueryIndex], doc);
+                case FullTextQuery.NOT: {
+                    final int nextDoc = intersect(doc, ((FullTextQueryUnaryOp) aQuery).myQuery);
 
-                    if (kwd.myCurrentDoc >= doc) {
-                        return kwd.myCurrentDoc;
+                    if (nextDoc == doc) {
+                        doc += 1;
                     }
 
-                    Iterator iterator = kwd.myIterator;
-
-                    if (iterator != null) {
-                        if (iterator.hasNext()) {
-                            final Map.Entry entry = (Map.Entry) iterator.next();
-                            final int nextDoc = ((Integer) entry.getKey()).intValue();
-
-                            if (nextDoc >= doc) {
-                                kwd.myCurrentEntry = entry;
-                                kwd.myCurrentDoc = nextDoc;
+                    return doc;
+                }
+                default:
+                    return doc;
+            }
+        }
 
-                                return nextDoc;
-                            }
-                        } else {
-                            kwd.myCurrentEntry = null;
-                            kwd.myCurrentDoc = 0;
+        int advance(final KeywordList aKwd, final int aDoc) {
+            int doc = aDoc;
 
-                            return Integer.MAX_VALUE;
-                        }
-                    }
+            if (aKwd.myCurrentDoc >= doc) {
+                return aKwd.myCurrentDoc;
+            }
 
-                    if (kwd.myList != null) {
-                        kwd.myIterator = iterator = kwd.myList.iterator(doc);
+            Iterator iterator = aKwd.myIterator;
 
-                        if (iterator.hasNext()) {
-                            final Map.Entry entry = (Map.Entry) iterator.next();
+            if (iterator != null) {
+                if (iterator.hasNext()) {
+                    final Map.Entry entry = (Map.Entry) iterator.next();
+                    final int nextDoc = ((Integer) entry.getKey()).intValue();
 
-                            doc = ((Integer) entry.getKey()).intValue();
-                            kwd.myCurrentEntry = entry;
-                            kwd.myCurrentDoc = doc;
+                    if (nextDoc >= doc) {
+                        aKwd.myCurrentEntry = entry;
+                        aKwd.myCurrentDoc = nextDoc;
 
-                            return doc;
-                        }
+                        return nextDoc;
                     }
-
-                    kwd.myCurrentEntry = null;
-                    kwd.myCurrentDoc = 0;
+                } else {
+                    aKwd.myCurrentEntry = null;
+                    aKwd.myCurrentDoc = 0;
 
                     return Integer.MAX_VALUE;
                 }
-                case FullTextQuery.NOT: {
-                    final int nextDoc = intersect(doc, ((FullTextQueryUnaryOp) aQuery).myQuery);
+            }
 
-                    if (nextDoc == doc) {
-                        doc += 1;
-                    }
+            if (aKwd.myList != null) {
+                aKwd.myIterator = iterator = aKwd.myList.iterator(doc);
+
+                if (iterator.hasNext()) {
+                    final Map.Entry entry = (Map.Entry) iterator.next();
+
+                    doc = ((Integer) entry.getKey()).intValue();
+                    aKwd.myCurrentEntry = entry;
+                    aKwd.myCurrentDoc = doc;
 
                     return doc;
                 }
-                default:
-                    return doc;
             }
+
+            aKwd.myCurrentEntry = null;
+            aKwd.myCurrentDoc = 0;
+
+            return Integer.MAX_VALUE;
         }
 
         int calculateEstimation(final FullTextQuery aQuery, final int aNumOfResults) {
@@ -873,7 +1877,7 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
                     }
                 }
                 case FullTextQuery.NOT:
-                    return myDocuments.size();
+                    return getNumberOfDocuments();
                 default:
             }
 
@@ -975,9 +1979,9 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
         final double calculateKwdRank(final InverseList aInverseList, final DocumentOccurrences aDocOccurrences,
                 final int[] aOccurrences) {
             final int frequency = aOccurrences.length;
-            final int totalNumberOfDocuments = myDocuments.size();
+            final int totalNumberOfDocuments = getNumberOfDocuments();
             final int nRelevantDocuments = aInverseList.size();
-            final int totalNumberOfWords = myInverseIndex.size();
+            final int totalNumberOfWords = getNumberOfWords();
             final double idf = Math.log((double) totalNumberOfDocuments / nRelevantDocuments);
             final double averageWords = (double) totalNumberOfWords / totalNumberOfDocuments;
             final double density = frequency * Math.log(1 + DENSITY_MAGIC * averageWords /
@@ -1097,7 +2101,7 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
 
         FullTextSearchResult searchPrefix(final String aPrefix, final int aMaxResults, final int aTimeLimit,
                 final boolean aSort) {
-            final Iterator lists = myInverseIndex.prefixIterator(aPrefix);
+            final Iterator lists = getInverseLists(aPrefix);
             final long start = System.currentTimeMillis();
 
             FullTextSearchHit[] hits = new FullTextSearchHit[aMaxResults];
@@ -1106,7 +2110,7 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
 
             JoinLists:
             while (lists.hasNext()) {
-                final InverseList list = (InverseList) lists.next();
+                final InverseList list = (InverseList) ((Map.Entry) lists.next()).getValue();
                 final Iterator occurrences = list.iterator(0);
 
                 estimation += list.size();
@@ -1145,6 +2149,178 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
             return new FullTextSearchResult(hits, estimation);
         }
 
+        /**
+         * Calculates per query constants used to bound keyword ranks: the same values are used by
+         * <code>calculateKwdRank</code>.
+         */
+        void prepareRankBounds() {
+            final int totalNumberOfDocuments = getNumberOfDocuments();
+            final float nearnessWeight = myHelper.getNearnessWeight();
+
+            myAverageWords = (double) getNumberOfWords() / totalNumberOfDocuments;
+            myMaxOccurrenceKindWeight = 0;
+
+            for (int i = 0; i < myOccurrenceKindWeight.length; i++) {
+                if (myOccurrenceKindWeight[i] > myMaxOccurrenceKindWeight) {
+                    myMaxOccurrenceKindWeight = myOccurrenceKindWeight[i];
+                }
+            }
+
+            // Nearness adds at most 1 for every pair of adjacent keywords
+            myNearnessBound = 1 + (myKeywords.length < 2 || nearnessWeight <= 0 ? 0 : (myKeywords.length - 1) *
+                    nearnessWeight);
+
+            for (int i = 0; i < myKeywords.length; i++) {
+                final KeywordList kwd = myKeywords[i];
+                final InverseList list = kwd.myList;
+
+                if (list == null || list.size() == 0) {
+                    kwd.myRankBound = 0;
+                } else if (list.myMaxFrequency == 0) { // list created before rank bounds were maintained
+                    kwd.myRankBound = Double.POSITIVE_INFINITY;
+                } else {
+                    kwd.myIdf = Math.log((double) totalNumberOfDocuments / list.size());
+                    kwd.myRankBound = calculateRankBound(kwd, list.myMaxFrequency, list.myMinWordsInDoc);
+                }
+            }
+        }
+
+        /**
+         * Upper bound of <code>calculateKwdRank</code> for a document in which the keyword occurs at most
+         * <code>aMaxFrequency</code> times and which contains at least <code>aMinWordsInDoc</code> words.
+         */
+        final double calculateRankBound(final KeywordList aKwd, final int aMaxFrequency, final int aMinWordsInDoc) {
+            if (aMaxFrequency == 0) {
+                return 0;
+            }
+
+            final double density = aMaxFrequency * Math.log(1 + DENSITY_MAGIC * myAverageWords / aMinWordsInDoc);
+            final double wordScore = 1 + aMaxFrequency * density * aKwd.myIdf * myMaxOccurrenceKindWeight;
+
+            return Math.log(wordScore) * RANK_BOUND_PRECISION;
+        }
+
+        /**
+         * Returns upper bound of the keyword rank in the document and positions the keyword at the posting block
+         * containing this document. Documents should be checked in ascending order.
+         */
+        final double getBlockRankBound(final KeywordList aKwd, final int aDoc) {
+            final InverseList list = aKwd.myList;
+
+            if (list == null || list.size() == 0) {
+                return 0;
+            } else if (list.myBlocks == null) { // only the bound of the whole list is known
+                aKwd.myBlockLastOID = Integer.MAX_VALUE;
+
+                return aKwd.myRankBound;
+            }
+
+            if (aDoc > aKwd.myBlockLastOID) {
+                final Link blocks = list.myBlocks;
+                final int nBlocks = blocks.size();
+
+                PostingBlock block;
+
+                do {
+                    block = (PostingBlock) blocks.get(++aKwd.myBlock);
+                } while (block.myLastOID < aDoc && aKwd.myBlock + 1 < nBlocks);
+
+                aKwd.myBlockLastOID = aKwd.myBlock + 1 < nBlocks ? block.myLastOID : Integer.MAX_VALUE;
+                aKwd.myBlockRankBound = calculateRankBound(aKwd, block.myMaxFrequency, block.myMinWordsInDoc);
+            }
+
+            return aKwd.myBlockRankBound;
+        }
+
+        /**
+         * Upper bound of the keyword rank of the document, as returned by <code>evaluate</code>.
+         */
+        double calculateRankBound(final int aDoc, final FullTextQuery aQuery) {
+            switch (aQuery.myOp) {
+                case FullTextQuery.NEAR:
+                case FullTextQuery.AND:
+                    return calculateRankBound(aDoc, ((FullTextQueryBinaryOp) aQuery).myLeft) + calculateRankBound(
+                            aDoc, ((FullTextQueryBinaryOp) aQuery).myRight);
+                case FullTextQuery.OR:
+                    return Math.max(calculateRankBound(aDoc, ((FullTextQueryBinaryOp) aQuery).myLeft),
+                            calculateRankBound(aDoc, ((FullTextQueryBinaryOp) aQuery).myRight));
+                case FullTextQuery.MATCH:
+                case FullTextQuery.STRICT_MATCH:
+                    return getBlockRankBound(myKeywords[((FullTextQueryMatchOp) aQuery).myWordInQueryIndex], aDoc);
+                default:
+                    return 0;
+            }
+        }
+
+        /**
+         * Checks if the rank of the query is the maximum of ranks of its keywords, so documents can be taken from the
+         * keywords whose ranks can exceed the current threshold only.
+         */
+        boolean isDisjunction(final FullTextQuery aQuery) {
+            switch (aQuery.myOp) {
+                case FullTextQuery.OR:
+                    return isDisjunction(((FullTextQueryBinaryOp) aQuery).myLeft) && isDisjunction(
+                            ((FullTextQueryBinaryOp) aQuery).myRight);
+                case FullTextQuery.MATCH:
+                case FullTextQuery.STRICT_MATCH:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Finds the next document of the disjunction which can get rank greater than the threshold. Keywords whose
+         * rank bound doesn't exceed the threshold are not used as a source of candidates (WAND), and runs of documents
+         * falling into posting blocks with low rank bounds are skipped (block-max WAND).
+         */
+        int nextCandidate(final int aDoc, final double aThreshold) {
+            int doc = aDoc;
+
+            while (true) {
+                int candidate = Integer.MAX_VALUE;
+
+                for (int i = 0; i < myKeywords.length; i++) {
+                    final KeywordList kwd = myKeywords[i];
+
+                    if (kwd.myRankBound * myNearnessBound > aThreshold) {
+                        final int next = advance(kwd, doc);
+
+                        if (next < candidate) {
+                            candidate = next;
+                        }
+                    }
+                }
+
+                if (candidate == Integer.MAX_VALUE || aThreshold < 0) {
+                    return candidate;
+                }
+
+                double bound = 0;
+                int skipTo = Integer.MAX_VALUE;
+
+                for (int i = 0; i < myKeywords.length; i++) {
+                    final KeywordList kwd = myKeywords[i];
+
+                    bound = Math.max(bound, getBlockRankBound(kwd, candidate));
+
+                    if (kwd.myRankBound * myNearnessBound > aThreshold && kwd.myBlockLastOID < skipTo) {
+                        skipTo = kwd.myBlockLastOID;
+                    }
+                }
+
+                if (bound * myNearnessBound > aThreshold) {
+                    return candidate;
+                }
+
+                if (skipTo == Integer.MAX_VALUE) {
+                    return Integer.MAX_VALUE;
+                }
+
+                doc = skipTo + 1;
+            }
+        }
+
         @SuppressWarnings("unchecked")
         FullTextSearchResult search(final FullTextQuery aQuery, final int aMaxResults, final int aTimeLimit) {
             FullTextQuery query = aQuery;
@@ -1161,56 +2337,104 @@ public class FullTextIndexImpl extends PersistentResource implements FullTextInd
             query.visit(this);
             myKeywords = (KeywordList[]) myKeywordList.toArray(new KeywordList[myKeywordList.size()]);
             query = optimize(query);
-            // System.out.println(query.toString());
-            FullTextSearchHit[] hits = new FullTextSearchHit[aMaxResults];
-            int currDoc = 1;
-            int nResults = 0;
+            prepareRankBounds();
+
+            // Top results so far with the lowest rank at the head
+            final PriorityQueue<FullTextSearchHit> topHits = new PriorityQueue<>(Math.max(1, Math.min(aMaxResults,
+                    1024)), Collections.reverseOrder());
+            final boolean disjunction = isDisjunction(query);
             final float nearnessWeight = myHelper.getNearnessWeight();
-            boolean noMoreMatches = false;
+            int currDoc = 1;
+            int nMatches = 0;
+            boolean noMoreMatches = aMaxResults <= 0;
+
+            while (!noMoreMatches && System.currentTimeMillis() < start + aTimeLimit) {
+                final double threshold = topHits.size() < aMaxResults ? -1 : topHits.peek().myRank;
 
-            while (nResults < aMaxResults && System.currentTimeMillis() < start + aTimeLimit) {
-                currDoc = intersect(currDoc, aQuery);
+                if (disjunction) {
+                    currDoc = nextCandidate(currDoc, threshold);
+
+                    if (currDoc != Integer.MAX_VALUE) {
+                        intersect(currDoc, aQuery); // position the other keywords, they may affect nearness
+                    }
+                } else {
+                    currDoc = intersect(currDoc, aQuery);
+                }
 
                 if (currDoc == Integer.MAX_VALUE) {
                     noMoreMatches = true;
                     break;
                 }
 
-                reset();
+                if (threshold < 0 || calculateRankBound(currDoc, query) * (containsAllKeywords(currDoc)
+                        ? myNearnessBound : 1) > threshold) {
+                    reset();
+
+                    final double kwdRank = evaluate(currDoc, query);
 
-                final double kwdRank = evaluate(currDoc, query);
+                    if (kwdRank >= 0) {
+                        final float rank = (float) (kwdRank * (1 + calculateNearness() * nearnessWeight));
 
-                if (kwdRank >= 0) {
-                    final float rank = (float) (kwdRank * (1 + calculateNearness() * nearnessWeight));
+                        nMatches += 1;
 
-                    // System.out.println("kwdRank=" + kwdRank + ", nearness=" + calculateNearness() +
-                    // ", total rank=" + rank);
-                    hits[nResults++] = new FullTextSearchHit(getStorage(), currDoc, rank);
+                        if (topHits.size() < aMaxResults) {
+                            topHits.add(new FullTextSearchHit(getStorage(), currDoc, rank));
+                        } else if (rank > threshold) {
+                            topHits.poll();
+                            topHits.add(new FullTextSearchHit(getStorage(), currDoc, rank));
+                        }
+                    }
                 }
 
                 currDoc += 1;
             }
 
-            if (nResults < aMaxResults) {
-                final FullTextSearchHit[] realHits = new FullTextSearchHit[nResults];
-
-                System.arraycopy(hits, 0, realHits, 0, nResults);
-
-                hits = realHits;
-            }
+            final FullTextSearchHit[] hits = topHits.toArray(new FullTextSearchHit[topHits.size()]);
 
-            if (noMoreMatches) {
-                estimation = nResults;
-            } else if (aQuery instanceof FullTextQueryMatchOp) {
-                estimation = myKeywords[0].myList.size();
+            if (!noMoreMatches) {
+                if (aQuery instanceof FullTextQueryMatchOp) {
+                    estimation = myKeywords[0].myList.size();
+                } else {
+                    estimation = calculateEstimation(aQuery, nMatches);
+                }
+            } else if (disjunction) {
+                // Pruned documents were not counted
+                estimation = Math.max(nMatches, calculateDisjunctionSize(query));
             } else {
-                estimation = calculateEstimation(aQuery, nResults);
+                estimation = nMatches;
             }
 
             Arrays.sort(hits);
 
             return new FullTextSearchResult(hits, estimation);
         }
+
+        /**
+         * Checks if all keywords are positioned at the document: otherwise <code>calculateNearness</code> returns 0.
+         */
+        boolean containsAllKeywords(final int aDoc) {
+            for (int i = 0; i < myKeywords.length; i++) {
+                final KeywordList kwd = myKeywords[i];
+                final int j = kwd.mySameAs;
+
+                if (kwd.myCurrentDoc != aDoc && (j < 0 || myKeywords[j].myCurrentDoc != aDoc)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        int calculateDisjunctionSize(final FullTextQuery aQuery) {
+            if (aQuery.myOp == FullTextQuery.OR) {
+                return Math.max(calculateDisjunctionSize(((FullTextQueryBinaryOp) aQuery).myLeft),
+                        calculateDisjunctionSize(((FullTextQueryBinaryOp) aQuery).myRight));
+            }
+
+            final InverseList list = myKeywords[((FullTextQueryMatchOp) aQuery).myWordInQueryIndex].myList;
+
+            return list == null ? 0 : list.size();
+        }
     }
 
 }
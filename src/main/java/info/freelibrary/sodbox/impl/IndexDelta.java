@@ -0,0 +1,24 @@
+package info.freelibrary.sodbox.impl;
+
+import info.freelibrary.sodbox.FieldIndex;
+
+/**
+ * Pending update of the registered field indices caused by the change of the stored object. Images are copies of the
+ * object decoded from its stored images: old image keeps the keys included in the indices at the last commit and new
+ * image keeps the keys of the last stored state of the object.
+ */
+class IndexDelta {
+
+    final FieldIndex<?>[] myIndices;
+
+    final Object myOldImage; // null if object was not stored at the last commit
+
+    Object myNewImage;
+
+    IndexDelta(final FieldIndex<?>[] aIndices, final Object aOldImage, final Object aNewImage) {
+        myIndices = aIndices;
+        myOldImage = aOldImage;
+        myNewImage = aNewImage;
+    }
+
+}
@@ -2,12 +2,15 @@
 package info.freelibrary.sodbox.impl;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
-import java.util.Random;
 import java.util.Stack;
 
 import info.freelibrary.sodbox.IterableIterator;
+import info.freelibrary.sodbox.Link;
 import info.freelibrary.sodbox.MultidimensionalComparator;
 import info.freelibrary.sodbox.MultidimensionalIndex;
 import info.freelibrary.sodbox.Persistent;
@@ -31,22 +34,36 @@ public class KDTree<T> extends PersistentCollection<T> implements Multidimension
 
     MultidimensionalComparator<T> myComparator;
 
+    /* Maximal number of objects kept in a leaf bucket; values less than two mean one object per node */
+    int myBucketSize;
+
     @SuppressWarnings("unused")
     private KDTree() {
     }
 
     KDTree(final Storage aStorage, final MultidimensionalComparator<T> aComparator) {
+        this(aStorage, aComparator, 0);
+    }
+
+    KDTree(final Storage aStorage, final MultidimensionalComparator<T> aComparator, final int aBucketSize) {
         super(aStorage);
 
         myComparator = aComparator;
+        myBucketSize = aBucketSize;
     }
 
     KDTree(final Storage aStorage, final Class aClass, final String[] aFieldNames,
             final boolean aTreateZeroAsUndefinedValue) {
+        this(aStorage, aClass, aFieldNames, aTreateZeroAsUndefinedValue, 0);
+    }
+
+    KDTree(final Storage aStorage, final Class<?> aClass, final String[] aFieldNames,
+            final boolean aTreateZeroAsUndefinedValue, final int aBucketSize) {
         super(aStorage);
 
         myComparator = new ReflectionMultidimensionalComparator<>(aStorage, aClass, aFieldNames,
                 aTreateZeroAsUndefinedValue);
+        myBucketSize = aBucketSize;
     }
 
     @Override
@@ -54,32 +71,84 @@ public class KDTree<T> extends PersistentCollection<T> implements Multidimension
         return myComparator;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void optimize() {
-        final Iterator<T> itr = iterator();
-        final int memberCount = myMemberCount;
-        final Object[] members = new Object[memberCount];
+        final ArrayList<T> members = new ArrayList<>(myMemberCount);
+        final Iterator<T> iterator = iterator();
 
-        for (int index = 0; index < memberCount; index++) {
-            members[index] = itr.next();
+        while (iterator.hasNext()) {
+            members.add(iterator.next());
         }
 
-        final Random random = new Random();
+        clear();
+        build(members.toArray());
+    }
 
-        for (int index = 0; index < memberCount; index++) {
-            final int j = random.nextInt(memberCount);
-            final Object tmp = members[j];
+    @Override
+    public boolean addAll(final Collection<? extends T> aCollection) {
+        if (myRoot != null) {
+            return super.addAll(aCollection);
+        }
 
-            members[j] = members[index];
-            members[index] = tmp;
+        if (aCollection.isEmpty()) {
+            return false;
         }
 
-        clear();
+        build(aCollection.toArray());
+
+        return true;
+    }
 
-        for (int index = 0; index < memberCount; index++) {
-            add((T) members[index]);
+    /**
+     * Builds a balanced tree from the supplied objects, replacing the current (empty) tree.
+     *
+     * @param aMembers Objects to put in the tree; the array is reordered while the tree is built
+     */
+    private void build(final Object[] aMembers) {
+        modify();
+
+        myHeight = 0;
+        myMemberCount = aMembers.length;
+        myRoot = build(aMembers, 0, aMembers.length, 0);
+    }
+
+    /**
+     * Builds a subtree from a range of objects by splitting them at the median of the dimension of the subtree's
+     * level. Objects equal to the median go to the left subtree, as they would when inserted one by one.
+     */
+    @SuppressWarnings("unchecked")
+    private KDTreeNode<T> build(final Object[] aMembers, final int aFrom, final int aTo, final int aLevel) {
+        final int count = aTo - aFrom;
+
+        if (count == 0) {
+            return null;
+        }
+
+        if (aLevel >= myHeight) {
+            myHeight = aLevel + 1;
         }
+
+        if (myBucketSize > 1 && count <= myBucketSize) {
+            return new KDTreeNode<>(getStorage(), aMembers, aFrom, aTo, myBucketSize);
+        }
+
+        final int dimension = aLevel % myComparator.getNumberOfDimensions();
+
+        Arrays.sort(aMembers, aFrom, aTo, new DimensionComparator<>(myComparator, dimension));
+
+        int median = aFrom + count / 2;
+
+        while (median + 1 < aTo && myComparator.compare((T) aMembers[median + 1], (T) aMembers[median],
+                dimension) != MultidimensionalComparator.GT) {
+            median += 1;
+        }
+
+        final KDTreeNode<T> node = new KDTreeNode<>(getStorage(), (T) aMembers[median]);
+
+        node.myLeftNode = build(aMembers, aFrom, median, aLevel + 1);
+        node.myRightNode = build(aMembers, median + 1, aTo, aLevel + 1);
+
+        return node;
     }
 
     @SuppressWarnings("unchecked")
@@ -88,10 +157,10 @@ public class KDTree<T> extends PersistentCollection<T> implements Multidimension
         modify();
 
         if (myRoot == null) {
-            myRoot = new KDTreeNode<>(getStorage(), aObject);
+            myRoot = newLeaf(getStorage(), aObject, myBucketSize);
             myHeight = 1;
         } else {
-            final int level = myRoot.insert(aObject, myComparator, 0);
+            final int level = myRoot.insert(aObject, myComparator, 0, myBucketSize);
 
             if (level >= myHeight) {
                 myHeight = level + 1;
@@ -255,8 +324,20 @@ public class KDTree<T> extends PersistentCollection<T> implements Multidimension
 
         KDTreeNode<T> myNextNode;
 
+        T myNextObject;
+
         int myCurrentLevel;
 
+        /* Position of the current and the next object in their leaf bucket, or -1 if the node holds one object */
+        int myCurrentPosition;
+
+        int myNextPosition;
+
+        /* Leaf bucket which is being scanned and the position of its next unchecked object */
+        KDTreeNode<T> myBucketNode;
+
+        int myBucketPosition;
+
         @SuppressWarnings("unchecked")
         KDTreeIterator(final T aLow, final T aHigh) {
             myLow = aLow;
@@ -284,6 +365,10 @@ public class KDTree<T> extends PersistentCollection<T> implements Multidimension
                     node.load();
                     myStack.push(node);
 
+                    if (node.myBucket != null) {
+                        return true;
+                    }
+
                     final int diff = myLow == null ? MultidimensionalComparator.LEFT_UNDEFINED : myComparator.compare(
                             myLow, (T) node.myObject, (myStack.size() - 1) % myDimensionCount);
 
@@ -298,29 +383,69 @@ public class KDTree<T> extends PersistentCollection<T> implements Multidimension
             return false;
         }
 
-        @SuppressWarnings({ "unchecked", "checkstyle:BooleanExpressionComplexity" })
+        @SuppressWarnings({ "checkstyle:BooleanExpressionComplexity" })
+        private boolean matches(final T aObject) {
+            int result;
+
+            return (myLow == null || (result = compareAllComponents(myLow, aObject)) == MultidimensionalComparator.LT ||
+                    result == MultidimensionalComparator.EQ) && (myHigh == null || (result = compareAllComponents(
+                            myHigh, aObject)) == MultidimensionalComparator.GT ||
+                            result == MultidimensionalComparator.EQ);
+        }
+
+        private boolean nextInBucket() {
+            final Link<T> bucket = myBucketNode.myBucket;
+
+            while (myBucketPosition < bucket.size()) {
+                final int position = myBucketPosition++;
+                final T object = bucket.get(position);
+
+                if (matches(object)) {
+                    myNextNode = myBucketNode;
+                    myNextObject = object;
+                    myNextPosition = position;
+                    myCurrentLevel = myStack.size();
+
+                    return true;
+                }
+            }
+
+            myBucketNode = null;
+
+            return false;
+        }
+
+        @SuppressWarnings({ "unchecked" })
         @Override
         public boolean hasNext() {
             if (myNextNode != null) {
                 return true;
             }
 
+            if (myBucketNode != null && nextInBucket()) {
+                return true;
+            }
+
             while (!myStack.empty()) {
                 final KDTreeNode<T> node = myStack.pop();
 
                 if (node != null) {
-                    if (!node.isDeleted) {
-                        int result;
-
-                        if ((myLow == null || (result = compareAllComponents(myLow,
-                                node.myObject)) == MultidimensionalComparator.LT ||
-                                result == MultidimensionalComparator.EQ) && (myHigh == null || (result =
-                                        compareAllComponents(myHigh,
-                                                node.myObject)) == MultidimensionalComparator.GT ||
-                                        result == MultidimensionalComparator.EQ)) {
-                            myNextNode = node;
-                            myCurrentLevel = myStack.size();
+                    if (node.myBucket != null) {
+                        myBucketNode = node;
+                        myBucketPosition = 0;
+
+                        if (nextInBucket()) {
+                            return true;
                         }
+
+                        continue;
+                    }
+
+                    if (!node.isDeleted && matches(node.myObject)) {
+                        myNextNode = node;
+                        myNextObject = node.myObject;
+                        myNextPosition = -1;
+                        myCurrentLevel = myStack.size();
                     }
 
                     if (node.myRightNode != null && (myHigh == null || myComparator.compare(myHigh, node.myObject,
@@ -347,10 +472,14 @@ public class KDTree<T> extends PersistentCollection<T> implements Multidimension
                 throw new NoSuchElementException();
             }
 
+            final T current = myNextObject;
+
             myCurrentNode = myNextNode;
+            myCurrentPosition = myNextPosition;
             myNextNode = null;
+            myNextObject = null;
 
-            return myCurrentNode.myObject;
+            return current;
         }
 
         @Override
@@ -359,10 +488,7 @@ public class KDTree<T> extends PersistentCollection<T> implements Multidimension
                 return 0;
             }
 
-            myCurrentNode = myNextNode;
-            myNextNode = null;
-
-            return getStorage().getOid(myCurrentNode.myObject);
+            return getStorage().getOid(next());
         }
 
         @Override
@@ -372,13 +498,64 @@ public class KDTree<T> extends PersistentCollection<T> implements Multidimension
             }
 
             myCurrentNode.modify();
-            myCurrentNode.myObject = myComparator.cloneField(myCurrentNode.myObject, myCurrentLevel %
-                    myDimensionCount);
-            myCurrentNode.isDeleted = true;
+
+            if (myCurrentPosition >= 0) {
+                myCurrentNode.myBucket.remove(myCurrentPosition);
+
+                // Positions in the bucket after the removed object have shifted down by one
+                if (myBucketNode == myCurrentNode && myBucketPosition > myCurrentPosition) {
+                    myBucketPosition -= 1;
+                }
+
+                if (myNextNode == myCurrentNode && myNextPosition > myCurrentPosition) {
+                    myNextPosition -= 1;
+                }
+            } else {
+                myCurrentNode.myObject = myComparator.cloneField(myCurrentNode.myObject, myCurrentLevel %
+                        myDimensionCount);
+                myCurrentNode.isDeleted = true;
+            }
+
             myCurrentNode = null;
+            myMemberCount -= 1;
+            KDTree.this.modify();
         }
     }
 
+    /**
+     * Orders objects by one component, placing objects with an undefined component value first.
+     */
+    static class DimensionComparator<T> implements Comparator<Object> {
+
+        private final MultidimensionalComparator<T> myComparator;
+
+        private final int myDimension;
+
+        DimensionComparator(final MultidimensionalComparator<T> aComparator, final int aDimension) {
+            myComparator = aComparator;
+            myDimension = aDimension;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public int compare(final Object a1stObject, final Object a2ndObject) {
+            final int diff = myComparator.compare((T) a1stObject, (T) a2ndObject, myDimension);
+
+            if (diff == MultidimensionalComparator.LEFT_UNDEFINED) {
+                return -1;
+            } else if (diff == MultidimensionalComparator.RIGHT_UNDEFINED) {
+                return 1;
+            } else {
+                return diff;
+            }
+        }
+    }
+
+    static <T> KDTreeNode<T> newLeaf(final Storage aStorage, final T aObject, final int aBucketSize) {
+        return aBucketSize > 1 ? new KDTreeNode<>(aStorage, new Object[] { aObject }, 0, 1, aBucketSize)
+                : new KDTreeNode<>(aStorage, aObject);
+    }
+
     static class KDTreeNode<T> extends Persistent {
 
         KDTreeNode myLeftNode;
@@ -389,12 +566,24 @@ public class KDTree<T> extends PersistentCollection<T> implements Multidimension
 
         boolean isDeleted;
 
+        /* Objects of a leaf bucket; null if the node holds the single object <code>myObject</code> */
+        Link<T> myBucket;
+
         KDTreeNode(final Storage aStorage, final T aObject) {
             super(aStorage);
 
             myObject = aObject;
         }
 
+        @SuppressWarnings("unchecked")
+        KDTreeNode(final Storage aStorage, final Object[] aMembers, final int aFrom, final int aTo,
+                final int aBucketSize) {
+            super(aStorage);
+
+            myBucket = aStorage.createLink(aBucketSize);
+            myBucket.addAll((T[]) aMembers, aFrom, aTo - aFrom);
+        }
+
         @SuppressWarnings("unused")
         private KDTreeNode() {
         }
@@ -403,7 +592,9 @@ public class KDTree<T> extends PersistentCollection<T> implements Multidimension
         public void load() {
             super.load();
 
-            getStorage().load(myObject);
+            if (myBucket == null) {
+                getStorage().load(myObject);
+            }
         }
 
         @Override
@@ -412,9 +603,21 @@ public class KDTree<T> extends PersistentCollection<T> implements Multidimension
         }
 
         @SuppressWarnings("unchecked")
-        int insert(final T aInsert, final MultidimensionalComparator<T> aComparator, final int aLevel) {
+        int insert(final T aInsert, final MultidimensionalComparator<T> aComparator, final int aLevel,
+                final int aBucketSize) {
             load();
 
+            if (myBucket != null) {
+                if (myBucket.size() < aBucketSize) {
+                    modify();
+                    myBucket.add(aInsert);
+
+                    return aLevel;
+                } else {
+                    return split(aInsert, aComparator, aLevel, aBucketSize);
+                }
+            }
+
             final int diff = aComparator.compare(aInsert, myObject, aLevel % aComparator.getNumberOfDimensions());
 
             if (diff == MultidimensionalComparator.EQ && isDeleted) {
@@ -427,28 +630,89 @@ public class KDTree<T> extends PersistentCollection<T> implements Multidimension
             } else if (diff != MultidimensionalComparator.GT) {
                 if (myLeftNode == null) {
                     modify();
-                    myLeftNode = new KDTreeNode<>(getStorage(), aInsert);
+                    myLeftNode = newLeaf(getStorage(), aInsert, aBucketSize);
 
                     return aLevel + 1;
                 } else {
-                    return myLeftNode.insert(aInsert, aComparator, aLevel + 1);
+                    return myLeftNode.insert(aInsert, aComparator, aLevel + 1, aBucketSize);
                 }
             } else {
                 if (myRightNode == null) {
                     modify();
-                    myRightNode = new KDTreeNode<>(getStorage(), aInsert);
+                    myRightNode = newLeaf(getStorage(), aInsert, aBucketSize);
 
                     return aLevel + 1;
                 } else {
-                    return myRightNode.insert(aInsert, aComparator, aLevel + 1);
+                    return myRightNode.insert(aInsert, aComparator, aLevel + 1, aBucketSize);
                 }
             }
         }
 
+        /**
+         * Turns a full leaf bucket into a regular node holding the median object of the bucket's objects and the
+         * inserted one, with the objects below and above the median moved to two new leaf buckets.
+         */
+        @SuppressWarnings("unchecked")
+        private int split(final T aInsert, final MultidimensionalComparator<T> aComparator, final int aLevel,
+                final int aBucketSize) {
+            final int dimension = aLevel % aComparator.getNumberOfDimensions();
+            final int count = myBucket.size() + 1;
+            final Object[] members = new Object[count];
+
+            for (int index = 0; index < count - 1; index++) {
+                members[index] = myBucket.get(index);
+            }
+
+            members[count - 1] = aInsert;
+
+            Arrays.sort(members, new DimensionComparator<>(aComparator, dimension));
+
+            int median = count / 2;
+
+            while (median + 1 < count && aComparator.compare((T) members[median + 1], (T) members[median],
+                    dimension) != MultidimensionalComparator.GT) {
+                median += 1;
+            }
+
+            modify();
+
+            myBucket = null;
+            myObject = (T) members[median];
+
+            if (median > 0) {
+                myLeftNode = new KDTreeNode<>(getStorage(), members, 0, median, aBucketSize);
+            }
+
+            if (median + 1 < count) {
+                myRightNode = new KDTreeNode<>(getStorage(), members, median + 1, count, aBucketSize);
+            }
+
+            return aLevel + 1;
+        }
+
         @SuppressWarnings("unchecked")
         int remove(final T aRemove, final MultidimensionalComparator<T> aComparator, final int aLevel) {
             load();
 
+            if (myBucket != null) {
+                for (int index = 0, n = myBucket.size(); index < n; index++) {
+                    if (myBucket.get(index) == aRemove) {
+                        if (n == 1) {
+                            deallocate();
+
+                            return TRUNCATE;
+                        }
+
+                        modify();
+                        myBucket.remove(index);
+
+                        return OK;
+                    }
+                }
+
+                return NOT_FOUND;
+            }
+
             if (myObject == aRemove) {
                 if (myLeftNode == null && myRightNode == null) {
                     deallocate();
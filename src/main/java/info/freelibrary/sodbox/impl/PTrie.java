@@ -1,8 +1,10 @@
 
 package info.freelibrary.sodbox.impl;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import info.freelibrary.sodbox.PatriciaTrie;
 import info.freelibrary.sodbox.PatriciaTrieKey;
@@ -25,9 +27,11 @@ class PTrie<T> extends PersistentCollection<T> implements PatriciaTrie<T> {
     @Override
     public ArrayList<T> elements() {
         final ArrayList<T> list = new ArrayList<>(myCount);
+        final Iterator<T> iterator = iterator();
 
-        fill(list, myRootZero);
-        fill(list, myRootOne);
+        while (iterator.hasNext()) {
+            list.add(iterator.next());
+        }
 
         return list;
     }
@@ -44,15 +48,42 @@ class PTrie<T> extends PersistentCollection<T> implements PatriciaTrie<T> {
 
     @Override
     public Iterator<T> iterator() {
-        return elements().iterator();
+        return new TrieIterator<>(myRootZero, myRootOne);
     }
 
-    private static <E> void fill(final ArrayList<E> aList, final PTrieNode<E> aNode) {
-        if (aNode != null) {
-            aList.add(aNode.myObject);
-            fill(aList, aNode.myChildZero);
-            fill(aList, aNode.myChildOne);
+    @Override
+    public Iterator<T> iterator(final PatriciaTrieKey aPrefix) {
+        long key = aPrefix.myMask;
+        int keyLength = aPrefix.myLength;
+
+        if (keyLength == 0) {
+            return iterator();
         }
+
+        PTrieNode<T> node = firstBit(key, keyLength) == 1 ? myRootOne : myRootZero;
+
+        while (node != null) {
+            node.load();
+
+            if (keyLength <= node.myKeyLength) {
+                // prefix ends inside this node: all its subtree matches if the node key starts with the prefix
+                if (node.myKey >>> node.myKeyLength - keyLength == key) {
+                    return new TrieIterator<>(node, null);
+                }
+
+                break;
+            }
+
+            if (key >>> keyLength - node.myKeyLength != node.myKey) {
+                break;
+            }
+
+            keyLength -= node.myKeyLength;
+            key &= (1L << keyLength) - 1;
+            node = firstBit(key, keyLength) == 1 ? node.myChildOne : node.myChildZero;
+        }
+
+        return new TrieIterator<>(null, null);
     }
 
     private static int firstBit(final long aKey, final int aKeyLength) {
@@ -191,6 +222,70 @@ class PTrie<T> extends PersistentCollection<T> implements PatriciaTrie<T> {
         myCount = 0;
     }
 
+    /**
+     * Depth-first iterator through the subtrees of the nodes. Nodes without associated objects (created when the
+     * node is split) are skipped. Stack of the pending nodes is limited by the key length, so iteration is done in
+     * constant memory.
+     */
+    static class TrieIterator<T> implements Iterator<T> {
+
+        private final ArrayDeque<PTrieNode<T>> myStack = new ArrayDeque<>();
+
+        private T myNext;
+
+        TrieIterator(final PTrieNode<T> aFirst, final PTrieNode<T> aSecond) {
+            if (aSecond != null) {
+                myStack.push(aSecond);
+            }
+
+            if (aFirst != null) {
+                myStack.push(aFirst);
+            }
+
+            myNext = findNext();
+        }
+
+        private T findNext() {
+            while (!myStack.isEmpty()) {
+                final PTrieNode<T> node = myStack.pop();
+
+                node.load();
+
+                if (node.myChildOne != null) {
+                    myStack.push(node.myChildOne);
+                }
+
+                if (node.myChildZero != null) {
+                    myStack.push(node.myChildZero);
+                }
+
+                if (node.myObject != null) {
+                    return node.loadObject();
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return myNext != null;
+        }
+
+        @Override
+        public T next() {
+            if (myNext == null) {
+                throw new NoSuchElementException();
+            }
+
+            final T obj = myNext;
+
+            myNext = findNext();
+
+            return obj;
+        }
+    }
+
     static class PTrieNode<T> extends Persistent {
 
         long myKey;
@@ -212,11 +307,18 @@ class PTrie<T> extends PersistentCollection<T> implements PatriciaTrie<T> {
         PTrieNode() {
         }
 
+        @Override
+        public boolean recursiveLoading() {
+            return false;
+        }
+
         T add(final long aKey, final int aKeyLength, final T aObj) {
+            load();
+
             if (aKey == myKey && aKeyLength == myKeyLength) {
                 modify();
 
-                final T previousObj = myObject;
+                final T previousObj = loadObject();
 
                 myObject = aObj;
 
@@ -276,7 +378,7 @@ class PTrie<T> extends PersistentCollection<T> implements PatriciaTrie<T> {
                     }
                 }
             } else {
-                final T previousObj = myObject;
+                final T previousObj = loadObject();
 
                 myObject = aObj;
 
@@ -285,6 +387,8 @@ class PTrie<T> extends PersistentCollection<T> implements PatriciaTrie<T> {
         }
 
         T findBestMatch(final long aKey, final int aKeyLength) {
+            load();
+
             if (aKeyLength > myKeyLength) {
                 final int keyLengthCommon = getCommonPartLength(aKey, aKeyLength, myKey, myKeyLength);
                 final int keyLengthDiff = aKeyLength - keyLengthCommon;
@@ -302,13 +406,15 @@ class PTrie<T> extends PersistentCollection<T> implements PatriciaTrie<T> {
                 }
             }
 
-            return myObject;
+            return loadObject();
         }
 
         T findExactMatch(final long aKey, final int aKeyLength) {
+            load();
+
             if (aKeyLength >= myKeyLength) {
                 if (aKey == myKey && aKeyLength == myKeyLength) {
-                    return myObject;
+                    return loadObject();
                 } else {
                     final int keyLengthCommon = getCommonPartLength(aKey, aKeyLength, myKey, myKeyLength);
 
@@ -333,14 +439,28 @@ class PTrie<T> extends PersistentCollection<T> implements PatriciaTrie<T> {
             return null;
         }
 
+        T loadObject() {
+            final T obj = myObject;
+
+            if (obj != null) {
+                getStorage().load(obj);
+            }
+
+            return obj;
+        }
+
         boolean isNotUsed() {
+            load();
+
             return myObject == null && myChildOne == null && myChildZero == null;
         }
 
         T remove(final long aKey, final int aKeyLength) {
+            load();
+
             if (aKeyLength >= myKeyLength) {
                 if (aKey == myKey && aKeyLength == myKeyLength) {
-                    final T obj = myObject;
+                    final T obj = loadObject();
 
                     myObject = null;
 
@@ -388,6 +508,8 @@ class PTrie<T> extends PersistentCollection<T> implements PatriciaTrie<T> {
 
         @Override
         public void deallocate() {
+            load();
+
             if (myChildOne != null) {
                 myChildOne.deallocate();
             }
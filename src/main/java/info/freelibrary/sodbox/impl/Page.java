@@ -1,9 +1,24 @@
 
 package info.freelibrary.sodbox.impl;
 
+import info.freelibrary.sodbox.Constants;
+import info.freelibrary.sodbox.StorageError;
+
 public class Page extends LRU implements Comparable {
 
-    public static final int PAGE_SIZE_LOG = 12;
+    /**
+     * System property specifying the size of the database page: power of two from 4096 to 65536 bytes. It is read
+     * once, when this class is loaded, so page size is the same for all storages of the JVM and can not be changed
+     * by the storage properties. Page size is stored in the header of the created database and database created with
+     * another page size can not be opened.
+     */
+    public static final String PAGE_SIZE_PROPERTY = Constants.PAGE_SIZE;
+
+    public static final int DEFAULT_PAGE_SIZE_LOG = 12;
+
+    public static final int MAX_PAGE_SIZE_LOG = 16;
+
+    public static final int PAGE_SIZE_LOG = getPageSizeLog(System.getProperty(PAGE_SIZE_PROPERTY));
 
     public static final int PAGE_SIZE = 1 << PAGE_SIZE_LOG;
 
@@ -25,6 +40,28 @@ public class Page extends LRU implements Comparable {
 
     byte myData[];
 
+    static int getPageSizeLog(final String aPageSize) {
+        if (aPageSize == null) {
+            return DEFAULT_PAGE_SIZE_LOG;
+        }
+
+        final int pageSize;
+
+        try {
+            pageSize = Integer.parseInt(aPageSize.trim());
+        } catch (final NumberFormatException details) {
+            throw new StorageError(StorageError.BAD_PROPERTY_VALUE, PAGE_SIZE_PROPERTY);
+        }
+
+        final int pageSizeLog = Integer.numberOfTrailingZeros(pageSize);
+
+        if (pageSize != 1 << pageSizeLog || pageSizeLog < DEFAULT_PAGE_SIZE_LOG || pageSizeLog > MAX_PAGE_SIZE_LOG) {
+            throw new StorageError(StorageError.BAD_PROPERTY_VALUE, PAGE_SIZE_PROPERTY);
+        }
+
+        return pageSizeLog;
+    }
+
     @Override
     public int compareTo(final Object aObject) {
         final long po = ((Page) aObject).myOffset;
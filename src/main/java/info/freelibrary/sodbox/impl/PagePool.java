@@ -4,12 +4,15 @@ package info.freelibrary.sodbox.impl;
 import java.util.Arrays;
 
 import info.freelibrary.sodbox.Assert;
+import info.freelibrary.sodbox.IBatchFile;
 import info.freelibrary.sodbox.IFile;
 
 class PagePool {
 
     static final int INFINITE_POOL_INITIAL_SIZE = 8;
 
+    static final int FLUSH_BATCH_SIZE = 256; // number of pages passed to the batch file at once
+
     LRU myLRU;
 
     Page myFreePages;
@@ -30,6 +33,14 @@ class PagePool {
 
     boolean isFlushing;
 
+    boolean isBatchFlush;
+
+    long[] myBatchPositions;
+
+    int[] myBatchPages;
+
+    byte[][] myBatchBuffers;
+
     /**
      * Creates a page pool.
      *
@@ -231,6 +242,9 @@ class PagePool {
 
     final void open(final IFile aFile) {
         myFile = aFile;
+
+        // snapshot file passes batches to the wrapped file, so batches are used only if that file supports them
+        isBatchFlush = (aFile instanceof SnapshotFile ? ((SnapshotFile) aFile).myFile : aFile) instanceof IBatchFile;
         reset();
     }
 
@@ -368,6 +382,10 @@ class PagePool {
             Arrays.sort(myDirtyPages, 0, myDirtyPagesCount);
         }
 
+        if (isBatchFlush) {
+            flushBatches((IBatchFile) myFile);
+        }
+
         for (int index = 0; index < myDirtyPagesCount; index++) {
             final Page page = myDirtyPages[index];
 
@@ -384,4 +402,47 @@ class PagePool {
         isFlushing = false;
     }
 
+    /**
+     * Write dirty pages to the file in batches. Page data is copied to the batch, because page can be thrown away
+     * from the pool and reused while the batch is written; page is marked as clean after the batch is written.
+     */
+    private void flushBatches(final IBatchFile aFile) {
+        if (myBatchBuffers == null) {
+            myBatchPositions = new long[FLUSH_BATCH_SIZE];
+            myBatchPages = new int[FLUSH_BATCH_SIZE];
+            myBatchBuffers = new byte[FLUSH_BATCH_SIZE][Page.PAGE_SIZE];
+        }
+
+        for (int start = 0; start < myDirtyPagesCount; start += FLUSH_BATCH_SIZE) {
+            final int end = Math.min(start + FLUSH_BATCH_SIZE, myDirtyPagesCount);
+
+            int count = 0;
+
+            for (int index = start; index < end; index++) {
+                final Page page = myDirtyPages[index];
+
+                synchronized (page) {
+                    if ((page.myState & Page.PS_DIRTY) != 0) {
+                        myBatchPositions[count] = page.myOffset;
+                        myBatchPages[count] = index;
+                        System.arraycopy(page.myData, 0, myBatchBuffers[count], 0, Page.PAGE_SIZE);
+                        count += 1;
+                    }
+                }
+            }
+
+            aFile.write(myBatchPositions, myBatchBuffers, count);
+
+            for (int index = 0; index < count; index++) {
+                final Page page = myDirtyPages[myBatchPages[index]];
+
+                synchronized (page) {
+                    if (page.myOffset == myBatchPositions[index]) {
+                        page.myState &= ~Page.PS_DIRTY;
+                    }
+                }
+            }
+        }
+    }
+
 }
@@ -7,12 +7,30 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 import info.freelibrary.sodbox.IFile;
+import info.freelibrary.sodbox.ReplicationStatus;
 import info.freelibrary.sodbox.StorageError;
 
 /**
- * File performing replication of changed pages to specified slave nodes.
+ * File performing replication of changed pages to specified slave nodes. Written pages are collected in the batch
+ * which is sent to the slaves as one (optionally compressed) frame when the file is synchronized (at transaction
+ * commit) or when the batch becomes full. Each slave node is served by its own sender thread, so frames are sent to
+ * all slaves in parallel and commit waits only for the slowest of them.<BR>
+ * Newly attached (or reconnected) slave is synchronized by the catch-up: set of pages which the slave doesn't have is
+ * computed in bulk (using page timestamps when they are available), read from the local file and sent in sorted
+ * compressed batches prepared by several threads. Pages changed during the catch-up are resent by the next passes and
+ * the last pass is performed with the writers blocked, so the slave is switched to the live stream of frames at the
+ * transaction boundary.
  */
 public class ReplicationMasterFile implements IFile, Runnable {
 
@@ -24,6 +42,18 @@ public class ReplicationMasterFile implements IFile, Runnable {
 
     public static int INIT_PAGE_TIMESTAMPS_LENGTH = 64 * 1024;
 
+    public static int MAX_BATCH_PAGES = 64; // maximal number of pages sent in one frame
+
+    public static int MAX_QUEUED_BYTES = 16 * 1024 * 1024; // maximal size of frames queued for the slaves
+
+    public static int ACK_WINDOW = 64; // maximal number of frames sent to the slave without acknowledgment
+
+    public static int CATCH_UP_THREADS = Runtime.getRuntime().availableProcessors(); // threads preparing batches
+
+    public static int MAX_CATCH_UP_PASSES = 8; // passes after which catch-up is completed with writers blocked
+
+    public static int CATCH_UP_FINAL_PAGES = 1024; // number of changed pages sent in the last pass of the catch-up
+
     Object myMutex;
 
     OutputStream[] myOutputStream;
@@ -34,8 +64,6 @@ public class ReplicationMasterFile implements IFile, Runnable {
 
     byte[] myTxBuf;
 
-    byte[] myRcBuf;
-
     IFile myFile;
 
     String[] myHosts;
@@ -64,6 +92,30 @@ public class ReplicationMasterFile implements IFile, Runnable {
 
     ReplicationMasterStorageImpl myStorage;
 
+    FrameSender[] mySenders;
+
+    FrameEncoder myEncoder;
+
+    byte[] myBatch;
+
+    byte[] myDeltaBatch;
+
+    byte[] myBase;
+
+    int myBatchSize;
+
+    boolean isCommitBatch;
+
+    boolean isDeltaBatch;
+
+    boolean isDelta;
+
+    long myFrameCount;
+
+    Object myProgress;
+
+    long myMaxQueuedBytes;
+
     /**
      * Constructor of replication master file
      *
@@ -110,13 +162,15 @@ public class ReplicationMasterFile implements IFile, Runnable {
         myAck = aAck;
         myPort = aPort;
         myMutex = new Object();
+        myProgress = new Object();
+        myMaxQueuedBytes = MAX_QUEUED_BYTES;
         mySockets = new Socket[aHosts.length];
         mySyncThreads = new Thread[aHosts.length];
         myOutputStream = new OutputStream[aHosts.length];
+        mySenders = new FrameSender[aHosts.length];
 
         if (aAck) {
             myInputStream = new InputStream[aHosts.length];
-            myRcBuf = new byte[1];
         }
 
         myNumOfHosts = 0;
@@ -159,10 +213,32 @@ public class ReplicationMasterFile implements IFile, Runnable {
             myTxBuf = new byte[8 + Page.PAGE_SIZE];
         }
 
+        myEncoder = new FrameEncoder(aStorage == null || aStorage.myReplicationCompression);
+        myBatch = new byte[myTxBuf.length * MAX_BATCH_PAGES];
+
+        // slaves synchronized with page timestamps can receive page which is newer than the page stored locally,
+        // so differences can be sent only to the slaves which received all pages written to the file
+        isDelta = aStorage != null && aStorage.myReplicationDelta && aPageTimestampFilePath == null;
+
+        if (isDelta) {
+            myDeltaBatch = new byte[myBatch.length];
+            myBase = new byte[Page.PAGE_SIZE];
+            isDeltaBatch = true;
+        }
+
         for (int i = 0; i < aHosts.length; i++) {
+            mySenders[i] = new FrameSender(i, isDelta);
             connect(i);
         }
 
+        for (int i = 0; i < aHosts.length; i++) {
+            if (mySockets[i] != null) {
+                mySenders[i].startSending();
+            } else {
+                mySenders[i] = null;
+            }
+        }
+
         if (aPort >= 0) {
             aStorage.setProperty("sodbox.alternative.btree", Boolean.TRUE); // prevent direct modification of pages
 
@@ -263,6 +339,13 @@ public class ReplicationMasterFile implements IFile, Runnable {
             mySockets = newSockets;
             myNumOfHosts += 1;
 
+            final FrameSender[] newSenders = new FrameSender[n + 1];
+
+            System.arraycopy(mySenders, 0, newSenders, 0, n);
+
+            newSenders[n] = new FrameSender(n, false);
+            mySenders = newSenders;
+
             final Thread thread = new SynchronizeThread(n);
             final Thread[] newThreads = new Thread[n + 1];
 
@@ -275,16 +358,16 @@ public class ReplicationMasterFile implements IFile, Runnable {
         }
     }
 
-    @SuppressWarnings("unused")
     private void synchronizeNode(final int aIndex) {
-        final long size = myStorage.getDatabaseSize();
         final Socket socket;
+        final FrameSender sender;
 
         OutputStream os = null;
         InputStream is = null;
 
         synchronized (myMutex) {
             socket = mySockets[aIndex];
+            sender = mySenders[aIndex];
 
             if (socket == null) {
                 mySyncThreads[aIndex] = null;
@@ -303,10 +386,7 @@ public class ReplicationMasterFile implements IFile, Runnable {
         try {
             Sync:
             do {
-                final byte[] txBuf;
-
                 if (myPageTs != null) {
-                    txBuf = new byte[12 + Page.PAGE_SIZE];
                     byte[] psBuf = new byte[4];
 
                     if (is.read(psBuf) != 4) {
@@ -336,69 +416,252 @@ public class ReplicationMasterFile implements IFile, Runnable {
                     for (int j = 0; j < psSize; j++) {
                         syncNodeTimestamps[j] = Bytes.unpack4(psBuf, j * 4);
                     }
-                } else {
-                    txBuf = new byte[8 + Page.PAGE_SIZE];
                 }
 
-                for (long pos = 0; pos < size; pos += Page.PAGE_SIZE) {
-                    final int pageNo = (int) (pos >> Page.PAGE_SIZE_LOG);
+                catchUp(sender, socket, os, syncNodeTimestamps);
 
-                    if (syncNodeTimestamps != null) {
-                        if (pageNo < syncNodeTimestamps.length && pageNo < myPageTs.length &&
-                                syncNodeTimestamps[pageNo] == myPageTs[pageNo]) {
-                            continue;
-                        }
-                    }
+                return;
+            } while (false);
+        } catch (final IOException details) {
+            details.printStackTrace();
+        }
 
-                    synchronized (myStorage) {
-                        synchronized (myStorage.myObjectCache) {
-                            final Page page = myStorage.myPool.getPage(pos);
+        synchronized (myMutex) {
+            sender.myChangedPages = null;
 
-                            Bytes.pack8(txBuf, 0, pos);
+            if (mySockets[aIndex] != null) {
+                handleError(myHosts[aIndex]);
+                mySockets[aIndex] = null;
+                myOutputStream[aIndex] = null;
+                mySyncThreads[aIndex] = null;
+                myNumOfHosts -= 1;
+            }
+        }
 
-                            System.arraycopy(page.myData, 0, txBuf, 8, Page.PAGE_SIZE);
+        sender.close();
+    }
 
-                            myStorage.myPool.unfix(page);
+    /**
+     * Send to the slave all pages which it doesn't have and switch it to the live stream of frames.
+     *
+     * @param aSender sender of frames to the slave
+     * @param aSocket socket connected to the slave
+     * @param aOut output stream of the socket
+     * @param aTimestamps timestamps of the pages at the slave or null if all pages should be sent
+     */
+    private void catchUp(final FrameSender aSender, final Socket aSocket, final OutputStream aOut,
+            final int[] aTimestamps) throws IOException {
+        final FrameEncoder encoder = new FrameEncoder(myEncoder.myDeflater != null);
 
-                            if (syncNodeTimestamps != null) {
-                                Bytes.pack4(txBuf, Page.PAGE_SIZE + 8, pageNo < myPageTs.length
-                                        ? myPageTs[pageNo] : 0);
-                            }
-                        }
+        BitSet pages = new BitSet();
+
+        synchronized (myMutex) {
+            aSender.beginCatchUp();
+
+            final int numOfPages = (int) (myFile.length() + Page.PAGE_SIZE - 1 >> Page.PAGE_SIZE_LOG);
+
+            for (int pageNo = 0; pageNo < numOfPages; pageNo++) {
+                if (aTimestamps == null || pageNo >= aTimestamps.length || pageNo >= myPageTs.length ||
+                        aTimestamps[pageNo] != myPageTs[pageNo]) {
+                    pages.set(pageNo);
+                }
+            }
+        }
+
+        for (int pass = 1; true; pass++) {
+            // header is sent by the last pass only, so slave doesn't see the transaction until it has all its pages
+            pages.clear(0);
+            sendPages(aSender, aSocket, aOut, encoder, pages, pass, true);
+
+            synchronized (myMutex) {
+                pages = aSender.takeChangedPages();
+
+                if (pages.cardinality() <= CATCH_UP_FINAL_PAGES || pass >= MAX_CATCH_UP_PASSES) {
+                    if (myFile.length() > 0) {
+                        pages.set(0);
                     }
 
-                    final Page page = myStorage.myPool.getPage(pos);
+                    sendPages(aSender, aSocket, aOut, encoder, pages, pass + 1, false);
 
-                    synchronized (socket) {
-                        os.write(txBuf);
+                    synchronized (aSocket) {
+                        final byte[] txBuf = new byte[myTxBuf.length];
 
-                        if (myAck && pos == 0 && is.read(myRcBuf) != 1) {
-                            System.err.println("Failed to receive ACK");
-                            break Sync;
-                        }
+                        Bytes.pack8(txBuf, 0, ReplicationSlaveStorageImpl.REPL_SYNC);
+                        aOut.write(txBuf); // end of synchronization
                     }
+
+                    aSender.endCatchUp();
+
+                    return;
                 }
+            }
+        }
+    }
 
-                synchronized (socket) {
-                    Bytes.pack8(txBuf, 0, ReplicationSlaveStorageImpl.REPL_SYNC);
-                    os.write(txBuf); // end of synchronization
+    /**
+     * Send the pages to the slave in the order of their positions. Batches of pages are read and compressed by the
+     * pool of threads if <code>aParallel</code> is set.
+     */
+    private void sendPages(final FrameSender aSender, final Socket aSocket, final OutputStream aOut,
+            final FrameEncoder aEncoder, final BitSet aPages, final int aPass, final boolean aParallel)
+            throws IOException {
+        final int count = aPages.cardinality();
+        final int[] pageNos = new int[count];
+
+        for (int i = 0, pageNo = aPages.nextSetBit(0); pageNo >= 0; pageNo = aPages.nextSetBit(pageNo + 1)) {
+            pageNos[i++] = pageNo;
+        }
+
+        aSender.startCatchUpPass(aPass, count);
+
+        final int nBatches = (count + MAX_BATCH_PAGES - 1) / MAX_BATCH_PAGES;
+        final int nThreads = aParallel ? Math.min(CATCH_UP_THREADS, nBatches) : 1;
+
+        if (nThreads <= 1) {
+            for (int from = 0; from < count; from += MAX_BATCH_PAGES) {
+                final int to = Math.min(from + MAX_BATCH_PAGES, count);
+
+                sendCatchUpFrame(aSender, aSocket, aOut, encodePages(aEncoder, pageNos, from, to), to - from);
+            }
+
+            return;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        final ArrayDeque<Future<byte[]>> futures = new ArrayDeque<>();
+        final ThreadLocal<FrameEncoder> encoders = new ThreadLocal<FrameEncoder>() {
+
+            @Override
+            protected FrameEncoder initialValue() {
+                return new FrameEncoder(aEncoder.myDeflater != null);
+            }
+        };
+
+        try {
+            int from = 0;
+            int sent = 0;
+
+            while (sent < count) {
+                // number of prepared frames is limited to avoid keeping all pages in memory
+                while (from < count && futures.size() < nThreads * 2) {
+                    final int first = from;
+                    final int last = Math.min(from + MAX_BATCH_PAGES, count);
+
+                    futures.add(executor.submit(new Callable<byte[]>() {
+
+                        @Override
+                        public byte[] call() {
+                            return encodePages(encoders.get(), pageNos, first, last);
+                        }
+                    }));
+
+                    from = last;
                 }
 
-                return;
-            } while (false);
-        } catch (final IOException details) {
-            details.printStackTrace();
+                final int pagesInFrame = Math.min(MAX_BATCH_PAGES, count - sent);
+
+                sendCatchUpFrame(aSender, aSocket, aOut, futures.poll().get(), pagesInFrame);
+                sent += pagesInFrame;
+            }
+        } catch (final InterruptedException x) {
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        } catch (final ExecutionException x) {
+            if (x.getCause() instanceof StorageError) {
+                throw (StorageError) x.getCause();
+            }
+
+            throw new StorageError(StorageError.FILE_ACCESS_ERROR, x);
+        } finally {
+            executor.shutdownNow();
         }
+    }
+
+    /**
+     * Read the pages from the local file and encode them in the frame.
+     */
+    byte[] encodePages(final FrameEncoder aEncoder, final int[] aPageNos, final int aFrom, final int aTo) {
+        final int recordSize = myTxBuf.length;
+        final byte[] batch = new byte[(aTo - aFrom) * recordSize];
+        final byte[] page = new byte[Page.PAGE_SIZE];
 
         synchronized (myMutex) {
-            if (mySockets[aIndex] != null) {
-                handleError(myHosts[aIndex]);
-                mySockets[aIndex] = null;
-                myOutputStream[aIndex] = null;
-                mySyncThreads[aIndex] = null;
-                myNumOfHosts -= 1;
+            for (int i = aFrom, offset = 0; i < aTo; i++, offset += recordSize) {
+                final int pageNo = aPageNos[i];
+                final long pos = (long) pageNo << Page.PAGE_SIZE_LOG;
+                final int rc = myFile.read(pos, page);
+
+                if (rc < Page.PAGE_SIZE) {
+                    Arrays.fill(page, Math.max(rc, 0), Page.PAGE_SIZE, (byte) 0);
+                }
+
+                Bytes.pack8(batch, offset, pos);
+                System.arraycopy(page, 0, batch, offset + 8, Page.PAGE_SIZE);
+
+                if (myPageTs != null) {
+                    Bytes.pack4(batch, offset + Page.PAGE_SIZE + 8, pageNo < myPageTs.length ? myPageTs[pageNo]
+                            : 0);
+                }
+            }
+        }
+
+        return aEncoder.encode(batch, batch.length, 0);
+    }
+
+    private void sendCatchUpFrame(final FrameSender aSender, final Socket aSocket, final OutputStream aOut,
+            final byte[] aFrame, final int aNumOfPages) throws IOException {
+        synchronized (aSocket) {
+            aOut.write(aFrame);
+        }
+
+        synchronized (myProgress) {
+            aSender.myCatchUpSentPages += aNumOfPages;
+            aSender.mySentBytes += aFrame.length;
+        }
+    }
+
+    /**
+     * Get status of replication to the slave nodes.
+     *
+     * @return status of each slave node: catch-up progress and lag of the replication stream
+     */
+    public ReplicationStatus[] getReplicationStatus() {
+        final String[] hosts;
+        final Socket[] sockets;
+        final FrameSender[] senders;
+        final long frameCount;
+
+        synchronized (myMutex) {
+            hosts = myHosts;
+            sockets = mySockets;
+            senders = mySenders;
+            frameCount = myFrameCount;
+        }
+
+        final ReplicationStatus[] status = new ReplicationStatus[hosts.length];
+
+        synchronized (myProgress) {
+            for (int i = 0; i < hosts.length; i++) {
+                final ReplicationStatus nodeStatus = new ReplicationStatus(hosts[i]);
+                final FrameSender sender = senders[i];
+
+                nodeStatus.isConnected = sockets[i] != null;
+
+                if (sender != null) {
+                    nodeStatus.isCatchingUp = sender.isCatchingUp;
+                    nodeStatus.myCatchUpPasses = sender.myCatchUpPasses;
+                    nodeStatus.myCatchUpPages = sender.myCatchUpPages;
+                    nodeStatus.myCatchUpSentPages = sender.myCatchUpSentPages;
+                    nodeStatus.mySentBytes = sender.mySentBytes;
+                    nodeStatus.myQueuedBytes = sender.myQueuedBytes;
+                    nodeStatus.myLagFrames = sender.isCatchingUp || sender.isStopped ? 0 : frameCount -
+                            sender.mySentFrame;
+                }
+
+                status[i] = nodeStatus;
             }
         }
+
+        return status;
     }
 
     /**
@@ -410,7 +673,6 @@ public class ReplicationMasterFile implements IFile, Runnable {
         return myNumOfHosts;
     }
 
-    @SuppressWarnings("unused")
     protected void connect(final int aIndex) {
         String host = myHosts[aIndex];
 
@@ -454,22 +716,27 @@ public class ReplicationMasterFile implements IFile, Runnable {
                     //
                 }
 
-                mySockets[aIndex] = socket;
-                myOutputStream[aIndex] = socket.getOutputStream();
+                synchronized (myMutex) {
+                    mySockets[aIndex] = socket;
+                    myOutputStream[aIndex] = socket.getOutputStream();
 
-                if (myAck || myPageTs != null) {
-                    myInputStream[aIndex] = socket.getInputStream();
-                }
+                    if (myAck || myPageTs != null) {
+                        myInputStream[aIndex] = socket.getInputStream();
+                    }
 
-                myNumOfHosts += 1;
+                    myNumOfHosts += 1;
+                }
 
                 if (myPageTs != null) {
                     synchronizeNode(aIndex);
                 }
             } catch (final IOException x) {
                 handleError(myHosts[aIndex]);
-                mySockets[aIndex] = null;
-                myOutputStream[aIndex] = null;
+
+                synchronized (myMutex) {
+                    mySockets[aIndex] = null;
+                    myOutputStream[aIndex] = null;
+                }
             }
         }
     }
@@ -487,10 +754,12 @@ public class ReplicationMasterFile implements IFile, Runnable {
 
     @Override
     public void write(final long aPosition, final byte[] aBytes) {
+        waitForQueueSpace();
+
         synchronized (myMutex) {
-            if (myPageTs != null) {
-                final int pageNo = (int) (aPosition >> Page.PAGE_SIZE_LOG);
+            final int pageNo = (int) (aPosition >> Page.PAGE_SIZE_LOG);
 
+            if (myPageTs != null) {
                 if (pageNo >= myPageTs.length) {
                     final int newLength = pageNo >= myPageTs.length * 2 ? pageNo + 1 : myPageTs.length *
                             2;
@@ -514,50 +783,67 @@ public class ReplicationMasterFile implements IFile, Runnable {
                         31);
             }
 
-            for (int i = 0; i < myOutputStream.length; i++) {
-                while (myOutputStream[i] != null) {
-                    try {
-                        synchronized (mySockets[i]) {
-                            Bytes.pack8(myTxBuf, 0, aPosition);
-                            System.arraycopy(aBytes, 0, myTxBuf, 8, aBytes.length);
+            for (final FrameSender sender : mySenders) {
+                if (sender != null && sender.myChangedPages != null) {
+                    sender.myChangedPages.set(pageNo); // page should be resent by the next pass of the catch-up
+                }
+            }
 
-                            if (myPageTs != null) {
-                                Bytes.pack4(myTxBuf, Page.PAGE_SIZE + 8, myTimestamp);
-                            }
+            final int offset = myBatchSize;
 
-                            myOutputStream[i].write(myTxBuf);
+            Bytes.pack8(myBatch, offset, aPosition);
+            System.arraycopy(aBytes, 0, myBatch, offset + 8, aBytes.length);
 
-                            if (!myAck || aPosition != 0 || myInputStream[i].read(myRcBuf) == 1) {
-                                break;
-                            }
-                        }
-                    } catch (final IOException details) {
-                        //
-                    }
+            if (myPageTs != null) {
+                Bytes.pack4(myBatch, offset + Page.PAGE_SIZE + 8, myTimestamp);
+            }
 
-                    myOutputStream[i] = null;
-                    mySockets[i] = null;
-                    myNumOfHosts -= 1;
+            if (isDeltaBatch && hasDeltaReceivers()) {
+                // slave has the same version of the page as the local file (or zero page if it is not present)
+                if (myFile.read(aPosition, myBase) < Page.PAGE_SIZE) {
+                    Arrays.fill(myBase, (byte) 0);
+                }
 
-                    if (handleError(myHosts[i])) {
-                        connect(i);
-                    } else {
-                        break;
-                    }
+                System.arraycopy(myBatch, offset, myDeltaBatch, offset, myTxBuf.length);
+
+                for (int i = 0; i < Page.PAGE_SIZE; i++) {
+                    myDeltaBatch[offset + 8 + i] ^= myBase[i];
                 }
+            } else {
+                isDeltaBatch = false;
             }
-        }
 
-        myFile.write(aPosition, aBytes);
+            myBatchSize += myTxBuf.length;
+            isCommitBatch |= aPosition == 0;
+
+            // local file is updated under the mutex, so it contains the version of the page known to the slaves
+            myFile.write(aPosition, aBytes);
+
+            if (myBatchSize == myBatch.length) {
+                sendBatch();
+            }
+        }
     }
 
     @Override
     public int read(final long aPosition, final byte[] aBytes) {
-        return myFile.read(aPosition, aBytes);
+        synchronized (myMutex) { // file is also read by the catch-up threads
+            return myFile.read(aPosition, aBytes);
+        }
     }
 
     @Override
     public void sync() {
+        final Frame frame;
+
+        synchronized (myMutex) {
+            frame = sendBatch();
+        }
+
+        if (frame != null) {
+            waitForDelivery(frame);
+        }
+
         if (myPageTs != null) {
             synchronized (myMutex) {
                 final byte[] page = new byte[Page.PAGE_SIZE];
@@ -600,6 +886,99 @@ public class ReplicationMasterFile implements IFile, Runnable {
         myFile.sync();
     }
 
+    /**
+     * Send collected pages to the slaves. Should be called with the mutex locked.
+     *
+     * @return sent frame or null if there are no pages to send
+     */
+    private Frame sendBatch() {
+        if (myBatchSize == 0) {
+            return null;
+        }
+
+        final Frame frame = new Frame(++myFrameCount, myAck && isCommitBatch);
+        final int flags = frame.isAckRequested ? ReplicationSlaveStorageImpl.FRAME_ACK : 0;
+
+        frame.myData = myEncoder.encode(myBatch, myBatchSize, flags);
+
+        if (isDeltaBatch && hasDeltaReceivers()) {
+            frame.myDelta = myEncoder.encode(myDeltaBatch, myBatchSize, flags |
+                    ReplicationSlaveStorageImpl.FRAME_DELTA);
+        }
+
+        myBatchSize = 0;
+        isCommitBatch = false;
+        isDeltaBatch = isDelta;
+
+        for (final FrameSender sender : mySenders) {
+            if (sender != null) {
+                sender.enqueue(frame);
+            }
+        }
+
+        return frame;
+    }
+
+    private boolean hasDeltaReceivers() {
+        for (final FrameSender sender : mySenders) {
+            if (sender != null && sender.isDeltaReceiver) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Wait until the frame is sent (and acknowledged, if acknowledgment was requested) by all available slaves.
+     *
+     * @param aFrame sent frame
+     */
+    void waitForDelivery(final Frame aFrame) {
+        try {
+            synchronized (myProgress) {
+                while (!isDelivered(aFrame)) {
+                    myProgress.wait();
+                }
+            }
+        } catch (final InterruptedException details) {
+            //
+        }
+    }
+
+    private boolean isDelivered(final Frame aFrame) {
+        for (final FrameSender sender : mySenders) {
+            if (sender != null && sender.isAvailable() && (sender.mySentFrame < aFrame.myNumber ||
+                    aFrame.isAckRequested && sender.myAcknowledgedFrame < aFrame.myNumber)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void waitForQueueSpace() {
+        try {
+            synchronized (myProgress) {
+                while (isQueueFull()) {
+                    myProgress.wait();
+                }
+            }
+        } catch (final InterruptedException details) {
+            //
+        }
+    }
+
+    private boolean isQueueFull() {
+        for (final FrameSender sender : mySenders) {
+            if (sender != null && sender.isAvailable() && sender.myQueuedBytes > myMaxQueuedBytes) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     @Override
     public boolean tryLock(final boolean aShared) {
         return myFile.tryLock(aShared);
@@ -655,6 +1034,22 @@ public class ReplicationMasterFile implements IFile, Runnable {
             }
         }
 
+        synchronized (myMutex) {
+            sendBatch();
+        }
+
+        for (final FrameSender sender : mySenders) {
+            if (sender != null) {
+                sender.close();
+
+                try {
+                    sender.join();
+                } catch (final InterruptedException details) {
+                    //
+                }
+            }
+        }
+
         myFile.close();
         Bytes.pack8(myTxBuf, 0, ReplicationSlaveStorageImpl.REPL_CLOSE);
 
@@ -699,4 +1094,374 @@ public class ReplicationMasterFile implements IFile, Runnable {
             synchronizeNode(myIndex);
         }
     }
+
+    /**
+     * Batch of pages sent to the slaves. Frame is encoded once for all slaves: full pages and, if some slaves
+     * receive differences, XOR of the new and previous versions of the pages.
+     */
+    static class Frame {
+
+        final long myNumber;
+
+        final boolean isAckRequested;
+
+        byte[] myData;
+
+        byte[] myDelta;
+
+        Frame(final long aNumber, final boolean aAckRequested) {
+            myNumber = aNumber;
+            isAckRequested = aAckRequested;
+        }
+    }
+
+    /**
+     * Encoder of frames: frame header is followed by the (compressed) records of the pages.
+     */
+    static class FrameEncoder {
+
+        final Deflater myDeflater;
+
+        FrameEncoder(final boolean aCompressed) {
+            myDeflater = aCompressed ? new Deflater(Deflater.BEST_SPEED) : null;
+        }
+
+        byte[] encode(final byte[] aBatch, final int aSize, final int aFlags) {
+            final int headerSize = ReplicationSlaveStorageImpl.FRAME_HEADER_SIZE;
+
+            byte[] frame = new byte[headerSize + aSize];
+            int flags = aFlags;
+            int length = aSize;
+
+            if (myDeflater != null) {
+                myDeflater.reset();
+                myDeflater.setInput(aBatch, 0, aSize);
+                myDeflater.finish();
+
+                final int compressedLength = myDeflater.deflate(frame, headerSize, aSize);
+
+                if (myDeflater.finished() && compressedLength < aSize) {
+                    frame = Arrays.copyOf(frame, headerSize + compressedLength);
+                    flags |= ReplicationSlaveStorageImpl.FRAME_COMPRESSED;
+                    length = compressedLength;
+                }
+            }
+
+            if ((flags & ReplicationSlaveStorageImpl.FRAME_COMPRESSED) == 0) {
+                System.arraycopy(aBatch, 0, frame, headerSize, aSize);
+            }
+
+            Bytes.pack8(frame, 0, ReplicationSlaveStorageImpl.REPL_BATCH);
+            Bytes.pack4(frame, 8, flags);
+            Bytes.pack4(frame, 12, aSize);
+            Bytes.pack4(frame, 16, length);
+
+            return frame;
+        }
+    }
+
+    /**
+     * Thread sending frames to the slave node. Acknowledgments are received while there are no more frames to send
+     * (or too many frames are not acknowledged), so the next frames are sent without waiting for the round trip.
+     */
+    class FrameSender extends Thread {
+
+        final int myIndex;
+
+        final ArrayDeque<Frame> myQueue = new ArrayDeque<>();
+
+        final ArrayDeque<Frame> myUnacknowledged = new ArrayDeque<>();
+
+        final byte[] myAckBuf = new byte[1];
+
+        boolean isDeltaReceiver;
+
+        boolean isStarted;
+
+        boolean isStopped;
+
+        boolean isReconnecting;
+
+        boolean isClosing;
+
+        boolean isCatchingUp;
+
+        BitSet myChangedPages; // pages changed during the catch-up, accessed with the mutex locked
+
+        long mySentFrame;
+
+        long myAcknowledgedFrame;
+
+        long myQueuedBytes;
+
+        long mySentBytes;
+
+        int myCatchUpPasses;
+
+        long myCatchUpPages;
+
+        long myCatchUpSentPages;
+
+        FrameSender(final int aIndex, final boolean aDeltaReceiver) {
+            myIndex = aIndex;
+            isDeltaReceiver = aDeltaReceiver;
+            mySentFrame = myFrameCount;
+            myAcknowledgedFrame = myFrameCount;
+            setDaemon(true);
+        }
+
+        void startSending() {
+            synchronized (myProgress) {
+                if (isStarted) {
+                    return;
+                }
+
+                isStarted = true;
+            }
+
+            start();
+        }
+
+        /**
+         * Check if master should wait for this slave.
+         */
+        boolean isAvailable() {
+            return isStarted && !isStopped && !isReconnecting && !isCatchingUp;
+        }
+
+        /**
+         * Start tracking of the changed pages. Frames are not queued for the slave during the catch-up: pages of
+         * these frames are sent by the catch-up. Should be called with the mutex locked.
+         */
+        void beginCatchUp() {
+            synchronized (this) {
+                synchronized (myProgress) {
+                    isCatchingUp = true;
+                    myQueuedBytes = 0;
+                    myCatchUpPasses = 0;
+                    myCatchUpPages = 0;
+                    myCatchUpSentPages = 0;
+                    myProgress.notifyAll();
+                }
+
+                myQueue.clear();
+            }
+
+            myChangedPages = new BitSet();
+        }
+
+        void startCatchUpPass(final int aPass, final int aNumOfPages) {
+            synchronized (myProgress) {
+                myCatchUpPasses = aPass;
+                myCatchUpPages += aNumOfPages;
+            }
+        }
+
+        /**
+         * Get pages changed since the previous call. Should be called with the mutex locked.
+         */
+        BitSet takeChangedPages() {
+            final BitSet pages = myChangedPages;
+
+            myChangedPages = new BitSet();
+
+            return pages;
+        }
+
+        /**
+         * Switch the slave to the live stream of frames. Should be called with the mutex locked, after the slave has
+         * received all pages written to the file.
+         */
+        void endCatchUp() {
+            myChangedPages = null;
+
+            synchronized (myProgress) {
+                isCatchingUp = false;
+                mySentFrame = myFrameCount;
+                myAcknowledgedFrame = myFrameCount;
+                myProgress.notifyAll();
+            }
+
+            startSending();
+        }
+
+        void enqueue(final Frame aFrame) {
+            synchronized (myProgress) {
+                if (isStopped || isCatchingUp) {
+                    return;
+                }
+
+                myQueuedBytes += aFrame.myData.length;
+            }
+
+            synchronized (this) {
+                myQueue.add(aFrame);
+                notify();
+            }
+        }
+
+        synchronized void close() {
+            isClosing = true;
+            notify();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Frame frame = null;
+
+                    synchronized (this) {
+                        while (myQueue.isEmpty() && myUnacknowledged.isEmpty() && !isClosing) {
+                            wait();
+                        }
+
+                        if (myUnacknowledged.size() < ACK_WINDOW) {
+                            frame = myQueue.poll();
+                        }
+                    }
+
+                    if (frame != null) {
+                        synchronized (myProgress) {
+                            myQueuedBytes -= frame.myData.length;
+                            myProgress.notifyAll();
+                        }
+
+                        if (!send(frame)) {
+                            break;
+                        }
+                    } else if (myUnacknowledged.isEmpty()) {
+                        break; // closed
+                    } else if (!receiveAcknowledgments(true)) {
+                        break;
+                    }
+                }
+            } catch (final InterruptedException details) {
+                //
+            }
+
+            synchronized (this) {
+                synchronized (myProgress) {
+                    myQueuedBytes = 0;
+                    isStopped = true;
+                    myProgress.notifyAll();
+                }
+
+                myQueue.clear();
+            }
+        }
+
+        private boolean send(final Frame aFrame) {
+            while (true) {
+                final Socket socket;
+                final OutputStream os;
+
+                synchronized (myMutex) {
+                    socket = mySockets[myIndex];
+                    os = myOutputStream[myIndex];
+                }
+
+                if (socket == null) {
+                    return false;
+                }
+
+                try {
+                    synchronized (socket) {
+                        os.write(isDeltaReceiver && aFrame.myDelta != null ? aFrame.myDelta : aFrame.myData);
+                    }
+
+                    if (aFrame.isAckRequested) {
+                        myUnacknowledged.add(aFrame);
+                    }
+
+                    synchronized (myProgress) {
+                        mySentFrame = aFrame.myNumber;
+                        mySentBytes += isDeltaReceiver && aFrame.myDelta != null ? aFrame.myDelta.length
+                                : aFrame.myData.length;
+                        myProgress.notifyAll();
+                    }
+
+                    return receiveAcknowledgments(false);
+                } catch (final IOException details) {
+                    //
+                }
+
+                if (!reconnect()) {
+                    return false;
+                }
+
+                if (aFrame.myNumber <= mySentFrame) {
+                    return true; // pages of the frame were sent by the catch-up of the reconnected slave
+                }
+            }
+        }
+
+        private boolean receiveAcknowledgments(final boolean aWait) {
+            final InputStream is;
+
+            synchronized (myMutex) {
+                is = myInputStream != null ? myInputStream[myIndex] : null;
+            }
+
+            try {
+                boolean wait = aWait;
+
+                while (!myUnacknowledged.isEmpty() && (wait || is.available() > 0)) {
+                    if (is.read(myAckBuf) != 1) {
+                        throw new IOException("Failed to receive ACK");
+                    }
+
+                    final Frame frame = myUnacknowledged.poll();
+
+                    synchronized (myProgress) {
+                        myAcknowledgedFrame = frame.myNumber;
+                        myProgress.notifyAll();
+                    }
+
+                    wait = false;
+                }
+
+                return true;
+            } catch (final IOException details) {
+                return reconnect();
+            }
+        }
+
+        private boolean reconnect() {
+            synchronized (myProgress) {
+                isReconnecting = true;
+                myProgress.notifyAll();
+            }
+
+            synchronized (myMutex) {
+                if (mySockets[myIndex] != null) {
+                    mySockets[myIndex] = null;
+                    myOutputStream[myIndex] = null;
+                    myNumOfHosts -= 1;
+                }
+            }
+
+            // slave missed some pages, so it can not apply differences any more
+            isDeltaReceiver = false;
+            myUnacknowledged.clear();
+
+            final boolean reconnected = handleError(myHosts[myIndex]) && reconnectNode();
+
+            synchronized (myProgress) {
+                myAcknowledgedFrame = mySentFrame;
+                isReconnecting = false;
+                myProgress.notifyAll();
+            }
+
+            return reconnected;
+        }
+
+        private boolean reconnectNode() {
+            connect(myIndex);
+
+            synchronized (myMutex) {
+                return mySockets[myIndex] != null;
+            }
+        }
+    }
 }
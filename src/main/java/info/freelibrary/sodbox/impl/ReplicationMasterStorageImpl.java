@@ -3,6 +3,7 @@ package info.freelibrary.sodbox.impl;
 
 import info.freelibrary.sodbox.IFile;
 import info.freelibrary.sodbox.ReplicationMasterStorage;
+import info.freelibrary.sodbox.ReplicationStatus;
 
 public class ReplicationMasterStorageImpl extends StorageImpl implements ReplicationMasterStorage {
 
@@ -39,7 +40,17 @@ public class ReplicationMasterStorageImpl extends StorageImpl implements Replica
 
     @Override
     public int getNumberOfAvailableHosts() {
-        return ((ReplicationMasterFile) myPool.myFile).getNumberOfAvailableHosts();
+        return ((ReplicationMasterFile) myFile).getNumberOfAvailableHosts();
+    }
+
+    @Override
+    public long getTransactionId() {
+        return myTransactionId;
+    }
+
+    @Override
+    public ReplicationStatus[] getReplicationStatus() {
+        return ((ReplicationMasterFile) myFile).getReplicationStatus();
     }
 
 }
@@ -5,6 +5,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import info.freelibrary.sodbox.Constants;
 import info.freelibrary.sodbox.IFile;
@@ -25,12 +27,24 @@ public abstract class ReplicationSlaveStorageImpl extends StorageImpl implements
 
     protected static final int DB_HDR_INITIALIZED_OFFSET = 2;
 
+    protected static final int DB_HDR_TRANSACTION_ID_OFFSET = Header.TRANSACTION_ID_OFFSET;
+
     protected static final int PAGE_DATA_OFFSET = 8;
 
     static final int REPL_CLOSE = -1;
 
     static final int REPL_SYNC = -2;
 
+    static final int REPL_BATCH = -3; // frame with batch of pages
+
+    static final int FRAME_HEADER_SIZE = 20; // marker, flags, size of records, size of (compressed) records
+
+    static final int FRAME_COMPRESSED = 1;
+
+    static final int FRAME_ACK = 2;
+
+    static final int FRAME_DELTA = 4;
+
     static final int INIT_PAGE_TIMESTAMPS_LENGTH = 64 * 1024;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ReplicationSlaveStorageImpl.class,
@@ -58,6 +72,8 @@ public abstract class ReplicationSlaveStorageImpl extends StorageImpl implements
 
     protected int myPreviousIndex;
 
+    protected long myReplicatedTransactionId;
+
     protected IResource myLock;
 
     protected Thread myThread;
@@ -140,6 +156,13 @@ public abstract class ReplicationSlaveStorageImpl extends StorageImpl implements
         beginThreadTransaction(REPLICATION_SLAVE_TRANSACTION);
     }
 
+    @Override
+    public long getReplicatedTransactionId() {
+        synchronized (myCommit) {
+            return myReplicatedTransactionId;
+        }
+    }
+
     @Override
     public void endReplicationSlaveTransaction() {
         myLock.unlock();
@@ -247,45 +270,91 @@ public abstract class ReplicationSlaveStorageImpl extends StorageImpl implements
 
     @Override
     public void run() {
-        final byte[] buffer = new byte[Page.PAGE_SIZE + PAGE_DATA_OFFSET + (myPageTimestamps != null ? 4 : 0)];
+        final int recordSize = Page.PAGE_SIZE + PAGE_DATA_OFFSET + (myPageTimestamps != null ? 4 : 0);
+        final byte[] buffer = new byte[Math.max(recordSize, FRAME_HEADER_SIZE)];
+        final Inflater inflater = new Inflater();
+
+        byte[] payload = new byte[0];
+        byte[] batch = new byte[0];
 
         while (isListening) {
-            int offset = 0;
+            if (!receive(buffer, 0, PAGE_DATA_OFFSET)) {
+                return;
+            }
+
+            final long position = Bytes.unpack8(buffer, 0);
+
+            if (position == REPL_BATCH) {
+                if (!receive(buffer, PAGE_DATA_OFFSET, FRAME_HEADER_SIZE - PAGE_DATA_OFFSET)) {
+                    return;
+                }
+
+                final int flags = Bytes.unpack4(buffer, 8);
+                final int size = Bytes.unpack4(buffer, 12);
+                final int length = Bytes.unpack4(buffer, 16);
+
+                if (payload.length < length) {
+                    payload = new byte[length];
+                }
+
+                if (!receive(payload, 0, length)) {
+                    return;
+                }
+
+                byte[] records = payload;
+
+                if ((flags & FRAME_COMPRESSED) != 0) {
+                    if (batch.length < size) {
+                        batch = new byte[size];
+                    }
 
-            do {
-                int readCount = -1;
+                    inflater.reset();
+                    inflater.setInput(payload, 0, length);
 
-                if (myInputStream != null) {
                     try {
-                        readCount = myInputStream.read(buffer, offset, buffer.length - offset);
-                    } catch (final IOException details) {
-                        details.printStackTrace();
+                        if (inflater.inflate(batch, 0, size) != size) {
+                            throw new StorageError(StorageError.FILE_ACCESS_ERROR);
+                        }
+                    } catch (final DataFormatException details) {
+                        throw new StorageError(StorageError.FILE_ACCESS_ERROR, details);
                     }
+
+                    records = batch;
                 }
 
-                synchronized (myDone) {
-                    if (!isListening) {
-                        return;
-                    }
+                for (int offset = 0; offset < size; offset += recordSize) {
+                    applyPage(Bytes.unpack8(records, offset), records, offset, (flags & FRAME_DELTA) != 0);
                 }
 
-                if (readCount < 0) {
-                    if (handleError()) {
-                        connect();
-                    } else {
-                        return;
+                if ((flags & FRAME_ACK) != 0 && myOutputStream != null) {
+                    try {
+                        myOutputStream.write(buffer, 0, 1);
+                    } catch (final IOException details) {
+                        handleError();
                     }
-                } else {
-                    offset += readCount;
                 }
-            } while (offset < buffer.length);
+            } else {
+                if (!receive(buffer, PAGE_DATA_OFFSET, recordSize - PAGE_DATA_OFFSET)) {
+                    return;
+                }
 
-            final long position = Bytes.unpack8(buffer, 0);
+                if (position == REPL_SYNC) {
+                    synchronized (mySync) {
+                        isOutOfSync = false;
+                        mySync.notify();
+                    }
+
+                    continue;
+                } else if (position == REPL_CLOSE) {
+                    synchronized (myCommit) {
+                        hangup();
+                        myCommit.notifyAll();
+                    }
 
-            boolean transactionCommit = false;
+                    return;
+                }
 
-            if (position == 0) {
-                if (myReplicationAck) {
+                if (position == 0 && myReplicationAck) { // frame of the master sending pages one by one
                     try {
                         myOutputStream.write(buffer, 0, 1);
                     } catch (final IOException details) {
@@ -293,115 +362,177 @@ public abstract class ReplicationSlaveStorageImpl extends StorageImpl implements
                     }
                 }
 
-                if (buffer[PAGE_DATA_OFFSET + DB_HDR_CURR_INDEX_OFFSET] != myPreviousIndex) {
-                    myPreviousIndex = buffer[PAGE_DATA_OFFSET + DB_HDR_CURR_INDEX_OFFSET];
-                    myLock.exclusiveLock();
-                    transactionCommit = true;
+                applyPage(position, buffer, 0, false);
+            }
+        }
+    }
+
+    /**
+     * Read the specified number of bytes from the master, reconnecting if needed.
+     *
+     * @return <code>false</code> if the slave should stop listening
+     */
+    private boolean receive(final byte[] aBuffer, final int aOffset, final int aLength) {
+        int offset = aOffset;
+
+        while (offset < aOffset + aLength) {
+            int readCount = -1;
+
+            if (myInputStream != null) {
+                try {
+                    readCount = myInputStream.read(aBuffer, offset, aOffset + aLength - offset);
+                } catch (final IOException details) {
+                    details.printStackTrace();
                 }
-            } else if (position == REPL_SYNC) {
-                synchronized (mySync) {
-                    isOutOfSync = false;
-                    mySync.notify();
+            }
+
+            synchronized (myDone) {
+                if (!isListening) {
+                    return false;
                 }
+            }
 
-                continue;
-            } else if (position == REPL_CLOSE) {
-                synchronized (myCommit) {
-                    hangup();
-                    myCommit.notifyAll();
+            if (readCount < 0) {
+                if (handleError()) {
+                    connect();
+                } else {
+                    return false;
                 }
+            } else {
+                offset += readCount;
+            }
+        }
 
-                return;
+        return true;
+    }
+
+    /**
+     * Store the page received from the master.
+     *
+     * @param aPosition position of the page
+     * @param aRecord buffer with the page record: position, page data and timestamp
+     * @param aOffset offset of the record in the buffer
+     * @param aDelta whether record contains XOR of new and current versions of the page
+     */
+    private void applyPage(final long aPosition, final byte[] aRecord, final int aOffset, final boolean aDelta) {
+        final Page pg = myPool.putPage(aPosition);
+        final byte[] data = pg.myData;
+        final int offset = aOffset + PAGE_DATA_OFFSET;
+
+        boolean transactionCommit = false;
+
+        if (aPosition == 0) {
+            int index = aRecord[offset + DB_HDR_CURR_INDEX_OFFSET];
+
+            if (aDelta) {
+                index ^= data[DB_HDR_CURR_INDEX_OFFSET];
             }
 
-            if (myPageTimestamps != null) {
-                final int pageNo = (int) (position >> Page.PAGE_SIZE_LOG);
+            if (index != myPreviousIndex) {
+                myPreviousIndex = index;
+                myLock.exclusiveLock();
+                transactionCommit = true;
+            }
+        }
 
-                if (pageNo >= myPageTimestamps.length) {
-                    final int newLength = pageNo >= myPageTimestamps.length * 2 ? pageNo + 1
-                            : myPageTimestamps.length * 2;
+        if (myPageTimestamps != null) {
+            final int pageNo = (int) (aPosition >> Page.PAGE_SIZE_LOG);
 
-                    final int[] newPageTimestamps = new int[newLength];
+            if (pageNo >= myPageTimestamps.length) {
+                final int newLength = pageNo >= myPageTimestamps.length * 2 ? pageNo + 1
+                        : myPageTimestamps.length * 2;
 
-                    System.arraycopy(myPageTimestamps, 0, newPageTimestamps, 0, myPageTimestamps.length);
-                    myPageTimestamps = newPageTimestamps;
+                final int[] newPageTimestamps = new int[newLength];
 
-                    final int[] newDirtyPageTimestampMap = new int[(newLength * 4 + Page.PAGE_SIZE -
-                            1 >> Page.PAGE_SIZE_LOG) + 31 >> 5];
+                System.arraycopy(myPageTimestamps, 0, newPageTimestamps, 0, myPageTimestamps.length);
+                myPageTimestamps = newPageTimestamps;
 
-                    System.arraycopy(myDirtyPageTimestampMap, 0, newDirtyPageTimestampMap, 0,
-                            myDirtyPageTimestampMap.length);
-                    myDirtyPageTimestampMap = newDirtyPageTimestampMap;
-                }
+                final int[] newDirtyPageTimestampMap = new int[(newLength * 4 + Page.PAGE_SIZE -
+                        1 >> Page.PAGE_SIZE_LOG) + 31 >> 5];
 
-                final int timestamp = Bytes.unpack4(buffer, Page.PAGE_SIZE + PAGE_DATA_OFFSET);
+                System.arraycopy(myDirtyPageTimestampMap, 0, newDirtyPageTimestampMap, 0,
+                        myDirtyPageTimestampMap.length);
+                myDirtyPageTimestampMap = newDirtyPageTimestampMap;
+            }
+
+            final int timestamp = Bytes.unpack4(aRecord, offset + Page.PAGE_SIZE);
+
+            myPageTimestamps[pageNo] = timestamp;
+            myDirtyPageTimestampMap[pageNo >> Page.PAGE_SIZE_LOG - 2 + 5] |= 1 << (pageNo >> Page.PAGE_SIZE_LOG -
+                    2 & 31);
+        }
 
-                myPageTimestamps[pageNo] = timestamp;
-                myDirtyPageTimestampMap[pageNo >> Page.PAGE_SIZE_LOG - 2 + 5] |= 1 << (pageNo >> Page.PAGE_SIZE_LOG -
-                        2 & 31);
+        if (aDelta) {
+            for (int index = 0; index < Page.PAGE_SIZE; index++) {
+                data[index] ^= aRecord[offset + index];
             }
+        } else {
+            System.arraycopy(aRecord, offset, data, 0, Page.PAGE_SIZE);
+        }
 
-            final Page pg = myPool.putPage(position);
+        final boolean initialized = data[DB_HDR_INITIALIZED_OFFSET] != 0;
 
-            System.arraycopy(buffer, PAGE_DATA_OFFSET, pg.myData, 0, Page.PAGE_SIZE);
-            myPool.unfix(pg);
+        myPool.unfix(pg);
 
-            if (position == 0) {
-                if (!isInitialized && buffer[PAGE_DATA_OFFSET + DB_HDR_INITIALIZED_OFFSET] != 0) {
-                    synchronized (myInit) {
-                        isInitialized = true;
-                        myInit.notify();
-                    }
-                }
+        if (aPosition == 0) {
+            synchronized (myCommit) {
+                myReplicatedTransactionId = Bytes.unpack8(data, DB_HDR_TRANSACTION_ID_OFFSET);
+            }
 
-                if (transactionCommit) {
-                    myLock.unlock();
+            if (!isInitialized && initialized) {
+                synchronized (myInit) {
+                    isInitialized = true;
+                    myInit.notify();
+                }
+            }
 
-                    synchronized (myCommit) {
-                        myCommit.notifyAll();
-                    }
+            if (transactionCommit) {
+                myLock.unlock();
 
-                    if (myListener != null) {
-                        myListener.onMasterDatabaseUpdate();
-                    }
+                synchronized (myCommit) {
+                    myCommit.notifyAll();
+                }
 
-                    myPool.flush();
+                if (myListener != null) {
+                    myListener.onMasterDatabaseUpdate();
+                }
 
-                    if (myPageTimestamps != null) {
-                        final byte[] page = new byte[Page.PAGE_SIZE];
+                myPool.flush();
 
-                        for (int index = 0; index < myDirtyPageTimestampMap.length; index++) {
-                            if (myDirtyPageTimestampMap[index] != 0) {
-                                for (int jndex = 0; jndex < 32; jndex++) {
-                                    if ((myDirtyPageTimestampMap[index] & 1 << jndex) != 0) {
-                                        final int pageNo = (index << 5) + jndex;
+                if (myPageTimestamps != null) {
+                    final byte[] page = new byte[Page.PAGE_SIZE];
 
-                                        int start = pageNo << Page.PAGE_SIZE_LOG - 2;
-                                        int end = start + Page.PAGE_SIZE / 4;
+                    for (int index = 0; index < myDirtyPageTimestampMap.length; index++) {
+                        if (myDirtyPageTimestampMap[index] != 0) {
+                            for (int jndex = 0; jndex < 32; jndex++) {
+                                if ((myDirtyPageTimestampMap[index] & 1 << jndex) != 0) {
+                                    final int pageNo = (index << 5) + jndex;
 
-                                        if (end > myPageTimestamps.length) {
-                                            end = myPageTimestamps.length;
-                                        }
+                                    int start = pageNo << Page.PAGE_SIZE_LOG - 2;
+                                    int end = start + Page.PAGE_SIZE / 4;
 
-                                        offset = 0;
+                                    if (end > myPageTimestamps.length) {
+                                        end = myPageTimestamps.length;
+                                    }
 
-                                        while (start < end) {
-                                            Bytes.pack4(page, offset, myPageTimestamps[start]);
+                                    int position = 0;
 
-                                            start += 1;
-                                            offset += 4;
-                                        }
+                                    while (start < end) {
+                                        Bytes.pack4(page, position, myPageTimestamps[start]);
 
-                                        myPageTimestampFile.write(pageNo << Page.PAGE_SIZE_LOG, page);
+                                        start += 1;
+                                        position += 4;
                                     }
+
+                                    myPageTimestampFile.write(pageNo << Page.PAGE_SIZE_LOG, page);
                                 }
                             }
-
-                            myDirtyPageTimestampMap[index] = 0;
                         }
 
-                        myPageTimestampFile.sync();
+                        myDirtyPageTimestampMap[index] = 0;
                     }
+
+                    myPageTimestampFile.sync();
                 }
             }
         }
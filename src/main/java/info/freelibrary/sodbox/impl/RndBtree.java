@@ -257,6 +257,8 @@ class RndBtree<T> extends PersistentCollection<T> implements Index<T> {
     final T insert(final Key aKey, final T aObj, final boolean aOverwrite) {
         final BtreeKey ins = new BtreeKey(checkKey(aKey), aObj);
 
+        ins.isRightmost = true;
+
         if (myRoot == null) {
             allocateRootPage(ins, 0);
             myHeight = 1;
@@ -539,6 +541,8 @@ class RndBtree<T> extends PersistentCollection<T> implements Index<T> {
 
         Object myOldNode;
 
+        boolean isRightmost; // insertion path goes through the last items of the pages
+
         BtreeKey(final Key aKey, final Object aNode) {
             myKey = aKey;
             myNode = aNode;
@@ -773,6 +777,8 @@ class RndBtree<T> extends PersistentCollection<T> implements Index<T> {
 
             Assert.that(left == right);
 
+            aInsert.isRightmost &= right == itemCount;
+
             /* insert before e[r] */
             if (--height != 0) {
                 result = ((BtreePage) myItems.get(right)).insert(aInsert, height, aUniqueKeyIndex, aOverwrite);
@@ -823,7 +829,9 @@ class RndBtree<T> extends PersistentCollection<T> implements Index<T> {
 
                 Assert.that(itemCount == max);
 
-                final int m = (max + 1) / 2;
+                // when the key is appended to the index (keys are inserted in increasing order), the full page is
+                // left as is and the new page gets just the new item, so sequentially built index has full pages
+                final int m = aInsert.isRightmost ? max : (max + 1) / 2;
 
                 if (right < m) {
                     memcpy(b, 0, this, 0, right);
@@ -870,7 +878,9 @@ class RndBtree<T> extends PersistentCollection<T> implements Index<T> {
 
                 int btreePageBItemCount = btreePageB.myItemCount;
 
-                Assert.that(btreePageBItemCount >= btreePageAItemCount);
+                // the last page of the appended index may be smaller, then the pages are always merged
+                Assert.that(btreePageBItemCount >= btreePageAItemCount || btreePageAItemCount +
+                        btreePageBItemCount < myItems.size());
 
                 if (aHeight != 1) {
                     memcpyData(btreePageA, btreePageAItemCount, this, aRight, 1);
@@ -1992,6 +2002,91 @@ class RndBtree<T> extends PersistentCollection<T> implements Index<T> {
             }
         }
 
+        /**
+         * Skip the objects using numbers of the items in the child pages: the iterator goes up to the page containing
+         * the target item and down to it, subtrees between them are not loaded.
+         */
+        @Override
+        public void skip(final int aCount) {
+            if (aCount <= 0 || !hasNext()) {
+                return;
+            }
+
+            final int leaf = myStackPosition - 1;
+            final boolean ascent = myOrder == ASCENT_ORDER;
+
+            BtreePage page = myPageStack[leaf];
+            int position = myPositionStack[leaf];
+            int count = aCount;
+            int level = leaf;
+
+            // number of the items left in the leaf page after the current one
+            final int left = ascent ? page.myItemCount - position - 1 : position;
+
+            if (count <= left) {
+                position += ascent ? count : -count;
+            } else {
+                count -= left + 1; // index of the target item among the items following the leaf page
+                position = -1;
+
+                while (--level >= 0) {
+                    page = myPageStack[level];
+                    position = myPositionStack[level];
+
+                    while (ascent ? ++position <= page.myItemCount : --position >= 0) {
+                        if (count < page.myChildCount[position]) {
+                            break;
+                        }
+
+                        count -= page.myChildCount[position];
+                    }
+
+                    if (position >= 0 && position <= page.myItemCount) {
+                        break;
+                    }
+                }
+
+                if (level < 0) {
+                    myStackPosition = 0;
+                    return;
+                }
+
+                myPositionStack[level] = position;
+
+                while (++level <= leaf) {
+                    page = (BtreePage) page.myItems.get(position);
+                    myPageStack[level] = page;
+
+                    if (level == leaf) {
+                        position = ascent ? count : page.myItemCount - count - 1;
+                    } else {
+                        position = ascent ? 0 : page.myItemCount;
+
+                        while (count >= page.myChildCount[position]) {
+                            count -= page.myChildCount[position];
+                            position += ascent ? 1 : -1;
+                        }
+                    }
+
+                    myPositionStack[level] = position;
+                }
+
+                myEnd = page.myItemCount;
+            }
+
+            myPositionStack[leaf] = position;
+
+            if (ascent ? myTo != null && -page.compare(myTo, position) >= myTo.myInclusion : myFrom != null && page
+                    .compare(myFrom, position) >= myFrom.myInclusion) {
+                myStackPosition = 0;
+            }
+
+            if (((StorageImpl) getStorage()).myConcurrentIterator && myStackPosition != 0) {
+                myNextKey = page.getKey(position);
+                myNextObj = page.myItems.getRaw(position);
+            }
+        }
+
         private void refresh() {
             if (myStackPosition != 0) {
                 if (myNextKey == null) {
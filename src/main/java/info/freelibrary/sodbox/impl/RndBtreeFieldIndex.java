@@ -16,7 +16,7 @@ import info.freelibrary.sodbox.IterableIterator;
 import info.freelibrary.sodbox.Key;
 import info.freelibrary.sodbox.StorageError;
 
-class RndBtreeFieldIndex<T> extends RndBtree<T> implements FieldIndex<T> {
+class RndBtreeFieldIndex<T> extends RndBtree<T> implements FieldIndex<T>, StoredKeyIndex {
 
     String myClassName;
 
@@ -173,6 +173,19 @@ class RndBtreeFieldIndex<T> extends RndBtree<T> implements FieldIndex<T> {
         return key != null && super.removeIfExists(key, aObj);
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean insertStoredKey(final Object aImage, final Object aObj) {
+        final Key key = extractKey(aImage);
+        return key != null && super.insert(key, (T) aObj, false) == null;
+    }
+
+    @Override
+    public boolean removeStoredKey(final Object aImage, final Object aObj) {
+        final Key key = extractKey(aImage);
+        return key != null && super.removeIfExists(key, aObj);
+    }
+
     @Override
     public boolean containsObject(final T aObj) {
         final Key key = extractKey(aObj);
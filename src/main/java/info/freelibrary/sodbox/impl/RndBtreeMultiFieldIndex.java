@@ -15,7 +15,7 @@ import info.freelibrary.sodbox.IterableIterator;
 import info.freelibrary.sodbox.Key;
 import info.freelibrary.sodbox.StorageError;
 
-class RndBtreeMultiFieldIndex<T> extends RndBtree<T> implements FieldIndex<T> {
+class RndBtreeMultiFieldIndex<T> extends RndBtree<T> implements FieldIndex<T>, StoredKeyIndex {
 
     String myClassName;
 
@@ -143,6 +143,17 @@ class RndBtreeMultiFieldIndex<T> extends RndBtree<T> implements FieldIndex<T> {
         return super.removeIfExists(extractKey(aObj), aObj);
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean insertStoredKey(final Object aImage, final Object aObj) {
+        return super.put(extractKey(aImage), (T) aObj);
+    }
+
+    @Override
+    public boolean removeStoredKey(final Object aImage, final Object aObj) {
+        return super.removeIfExists(extractKey(aImage), aObj);
+    }
+
     @Override
     public T remove(final Key aKey) {
         return super.remove(convertKey(aKey));
@@ -74,7 +74,7 @@ public class Rtree<T> extends PersistentCollection<T> implements SpatialIndex<T>
             final RtreePage page = (RtreePage) reinsertList.get(index);
 
             for (int jndex = 0, n = page.myIndex; jndex < n; jndex++) {
-                final RtreePage splitPage = myRoot.insert(getStorage(), page.myRectangle[jndex], page.myBranch.get(
+                final RtreePage splitPage = myRoot.insert(getStorage(), page.getRectangle(jndex), page.myBranch.get(
                         jndex), myHeight - reinsertLevel);
 
                 // Root split
@@ -258,7 +258,7 @@ public class Rtree<T> extends PersistentCollection<T> implements SpatialIndex<T>
 
         private boolean gotoFirstItem(final int aStackPosition, final RtreePage aPage) {
             for (int index = 0, n = aPage.myIndex; index < n; index++) {
-                if (myRect.intersects(aPage.myRectangle[index])) {
+                if (aPage.intersects(index, myRect)) {
                     if (aStackPosition + 1 == myHeight || gotoFirstItem(aStackPosition + 1, (RtreePage) aPage.myBranch
                             .get(index))) {
                         myPageStack[aStackPosition] = aPage;
@@ -276,7 +276,7 @@ public class Rtree<T> extends PersistentCollection<T> implements SpatialIndex<T>
             final RtreePage page = myPageStack[aStackPosition];
 
             for (int index = myPositionStack[aStackPosition], n = page.myIndex; ++index < n;) {
-                if (myRect.intersects(page.myRectangle[index])) {
+                if (page.intersects(index, myRect)) {
                     if (aStackPosition + 1 == myHeight || gotoFirstItem(aStackPosition + 1, (RtreePage) page.myBranch
                             .get(index))) {
                         myPageStack[aStackPosition] = page;
@@ -311,7 +311,7 @@ public class Rtree<T> extends PersistentCollection<T> implements SpatialIndex<T>
 
         @Override
         public Rectangle getKey() {
-            return myPage.myRectangle[myPosition];
+            return myPage.getRectangle(myPosition);
         }
 
         @Override
@@ -419,7 +419,7 @@ public class Rtree<T> extends PersistentCollection<T> implements SpatialIndex<T>
                 final RtreePage page = (RtreePage) neighbor.myChild;
 
                 for (int index = 0, n = page.myIndex; index < n; index++) {
-                    insert(new Neighbor(page.myBranch.get(index), page.myRectangle[index].distance(myX, myY),
+                    insert(new Neighbor(page.myBranch.get(index), page.distance(index, myX, myY),
                             neighbor.myLevel - 1));
                 }
             }
@@ -1,4 +1,3 @@
-
 package info.freelibrary.sodbox.impl;
 
 import java.util.ArrayList;
@@ -11,46 +10,66 @@ import info.freelibrary.sodbox.Storage;
 
 public class RtreePage extends Persistent {
 
-    static final int CARD = (Page.PAGE_SIZE - ObjectHeader.SIZE_OF - 4 * 3) / (4 * 4 + 4);
+    static final int CARD = (Page.PAGE_SIZE - ObjectHeader.SIZE_OF - 4 * 4) / (4 * 4 + 4);
 
     static final int MIN_FILL = CARD / 2;
 
+    /* Number of coordinates stored for each branch: top, left, bottom and right */
+    static final int NUM_COORDS = 4;
+
+    static final int TOP = 0;
+
+    static final int LEFT = 1;
+
+    static final int BOTTOM = 2;
+
+    static final int RIGHT = 3;
+
     int myIndex;
 
-    Rectangle[] myRectangle;
+    /* Rectangles of all branches, stored contiguously as top, left, bottom and right of each branch in turn */
+    int[] myCoords;
 
     Link myBranch;
 
+    /* Rectangles of a page stored in the pre-flattened format; only set until such a page has been loaded */
+    Rectangle[] myRectangle;
+
     RtreePage(final Storage aStorage, final Object aObj, final Rectangle aRect) {
         myBranch = aStorage.createLink(CARD);
         myBranch.setSize(CARD);
-        myRectangle = new Rectangle[CARD];
+        myCoords = new int[CARD * NUM_COORDS];
 
-        setBranch(0, new Rectangle(aRect), aObj);
+        setBranch(0, aRect, aObj);
         myIndex = 1;
-
-        for (int i = 1; i < CARD; i++) {
-            myRectangle[i] = new Rectangle();
-        }
     }
 
     RtreePage(final Storage aStorage, final RtreePage aRoot, final RtreePage aPage) {
         myBranch = aStorage.createLink(CARD);
         myBranch.setSize(CARD);
-        myRectangle = new Rectangle[CARD];
+        myCoords = new int[CARD * NUM_COORDS];
         myIndex = 2;
 
         setBranch(0, aRoot.cover(), aRoot);
         setBranch(1, aPage.cover(), aPage);
-
-        for (int i = 2; i < CARD; i++) {
-            myRectangle[i] = new Rectangle();
-        }
     }
 
     RtreePage() {
     }
 
+    @Override
+    public void onLoad() {
+        if (myCoords == null && myRectangle != null) {
+            myCoords = new int[CARD * NUM_COORDS];
+
+            for (int index = 0; index < myIndex; index++) {
+                setRectangle(index, myRectangle[index]);
+            }
+
+            myRectangle = null;
+        }
+    }
+
     RtreePage insert(final Storage aStorage, final Rectangle aRect, final Object aObj, final int aLevel) {
         int level = aLevel;
 
@@ -64,8 +83,8 @@ public class RtreePage extends Persistent {
             long minArea = Long.MAX_VALUE;
 
             for (i = 0; i < myIndex; i++) {
-                final long area = myRectangle[i].area();
-                final long incr = Rectangle.joinArea(myRectangle[i], aRect) - area;
+                final long area = area(i);
+                final long incr = joinArea(i, aRect) - area;
 
                 if (incr < minIncr) {
                     minIncr = incr;
@@ -82,7 +101,7 @@ public class RtreePage extends Persistent {
 
             if (q == null) {
                 // child was not split
-                myRectangle[mini].join(aRect);
+                join(mini, aRect);
                 return null;
             } else {
                 // child was split
@@ -90,7 +109,7 @@ public class RtreePage extends Persistent {
                 return addBranch(aStorage, q.cover(), q);
             }
         } else {
-            return addBranch(aStorage, new Rectangle(aRect), aObj);
+            return addBranch(aStorage, aRect, aObj);
         }
     }
 
@@ -100,7 +119,7 @@ public class RtreePage extends Persistent {
 
         if (--level != 0) {
             for (int i = 0; i < myIndex; i++) {
-                if (aRect.intersects(myRectangle[i])) {
+                if (intersects(i, aRect)) {
                     final RtreePage page = (RtreePage) myBranch.get(i);
                     int reinsertLevel = page.remove(aRect, aObj, level, aReinsertList);
 
@@ -133,17 +152,25 @@ public class RtreePage extends Persistent {
 
     @SuppressWarnings("unchecked")
     void find(final Rectangle aRect, final ArrayList aResult, final int aLevel) {
+        final int top = aRect.getTop();
+        final int left = aRect.getLeft();
+        final int bottom = aRect.getBottom();
+        final int right = aRect.getRight();
+        final int[] coords = myCoords;
+
         int level = aLevel;
 
         if (--level != 0) { /* this is an internal node in the tree */
-            for (int index = 0; index < myIndex; index++) {
-                if (aRect.intersects(myRectangle[index])) {
+            for (int index = 0, offset = 0; index < myIndex; index++, offset += NUM_COORDS) {
+                if (coords[offset + LEFT] <= right && coords[offset + TOP] <= bottom && coords[offset +
+                        RIGHT] >= left && coords[offset + BOTTOM] >= top) {
                     ((RtreePage) myBranch.get(index)).find(aRect, aResult, level);
                 }
             }
         } else { /* this is a leaf node */
-            for (int index = 0; index < myIndex; index++) {
-                if (aRect.intersects(myRectangle[index])) {
+            for (int index = 0, offset = 0; index < myIndex; index++, offset += NUM_COORDS) {
+                if (coords[offset + LEFT] <= right && coords[offset + TOP] <= bottom && coords[offset +
+                        RIGHT] >= left && coords[offset + BOTTOM] >= top) {
                     aResult.add(myBranch.get(index));
                 }
             }
@@ -162,16 +189,103 @@ public class RtreePage extends Persistent {
         deallocate();
     }
 
+    /**
+     * Gets a copy of the rectangle of the branch with the specified index.
+     */
+    final Rectangle getRectangle(final int aIndex) {
+        final int offset = aIndex * NUM_COORDS;
+
+        return new Rectangle(myCoords[offset + TOP], myCoords[offset + LEFT], myCoords[offset + BOTTOM],
+                myCoords[offset + RIGHT]);
+    }
+
+    final void setRectangle(final int aIndex, final Rectangle aRect) {
+        final int offset = aIndex * NUM_COORDS;
+
+        myCoords[offset + TOP] = aRect.getTop();
+        myCoords[offset + LEFT] = aRect.getLeft();
+        myCoords[offset + BOTTOM] = aRect.getBottom();
+        myCoords[offset + RIGHT] = aRect.getRight();
+    }
+
+    /**
+     * Checks if the rectangle of the branch with the specified index intersects with the specified rectangle.
+     */
+    final boolean intersects(final int aIndex, final Rectangle aRect) {
+        final int offset = aIndex * NUM_COORDS;
+
+        return myCoords[offset + LEFT] <= aRect.getRight() && myCoords[offset + TOP] <= aRect.getBottom() &&
+                myCoords[offset + RIGHT] >= aRect.getLeft() && myCoords[offset + BOTTOM] >= aRect.getTop();
+    }
+
+    /**
+     * Calculates the distance from the specified point to the rectangle of the branch with the specified index.
+     */
+    final double distance(final int aIndex, final int aX, final int aY) {
+        final int offset = aIndex * NUM_COORDS;
+        final int top = myCoords[offset + TOP];
+        final int left = myCoords[offset + LEFT];
+        final int bottom = myCoords[offset + BOTTOM];
+        final int right = myCoords[offset + RIGHT];
+        final int dx = aX < left ? left - aX : aX > right ? aX - right : 0;
+        final int dy = aY < top ? top - aY : aY > bottom ? aY - bottom : 0;
+
+        if (dx == 0 || dy == 0) {
+            return dx + dy;
+        }
+
+        return Math.sqrt((double) dx * dx + (double) dy * dy);
+    }
+
+    final long area(final int aIndex) {
+        final int offset = aIndex * NUM_COORDS;
+
+        return (long) (myCoords[offset + BOTTOM] - myCoords[offset + TOP]) * (myCoords[offset + RIGHT] -
+                myCoords[offset + LEFT]);
+    }
+
+    final long joinArea(final int aIndex, final Rectangle aRect) {
+        return joinArea(myCoords, aIndex * NUM_COORDS, aRect.getTop(), aRect.getLeft(), aRect.getBottom(), aRect
+                .getRight());
+    }
+
+    final void join(final int aIndex, final Rectangle aRect) {
+        final int offset = aIndex * NUM_COORDS;
+
+        if (myCoords[offset + TOP] > aRect.getTop()) {
+            myCoords[offset + TOP] = aRect.getTop();
+        }
+
+        if (myCoords[offset + LEFT] > aRect.getLeft()) {
+            myCoords[offset + LEFT] = aRect.getLeft();
+        }
+
+        if (myCoords[offset + BOTTOM] < aRect.getBottom()) {
+            myCoords[offset + BOTTOM] = aRect.getBottom();
+        }
+
+        if (myCoords[offset + RIGHT] < aRect.getRight()) {
+            myCoords[offset + RIGHT] = aRect.getRight();
+        }
+    }
+
     @SuppressWarnings("unchecked")
     final void setBranch(final int aIndex, final Rectangle aRect, final Object aObj) {
-        myRectangle[aIndex] = aRect;
+        setRectangle(aIndex, aRect);
+        myBranch.setObject(aIndex, aObj);
+    }
+
+    @SuppressWarnings("unchecked")
+    final void setBranch(final int aIndex, final int[] aCoords, final int aOffset, final Object aObj) {
+        System.arraycopy(aCoords, aOffset, myCoords, aIndex * NUM_COORDS, NUM_COORDS);
         myBranch.setObject(aIndex, aObj);
     }
 
     final void removeBranch(final int aIndex) {
         myIndex -= 1;
 
-        System.arraycopy(myRectangle, aIndex + 1, myRectangle, aIndex, myIndex - aIndex);
+        System.arraycopy(myCoords, (aIndex + 1) * NUM_COORDS, myCoords, aIndex * NUM_COORDS, (myIndex - aIndex) *
+                NUM_COORDS);
 
         myBranch.remove(aIndex);
         myBranch.setSize(CARD);
@@ -189,7 +303,10 @@ public class RtreePage extends Persistent {
     }
 
     final RtreePage splitPage(final Storage aStorage, final Rectangle aRect, final Object aObj) {
+        // Candidate rectangles: the new one comes first, followed by the existing branches of this page
+        final int[] coords = new int[(CARD + 1) * NUM_COORDS];
         final long[] rectArea = new long[CARD + 1];
+        final Object[] branches = new Object[CARD];
 
         long worstWaste = Long.MIN_VALUE;
         long waste;
@@ -198,18 +315,31 @@ public class RtreePage extends Persistent {
         int i;
         int j;
 
-        // As seeds for the two groups, find two rectangles which waste the most area if covered by single rectangle
-        rectArea[0] = aRect.area();
+        coords[TOP] = aRect.getTop();
+        coords[LEFT] = aRect.getLeft();
+        coords[BOTTOM] = aRect.getBottom();
+        coords[RIGHT] = aRect.getRight();
+
+        System.arraycopy(myCoords, 0, coords, NUM_COORDS, CARD * NUM_COORDS);
 
         for (i = 0; i < CARD; i++) {
-            rectArea[i + 1] = myRectangle[i].area();
+            branches[i] = myBranch.getRaw(i);
         }
 
-        Rectangle rect = aRect;
+        // As seeds for the two groups, find two rectangles which waste the most area if covered by single rectangle
+        for (i = 0; i <= CARD; i++) {
+            final int offset = i * NUM_COORDS;
+
+            rectArea[i] = (long) (coords[offset + BOTTOM] - coords[offset + TOP]) * (coords[offset + RIGHT] -
+                    coords[offset + LEFT]);
+        }
 
         for (i = 0; i < CARD; i++) {
+            final int offset = i * NUM_COORDS;
+
             for (j = i + 1; j <= CARD; j++) {
-                waste = Rectangle.joinArea(rect, myRectangle[j - 1]) - rectArea[i] - rectArea[j];
+                waste = joinArea(coords, j * NUM_COORDS, coords[offset + TOP], coords[offset + LEFT],
+                        coords[offset + BOTTOM], coords[offset + RIGHT]) - rectArea[i] - rectArea[j];
 
                 if (waste > worstWaste) {
                     worstWaste = waste;
@@ -217,13 +347,11 @@ public class RtreePage extends Persistent {
                     seed1 = j;
                 }
             }
-
-            rect = myRectangle[i];
         }
 
-        final byte[] taken = new byte[CARD];
-        final Rectangle group0;
-        final Rectangle group1;
+        final byte[] taken = new byte[CARD + 1];
+        final int[] group0 = new int[NUM_COORDS];
+        final int[] group1 = new int[NUM_COORDS];
         final RtreePage page;
 
         long groupArea0;
@@ -231,18 +359,13 @@ public class RtreePage extends Persistent {
         int groupCard0;
         int groupCard1;
 
-        taken[seed1 - 1] = 2;
-        group1 = new Rectangle(myRectangle[seed1 - 1]);
+        taken[seed0] = 1;
+        taken[seed1] = 2;
 
-        if (seed0 == 0) {
-            group0 = new Rectangle(aRect);
-            page = new RtreePage(aStorage, aObj, aRect);
-        } else {
-            group0 = new Rectangle(myRectangle[seed0 - 1]);
-            page = new RtreePage(aStorage, myBranch.getRaw(seed0 - 1), group0);
+        System.arraycopy(coords, seed0 * NUM_COORDS, group0, 0, NUM_COORDS);
+        System.arraycopy(coords, seed1 * NUM_COORDS, group1, 0, NUM_COORDS);
 
-            setBranch(seed0 - 1, aRect, aObj);
-        }
+        page = new RtreePage(aStorage, seed0 == 0 ? aObj : branches[seed0 - 1], getRectangle(coords, seed0));
 
         groupCard0 = groupCard1 = 1;
         groupArea0 = rectArea[seed0];
@@ -259,10 +382,13 @@ public class RtreePage extends Persistent {
             int chosen = -1;
             long biggestDiff = -1;
 
-            for (i = 0; i < CARD; i++) {
+            for (i = 0; i <= CARD; i++) {
                 if (taken[i] == 0) {
-                    final long diff = Rectangle.joinArea(group0, myRectangle[i]) - groupArea0 - (Rectangle.joinArea(
-                            group1, myRectangle[i]) - groupArea1);
+                    final int offset = i * NUM_COORDS;
+                    final long diff = joinArea(coords, offset, group0[TOP], group0[LEFT], group0[BOTTOM],
+                            group0[RIGHT]) - groupArea0 - (joinArea(coords, offset, group1[TOP], group1[LEFT],
+                                    group1[BOTTOM], group1[RIGHT]) - groupArea1);
+
                     if (diff > biggestDiff || -diff > biggestDiff) {
                         chosen = i;
 
@@ -280,14 +406,13 @@ public class RtreePage extends Persistent {
             Assert.that(chosen >= 0);
 
             if (betterGroup == 0) {
-                group0.join(myRectangle[chosen]);
-                groupArea0 = group0.area();
+                groupArea0 = join(group0, coords, chosen * NUM_COORDS);
                 taken[chosen] = 1;
-                page.setBranch(groupCard0++, myRectangle[chosen], myBranch.getRaw(chosen));
+                page.setBranch(groupCard0++, coords, chosen * NUM_COORDS, chosen == 0 ? aObj
+                        : branches[chosen - 1]);
             } else {
                 groupCard1 += 1;
-                group1.join(myRectangle[chosen]);
-                groupArea1 = group1.area();
+                groupArea1 = join(group1, coords, chosen * NUM_COORDS);
                 taken[chosen] = 2;
             }
         }
@@ -297,14 +422,14 @@ public class RtreePage extends Persistent {
          * cards of two groups.
          */
         if (groupCard0 + groupCard1 < CARD + 1) {
-            for (i = 0; i < CARD; i++) {
+            for (i = 0; i <= CARD; i++) {
                 if (taken[i] == 0) {
                     if (groupCard0 >= groupCard1) {
                         taken[i] = 2;
                         groupCard1 += 1;
                     } else {
                         taken[i] = 1;
-                        page.setBranch(groupCard0++, myRectangle[i], myBranch.getRaw(i));
+                        page.setBranch(groupCard0++, coords, i * NUM_COORDS, i == 0 ? aObj : branches[i - 1]);
                     }
                 }
             }
@@ -315,7 +440,7 @@ public class RtreePage extends Persistent {
 
         for (i = 0, j = 0; i < groupCard1; j++) {
             if (taken[j] == 2) {
-                setBranch(i++, myRectangle[j], myBranch.getRaw(j));
+                setBranch(i++, coords, j * NUM_COORDS, j == 0 ? aObj : branches[j - 1]);
             }
         }
 
@@ -323,12 +448,49 @@ public class RtreePage extends Persistent {
     }
 
     final Rectangle cover() {
-        final Rectangle rect = new Rectangle(myRectangle[0]);
-
-        for (int i = 1; i < myIndex; i++) {
-            rect.join(myRectangle[i]);
+        final int[] coords = myCoords;
+
+        int top = coords[TOP];
+        int left = coords[LEFT];
+        int bottom = coords[BOTTOM];
+        int right = coords[RIGHT];
+
+        for (int i = 1, offset = NUM_COORDS; i < myIndex; i++, offset += NUM_COORDS) {
+            top = Math.min(top, coords[offset + TOP]);
+            left = Math.min(left, coords[offset + LEFT]);
+            bottom = Math.max(bottom, coords[offset + BOTTOM]);
+            right = Math.max(right, coords[offset + RIGHT]);
         }
 
-        return rect;
+        return new Rectangle(top, left, bottom, right);
+    }
+
+    private static Rectangle getRectangle(final int[] aCoords, final int aIndex) {
+        final int offset = aIndex * NUM_COORDS;
+
+        return new Rectangle(aCoords[offset + TOP], aCoords[offset + LEFT], aCoords[offset + BOTTOM],
+                aCoords[offset + RIGHT]);
+    }
+
+    private static long joinArea(final int[] aCoords, final int aOffset, final int aTop, final int aLeft,
+            final int aBottom, final int aRight) {
+        final int top = Math.min(aCoords[aOffset + TOP], aTop);
+        final int left = Math.min(aCoords[aOffset + LEFT], aLeft);
+        final int bottom = Math.max(aCoords[aOffset + BOTTOM], aBottom);
+        final int right = Math.max(aCoords[aOffset + RIGHT], aRight);
+
+        return (long) (bottom - top) * (right - left);
+    }
+
+    /**
+     * Joins the rectangle at the specified offset into the group's cover and returns the new area of the group.
+     */
+    private static long join(final int[] aGroup, final int[] aCoords, final int aOffset) {
+        aGroup[TOP] = Math.min(aGroup[TOP], aCoords[aOffset + TOP]);
+        aGroup[LEFT] = Math.min(aGroup[LEFT], aCoords[aOffset + LEFT]);
+        aGroup[BOTTOM] = Math.max(aGroup[BOTTOM], aCoords[aOffset + BOTTOM]);
+        aGroup[RIGHT] = Math.max(aGroup[RIGHT], aCoords[aOffset + RIGHT]);
+
+        return (long) (aGroup[BOTTOM] - aGroup[TOP]) * (aGroup[RIGHT] - aGroup[LEFT]);
     }
 }
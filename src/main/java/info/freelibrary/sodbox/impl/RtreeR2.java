@@ -77,7 +77,7 @@ public class RtreeR2<T> extends PersistentCollection<T> implements SpatialIndexR
             final RtreeR2Page page1 = (RtreeR2Page) reinsertList.get(index1);
 
             for (int index2 = 0, n = page1.myCount; index2 < n; index2++) {
-                final RtreeR2Page page2 = myRoot.insert(getStorage(), page1.myRectR2[index2], page1.myBranch.get(
+                final RtreeR2Page page2 = myRoot.insert(getStorage(), page1.getRectangle(index2), page1.myBranch.get(
                         index2), myHeight - reinsertLevel);
 
                 if (page2 != null) {
@@ -265,7 +265,7 @@ public class RtreeR2<T> extends PersistentCollection<T> implements SpatialIndexR
 
         private boolean gotoFirstItem(final int aStackPage, final RtreeR2Page aPage) {
             for (int index = 0, n = aPage.myCount; index < n; index++) {
-                if (myRect.intersects(aPage.myRectR2[index])) {
+                if (aPage.intersects(index, myRect)) {
                     if (aStackPage + 1 == myHeight || gotoFirstItem(aStackPage + 1, (RtreeR2Page) aPage.myBranch.get(
                             index))) {
                         myPageStack[aStackPage] = aPage;
@@ -283,7 +283,7 @@ public class RtreeR2<T> extends PersistentCollection<T> implements SpatialIndexR
             final RtreeR2Page page = myPageStack[aStackPage];
 
             for (int index = myPosStack[aStackPage], n = page.myCount; ++index < n;) {
-                if (myRect.intersects(page.myRectR2[index])) {
+                if (page.intersects(index, myRect)) {
                     if (aStackPage + 1 == myHeight || gotoFirstItem(aStackPage + 1, (RtreeR2Page) page.myBranch.get(
                             index))) {
                         myPageStack[aStackPage] = page;
@@ -319,7 +319,7 @@ public class RtreeR2<T> extends PersistentCollection<T> implements SpatialIndexR
 
         @Override
         public RectangleR2 getKey() {
-            return myPage.myRectR2[myPos];
+            return myPage.getRectangle(myPos);
         }
 
         @Override
@@ -427,7 +427,7 @@ public class RtreeR2<T> extends PersistentCollection<T> implements SpatialIndexR
                 myList = neighbor.myNext;
 
                 for (int index = 0, count = page.myCount; index < count; index++) {
-                    insert(new Neighbor(page.myBranch.get(index), page.myRectR2[index].distance(myX, myY),
+                    insert(new Neighbor(page.myBranch.get(index), page.distance(index, myX, myY),
                             neighbor.myLevel - 1));
                 }
             }
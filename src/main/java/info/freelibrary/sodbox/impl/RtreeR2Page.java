@@ -1,4 +1,3 @@
-
 package info.freelibrary.sodbox.impl;
 
 import java.util.ArrayList;
@@ -11,47 +10,67 @@ import info.freelibrary.sodbox.Storage;
 
 public class RtreeR2Page extends Persistent {
 
-    static final int CARD = (Page.PAGE_SIZE - ObjectHeader.SIZE_OF - 4 * 3) / (8 * 4 + 4);
+    static final int CARD = (Page.PAGE_SIZE - ObjectHeader.SIZE_OF - 4 * 4) / (8 * 4 + 4);
 
     static final int MIN_FILL = CARD / 2;
 
+    /* Number of coordinates stored for each branch: top, left, bottom and right */
+    static final int NUM_COORDS = 4;
+
+    static final int TOP = 0;
+
+    static final int LEFT = 1;
+
+    static final int BOTTOM = 2;
+
+    static final int RIGHT = 3;
+
     int myCount;
 
-    RectangleR2[] myRectR2;
+    /* Rectangles of all branches, stored contiguously as top, left, bottom and right of each branch in turn */
+    double[] myCoords;
 
     Link myBranch;
 
+    /* Rectangles of a page stored in the pre-flattened format; only set until such a page has been loaded */
+    RectangleR2[] myRectR2;
+
     RtreeR2Page(final Storage aStorage, final Object aObj, final RectangleR2 aRectR2) {
         myBranch = aStorage.createLink(CARD);
         myBranch.setSize(CARD);
-        myRectR2 = new RectangleR2[CARD];
+        myCoords = new double[CARD * NUM_COORDS];
 
-        setBranch(0, new RectangleR2(aRectR2), aObj);
+        setBranch(0, aRectR2, aObj);
 
         myCount = 1;
-
-        for (int index = 1; index < CARD; index++) {
-            myRectR2[index] = new RectangleR2();
-        }
     }
 
     RtreeR2Page(final Storage aStorage, final RtreeR2Page aRoot, final RtreeR2Page aRtreeR2Page) {
         myBranch = aStorage.createLink(CARD);
         myBranch.setSize(CARD);
-        myRectR2 = new RectangleR2[CARD];
+        myCoords = new double[CARD * NUM_COORDS];
         myCount = 2;
 
         setBranch(0, aRoot.cover(), aRoot);
         setBranch(1, aRtreeR2Page.cover(), aRtreeR2Page);
-
-        for (int index = 2; index < CARD; index++) {
-            myRectR2[index] = new RectangleR2();
-        }
     }
 
     RtreeR2Page() {
     }
 
+    @Override
+    public void onLoad() {
+        if (myCoords == null && myRectR2 != null) {
+            myCoords = new double[CARD * NUM_COORDS];
+
+            for (int index = 0; index < myCount; index++) {
+                setRectangle(index, myRectR2[index]);
+            }
+
+            myRectR2 = null;
+        }
+    }
+
     RtreeR2Page insert(final Storage aStorage, final RectangleR2 aRectR2, final Object aObj, final int aLevel) {
         int level = aLevel;
 
@@ -65,8 +84,8 @@ public class RtreeR2Page extends Persistent {
             int index;
 
             for (index = 0; index < myCount; index++) {
-                final double area = myRectR2[index].area();
-                final double increment = RectangleR2.joinArea(myRectR2[index], aRectR2) - area;
+                final double area = area(index);
+                final double increment = joinArea(index, aRectR2) - area;
 
                 if (increment < minIncrement) {
                     minIncrement = increment;
@@ -83,7 +102,7 @@ public class RtreeR2Page extends Persistent {
 
             if (page2 == null) {
                 // child was not split
-                myRectR2[mini].join(aRectR2);
+                join(mini, aRectR2);
                 return null;
             } else {
                 // child was split
@@ -91,7 +110,7 @@ public class RtreeR2Page extends Persistent {
                 return addBranch(aStorage, page2.cover(), page2);
             }
         } else {
-            return addBranch(aStorage, new RectangleR2(aRectR2), aObj);
+            return addBranch(aStorage, aRectR2, aObj);
         }
     }
 
@@ -100,7 +119,7 @@ public class RtreeR2Page extends Persistent {
 
         if (--level != 0) {
             for (int index = 0; index < myCount; index++) {
-                if (aRectR2.intersects(myRectR2[index])) {
+                if (intersects(index, aRectR2)) {
                     final RtreeR2Page pg = (RtreeR2Page) myBranch.get(index);
 
                     int reinsertLevel = pg.remove(aRectR2, aObj, level, aReinsertList);
@@ -133,17 +152,25 @@ public class RtreeR2Page extends Persistent {
     }
 
     void find(final RectangleR2 aRectR2, final ArrayList aResult, final int aLevel) {
+        final double top = aRectR2.getTop();
+        final double left = aRectR2.getLeft();
+        final double bottom = aRectR2.getBottom();
+        final double right = aRectR2.getRight();
+        final double[] coords = myCoords;
+
         int level = aLevel;
 
         if (--level != 0) { /* this is an internal node in the tree */
-            for (int index = 0; index < myCount; index++) {
-                if (aRectR2.intersects(myRectR2[index])) {
+            for (int index = 0, offset = 0; index < myCount; index++, offset += NUM_COORDS) {
+                if (coords[offset + LEFT] <= right && coords[offset + TOP] <= bottom && coords[offset +
+                        RIGHT] >= left && coords[offset + BOTTOM] >= top) {
                     ((RtreeR2Page) myBranch.get(index)).find(aRectR2, aResult, level);
                 }
             }
         } else { /* this is a leaf node */
-            for (int index = 0; index < myCount; index++) {
-                if (aRectR2.intersects(myRectR2[index])) {
+            for (int index = 0, offset = 0; index < myCount; index++, offset += NUM_COORDS) {
+                if (coords[offset + LEFT] <= right && coords[offset + TOP] <= bottom && coords[offset +
+                        RIGHT] >= left && coords[offset + BOTTOM] >= top) {
                     aResult.add(myBranch.get(index));
                 }
             }
@@ -162,15 +189,100 @@ public class RtreeR2Page extends Persistent {
         deallocate();
     }
 
+    /**
+     * Gets a copy of the rectangle of the branch with the specified index.
+     */
+    final RectangleR2 getRectangle(final int aIndex) {
+        return getRectangle(myCoords, aIndex);
+    }
+
+    final void setRectangle(final int aIndex, final RectangleR2 aRectR2) {
+        final int offset = aIndex * NUM_COORDS;
+
+        myCoords[offset + TOP] = aRectR2.getTop();
+        myCoords[offset + LEFT] = aRectR2.getLeft();
+        myCoords[offset + BOTTOM] = aRectR2.getBottom();
+        myCoords[offset + RIGHT] = aRectR2.getRight();
+    }
+
+    /**
+     * Checks if the rectangle of the branch with the specified index intersects with the specified rectangle.
+     */
+    final boolean intersects(final int aIndex, final RectangleR2 aRectR2) {
+        final int offset = aIndex * NUM_COORDS;
+
+        return myCoords[offset + LEFT] <= aRectR2.getRight() && myCoords[offset + TOP] <= aRectR2.getBottom() &&
+                myCoords[offset + RIGHT] >= aRectR2.getLeft() && myCoords[offset + BOTTOM] >= aRectR2.getTop();
+    }
+
+    /**
+     * Calculates the distance from the specified point to the rectangle of the branch with the specified index.
+     */
+    final double distance(final int aIndex, final double aX, final double aY) {
+        final int offset = aIndex * NUM_COORDS;
+        final double top = myCoords[offset + TOP];
+        final double left = myCoords[offset + LEFT];
+        final double bottom = myCoords[offset + BOTTOM];
+        final double right = myCoords[offset + RIGHT];
+        final double dx = aX < left ? left - aX : aX > right ? aX - right : 0;
+        final double dy = aY < top ? top - aY : aY > bottom ? aY - bottom : 0;
+
+        if (dx == 0 || dy == 0) {
+            return dx + dy;
+        }
+
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    final double area(final int aIndex) {
+        final int offset = aIndex * NUM_COORDS;
+
+        return (myCoords[offset + BOTTOM] - myCoords[offset + TOP]) * (myCoords[offset + RIGHT] - myCoords[offset +
+                LEFT]);
+    }
+
+    final double joinArea(final int aIndex, final RectangleR2 aRectR2) {
+        return joinArea(myCoords, aIndex * NUM_COORDS, aRectR2.getTop(), aRectR2.getLeft(), aRectR2.getBottom(),
+                aRectR2.getRight());
+    }
+
+    final void join(final int aIndex, final RectangleR2 aRectR2) {
+        final int offset = aIndex * NUM_COORDS;
+
+        if (myCoords[offset + TOP] > aRectR2.getTop()) {
+            myCoords[offset + TOP] = aRectR2.getTop();
+        }
+
+        if (myCoords[offset + LEFT] > aRectR2.getLeft()) {
+            myCoords[offset + LEFT] = aRectR2.getLeft();
+        }
+
+        if (myCoords[offset + BOTTOM] < aRectR2.getBottom()) {
+            myCoords[offset + BOTTOM] = aRectR2.getBottom();
+        }
+
+        if (myCoords[offset + RIGHT] < aRectR2.getRight()) {
+            myCoords[offset + RIGHT] = aRectR2.getRight();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
     final void setBranch(final int aIndex, final RectangleR2 aRectR2, final Object aObj) {
-        myRectR2[aIndex] = aRectR2;
+        setRectangle(aIndex, aRectR2);
+        myBranch.setObject(aIndex, aObj);
+    }
+
+    @SuppressWarnings("unchecked")
+    final void setBranch(final int aIndex, final double[] aCoords, final int aOffset, final Object aObj) {
+        System.arraycopy(aCoords, aOffset, myCoords, aIndex * NUM_COORDS, NUM_COORDS);
         myBranch.setObject(aIndex, aObj);
     }
 
     final void removeBranch(final int aIndex) {
         myCount -= 1;
 
-        System.arraycopy(myRectR2, aIndex + 1, myRectR2, aIndex, myCount - aIndex);
+        System.arraycopy(myCoords, (aIndex + 1) * NUM_COORDS, myCoords, aIndex * NUM_COORDS, (myCount - aIndex) *
+                NUM_COORDS);
 
         myBranch.remove(aIndex);
         myBranch.setSize(CARD);
@@ -193,26 +305,45 @@ public class RtreeR2Page extends Persistent {
         int index;
         int jndex;
 
+        //
+        // Candidate rectangles: the new one comes first, followed by the
+        // existing branches of this page.
+        //
+        final double[] coords = new double[(CARD + 1) * NUM_COORDS];
         final double[] rectArea = new double[CARD + 1];
+        final Object[] branches = new Object[CARD];
 
         double waste;
         double worstWaste = Double.NEGATIVE_INFINITY;
 
+        coords[TOP] = aRectR2.getTop();
+        coords[LEFT] = aRectR2.getLeft();
+        coords[BOTTOM] = aRectR2.getBottom();
+        coords[RIGHT] = aRectR2.getRight();
+
+        System.arraycopy(myCoords, 0, coords, NUM_COORDS, CARD * NUM_COORDS);
+
+        for (index = 0; index < CARD; index++) {
+            branches[index] = myBranch.getRaw(index);
+        }
+
         //
         // As the seeds for the two groups, find two rectangles which waste
         // the most area if covered by a single rectangle.
         //
-        rectArea[0] = aRectR2.area();
+        for (index = 0; index <= CARD; index++) {
+            final int offset = index * NUM_COORDS;
 
-        for (index = 0; index < CARD; index++) {
-            rectArea[index + 1] = myRectR2[index].area();
+            rectArea[index] = (coords[offset + BOTTOM] - coords[offset + TOP]) * (coords[offset + RIGHT] -
+                    coords[offset + LEFT]);
         }
 
-        RectangleR2 rectR2 = aRectR2;
-
         for (index = 0; index < CARD; index++) {
+            final int offset = index * NUM_COORDS;
+
             for (jndex = index + 1; jndex <= CARD; jndex++) {
-                waste = RectangleR2.joinArea(rectR2, myRectR2[jndex - 1]) - rectArea[index] - rectArea[jndex];
+                waste = joinArea(coords, jndex * NUM_COORDS, coords[offset + TOP], coords[offset + LEFT],
+                        coords[offset + BOTTOM], coords[offset + RIGHT]) - rectArea[index] - rectArea[jndex];
 
                 if (waste > worstWaste) {
                     worstWaste = waste;
@@ -220,31 +351,24 @@ public class RtreeR2Page extends Persistent {
                     seed1 = jndex;
                 }
             }
-
-            rectR2 = myRectR2[index];
         }
 
-        final byte[] taken = new byte[CARD];
-
-        final RectangleR2 group0;
-        final RectangleR2 group1;
+        final byte[] taken = new byte[CARD + 1];
+        final double[] group0 = new double[NUM_COORDS];
+        final double[] group1 = new double[NUM_COORDS];
         final RtreeR2Page page;
         double groupArea0;
         double groupArea1;
         int groupCard0;
         int groupCard1;
 
-        taken[seed1 - 1] = 2;
-        group1 = new RectangleR2(myRectR2[seed1 - 1]);
+        taken[seed0] = 1;
+        taken[seed1] = 2;
 
-        if (seed0 == 0) {
-            group0 = new RectangleR2(aRectR2);
-            page = new RtreeR2Page(aStorage, aObj, aRectR2);
-        } else {
-            group0 = new RectangleR2(myRectR2[seed0 - 1]);
-            page = new RtreeR2Page(aStorage, myBranch.getRaw(seed0 - 1), group0);
-            setBranch(seed0 - 1, aRectR2, aObj);
-        }
+        System.arraycopy(coords, seed0 * NUM_COORDS, group0, 0, NUM_COORDS);
+        System.arraycopy(coords, seed1 * NUM_COORDS, group1, 0, NUM_COORDS);
+
+        page = new RtreeR2Page(aStorage, seed0 == 0 ? aObj : branches[seed0 - 1], getRectangle(coords, seed0));
 
         groupCard0 = groupCard1 = 1;
         groupArea0 = rectArea[seed0];
@@ -262,10 +386,13 @@ public class RtreeR2Page extends Persistent {
             int chosen = -1;
             double biggestDiff = -1;
 
-            for (index = 0; index < CARD; index++) {
+            for (index = 0; index <= CARD; index++) {
                 if (taken[index] == 0) {
-                    final double diff = (RectangleR2.joinArea(group0, myRectR2[index]) - groupArea0) - (RectangleR2
-                            .joinArea(group1, myRectR2[index]) - groupArea1);
+                    final int offset = index * NUM_COORDS;
+                    final double diff = (joinArea(coords, offset, group0[TOP], group0[LEFT], group0[BOTTOM],
+                            group0[RIGHT]) - groupArea0) - (joinArea(coords, offset, group1[TOP], group1[LEFT],
+                                    group1[BOTTOM], group1[RIGHT]) - groupArea1);
+
                     if (diff > biggestDiff || -diff > biggestDiff) {
                         chosen = index;
 
@@ -283,14 +410,13 @@ public class RtreeR2Page extends Persistent {
             Assert.that(chosen >= 0);
 
             if (betterGroup == 0) {
-                group0.join(myRectR2[chosen]);
-                groupArea0 = group0.area();
+                groupArea0 = join(group0, coords, chosen * NUM_COORDS);
                 taken[chosen] = 1;
-                page.setBranch(groupCard0++, myRectR2[chosen], myBranch.getRaw(chosen));
+                page.setBranch(groupCard0++, coords, chosen * NUM_COORDS, chosen == 0 ? aObj
+                        : branches[chosen - 1]);
             } else {
                 groupCard1 += 1;
-                group1.join(myRectR2[chosen]);
-                groupArea1 = group1.area();
+                groupArea1 = join(group1, coords, chosen * NUM_COORDS);
                 taken[chosen] = 2;
             }
         }
@@ -300,14 +426,15 @@ public class RtreeR2Page extends Persistent {
         // split between two groups in such way to balance cards of two groups.
         //
         if (groupCard0 + groupCard1 < CARD + 1) {
-            for (index = 0; index < CARD; index++) {
+            for (index = 0; index <= CARD; index++) {
                 if (taken[index] == 0) {
                     if (groupCard0 >= groupCard1) {
                         taken[index] = 2;
                         groupCard1 += 1;
                     } else {
                         taken[index] = 1;
-                        page.setBranch(groupCard0++, myRectR2[index], myBranch.getRaw(index));
+                        page.setBranch(groupCard0++, coords, index * NUM_COORDS, index == 0 ? aObj
+                                : branches[index - 1]);
                     }
                 }
             }
@@ -318,7 +445,7 @@ public class RtreeR2Page extends Persistent {
 
         for (index = 0, jndex = 0; index < groupCard1; jndex++) {
             if (taken[jndex] == 2) {
-                setBranch(index++, myRectR2[jndex], myBranch.getRaw(jndex));
+                setBranch(index++, coords, jndex * NUM_COORDS, jndex == 0 ? aObj : branches[jndex - 1]);
             }
         }
 
@@ -326,12 +453,49 @@ public class RtreeR2Page extends Persistent {
     }
 
     final RectangleR2 cover() {
-        final RectangleR2 rectR2 = new RectangleR2(myRectR2[0]);
-
-        for (int index = 1; index < myCount; index++) {
-            rectR2.join(myRectR2[index]);
+        final double[] coords = myCoords;
+
+        double top = coords[TOP];
+        double left = coords[LEFT];
+        double bottom = coords[BOTTOM];
+        double right = coords[RIGHT];
+
+        for (int index = 1, offset = NUM_COORDS; index < myCount; index++, offset += NUM_COORDS) {
+            top = Math.min(top, coords[offset + TOP]);
+            left = Math.min(left, coords[offset + LEFT]);
+            bottom = Math.max(bottom, coords[offset + BOTTOM]);
+            right = Math.max(right, coords[offset + RIGHT]);
         }
 
-        return rectR2;
+        return new RectangleR2(top, left, bottom, right);
+    }
+
+    private static RectangleR2 getRectangle(final double[] aCoords, final int aIndex) {
+        final int offset = aIndex * NUM_COORDS;
+
+        return new RectangleR2(aCoords[offset + TOP], aCoords[offset + LEFT], aCoords[offset + BOTTOM],
+                aCoords[offset + RIGHT]);
+    }
+
+    private static double joinArea(final double[] aCoords, final int aOffset, final double aTop,
+            final double aLeft, final double aBottom, final double aRight) {
+        final double top = Math.min(aCoords[aOffset + TOP], aTop);
+        final double left = Math.min(aCoords[aOffset + LEFT], aLeft);
+        final double bottom = Math.max(aCoords[aOffset + BOTTOM], aBottom);
+        final double right = Math.max(aCoords[aOffset + RIGHT], aRight);
+
+        return (bottom - top) * (right - left);
+    }
+
+    /**
+     * Joins the rectangle at the specified offset into the group's cover and returns the new area of the group.
+     */
+    private static double join(final double[] aGroup, final double[] aCoords, final int aOffset) {
+        aGroup[TOP] = Math.min(aGroup[TOP], aCoords[aOffset + TOP]);
+        aGroup[LEFT] = Math.min(aGroup[LEFT], aCoords[aOffset + LEFT]);
+        aGroup[BOTTOM] = Math.max(aGroup[BOTTOM], aCoords[aOffset + BOTTOM]);
+        aGroup[RIGHT] = Math.max(aGroup[RIGHT], aCoords[aOffset + RIGHT]);
+
+        return (aGroup[BOTTOM] - aGroup[TOP]) * (aGroup[RIGHT] - aGroup[LEFT]);
     }
 }
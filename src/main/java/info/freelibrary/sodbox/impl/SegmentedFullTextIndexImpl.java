@@ -0,0 +1,1087 @@
+
+package info.freelibrary.sodbox.impl;
+
+import java.io.Reader;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import info.freelibrary.sodbox.Index;
+import info.freelibrary.sodbox.Key;
+import info.freelibrary.sodbox.Link;
+import info.freelibrary.sodbox.Persistent;
+import info.freelibrary.sodbox.Storage;
+import info.freelibrary.sodbox.StorageError;
+import info.freelibrary.sodbox.fulltext.FullTextSearchHelper;
+import info.freelibrary.sodbox.fulltext.SegmentedFullTextIndex;
+
+/**
+ * Full-text index built from immutable segments. Every segment contains the inverse lists of the documents flushed
+ * together, each list stored as one object with sorted arrays of document OIDs and compressed occurrences. Documents
+ * are never removed from a segment: deletion records the generation starting from which the document is deleted and
+ * merges drop the deleted postings.<BR>
+ * Buffered changes are flushed when the index is stored, so they are committed with the transaction. Merges only read
+ * the source segments in the background: merged inverse lists are passed in bounded chunks to the thread using the
+ * index, which writes them to the target segment when it adds documents, flushes or commits. So the storage is only
+ * changed by the thread using the index, and sources are deallocated only when the merge has completed. A merge
+ * which doesn't match the index after rollback of the transaction is abandoned, and the target segment of a merge
+ * interrupted by closing of the storage is deallocated when the index is used next time.
+ */
+public class SegmentedFullTextIndexImpl extends FullTextIndexImpl implements SegmentedFullTextIndex {
+
+    private static final long serialVersionUID = 2652009435713463547L;
+
+    static final int MERGE_FACTOR = 4;
+
+    static final int MERGE_CHUNK_SIZE = 64 * 1024; // number of postings passed by the merger at once
+
+    static final int MERGE_QUEUE_SIZE = 2;
+
+    static final long MERGE_POLL_INTERVAL = 100; // milliseconds
+
+    Link<Segment> mySegments; // from the oldest to the newest
+
+    int myBufferSize; // maximal number of documents in the in-memory segment
+
+    int myNextGeneration; // generation of the in-memory segment
+
+    int myNumberOfWords; // number of different words in the persistent segments
+
+    int[] myDeletedOIDs; // ascending
+
+    int[] myDeletedGenerations; // document is deleted from the segments of preceding generations
+
+    Segment myMergeTarget; // result of the running merge, filled as the merged inverse lists are received
+
+    transient TreeMap<String, TreeMap<Integer, DocumentOccurrences>> myBuffer;
+
+    transient HashMap<Integer, BufferedDocument> myBufferedDocuments;
+
+    transient HashSet<String> myNewWords; // words of the in-memory segment not present in persistent segments
+
+    transient HashMap<Integer, Object> myPendingDeletes; // flushed documents deleted in the current generation
+
+    transient SegmentMerger myMerger;
+
+    /**
+     * Creates a segmented full-text index.
+     *
+     * @param aStorage A database storage
+     * @param aSearchHelper A full text search helper
+     * @param aBufferSize Maximal number of documents in the in-memory segment
+     */
+    public SegmentedFullTextIndexImpl(final Storage aStorage, final FullTextSearchHelper aSearchHelper,
+            final int aBufferSize) {
+        super(aStorage, aSearchHelper, null);
+
+        mySegments = aStorage.createLink();
+        myBufferSize = aBufferSize;
+        myNextGeneration = 1;
+        myDeletedOIDs = new int[0];
+        myDeletedGenerations = new int[0];
+    }
+
+    SegmentedFullTextIndexImpl() {
+    }
+
+    @Override
+    public void add(final Object aObject, final Reader aText, final String aLanguage) {
+        add(parseDocument(aObject, aText, aLanguage));
+    }
+
+    @Override
+    public void addAll(final Object[] aObjects, final Reader[] aTexts, final String[] aLanguages) {
+        final ParsedDocument[] docs = parseDocuments(aObjects, aTexts, aLanguages);
+
+        for (int i = 0; i < docs.length; i++) {
+            add(docs[i]);
+        }
+    }
+
+    private void add(final ParsedDocument aDoc) {
+        initBuffer();
+        installMerge(false);
+        delete(aDoc.myObject);
+
+        if (aDoc.myWords.length > 0) {
+            final int oid = getStorage().makePersistent(aDoc.myObject);
+
+            for (int i = 0; i < aDoc.myWords.length; i++) {
+                TreeMap<Integer, DocumentOccurrences> postings = myBuffer.get(aDoc.myWords[i]);
+
+                if (postings == null) {
+                    postings = new TreeMap<>();
+                    myBuffer.put(aDoc.myWords[i], postings);
+
+                    if (!containsWord(aDoc.myWords[i])) {
+                        myNewWords.add(aDoc.myWords[i]);
+                    }
+                }
+
+                postings.put(oid, aDoc.myOccurrences[i]);
+            }
+
+            myBufferedDocuments.put(oid, new BufferedDocument(aDoc.myObject, aDoc.myWords));
+            modify(); // buffer is flushed when the index is stored
+
+            if (myBufferedDocuments.size() >= myBufferSize) {
+                flush();
+            }
+        }
+    }
+
+    private boolean containsWord(final String aWord) {
+        for (int i = 0, n = mySegments.size(); i < n; i++) {
+            if (mySegments.get(i).myPostings.get(aWord) != null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public void delete(final Object aObject) {
+        final int oid = getStorage().getOid(aObject);
+
+        if (oid == 0) {
+            return;
+        }
+
+        initBuffer();
+
+        final BufferedDocument doc = myBufferedDocuments.remove(oid);
+
+        if (doc != null) {
+            for (int i = 0; i < doc.myWords.length; i++) {
+                final TreeMap<Integer, DocumentOccurrences> postings = myBuffer.get(doc.myWords[i]);
+
+                if (postings != null) {
+                    postings.remove(oid);
+
+                    if (postings.isEmpty()) {
+                        myBuffer.remove(doc.myWords[i]);
+                        myNewWords.remove(doc.myWords[i]);
+                    }
+                }
+            }
+        }
+
+        if (!myPendingDeletes.containsKey(oid) && myDocuments.get(new Key(aObject)) != null) {
+            myPendingDeletes.put(oid, aObject);
+            modify();
+        }
+    }
+
+    @Override
+    public void onStore() {
+        if (myBuffer != null) { // transient state is created when the index is used
+            flush();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void flush() {
+        initBuffer();
+
+        if (!myPendingDeletes.isEmpty() || !myBuffer.isEmpty()) {
+            if (!myPendingDeletes.isEmpty()) {
+                flushDeletes();
+            }
+
+            if (!myBuffer.isEmpty()) {
+                final Segment segment = new Segment(getStorage(), myNextGeneration, myBufferedDocuments.size());
+
+                for (final Map.Entry<String, TreeMap<Integer, DocumentOccurrences>> entry : myBuffer.entrySet()) {
+                    final PostingsBuilder builder = new PostingsBuilder();
+
+                    for (final Map.Entry<Integer, DocumentOccurrences> posting : entry.getValue().entrySet()) {
+                        builder.add(posting.getKey(), posting.getValue());
+                    }
+
+                    segment.myPostings.put(entry.getKey(), builder.build());
+                }
+
+                for (final BufferedDocument doc : myBufferedDocuments.values()) {
+                    final Document document = new Document();
+
+                    document.myObject = doc.myObject;
+                    myDocuments.put(new Key(doc.myObject), document);
+                }
+
+                mySegments.add(segment);
+                myNumberOfWords += myNewWords.size();
+            }
+
+            myNextGeneration += 1;
+            myBuffer.clear();
+            myBufferedDocuments.clear();
+            myNewWords.clear();
+            modify();
+        }
+
+        installMerge(false);
+        scheduleMerge();
+    }
+
+    private void flushDeletes() {
+        final int nDeleted = myDeletedOIDs.length;
+        final int[] pending = new int[myPendingDeletes.size()];
+        final int[] oids = new int[nDeleted + pending.length];
+        final int[] generations = new int[oids.length];
+
+        int n = 0;
+
+        for (final Map.Entry<Integer, Object> entry : myPendingDeletes.entrySet()) {
+            pending[n++] = entry.getKey();
+            myDocuments.remove(new Key(entry.getValue()));
+        }
+
+        Arrays.sort(pending);
+        n = 0;
+
+        for (int i = 0, j = 0; i < nDeleted || j < pending.length;) {
+            if (j == pending.length || i < nDeleted && myDeletedOIDs[i] < pending[j]) {
+                oids[n] = myDeletedOIDs[i];
+                generations[n++] = myDeletedGenerations[i++];
+            } else {
+                if (i < nDeleted && myDeletedOIDs[i] == pending[j]) {
+                    i += 1; // later deletion covers the earlier one
+                }
+
+                oids[n] = pending[j++];
+                generations[n++] = myNextGeneration;
+            }
+        }
+
+        myDeletedOIDs = Arrays.copyOf(oids, n);
+        myDeletedGenerations = Arrays.copyOf(generations, n);
+        myPendingDeletes.clear();
+    }
+
+    @Override
+    public void merge() {
+        flush();
+
+        while (myMerger != null) { // completed merge may schedule the next one
+            installMerge(true);
+        }
+
+        if (mySegments.size() > 1 || mySegments.size() == 1 && myDeletedOIDs.length != 0) {
+            final Segment[] segments = new Segment[mySegments.size()];
+
+            mySegments.toArray(segments);
+            startMerge(segments).run(); // in the calling thread, which writes the chunks itself
+            installMerge(true);
+        }
+    }
+
+    /**
+     * Starts background merge of the first run of <code>MERGE_FACTOR</code> adjacent segments of the same size level.
+     */
+    private void scheduleMerge() {
+        if (myMerger != null) {
+            return;
+        }
+
+        final int nSegments = mySegments.size();
+
+        for (int i = 0, runLength = 0, runLevel = -1; i < nSegments; i++) {
+            final int level = getLevel(mySegments.get(i));
+
+            if (level == runLevel) {
+                runLength += 1;
+            } else {
+                runLevel = level;
+                runLength = 1;
+            }
+
+            if (runLength == MERGE_FACTOR) {
+                final Segment[] segments = new Segment[MERGE_FACTOR];
+
+                for (int j = 0; j < MERGE_FACTOR; j++) {
+                    segments[j] = mySegments.get(i - MERGE_FACTOR + 1 + j);
+                }
+
+                startMerge(segments).start();
+                break;
+            }
+        }
+    }
+
+    private SegmentMerger startMerge(final Segment[] aSources) {
+        final Segment last = aSources[aSources.length - 1];
+
+        myMergeTarget = new Segment(getStorage(), last.myGeneration, 0);
+        myMerger = new SegmentMerger(aSources, new DeletedDocuments(myDeletedOIDs, myDeletedGenerations, null, 0),
+                myMergeTarget);
+
+        for (int i = 0; i < aSources.length; i++) {
+            myMergeTarget.myNumDocs += aSources[i].myNumDocs;
+        }
+
+        modify();
+
+        return myMerger;
+    }
+
+    private int getLevel(final Segment aSegment) {
+        int level = 0;
+
+        for (long size = (long) myBufferSize * MERGE_FACTOR; aSegment.myNumDocs >= size; size *= MERGE_FACTOR) {
+            level += 1;
+        }
+
+        return level;
+    }
+
+    /**
+     * Writes the inverse lists received from the merger to the target segment and replaces the merged segments with
+     * it when the merge is completed.
+     *
+     * @param aWait wait for completion of the merge if it is still in progress
+     */
+    private void installMerge(final boolean aWait) {
+        final SegmentMerger merger = myMerger;
+
+        if (merger == null) {
+            return;
+        }
+
+        if (!isCurrent(merger)) { // transaction which started the merge or wrote its chunks was rolled back
+            cancelMerge();
+            return;
+        }
+
+        try {
+            while (true) {
+                final boolean isFinished = !merger.isAlive(); // chunks queued before the end are polled below
+                MergeChunk chunk = merger.myChunks.poll();
+
+                if (chunk == null && !isFinished) {
+                    if (!aWait) {
+                        return;
+                    }
+
+                    chunk = merger.myChunks.poll(MERGE_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+
+                if (chunk != null) {
+                    writeChunk(merger, chunk);
+                } else if (isFinished) {
+                    break;
+                }
+            }
+        } catch (final InterruptedException x) {
+            throw new StorageError(StorageError.FULL_TEXT_INDEX_ERROR, x);
+        }
+
+        myMerger = null;
+
+        if (merger.myError != null) {
+            discardMergeTarget();
+            throw new StorageError(StorageError.FULL_TEXT_INDEX_ERROR, merger.myError);
+        }
+
+        final Segment[] sources = merger.mySources;
+        final Segment segment = myMergeTarget;
+        final int position = mySegments.indexOfObject(sources[0]);
+
+        myMergeTarget = null;
+        mySegments.set(position, segment);
+
+        for (int i = 1; i < sources.length; i++) {
+            mySegments.removeObject(position + 1);
+        }
+
+        for (int i = 0; i < sources.length; i++) {
+            sources[i].deallocate();
+        }
+
+        if (position == 0) { // all documents deleted before this generation are removed from the segments
+            int n = 0;
+
+            for (int i = 0; i < myDeletedOIDs.length; i++) {
+                if (myDeletedGenerations[i] > segment.myGeneration) {
+                    myDeletedOIDs[n] = myDeletedOIDs[i];
+                    myDeletedGenerations[n++] = myDeletedGenerations[i];
+                }
+            }
+
+            myDeletedOIDs = Arrays.copyOf(myDeletedOIDs, n);
+            myDeletedGenerations = Arrays.copyOf(myDeletedGenerations, n);
+
+            if (mySegments.size() == 1) {
+                myNumberOfWords = segment.myPostings.size();
+            }
+        }
+
+        modify();
+        scheduleMerge();
+    }
+
+    /**
+     * Checks that the index still contains the target segment with all the chunks written to it and the source
+     * segments, which may not be the case after rollback.
+     */
+    private boolean isCurrent(final SegmentMerger aMerger) {
+        final Segment[] sources = aMerger.mySources;
+        final int position = mySegments.indexOfObject(sources[0]);
+
+        if (myMergeTarget != aMerger.myTarget || position < 0 || position + sources.length > mySegments.size() ||
+                aMerger.myTarget.myPostings.size() != aMerger.myWrittenWords) {
+            return false;
+        }
+
+        for (int i = 1; i < sources.length; i++) {
+            if (mySegments.get(position + i) != sources[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes the merged inverse lists to the target segment. Each list is stored at once, so it doesn't stay in
+     * memory until the transaction is committed.
+     */
+    private void writeChunk(final SegmentMerger aMerger, final MergeChunk aChunk) {
+        final Storage storage = getStorage();
+
+        for (int i = 0, n = aChunk.myWords.size(); i < n; i++) {
+            final Postings postings = aChunk.myPostings.get(i);
+
+            storage.storeObject(postings);
+            aMerger.myTarget.myPostings.put(aChunk.myWords.get(i), postings);
+        }
+
+        aMerger.myWrittenWords += aChunk.myWords.size();
+    }
+
+    /**
+     * Stops the running merge and deallocates its target segment.
+     */
+    private void cancelMerge() {
+        final SegmentMerger merger = myMerger;
+
+        merger.isCancelled = true;
+        merger.myChunks.clear();
+
+        try {
+            merger.join();
+        } catch (final InterruptedException x) {
+            throw new StorageError(StorageError.FULL_TEXT_INDEX_ERROR, x);
+        }
+
+        myMerger = null;
+        discardMergeTarget();
+    }
+
+    private void discardMergeTarget() {
+        if (myMergeTarget != null) {
+            myMergeTarget.deallocate();
+            myMergeTarget = null;
+            modify();
+        }
+    }
+
+    @Override
+    protected InverseList getInverseList(final String aWord) {
+        initBuffer();
+
+        final int nSegments = mySegments.size();
+        final ArrayList<Postings> postings = new ArrayList<>(nSegments);
+        final int[] generations = new int[nSegments];
+        final TreeMap<Integer, DocumentOccurrences> buffered = myBuffer.get(aWord);
+
+        for (int i = 0; i < nSegments; i++) {
+            final Segment segment = mySegments.get(i);
+            final Postings p = segment.myPostings.get(aWord);
+
+            if (p != null) {
+                generations[postings.size()] = segment.myGeneration;
+                postings.add(p);
+            }
+        }
+
+        if (postings.isEmpty() && buffered == null) {
+            return null;
+        }
+
+        return new SegmentedInverseList(postings.toArray(new Postings[postings.size()]), generations, buffered,
+                new DeletedDocuments(myDeletedOIDs, myDeletedGenerations, myPendingDeletes, myNextGeneration));
+    }
+
+    @Override
+    protected Iterator<Map.Entry<String, InverseList>> getInverseLists(final String aPrefix) {
+        initBuffer();
+
+        final TreeSet<String> words = new TreeSet<>(myBuffer.subMap(aPrefix, aPrefix + Character.MAX_VALUE)
+                .keySet());
+
+        for (int i = 0, n = mySegments.size(); i < n; i++) {
+            final Iterator<Map.Entry<Object, Postings>> iterator = mySegments.get(i).myPostings.entryIterator(
+                    new Key(aPrefix), new Key(aPrefix + Character.MAX_VALUE, false), Index.ASCENT_ORDER);
+
+            while (iterator.hasNext()) {
+                words.add((String) iterator.next().getKey());
+            }
+        }
+
+        final Iterator<String> iterator = words.iterator();
+
+        return new Iterator<Map.Entry<String, InverseList>>() {
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, InverseList> next() {
+                final String word = iterator.next();
+
+                return new AbstractMap.SimpleImmutableEntry<>(word, getInverseList(word));
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public int getNumberOfWords() {
+        initBuffer();
+
+        return myNumberOfWords + myNewWords.size();
+    }
+
+    @Override
+    public int getNumberOfDocuments() {
+        initBuffer();
+
+        return myDocuments.size() - myPendingDeletes.size() + myBufferedDocuments.size();
+    }
+
+    @Override
+    public int getNumberOfSegments() {
+        return mySegments.size();
+    }
+
+    @Override
+    public void clear() {
+        initBuffer();
+
+        if (myMerger != null) {
+            cancelMerge();
+        }
+
+        for (int i = 0, n = mySegments.size(); i < n; i++) {
+            mySegments.get(i).deallocate();
+        }
+
+        mySegments.clear();
+        myDocuments.deallocateMembers();
+        myNumberOfWords = 0;
+        myDeletedOIDs = new int[0];
+        myDeletedGenerations = new int[0];
+        myBuffer.clear();
+        myBufferedDocuments.clear();
+        myNewWords.clear();
+        myPendingDeletes.clear();
+        modify();
+    }
+
+    private void initBuffer() {
+        if (myBuffer == null) {
+            myBuffer = new TreeMap<>();
+            myBufferedDocuments = new HashMap<>();
+            myNewWords = new HashSet<>();
+            myPendingDeletes = new HashMap<>();
+
+            if (myMerger == null) { // merge was interrupted by closing of the storage
+                discardMergeTarget();
+            }
+        }
+    }
+
+    static class BufferedDocument {
+
+        final Object myObject;
+
+        final String[] myWords;
+
+        BufferedDocument(final Object aObject, final String[] aWords) {
+            myObject = aObject;
+            myWords = aWords;
+        }
+    }
+
+    static class Segment extends Persistent {
+
+        private static final long serialVersionUID = -6414397062311953180L;
+
+        int myGeneration;
+
+        int myNumDocs;
+
+        Index<Postings> myPostings;
+
+        Segment() {
+        }
+
+        Segment(final Storage aStorage, final int aGeneration, final int aNumDocs) {
+            super(aStorage);
+
+            myGeneration = aGeneration;
+            myNumDocs = aNumDocs;
+            myPostings = aStorage.createIndex(String.class, true);
+        }
+
+        @Override
+        public void deallocate() {
+            myPostings.deallocateMembers();
+            myPostings.deallocate();
+            super.deallocate();
+        }
+    }
+
+    /**
+     * Immutable inverse list of the segment.
+     */
+    static class Postings extends Persistent {
+
+        private static final long serialVersionUID = -5854953523893844269L;
+
+        int[] myOIDs;
+
+        int[] myNumWordsInDoc;
+
+        int[] myOffsets; // offsets of the compressed occurrences of the documents, the last one is the total size
+
+        byte[] myOccurrences;
+
+        int myMaxFrequency;
+
+        int myMinWordsInDoc;
+
+        DocumentOccurrences getDocumentOccurrences(final int aIndex) {
+            final DocumentOccurrences d = new DocumentOccurrences();
+
+            d.myNumWordsInDoc = myNumWordsInDoc[aIndex];
+            d.myOccurrences = Arrays.copyOfRange(myOccurrences, myOffsets[aIndex], myOffsets[aIndex + 1]);
+
+            return d;
+        }
+    }
+
+    static class PostingsBuilder {
+
+        int[] myOIDs = new int[8];
+
+        int[] myNumWordsInDoc = new int[8];
+
+        int[] myOffsets = new int[9];
+
+        byte[] myOccurrences = new byte[64];
+
+        int mySize;
+
+        int myMaxFrequency;
+
+        int myMinWordsInDoc = Integer.MAX_VALUE;
+
+        void add(final int aOID, final DocumentOccurrences aDoc) {
+            final byte[] occ = aDoc.myOccurrences;
+            final int offset = myOffsets[mySize];
+            final int frequency = aDoc.getFrequency();
+
+            if (mySize == myOIDs.length) {
+                myOIDs = Arrays.copyOf(myOIDs, mySize * 2);
+                myNumWordsInDoc = Arrays.copyOf(myNumWordsInDoc, mySize * 2);
+                myOffsets = Arrays.copyOf(myOffsets, mySize * 2 + 1);
+            }
+
+            if (offset + occ.length > myOccurrences.length) {
+                myOccurrences = Arrays.copyOf(myOccurrences, Math.max(myOccurrences.length * 2, offset +
+                        occ.length));
+            }
+
+            System.arraycopy(occ, 0, myOccurrences, offset, occ.length);
+            myOIDs[mySize] = aOID;
+            myNumWordsInDoc[mySize] = aDoc.myNumWordsInDoc;
+            myOffsets[++mySize] = offset + occ.length;
+            myMaxFrequency = Math.max(myMaxFrequency, frequency);
+            myMinWordsInDoc = Math.min(myMinWordsInDoc, aDoc.myNumWordsInDoc);
+        }
+
+        Postings build() {
+            final Postings postings = new Postings();
+
+            postings.myOIDs = Arrays.copyOf(myOIDs, mySize);
+            postings.myNumWordsInDoc = Arrays.copyOf(myNumWordsInDoc, mySize);
+            postings.myOffsets = Arrays.copyOf(myOffsets, mySize + 1);
+            postings.myOccurrences = Arrays.copyOf(myOccurrences, myOffsets[mySize]);
+            postings.myMaxFrequency = myMaxFrequency;
+            postings.myMinWordsInDoc = myMinWordsInDoc;
+
+            return postings;
+        }
+    }
+
+    /**
+     * Deleted documents: persistent ones with the generation of deletion and the pending ones deleted in the current
+     * generation.
+     */
+    static class DeletedDocuments {
+
+        final int[] myOIDs;
+
+        final int[] myGenerations;
+
+        final Map<Integer, Object> myPending;
+
+        final int myGeneration;
+
+        DeletedDocuments(final int[] aOIDs, final int[] aGenerations, final Map<Integer, Object> aPending,
+                final int aGeneration) {
+            myOIDs = aOIDs;
+            myGenerations = aGenerations;
+            myPending = aPending;
+            myGeneration = aGeneration;
+        }
+
+        boolean isDeleted(final int aOID, final int aGeneration) {
+            if (myPending != null && aGeneration < myGeneration && myPending.containsKey(aOID)) {
+                return true;
+            }
+
+            final int i = Arrays.binarySearch(myOIDs, aOID);
+
+            return i >= 0 && myGenerations[i] > aGeneration;
+        }
+    }
+
+    /**
+     * Inverse list of the word merged from all segments, deleted documents are skipped. The in-memory segment is
+     * considered the newest.
+     */
+    static class SegmentedInverseList extends InverseList {
+
+        private static final long serialVersionUID = 338838238658661767L;
+
+        final Postings[] myPostings;
+
+        final int[] myGenerations;
+
+        final TreeMap<Integer, DocumentOccurrences> myBuffered;
+
+        final DeletedDocuments myDeleted;
+
+        final int mySize;
+
+        SegmentedInverseList(final Postings[] aPostings, final int[] aGenerations,
+                final TreeMap<Integer, DocumentOccurrences> aBuffered, final DeletedDocuments aDeleted) {
+            int size = 0;
+
+            myPostings = aPostings;
+            myGenerations = aGenerations;
+            myBuffered = aBuffered;
+            myDeleted = aDeleted;
+            myMinWordsInDoc = Integer.MAX_VALUE;
+
+            for (int i = 0; i < aPostings.length; i++) {
+                size += aPostings[i].myOIDs.length;
+                myMaxFrequency = Math.max(myMaxFrequency, aPostings[i].myMaxFrequency);
+                myMinWordsInDoc = Math.min(myMinWordsInDoc, aPostings[i].myMinWordsInDoc);
+            }
+
+            if (aBuffered != null) {
+                size += aBuffered.size();
+
+                for (final DocumentOccurrences d : aBuffered.values()) {
+                    myMaxFrequency = Math.max(myMaxFrequency, d.getFrequency());
+                    myMinWordsInDoc = Math.min(myMinWordsInDoc, d.myNumWordsInDoc);
+                }
+            }
+
+            mySize = size; // deleted documents are counted until segments are merged
+        }
+
+        @Override
+        public int size() {
+            return mySize;
+        }
+
+        @Override
+        int first() {
+            int first = myBuffered != null ? myBuffered.firstKey() : Integer.MAX_VALUE;
+
+            for (int i = 0; i < myPostings.length; i++) {
+                if (myPostings[i].myOIDs.length != 0) {
+                    first = Math.min(first, myPostings[i].myOIDs[0]);
+                }
+            }
+
+            return first;
+        }
+
+        @Override
+        int last() {
+            int last = myBuffered != null ? myBuffered.lastKey() : 0;
+
+            for (int i = 0; i < myPostings.length; i++) {
+                if (myPostings[i].myOIDs.length != 0) {
+                    last = Math.max(last, myPostings[i].myOIDs[myPostings[i].myOIDs.length - 1]);
+                }
+            }
+
+            return last;
+        }
+
+        @Override
+        Iterator<Map.Entry<Integer, DocumentOccurrences>> iterator(final int aOID) {
+            return new MergeIterator(aOID);
+        }
+
+        class MergeIterator implements Iterator<Map.Entry<Integer, DocumentOccurrences>> {
+
+            final int[] myPositions;
+
+            final Iterator<Map.Entry<Integer, DocumentOccurrences>> myBufferIterator;
+
+            Map.Entry<Integer, DocumentOccurrences> myBufferEntry;
+
+            Map.Entry<Integer, DocumentOccurrences> myNext;
+
+            MergeIterator(final int aOID) {
+                myPositions = new int[myPostings.length];
+
+                for (int i = 0; i < myPostings.length; i++) {
+                    final int[] oids = myPostings[i].myOIDs;
+                    final int position = Arrays.binarySearch(oids, aOID);
+
+                    myPositions[i] = position >= 0 ? position : -position - 1;
+                }
+
+                myBufferIterator = myBuffered != null ? myBuffered.tailMap(aOID, true).entrySet().iterator() : null;
+                myBufferEntry = myBufferIterator != null && myBufferIterator.hasNext() ? myBufferIterator.next()
+                        : null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (myNext == null) {
+                    int oid = myBufferEntry != null ? myBufferEntry.getKey() : Integer.MAX_VALUE;
+                    int source = -1; // the newest source containing the document
+
+                    for (int i = myPostings.length; --i >= 0;) {
+                        final int[] oids = myPostings[i].myOIDs;
+
+                        if (myPositions[i] < oids.length && oids[myPositions[i]] < oid) {
+                            oid = oids[myPositions[i]];
+                            source = i;
+                        }
+                    }
+
+                    if (oid == Integer.MAX_VALUE && myBufferEntry == null) {
+                        return false;
+                    }
+
+                    if (source < 0) {
+                        myNext = myBufferEntry;
+                        myBufferEntry = myBufferIterator.hasNext() ? myBufferIterator.next() : null;
+                    } else if (!myDeleted.isDeleted(oid, myGenerations[source])) {
+                        myNext = new AbstractMap.SimpleImmutableEntry<>(oid, myPostings[source]
+                                .getDocumentOccurrences(myPositions[source]));
+                    }
+
+                    for (int i = 0; i < myPostings.length; i++) { // skip older versions of the document
+                        final int[] oids = myPostings[i].myOIDs;
+
+                        if (myPositions[i] < oids.length && oids[myPositions[i]] == oid) {
+                            myPositions[i] += 1;
+                        }
+                    }
+                }
+
+                return true;
+            }
+
+            @Override
+            public Map.Entry<Integer, DocumentOccurrences> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                final Map.Entry<Integer, DocumentOccurrences> next = myNext;
+
+                myNext = null;
+
+                return next;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        }
+    }
+
+    /**
+     * Inverse lists merged by the merger, which are passed to the thread using the index at once.
+     */
+    static class MergeChunk {
+
+        final ArrayList<String> myWords = new ArrayList<>();
+
+        final ArrayList<Postings> myPostings = new ArrayList<>();
+
+        int mySize; // total number of postings
+    }
+
+    /**
+     * Merges the inverse lists of the segments dropping deleted documents. Merged lists are passed in chunks to the
+     * thread using the index, which writes them to the target segment; the merger waits while the queue of chunks is
+     * full, so the memory used by the merge is bounded.
+     */
+    class SegmentMerger extends Thread {
+
+        final Segment[] mySources;
+
+        final DeletedDocuments myDeleted;
+
+        final Segment myTarget;
+
+        final ArrayBlockingQueue<MergeChunk> myChunks = new ArrayBlockingQueue<>(MERGE_QUEUE_SIZE);
+
+        volatile boolean isCancelled;
+
+        int myWrittenWords; // number of words written to the target, used by the thread using the index only
+
+        Exception myError;
+
+        SegmentMerger(final Segment[] aSources, final DeletedDocuments aDeleted, final Segment aTarget) {
+            super("SegmentedFullTextIndex merger");
+            setDaemon(true);
+
+            mySources = aSources;
+            myDeleted = aDeleted;
+            myTarget = aTarget;
+        }
+
+        @Override
+        public void run() {
+            try {
+                merge();
+            } catch (final RuntimeException x) {
+                myError = x;
+            }
+        }
+
+        private void merge() {
+            final int nSources = mySources.length;
+            final ArrayList<Iterator<Map.Entry<Object, Postings>>> iterators = new ArrayList<>(nSources);
+            final ArrayList<Map.Entry<Object, Postings>> entries = new ArrayList<>(nSources);
+
+            MergeChunk chunk = new MergeChunk();
+
+            for (int i = 0; i < nSources; i++) {
+                final Iterator<Map.Entry<Object, Postings>> iterator = mySources[i].myPostings.entryIterator();
+
+                iterators.add(iterator);
+                entries.add(iterator.hasNext() ? iterator.next() : null);
+            }
+
+            while (!isCancelled) {
+                String word = null;
+
+                for (int i = 0; i < nSources; i++) {
+                    final Map.Entry<Object, Postings> entry = entries.get(i);
+
+                    if (entry != null && (word == null || ((String) entry.getKey()).compareTo(word) < 0)) {
+                        word = (String) entry.getKey();
+                    }
+                }
+
+                if (word == null) {
+                    if (!chunk.myWords.isEmpty()) {
+                        pass(chunk);
+                    }
+
+                    break;
+                }
+
+                final Postings[] postings = new Postings[nSources];
+                final int[] generations = new int[nSources];
+
+                int n = 0;
+
+                for (int i = 0; i < nSources; i++) {
+                    final Map.Entry<Object, Postings> entry = entries.get(i);
+
+                    if (entry != null && word.equals(entry.getKey())) {
+                        final Iterator<Map.Entry<Object, Postings>> iterator = iterators.get(i);
+
+                        generations[n] = mySources[i].myGeneration;
+                        postings[n++] = entry.getValue();
+                        entries.set(i, iterator.hasNext() ? iterator.next() : null);
+                    }
+                }
+
+                final Iterator<Map.Entry<Integer, DocumentOccurrences>> iterator = new SegmentedInverseList(Arrays
+                        .copyOf(postings, n), generations, null, myDeleted).iterator(0);
+                final PostingsBuilder builder = new PostingsBuilder();
+
+                while (iterator.hasNext()) {
+                    final Map.Entry<Integer, DocumentOccurrences> entry = iterator.next();
+
+                    builder.add(entry.getKey(), entry.getValue());
+                }
+
+                chunk.myWords.add(word); // words of deleted documents are kept like in the inverse index
+                chunk.myPostings.add(builder.build());
+                chunk.mySize += builder.mySize;
+
+                if (chunk.mySize >= MERGE_CHUNK_SIZE) {
+                    pass(chunk);
+                    chunk = new MergeChunk();
+                }
+            }
+        }
+
+        /**
+         * Passes the chunk to the thread using the index, or writes it if the merge runs in that thread.
+         */
+        private void pass(final MergeChunk aChunk) {
+            if (Thread.currentThread() != this) {
+                writeChunk(this, aChunk);
+                return;
+            }
+
+            try {
+                while (!myChunks.offer(aChunk, MERGE_POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    if (isCancelled || !getStorage().isOpened()) {
+                        isCancelled = true;
+                        return;
+                    }
+                }
+            } catch (final InterruptedException x) {
+                throw new StorageError(StorageError.FULL_TEXT_INDEX_ERROR, x);
+            }
+        }
+    }
+}
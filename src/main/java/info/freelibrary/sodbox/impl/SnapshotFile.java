@@ -0,0 +1,204 @@
+
+package info.freelibrary.sodbox.impl;
+
+import java.util.HashMap;
+
+import info.freelibrary.sodbox.IBatchFile;
+import info.freelibrary.sodbox.IFile;
+
+/**
+ * File wrapper used by online backup. It remembers the transaction in which each page was last written, so that an
+ * incremental backup can skip pages which were not changed, and while a backup is running it saves the committed
+ * image of a page before the page is overwritten, so that the backup sees a consistent snapshot without blocking
+ * commits.
+ */
+public class SnapshotFile implements IBatchFile {
+
+    static final int INIT_PAGE_TIMESTAMPS_LENGTH = 64 * 1024;
+
+    final IFile myFile;
+
+    final StorageImpl myStorage;
+
+    long[] myPageTs; // id of the transaction which last wrote each page
+
+    long mySnapshotSize; // size of the snapshot being copied, 0 if there is no active backup
+
+    long myCopiedPosition; // pages below this position were already copied by the backup
+
+    long myPinnedStart; // range of pages which the backup may read out of order
+
+    long myPinnedEnd;
+
+    HashMap<Long, byte[]> mySavedPages;
+
+    /**
+     * Creates a snapshot file on top of the specified file.
+     *
+     * @param aStorage storage using this file; its current transaction id is used to mark written pages
+     * @param aFile underlying file
+     */
+    public SnapshotFile(final StorageImpl aStorage, final IFile aFile) {
+        myStorage = aStorage;
+        myFile = aFile;
+        myPageTs = new long[INIT_PAGE_TIMESTAMPS_LENGTH];
+    }
+
+    @Override
+    public synchronized void write(final long aPosition, final byte[] aBuffer) {
+        markWritten(aPosition, aBuffer);
+        myFile.write(aPosition, aBuffer);
+    }
+
+    @Override
+    public synchronized void write(final long[] aPositions, final byte[][] aBuffers, final int aCount) {
+        for (int index = 0; index < aCount; index++) {
+            markWritten(aPositions[index], aBuffers[index]);
+        }
+
+        if (myFile instanceof IBatchFile) {
+            ((IBatchFile) myFile).write(aPositions, aBuffers, aCount);
+        } else {
+            for (int index = 0; index < aCount; index++) {
+                myFile.write(aPositions[index], aBuffers[index]);
+            }
+        }
+    }
+
+    /**
+     * Save committed image of the page if it is needed by the backup and remember transaction writing the page.
+     */
+    private void markWritten(final long aPosition, final byte[] aBuffer) {
+        if (mySnapshotSize != 0 && isProtected(aPosition) && !mySavedPages.containsKey(aPosition)) {
+            final byte[] image = new byte[aBuffer.length];
+
+            myFile.read(aPosition, image);
+            mySavedPages.put(aPosition, image);
+        }
+
+        final long transactionId = myStorage.myTransactionId;
+        final int lastPageNo = (int) (aPosition + aBuffer.length - 1 >>> Page.PAGE_SIZE_LOG);
+
+        if (lastPageNo >= myPageTs.length) {
+            final int newLength = lastPageNo >= myPageTs.length * 2 ? lastPageNo + 1 : myPageTs.length * 2;
+            final long[] newPageTimestamps = new long[newLength];
+
+            System.arraycopy(myPageTs, 0, newPageTimestamps, 0, myPageTs.length);
+            myPageTs = newPageTimestamps;
+        }
+
+        for (int pageNo = (int) (aPosition >>> Page.PAGE_SIZE_LOG); pageNo <= lastPageNo; pageNo++) {
+            myPageTs[pageNo] = transactionId;
+        }
+    }
+
+    @Override
+    public synchronized int read(final long aPosition, final byte[] aBuffer) {
+        return myFile.read(aPosition, aBuffer);
+    }
+
+    @Override
+    public void sync() {
+        myFile.sync();
+    }
+
+    @Override
+    public boolean tryLock(final boolean aShared) {
+        return myFile.tryLock(aShared);
+    }
+
+    @Override
+    public void lock(final boolean aShared) {
+        myFile.lock(aShared);
+    }
+
+    @Override
+    public void unlock() {
+        myFile.unlock();
+    }
+
+    @Override
+    public void close() {
+        myFile.close();
+    }
+
+    @Override
+    public long length() {
+        return myFile.length();
+    }
+
+    /**
+     * Start preserving the snapshot of the specified size. Pages below the size are saved before being overwritten
+     * until they are copied with {@link #readSnapshotPage}.
+     *
+     * @param aSnapshotSize size of the committed database image
+     * @param aPinnedStart start of the range which is read out of order and so is preserved until the end
+     * @param aPinnedEnd end of the pinned range
+     * @return <code>false</code> if some other backup is already in progress
+     */
+    synchronized boolean beginSnapshot(final long aSnapshotSize, final long aPinnedStart, final long aPinnedEnd) {
+        if (mySnapshotSize != 0) {
+            return false;
+        }
+
+        mySnapshotSize = aSnapshotSize;
+        myCopiedPosition = Page.PAGE_SIZE;
+        myPinnedStart = aPinnedStart;
+        myPinnedEnd = aPinnedEnd;
+        mySavedPages = new HashMap<>();
+
+        return true;
+    }
+
+    /**
+     * Stop preserving the snapshot and release the saved pages.
+     */
+    synchronized void endSnapshot() {
+        mySnapshotSize = 0;
+        mySavedPages = null;
+    }
+
+    /**
+     * Read the snapshot image of the page. Pages outside of the pinned range should be read in ascending order: once a
+     * page is read, the pages preceding it are no longer preserved.
+     *
+     * @param aPosition page offset
+     * @param aBuffer buffer of page size to receive the page image
+     */
+    synchronized void readSnapshotPage(final long aPosition, final byte[] aBuffer) {
+        final boolean pinned = aPosition >= myPinnedStart && aPosition < myPinnedEnd;
+        final byte[] image = pinned ? mySavedPages.get(aPosition) : mySavedPages.remove(aPosition);
+
+        if (image != null) {
+            System.arraycopy(image, 0, aBuffer, 0, aBuffer.length);
+        } else {
+            final int length = Math.max(myFile.read(aPosition, aBuffer), 0);
+
+            for (int index = length; index < aBuffer.length; index++) {
+                aBuffer[index] = 0;
+            }
+        }
+
+        if (!pinned && aPosition + Page.PAGE_SIZE > myCopiedPosition) {
+            myCopiedPosition = aPosition + Page.PAGE_SIZE;
+        }
+    }
+
+    /**
+     * Check if the page was written since the specified transaction was committed.
+     *
+     * @param aPosition page offset
+     * @param aTransactionId transaction id
+     * @return <code>true</code> if the page may differ from its image in that transaction
+     */
+    synchronized boolean isModifiedSince(final long aPosition, final long aTransactionId) {
+        final int pageNo = (int) (aPosition >>> Page.PAGE_SIZE_LOG);
+
+        return pageNo < myPageTs.length && myPageTs[pageNo] >= aTransactionId;
+    }
+
+    private boolean isProtected(final long aPosition) {
+        return aPosition < mySnapshotSize && (aPosition >= myCopiedPosition || aPosition >= myPinnedStart &&
+                aPosition < myPinnedEnd);
+    }
+}
@@ -0,0 +1,201 @@
+
+package info.freelibrary.sodbox.impl;
+
+import java.util.HashMap;
+
+import info.freelibrary.sodbox.Storage;
+import info.freelibrary.sodbox.StorageError;
+
+/**
+ * Read-only view of the committed state of the storage. Objects are loaded using the image of the object index of
+ * that state: the index pages overwritten by the following commits are saved by the storage before being changed,
+ * and the locations of the object versions freed by those commits are not reused until the snapshot is closed. So
+ * readers of the snapshot don't block and are not blocked by the transactions of the storage.
+ */
+class SnapshotStorageImpl extends StorageImpl {
+
+    final StorageImpl myStorage;
+
+    final long myIndex; // position of the object index of the committed state
+
+    final byte[][] myIndexPages; // saved images of the object index pages, null if page was not changed
+
+    final int myRootOid;
+
+    private final HashMap<Integer, ClassDescriptor> myClassDescriptors = new HashMap<>();
+
+    SnapshotStorageImpl(final StorageImpl aStorage, final long aIndex, final int aIndexUsed, final int aRootOid) {
+        myStorage = aStorage;
+        myIndex = aIndex;
+        myIndexPages = new byte[(int) ((aIndexUsed * 8L + Page.PAGE_SIZE - 1) >>> Page.PAGE_SIZE_LOG)][];
+        myRootOid = aRootOid;
+        myTransactionId = aStorage.myTransactionId;
+        myCurrentIndexSize = aIndexUsed;
+        myCommittedIndexSize = aIndexUsed;
+
+        myPool = aStorage.myPool;
+        myCacheKind = aStorage.myCacheKind;
+        myObjectCacheInitSize = aStorage.myObjectCacheInitSize;
+        myObjectCache = createObjectCache(myCacheKind, DEFAULT_PAGE_POOL_SIZE, myObjectCacheInitSize);
+        myObjMap = new ObjectMap(myObjectCacheInitSize);
+        myClassDescriptorMap = new HashMap<>(aStorage.myClassDescriptorMap);
+        myClassDescriptor = aStorage.myClassDescriptor;
+        myRecursiveLoadingPolicy = new HashMap<>(aStorage.myRecursiveLoadingPolicy);
+        myRecursiveLoadingPolicyDefined = aStorage.myRecursiveLoadingPolicyDefined;
+        mySerializer = aStorage.mySerializer;
+        myLoader = aStorage.myLoader;
+        myLoaderMap = aStorage.myLoaderMap;
+        myEncoding = aStorage.myEncoding;
+        myCompatibilityMode = aStorage.myCompatibilityMode;
+        myAlternativeBtree = aStorage.myAlternativeBtree;
+        myConcurrentIterator = aStorage.myConcurrentIterator;
+        mySerializeSystemCollections = aStorage.mySerializeSystemCollections;
+        myProperties = aStorage.myProperties;
+        myReadOnly = true;
+
+        for (final ClassDescriptor descriptor : myClassDescriptorMap.values()) {
+            myClassDescriptors.put(descriptor.getOid(), descriptor);
+        }
+
+        myOpened = true;
+    }
+
+    /**
+     * Save images of the object index pages in the specified range if they were not saved yet.
+     *
+     * @param aOffset offset in the object index
+     * @param aSize size of the range
+     */
+    void saveIndexPages(final long aOffset, final long aSize) {
+        final long end = Math.min(aOffset + aSize, (long) myIndexPages.length << Page.PAGE_SIZE_LOG);
+
+        synchronized (myIndexPages) {
+            for (long offset = aOffset & ~(Page.PAGE_SIZE - 1); offset < end; offset += Page.PAGE_SIZE) {
+                final int pageNo = (int) (offset >>> Page.PAGE_SIZE_LOG);
+
+                if (myIndexPages[pageNo] == null) {
+                    final Page page = myPool.getPage(myIndex + offset);
+
+                    myIndexPages[pageNo] = page.myData.clone();
+                    myPool.unfix(page);
+                }
+            }
+        }
+    }
+
+    @Override
+    long getPosition(final int aOid) {
+        if (!myOpened) {
+            throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+        }
+
+        if (aOid == 0 || aOid >= myCurrentIndexSize) {
+            throw new StorageError(StorageError.INVALID_OID);
+        }
+
+        final int pageNo = aOid >>> DB_HANDLES_PER_PAGE_BITS;
+        final int offset = (aOid & DB_HANDLES_PER_PAGE - 1) << 3;
+
+        synchronized (myIndexPages) {
+            final byte[] image = myIndexPages[pageNo];
+
+            if (image != null) {
+                return Bytes.unpack8(image, offset);
+            }
+
+            // page can't be changed until it is saved, which is done holding the same lock
+            final Page page = myPool.getPage(myIndex + ((long) pageNo << Page.PAGE_SIZE_LOG));
+            final long position = Bytes.unpack8(page.myData, offset);
+
+            myPool.unfix(page);
+
+            return position;
+        }
+    }
+
+    @Override
+    ClassDescriptor findClassDescriptor(final int aOID) {
+        final ClassDescriptor descriptor = myClassDescriptors.get(aOID);
+        return descriptor != null ? descriptor : super.findClassDescriptor(aOID);
+    }
+
+    @Override
+    public synchronized Object getRoot() {
+        if (!myOpened) {
+            throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+        }
+
+        return myRootOid == 0 ? null : lookupObject(myRootOid, null);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!myOpened) {
+                throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+            }
+
+            myOpened = false;
+        }
+
+        myStorage.releaseSnapshot(this);
+        myObjectCache.clear();
+    }
+
+    @Override
+    public void setRoot(final Object aRoot) {
+        throw new StorageError(StorageError.READ_ONLY_DATABASE);
+    }
+
+    @Override
+    public void commit() {
+        throw new StorageError(StorageError.READ_ONLY_DATABASE);
+    }
+
+    @Override
+    public void rollback() {
+        throw new StorageError(StorageError.READ_ONLY_DATABASE);
+    }
+
+    @Override
+    public int makePersistent(final Object aObj) {
+        final int oid = getOid(aObj);
+
+        if (oid == 0 && aObj != null) {
+            throw new StorageError(StorageError.READ_ONLY_DATABASE);
+        }
+
+        return oid;
+    }
+
+    @Override
+    public void modifyObject(final Object aObject) {
+        throw new StorageError(StorageError.READ_ONLY_DATABASE);
+    }
+
+    @Override
+    public void storeObject(final Object aObject) {
+        throw new StorageError(StorageError.READ_ONLY_DATABASE);
+    }
+
+    @Override
+    public void storeFinalizedObject(final Object aObject) {
+        // objects of the snapshot are never modified
+    }
+
+    @Override
+    public void deallocateObject(final Object aObj) {
+        throw new StorageError(StorageError.READ_ONLY_DATABASE);
+    }
+
+    @Override
+    public Storage createSnapshot() {
+        throw new StorageError(StorageError.INVALID_OPERATION, "snapshot");
+    }
+
+    @Override
+    void setDirty() {
+        throw new StorageError(StorageError.READ_ONLY_DATABASE);
+    }
+
+}
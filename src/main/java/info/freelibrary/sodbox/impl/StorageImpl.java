@@ -3,8 +3,11 @@ package info.freelibrary.sodbox.impl;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
@@ -19,11 +22,16 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import info.freelibrary.sodbox.Assert;
+import info.freelibrary.sodbox.BitIndex;
 import info.freelibrary.sodbox.Blob;
 import info.freelibrary.sodbox.CompressedReadWriteFile;
 import info.freelibrary.sodbox.Constants;
@@ -44,6 +52,7 @@ import info.freelibrary.sodbox.IStoreable;
 import info.freelibrary.sodbox.IValue;
 import info.freelibrary.sodbox.Index;
 import info.freelibrary.sodbox.Link;
+import info.freelibrary.sodbox.LockUsage;
 import info.freelibrary.sodbox.MemoryUsage;
 import info.freelibrary.sodbox.MessageCodes;
 import info.freelibrary.sodbox.MultidimensionalComparator;
@@ -66,6 +75,7 @@ import info.freelibrary.sodbox.TimeSeries;
 import info.freelibrary.sodbox.XMLImportException;
 import info.freelibrary.sodbox.fulltext.FullTextIndex;
 import info.freelibrary.sodbox.fulltext.FullTextSearchHelper;
+import info.freelibrary.sodbox.fulltext.SegmentedFullTextIndex;
 import info.freelibrary.util.Logger;
 import info.freelibrary.util.LoggerFactory;
 
@@ -183,6 +193,10 @@ public class StorageImpl implements Storage {
 
     long myAllocatedDelta;
 
+    long myBackupRateLimit; // bytes per second, 0 if backup is not throttled
+
+    int myImportCommitBatch; // objects and indices imported in one transaction, 0 if import is not committed
+
     Object myBackgroundGcMonitor;
 
     Object myBackgroundGcStartMonitor;
@@ -193,7 +207,7 @@ public class StorageImpl implements Storage {
 
     int[] myBlackBitmap; // bitmap of objects marked during GC
 
-    HashMap myClassDescriptorMap;
+    HashMap<Class<?>, ClassDescriptor> myClassDescriptorMap;
 
     CloneNode myCloneList;
 
@@ -221,6 +235,8 @@ public class StorageImpl implements Storage {
 
     IFile myFile;
 
+    SnapshotFile mySnapshotFile; // wrapper of the file used by the page pool to support online backup
+
     boolean myGcActive;
 
     boolean myGcDone;
@@ -257,14 +273,23 @@ public class StorageImpl implements Storage {
 
     Properties myProperties = new Properties();
 
-    HashMap myRecursiveLoadingPolicy;
+    HashMap<Class<?>, Boolean> myRecursiveLoadingPolicy;
 
     boolean myRecursiveLoadingPolicyDefined;
 
     boolean myReplicationAck = false;
 
+    boolean myReplicationCompression = true;
+
+    boolean myReplicationDelta = false;
+
     Location myReservedChain;
 
+    volatile SnapshotStorageImpl[] mySnapshots = new SnapshotStorageImpl[0]; // open snapshots of committed states
+
+    // locations of the object versions visible in the snapshots: position -> {size, id of the transaction}
+    TreeMap<Long, long[]> myPinnedLocations = new TreeMap<>();
+
     long myScheduledCommitTime;
 
     CustomSerializer mySerializer;
@@ -274,16 +299,31 @@ public class StorageImpl implements Storage {
     final ThreadLocal myTransactionContext = new ThreadLocal() {
 
         @Override
-        protected synchronized Object initialValue() {
+        protected Object initialValue() {
             return new ThreadTransactionContext();
         }
     };
 
     long myTransactionId;
 
+    long myOpenTransactionId; // id of the transaction committed when the storage was opened
+
+    final HashMap<Class<?>, LockUsage> myLockUsage = new HashMap<>();
+
+    // field indices maintained by the storage: indexed class -> indices
+    final HashMap<Class<?>, ArrayList<FieldIndex<?>>> myRegisteredIndices = new HashMap<>();
+
+    // class of stored object -> all registered indices applicable to it
+    final HashMap<Class<?>, FieldIndex<?>[]> myRegisteredIndicesCache = new HashMap<>();
+
+    // index updates applied at commit: object -> its images at the last commit and at the last store
+    IdentityHashMap<Object, IndexDelta> myIndexDeltas = new IdentityHashMap<>();
+
     PersistentResource myTransactionLock;
 
-    Object myTransactionMonitor;
+    ReentrantLock myTransactionMonitor;
+
+    Condition myTransactionCommitted; // signalled when the blocked transactions can proceed
 
     long myUsedSize; // total size of allocated objects since the beginning of the session
 
@@ -295,7 +335,7 @@ public class StorageImpl implements Storage {
 
     private CustomAllocator myDefaultAllocator;
 
-    private ObjectMap myObjMap;
+    ObjectMap myObjMap;
 
     static void checkIfFinal(final ClassDescriptor aDescriptor) {
         final Class cls = aDescriptor.myClass;
@@ -327,217 +367,193 @@ public class StorageImpl implements Storage {
 
     @Override
     public void backup(final OutputStream aOutputStream) throws IOException {
-        if (!myOpened) {
-            throw new StorageError(StorageError.STORAGE_NOT_OPENED);
-        }
+        backup(aOutputStream, 0);
+    }
+
+    @Override
+    public long backup(final OutputStream aOutputStream, final long aTransactionId) throws IOException {
+        final Header header = new Header();
+        final RootPage root;
+        final long fileSize;
+        final long indexSize;
+        final boolean allPages;
 
         synchronized (this) {
-            myObjectCache.flush();
-        }
+            if (!myOpened) {
+                throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+            }
 
-        final int current = 1 - myCurrentIndex;
-        final int nObjects = myHeader.myRoot[current].myIndexUsed;
-        final long indexOffs = myHeader.myRoot[current].myIndex;
-        final int nUsedIndexPages = (nObjects + DB_HANDLES_PER_PAGE - 1) / DB_HANDLES_PER_PAGE;
-        final int nIndexPages = (myHeader.myRoot[current].myIndexSize + DB_HANDLES_PER_PAGE - 1) /
-                DB_HANDLES_PER_PAGE;
-        final long[] index = new long[nObjects];
-        final int[] oids = new int[nObjects];
-        long totalRecordsSize = 0;
-        long nPagedObjects = 0;
-        int i;
-        int j;
-        int k;
-        int bitmapExtent = myHeader.myRoot[current].myBitmapExtent;
-
-        if (bitmapExtent == 0) {
-            bitmapExtent = Integer.MAX_VALUE;
-        }
-
-        for (i = 0, j = 0; i < nUsedIndexPages; i++) {
-            final Page pg = myPool.getPage(indexOffs + (long) i * Page.PAGE_SIZE);
-
-            for (k = 0; k < DB_HANDLES_PER_PAGE && j < nObjects; k++, j++) {
-                final long position = Bytes.unpack8(pg.myData, k * 8);
-
-                index[j] = position;
-                oids[j] = j;
-
-                if ((position & DB_FREE_HANDLE_FLAG) == 0) {
-                    if ((position & DB_PAGE_OBJECT_FLAG) != 0) {
-                        nPagedObjects += 1;
-                    } else if (position != 0) {
-                        final int offs = (int) position & Page.PAGE_SIZE - 1;
-                        final Page op = myPool.getPage(position - offs);
-                        int size = ObjectHeader.getSize(op.myData, offs & ~DB_FLAGS_MASK);
-
-                        size = size + DB_ALLOCATION_QUANTUM - 1 & ~(DB_ALLOCATION_QUANTUM - 1);
-                        totalRecordsSize += size;
-                        myPool.unfix(op);
-                    }
-                }
+            if (aTransactionId > myTransactionId) {
+                throw new StorageError(StorageError.INVALID_OPERATION, "backup");
             }
 
-            myPool.unfix(pg);
+            // Commit can't switch roots while this monitor is held, so the committed root is stable here
+            final int current = myCurrentIndex;
+            final RootPage committed = myHeader.myRoot[current];
+
+            root = new RootPage();
+            root.mySize = committed.mySize;
+            root.myUsedSize = committed.myUsedSize;
+            root.myIndex = committed.myIndex;
+            root.myIndexSize = committed.myIndexSize;
+            root.myShadowIndex = committed.myShadowIndex;
+            root.myShadowIndexSize = committed.myShadowIndexSize;
+            root.myIndexUsed = committed.myIndexUsed;
+            root.myFreeList = committed.myFreeList;
+            root.myBitmapEnd = committed.myBitmapEnd;
+            root.myRootObject = committed.myRootObject;
+            root.myClassDescList = committed.myClassDescList;
+            root.myBitmapExtent = committed.myBitmapExtent;
+
+            // The other root describes the shadow index, which the backup fills with a copy of the committed one
+            final RootPage shadow = new RootPage();
+            shadow.mySize = root.mySize;
+            shadow.myUsedSize = root.myUsedSize;
+            shadow.myIndex = root.myShadowIndex;
+            shadow.myIndexSize = root.myShadowIndexSize;
+            shadow.myShadowIndex = root.myIndex;
+            shadow.myShadowIndexSize = root.myIndexSize;
+            shadow.myIndexUsed = root.myIndexUsed;
+            shadow.myFreeList = root.myFreeList;
+            shadow.myBitmapEnd = root.myBitmapEnd;
+            shadow.myRootObject = root.myRootObject;
+            shadow.myClassDescList = root.myClassDescList;
+            shadow.myBitmapExtent = root.myBitmapExtent;
+
+            header.myRoot = new RootPage[2];
+            header.myRoot[current] = root;
+            header.myRoot[1 - current] = shadow;
+            header.myCurrentRoot = current;
+            header.isDirty = false;
+            header.myDatabaseFormatVersion = myHeader.myDatabaseFormatVersion;
+            header.myPageSizeLog = myHeader.myPageSizeLog;
+            header.myTransactionId = myTransactionId;
+
+            fileSize = root.mySize + Page.PAGE_SIZE - 1 & ~(Page.PAGE_SIZE - 1);
+            indexSize = root.myIndexUsed * 8L + Page.PAGE_SIZE - 1 & ~(Page.PAGE_SIZE - 1);
+            allPages = aTransactionId < myOpenTransactionId || myMulticlientSupport;
+
+            if (!mySnapshotFile.beginSnapshot(fileSize, root.myIndex, root.myIndex + indexSize)) {
+                throw new StorageError(StorageError.INVALID_OPERATION, "backup");
+            }
         }
 
-        final Header newHeader = new Header();
-        newHeader.myCurrentRoot = 0;
-        newHeader.isDirty = false;
-        newHeader.myDatabaseFormatVersion = myHeader.myDatabaseFormatVersion;
-
-        long newFileSize = (nPagedObjects + nIndexPages * 2 + 1) * Page.PAGE_SIZE + totalRecordsSize;
-        newFileSize = newFileSize + Page.PAGE_SIZE - 1 & ~(Page.PAGE_SIZE - 1);
-        newHeader.myRoot = new RootPage[2];
-        newHeader.myRoot[0] = new RootPage();
-        newHeader.myRoot[1] = new RootPage();
-        newHeader.myRoot[0].mySize = newHeader.myRoot[1].mySize = newFileSize;
-        newHeader.myRoot[0].myIndex = newHeader.myRoot[1].myShadowIndex = Page.PAGE_SIZE;
-        newHeader.myRoot[0].myShadowIndex = newHeader.myRoot[1].myIndex = Page.PAGE_SIZE + (long) nIndexPages *
-                Page.PAGE_SIZE;
-        newHeader.myRoot[0].myShadowIndexSize = newHeader.myRoot[0].myIndexSize =
-                newHeader.myRoot[1].myShadowIndexSize = newHeader.myRoot[1].myIndexSize = nIndexPages *
-                        DB_HANDLES_PER_PAGE;
-        newHeader.myRoot[0].myIndexUsed = newHeader.myRoot[1].myIndexUsed = nObjects;
-        newHeader.myRoot[0].myFreeList = newHeader.myRoot[1].myFreeList = myHeader.myRoot[current].myFreeList;
-        newHeader.myRoot[0].myBitmapEnd = newHeader.myRoot[1].myBitmapEnd = myHeader.myRoot[current].myBitmapEnd;
-
-        newHeader.myRoot[0].myRootObject = newHeader.myRoot[1].myRootObject = myHeader.myRoot[current].myRootObject;
-        newHeader.myRoot[0].myClassDescList = newHeader.myRoot[1].myClassDescList =
-                myHeader.myRoot[current].myClassDescList;
-        newHeader.myRoot[0].myBitmapExtent = newHeader.myRoot[1].myBitmapExtent =
-                myHeader.myRoot[current].myBitmapExtent;
-
-        final byte[] page = new byte[Page.PAGE_SIZE];
-        newHeader.pack(page);
-        aOutputStream.write(page);
-
-        long pageOffs = (long) (nIndexPages * 2 + 1) * Page.PAGE_SIZE;
-        long recOffs = (nPagedObjects + nIndexPages * 2 + 1) * Page.PAGE_SIZE;
-
-        GenericSort.sort(new GenericSortArray() {
-
-            @Override
-            public int compare(final int aIndex, final int aJndex) {
-                return index[aIndex] < index[aJndex] ? -1 : index[aIndex] == index[aJndex] ? 0 : 1;
-            }
-
-            @Override
-            public int size() {
-                return nObjects;
-            }
-
-            @Override
-            public void swap(final int aIndex, final int aJndex) {
-                final long position = index[aIndex];
-                final int oid = oids[aIndex];
-
-                index[aIndex] = index[aJndex];
-                index[aJndex] = position;
-
-                oids[aIndex] = oids[aJndex];
-                oids[aJndex] = oid;
-            }
-        });
-
-        final byte[] newIndex = new byte[nIndexPages * DB_HANDLES_PER_PAGE * 8];
-
-        for (i = 0; i < nObjects; i++) {
-            final long pos = index[i];
-            final int oid = oids[i];
-
-            if ((pos & DB_FREE_HANDLE_FLAG) == 0) {
-                if ((pos & DB_PAGE_OBJECT_FLAG) != 0) {
-                    Bytes.pack8(newIndex, oid * 8, pageOffs | DB_PAGE_OBJECT_FLAG);
-                    pageOffs += Page.PAGE_SIZE;
-                } else if (pos != 0) {
-                    Bytes.pack8(newIndex, oid * 8, recOffs);
-                    final int offs = (int) pos & Page.PAGE_SIZE - 1;
-                    final Page op = myPool.getPage(pos - offs);
-                    int size = ObjectHeader.getSize(op.myData, offs & ~DB_FLAGS_MASK);
-
-                    size = size + DB_ALLOCATION_QUANTUM - 1 & ~(DB_ALLOCATION_QUANTUM - 1);
-                    recOffs += size;
-                    myPool.unfix(op);
-                }
+        try {
+            final DataOutputStream outputStream = new DataOutputStream(aOutputStream);
+            final byte[] page = new byte[Page.PAGE_SIZE];
+            final long startTime = System.currentTimeMillis();
+            long written = 0;
+
+            header.pack(page);
+
+            if (aTransactionId == 0) {
+                outputStream.write(page);
             } else {
-                Bytes.pack8(newIndex, oid * 8, pos);
+                outputStream.writeLong(aTransactionId);
             }
-        }
-
-        aOutputStream.write(newIndex);
-        aOutputStream.write(newIndex);
 
-        for (i = 0; i < nObjects; i++) {
-            final long pos = index[i];
+            for (long position = Page.PAGE_SIZE; position < fileSize; position += Page.PAGE_SIZE) {
+                long source = position;
+                long pair = -1;
 
-            if (((int) pos & (DB_FREE_HANDLE_FLAG | DB_PAGE_OBJECT_FLAG)) == DB_PAGE_OBJECT_FLAG) {
-                if (oids[i] < DB_BITMAP_ID + DB_BITMAP_PAGES || oids[i] >= bitmapExtent && oids[i] < bitmapExtent +
-                        DB_LARGE_BITMAP_PAGES - DB_BITMAP_PAGES) {
-                    final int pageId = oids[i] < DB_BITMAP_ID + DB_BITMAP_PAGES ? oids[i] - DB_BITMAP_ID : oids[i] -
-                            bitmapExtent + myBitmapExtentBase;
-                    final long mappedSpace = (long) pageId * Page.PAGE_SIZE * 8 * DB_ALLOCATION_QUANTUM;
+                if (position >= root.myShadowIndex && position < root.myShadowIndex + indexSize) {
+                    source = root.myIndex + position - root.myShadowIndex;
+                    pair = source;
+                } else if (position >= root.myIndex && position < root.myIndex + indexSize) {
+                    pair = root.myShadowIndex + position - root.myIndex;
+                }
 
-                    if (mappedSpace >= newFileSize) {
-                        Arrays.fill(page, (byte) 0);
-                    } else if (mappedSpace + Page.PAGE_SIZE * 8 * DB_ALLOCATION_QUANTUM <= newFileSize) {
-                        Arrays.fill(page, (byte) -1);
-                    } else {
-                        final int nBits = (int) (newFileSize - mappedSpace >> DB_ALLOCATION_QUANTUM_BITS);
-                        Arrays.fill(page, 0, nBits >> 3, (byte) -1);
-                        page[nBits >> 3] = (byte) ((1 << (nBits & 7)) - 1);
-                        Arrays.fill(page, (nBits >> 3) + 1, Page.PAGE_SIZE, (byte) 0);
+                if (aTransactionId != 0) {
+                    if (!allPages && !mySnapshotFile.isModifiedSince(position, aTransactionId) && (pair < 0 ||
+                            !mySnapshotFile.isModifiedSince(pair, aTransactionId))) {
+                        continue;
                     }
 
-                    aOutputStream.write(page);
-                } else {
-                    final Page pg = myPool.getPage(pos & ~DB_FLAGS_MASK);
-                    aOutputStream.write(pg.myData);
-                    myPool.unfix(pg);
+                    outputStream.writeLong(position);
                 }
+
+                mySnapshotFile.readSnapshotPage(source, page);
+                outputStream.write(page);
+                written += Page.PAGE_SIZE;
+                throttle(startTime, written);
             }
+
+            // Incremental backup ends with the header, so restore() overwrites it only after all the pages
+            if (aTransactionId != 0) {
+                Arrays.fill(page, (byte) 0);
+                header.pack(page);
+                outputStream.writeLong(0);
+                outputStream.write(page);
+            }
+
+            outputStream.flush();
+        } finally {
+            mySnapshotFile.endSnapshot();
         }
 
-        for (i = 0; i < nObjects; i++) {
-            long pos = index[i];
+        return header.myTransactionId;
+    }
 
-            if (pos != 0 && ((int) pos & (DB_FREE_HANDLE_FLAG | DB_PAGE_OBJECT_FLAG)) == 0) {
-                pos &= ~DB_FLAGS_MASK;
-                int offs = (int) pos & Page.PAGE_SIZE - 1;
-                Page pg = myPool.getPage(pos - offs);
-                int size = ObjectHeader.getSize(pg.myData, offs);
-                size = size + DB_ALLOCATION_QUANTUM - 1 & ~(DB_ALLOCATION_QUANTUM - 1);
+    @Override
+    public void backup(final String aFilePath, final String aCryptKey) throws IOException {
+        try (OutputStream outputStream = new IFileOutputStream(aCryptKey != null ? openCipherFile(aFilePath, false,
+                false, aCryptKey) : (IFile) new OSFile(aFilePath, false, false))) {
+            backup(outputStream);
+        }
+    }
 
-                while (true) {
-                    if (Page.PAGE_SIZE - offs >= size) {
-                        aOutputStream.write(pg.myData, offs, size);
-                        break;
-                    }
+    @Override
+    public void restore(final String aFilePath, final String aCryptKey, final InputStream aIncrementalBackup)
+            throws IOException {
+        if (myOpened) {
+            throw new StorageError(StorageError.STORAGE_ALREADY_OPENED);
+        }
 
-                    aOutputStream.write(pg.myData, offs, Page.PAGE_SIZE - offs);
-                    size -= Page.PAGE_SIZE - offs;
-                    pos += Page.PAGE_SIZE - offs;
-                    offs = 0;
-                    myPool.unfix(pg);
-                    pg = myPool.getPage(pos);
-                }
+        final IFile file = aCryptKey != null ? openCipherFile(aFilePath, false, myNoFlush, aCryptKey)
+                : (IFile) new OSFile(aFilePath, false, myNoFlush);
 
-                myPool.unfix(pg);
+        try {
+            final DataInputStream inputStream = new DataInputStream(aIncrementalBackup);
+            final byte[] page = new byte[Page.PAGE_SIZE];
+            final Header header = new Header();
+            final long transactionId = inputStream.readLong();
+            long position;
+
+            file.read(0, page);
+            header.unpack(page);
+
+            if (header.myTransactionId != transactionId) {
+                throw new StorageError(StorageError.INVALID_OPERATION, LOGGER.getMessage(MessageCodes.SB_046,
+                        transactionId, header.myTransactionId));
+            }
+
+            while ((position = inputStream.readLong()) != 0) {
+                inputStream.readFully(page);
+                file.write(position, page);
             }
-        }
 
-        if (recOffs != newFileSize) {
-            Assert.that(newFileSize - recOffs < Page.PAGE_SIZE);
-            final int align = (int) (newFileSize - recOffs);
-            Arrays.fill(page, 0, align, (byte) 0);
-            aOutputStream.write(page, 0, align);
+            inputStream.readFully(page);
+            file.sync();
+            file.write(0, page);
+            file.sync();
+        } finally {
+            file.close();
         }
     }
 
-    @Override
-    public void backup(final String aFilePath, final String aCryptKey) throws IOException {
-        backup(new IFileOutputStream(aCryptKey != null ? (IFile) new Rc4File(aFilePath, false, false, aCryptKey)
-                : (IFile) new OSFile(aFilePath, false, false)));
+    private void throttle(final long aStartTime, final long aBytesWritten) throws IOException {
+        if (myBackupRateLimit > 0) {
+            final long delay = aBytesWritten * 1000 / myBackupRateLimit - (System.currentTimeMillis() - aStartTime);
+
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (final InterruptedException details) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
     }
 
     @Override
@@ -585,6 +601,17 @@ public class StorageImpl implements Storage {
             myOpened = false;
         }
 
+        synchronized (myObjectCache) {
+            for (final SnapshotStorageImpl snapshot : mySnapshots) {
+                snapshot.myOpened = false;
+            }
+
+            mySnapshots = new SnapshotStorageImpl[0];
+            myPinnedLocations.clear();
+            myRegisteredIndices.clear();
+            myRegisteredIndicesCache.clear();
+        }
+
         if (myGcThread != null) {
             myGcThread.activate();
 
@@ -636,6 +663,7 @@ public class StorageImpl implements Storage {
                 }
 
                 myObjectCache.flush();
+                applyIndexDeltas();
 
                 if (myCustomAllocatorList != null) {
                     final Iterator iterator = myCustomAllocatorList.iterator();
@@ -747,6 +775,12 @@ public class StorageImpl implements Storage {
         return new FullTextIndexImpl(this, aHelper);
     }
 
+    @Override
+    public SegmentedFullTextIndex createSegmentedFullTextIndex(final FullTextSearchHelper aHelper,
+            final int aBufferSize) {
+        return new SegmentedFullTextIndexImpl(this, aHelper, aBufferSize);
+    }
+
     @Override
     public <K, V> IPersistentHash<K, V> createHash() {
         return createHash(101, 2);
@@ -761,6 +795,20 @@ public class StorageImpl implements Storage {
         return new PersistentHashImpl<>(this, aPageSize, aLoadFactor);
     }
 
+    @Override
+    public <K, V> IPersistentHash<K, V> createExtendibleHash() {
+        return createExtendibleHash(128);
+    }
+
+    @Override
+    public <K, V> IPersistentHash<K, V> createExtendibleHash(final int aBucketSize) {
+        if (!myOpened) {
+            throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+        }
+
+        return new ExtendibleHashImpl<>(this, aBucketSize);
+    }
+
     @Override
     public synchronized <T> Index<T> createIndex(final Class aKeyType, final boolean aUniqueKeyIndex) {
         final Index<T> index;
@@ -841,6 +889,26 @@ public class StorageImpl implements Storage {
         return new KDTree<>(this, aComparator);
     }
 
+    @Override
+    public synchronized <T> MultidimensionalIndex<T> createMultidimensionalIndex(final Class<?> aType,
+            final String[] aFieldNames, final boolean aTreatZeroAsUndefinedValueFlag, final int aBucketSize) {
+        if (!myOpened) {
+            throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+        }
+
+        return new KDTree<>(this, aType, aFieldNames, aTreatZeroAsUndefinedValueFlag, aBucketSize);
+    }
+
+    @Override
+    public synchronized <T> MultidimensionalIndex<T> createMultidimensionalIndex(
+            final MultidimensionalComparator<T> aComparator, final int aBucketSize) {
+        if (!myOpened) {
+            throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+        }
+
+        return new KDTree<>(this, aComparator, aBucketSize);
+    }
+
     @Override
     public <T> PatriciaTrie<T> createPatriciaTrie() {
         return new PTrie<>();
@@ -971,6 +1039,32 @@ public class StorageImpl implements Storage {
         return set;
     }
 
+    @Override
+    public synchronized Storage createSnapshot() {
+        if (!myOpened) {
+            throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+        }
+
+        if (myMulticlientSupport) {
+            // other processes don't know about the snapshot and may reuse its pages
+            throw new StorageError(StorageError.INVALID_OPERATION, "snapshot");
+        }
+
+        // Commit can't switch roots while this monitor is held, so the committed root is stable here
+        final RootPage committed = myHeader.myRoot[myCurrentIndex];
+        final SnapshotStorageImpl snapshot = new SnapshotStorageImpl(this, committed.myIndex, myCommittedIndexSize,
+                committed.myRootObject);
+
+        synchronized (myObjectCache) {
+            final SnapshotStorageImpl[] snapshots = Arrays.copyOf(mySnapshots, mySnapshots.length + 1);
+
+            snapshots[mySnapshots.length] = snapshot;
+            mySnapshots = snapshots;
+        }
+
+        return snapshot;
+    }
+
     /**
      * Create a sorted collection.
      *
@@ -1022,6 +1116,15 @@ public class StorageImpl implements Storage {
         return new ThickIndex<>(this, aKeyType);
     }
 
+    @Override
+    public synchronized <T> BitIndex<T> createBitIndex() {
+        if (!myOpened) {
+            throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+        }
+
+        return new BitIndexImpl<>(this);
+    }
+
     @Override
     public <T extends TimeSeries.Tick> TimeSeries<T> createTimeSeries(final Class aBlockClass,
             final long aMaxBlockTimeInterval) {
@@ -1086,7 +1189,9 @@ public class StorageImpl implements Storage {
                 throw new IllegalArgumentException(LOGGER.getMessage(MessageCodes.SB_029));
             }
 
-            synchronized (myTransactionMonitor) {
+            myTransactionMonitor.lock();
+
+            try {
                 myTransactionLock.unlock();
 
                 if (myNumOfNestedTransactions != 0) {
@@ -1099,6 +1204,8 @@ public class StorageImpl implements Storage {
 
                     myNumOfNestedTransactions -= 1;
                 }
+            } finally {
+                myTransactionMonitor.unlock();
             }
 
             return;
@@ -1145,7 +1252,9 @@ public class StorageImpl implements Storage {
         } else {
             LOGGER.debug(MessageCodes.SB_035); // exclusive or cooperative transaction
 
-            synchronized (myTransactionMonitor) {
+            myTransactionMonitor.lock();
+
+            try {
                 myTransactionLock.unlock();
 
                 if (myNumOfNestedTransactions != 0) {
@@ -1155,7 +1264,7 @@ public class StorageImpl implements Storage {
                         myScheduledCommitTime = Long.MAX_VALUE;
 
                         if (myNumOfBlockedTransactions != 0) {
-                            myTransactionMonitor.notifyAll();
+                            myTransactionCommitted.signalAll();
                         }
                     } else {
                         if (aMaxDelay != Integer.MAX_VALUE) {
@@ -1172,7 +1281,7 @@ public class StorageImpl implements Storage {
 
                                 do {
                                     try {
-                                        myTransactionMonitor.wait();
+                                        myTransactionCommitted.await();
                                     } catch (final InterruptedException details) {
                                         LOGGER.warn(details.getMessage(), details);
                                     }
@@ -1183,6 +1292,8 @@ public class StorageImpl implements Storage {
                         }
                     }
                 }
+            } finally {
+                myTransactionMonitor.unlock();
             }
         }
     }
@@ -1238,7 +1349,7 @@ public class StorageImpl implements Storage {
     }
 
     @Override
-    public synchronized HashMap getMemoryDump() {
+    public synchronized HashMap<Class, MemoryUsage> getMemoryDump() {
         synchronized (myObjectCache) {
             if (!myOpened) {
                 throw new StorageError(StorageError.STORAGE_NOT_OPENED);
@@ -1256,7 +1367,7 @@ public class StorageImpl implements Storage {
             myBlackBitmap = new int[size];
 
             final int rootOid = myHeader.myRoot[myCurrentIndex].myRootObject;
-            final HashMap map = new HashMap();
+            final HashMap<Class, MemoryUsage> map = new HashMap<>();
 
             if (rootOid != 0) {
                 final MemoryUsage indexUsage = new MemoryUsage(Index.class);
@@ -1292,7 +1403,8 @@ public class StorageImpl implements Storage {
                                         final ClassDescriptor descriptor = findClassDescriptor(typeOid);
 
                                         if (Btree.class.isAssignableFrom(descriptor.myClass)) {
-                                            final Btree btree = new Btree(page.myData, ObjectHeader.SIZE_OF + offset);
+                                            final Btree btree = new Btree(page.myData, ObjectHeader.SIZE_OF + offset,
+                                                    getDatabaseFormatVersion());
                                             final int pageCount;
 
                                             btree.assignOid(this, 0, false);
@@ -1311,7 +1423,7 @@ public class StorageImpl implements Storage {
                                                         alignedSize;
                                             }
                                         } else {
-                                            MemoryUsage usage = (MemoryUsage) map.get(descriptor.myClass);
+                                            MemoryUsage usage = map.get(descriptor.myClass);
 
                                             if (usage == null) {
                                                 usage = new MemoryUsage(descriptor.myClass);
@@ -1426,7 +1538,7 @@ public class StorageImpl implements Storage {
     }
 
     @Override
-    public synchronized void importXML(final Reader aReader) throws XMLImportException {
+    public void importXML(final Reader aReader) throws XMLImportException {
         if (!myOpened) {
             throw new StorageError(StorageError.STORAGE_NOT_OPENED);
         }
@@ -1517,6 +1629,87 @@ public class StorageImpl implements Storage {
         return true;
     }
 
+    @Override
+    public void lockWaitCompleted(final Object aObject, final long aWaitTime, final boolean aDeadlock) {
+        synchronized (myLockUsage) {
+            LockUsage usage = myLockUsage.get(aObject.getClass());
+
+            if (usage == null) {
+                usage = new LockUsage(aObject.getClass());
+                myLockUsage.put(aObject.getClass(), usage);
+            }
+
+            usage.addWait(aWaitTime, aDeadlock);
+        }
+    }
+
+    @Override
+    public HashMap<Class<?>, LockUsage> getLockUsage() {
+        final HashMap<Class<?>, LockUsage> result = new HashMap<>();
+
+        synchronized (myLockUsage) {
+            for (final LockUsage usage : myLockUsage.values()) {
+                final LockUsage copy = new LockUsage(usage.myClass);
+
+                copy.myWaitCount = usage.myWaitCount;
+                copy.myTotalWaitTime = usage.myTotalWaitTime;
+                copy.myMaxWaitTime = usage.myMaxWaitTime;
+                copy.myDeadlockCount = usage.myDeadlockCount;
+                copy.myWaitHistogram = usage.myWaitHistogram.clone();
+                result.put(usage.myClass, copy);
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public synchronized void registerIndex(final FieldIndex<?> aIndex) {
+        if (!myOpened) {
+            throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+        }
+
+        if (!(aIndex instanceof StoredKeyIndex)) {
+            throw new StorageError(StorageError.UNSUPPORTED_INDEX_TYPE);
+        }
+
+        // key fields of the index are resolved when it is loaded
+        aIndex.load();
+
+        synchronized (myObjectCache) {
+            ArrayList<FieldIndex<?>> indices = myRegisteredIndices.get(aIndex.getIndexedClass());
+
+            if (indices == null) {
+                indices = new ArrayList<>();
+                myRegisteredIndices.put(aIndex.getIndexedClass(), indices);
+            }
+
+            if (!indices.contains(aIndex)) {
+                indices.add(aIndex);
+                myRegisteredIndicesCache.clear();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void unregisterIndex(final FieldIndex<?> aIndex) {
+        if (!myOpened) {
+            throw new StorageError(StorageError.STORAGE_NOT_OPENED);
+        }
+
+        synchronized (myObjectCache) {
+            final ArrayList<FieldIndex<?>> indices = myRegisteredIndices.get(aIndex.getIndexedClass());
+
+            if (indices != null && indices.remove(aIndex)) {
+                if (indices.isEmpty()) {
+                    myRegisteredIndices.remove(aIndex.getIndexedClass());
+                }
+
+                myRegisteredIndicesCache.clear();
+            }
+        }
+    }
+
     @Override
     public synchronized int makePersistent(final Object aObj) {
         if (!myOpened) {
@@ -1665,8 +1858,9 @@ public class StorageImpl implements Storage {
 
         final byte[] buffer = new byte[Header.SIZE_OF];
         final int readCount = aFile.read(0, buffer);
-        final int corruptionError = aFile instanceof Rc4File || aFile instanceof CompressedReadWriteFile
-                ? StorageError.WRONG_CIPHER_KEY : StorageError.DATABASE_CORRUPTED;
+        final int corruptionError = aFile instanceof Rc4File || aFile instanceof AesFile ||
+                aFile instanceof CompressedReadWriteFile ? StorageError.WRONG_CIPHER_KEY
+                        : StorageError.DATABASE_CORRUPTED;
 
         if (readCount > 0 && readCount < Header.SIZE_OF) {
             throw new StorageError(corruptionError);
@@ -1679,6 +1873,7 @@ public class StorageImpl implements Storage {
         }
 
         myTransactionId = myHeader.myTransactionId;
+        myOpenTransactionId = myTransactionId;
 
         if (myHeader.myDatabaseFormatVersion == 0) { // database not initialized
             if (myReadOnly) {
@@ -1769,11 +1964,17 @@ public class StorageImpl implements Storage {
             myPool.flush();
             myPool.modify(page);
             myHeader.myDatabaseFormatVersion = DB_DATABASE_FORMAT_VERSION;
+            myHeader.myPageSizeLog = (byte) Page.PAGE_SIZE_LOG;
             myHeader.pack(page.myData);
             myPool.unfix(page);
             myPool.flush();
         } else {
             final int current = myHeader.myCurrentRoot;
+            final int pageSizeLog = myHeader.myPageSizeLog == 0 ? Page.DEFAULT_PAGE_SIZE_LOG : myHeader.myPageSizeLog;
+
+            if (pageSizeLog != Page.PAGE_SIZE_LOG) {
+                throw new StorageError(StorageError.INCOMPATIBLE_PAGE_SIZE, Integer.toString(1 << pageSizeLog));
+            }
 
             myCurrentIndex = current;
 
@@ -1868,7 +2069,7 @@ public class StorageImpl implements Storage {
 
     @Override
     public synchronized void open(final String aFilePath, final long aPagePoolSize, final String aCryptKey) {
-        final Rc4File file = new Rc4File(aFilePath, myReadOnly, myNoFlush, aCryptKey);
+        final IFile file = openCipherFile(aFilePath, myReadOnly, myNoFlush, aCryptKey);
 
         try {
             open(file, aPagePoolSize);
@@ -1878,6 +2079,19 @@ public class StorageImpl implements Storage {
         }
     }
 
+    /**
+     * Opens encrypted file: new files are encrypted with AES, files created by previous versions are still opened
+     * with RC4 cipher (use <code>AesFile.migrate</code> to convert them).
+     */
+    private static IFile openCipherFile(final String aFilePath, final boolean aReadOnly, final boolean aNoFlush,
+            final String aCryptKey) {
+        if (AesFile.isAesFile(aFilePath)) {
+            return new AesFile(aFilePath, aReadOnly, aNoFlush, aCryptKey);
+        }
+
+        return new Rc4File(aFilePath, aReadOnly, aNoFlush, aCryptKey);
+    }
+
     @Override
     public void registerClassLoader(final INamedClassLoader aClassLoader) {
         if (myLoaderMap == null) {
@@ -1920,6 +2134,8 @@ public class StorageImpl implements Storage {
         myObjectCache.invalidate();
 
         synchronized (myObjectCache) {
+            myIndexDeltas.clear();
+
             if (!myModified) {
                 return;
             }
@@ -1932,6 +2148,10 @@ public class StorageImpl implements Storage {
             } else {
                 myObjectCache.clear();
             }
+
+            if (!myRegisteredIndices.isEmpty()) {
+                reloadRegisteredIndices();
+            }
         }
     }
 
@@ -2030,6 +2250,14 @@ public class StorageImpl implements Storage {
             myAlternativeBtree = getBooleanValue(value);
         }
 
+        if ((value = aProperties.getProperty(Constants.BACKUP_RATE_LIMIT)) != null) {
+            myBackupRateLimit = getIntegerValue(value);
+        }
+
+        if ((value = aProperties.getProperty(Constants.IMPORT_COMMIT_BATCH)) != null) {
+            myImportCommitBatch = (int) getIntegerValue(value);
+        }
+
         if ((value = aProperties.getProperty(Constants.BACKGROUND_GC)) != null) {
             myBackgroundGc = getBooleanValue(value);
         }
@@ -2046,6 +2274,14 @@ public class StorageImpl implements Storage {
             myReplicationAck = getBooleanValue(value);
         }
 
+        if ((value = aProperties.getProperty(Constants.REPLICATION_COMPRESSION)) != null) {
+            myReplicationCompression = getBooleanValue(value);
+        }
+
+        if ((value = aProperties.getProperty(Constants.REPLICATION_DELTA)) != null) {
+            myReplicationDelta = getBooleanValue(value);
+        }
+
         if ((value = aProperties.getProperty(Constants.CONCURRENT_ITERATOR)) != null) {
             myConcurrentIterator = getBooleanValue(value);
         }
@@ -2082,6 +2318,10 @@ public class StorageImpl implements Storage {
             myCompatibilityMode = (int) getIntegerValue(value);
         }
 
+        if ((value = aProperties.getProperty(Constants.PAGE_SIZE)) != null) {
+            checkPageSize(value);
+        }
+
         if (myMulticlientSupport && myBackgroundGc) {
             throw new IllegalArgumentException("In mutliclient access mode bachround GC is not supported");
         }
@@ -2117,12 +2357,20 @@ public class StorageImpl implements Storage {
             myAlternativeBtree = getBooleanValue(aValue);
         } else if (aName.equals(Constants.BACKGROUND_GC)) {
             myBackgroundGc = getBooleanValue(aValue);
+        } else if (aName.equals(Constants.BACKUP_RATE_LIMIT)) {
+            myBackupRateLimit = getIntegerValue(aValue);
+        } else if (aName.equals(Constants.IMPORT_COMMIT_BATCH)) {
+            myImportCommitBatch = (int) getIntegerValue(aValue);
         } else if (aName.equals(Constants.STRING_ENCODING)) {
             myEncoding = aValue == null ? null : aValue.toString();
         } else if (aName.equals(Constants.LOCK_FILE)) {
             myLockFile = getBooleanValue(aValue);
         } else if (aName.equals(Constants.REPLICATION_ACK)) {
             myReplicationAck = getBooleanValue(aValue);
+        } else if (aName.equals(Constants.REPLICATION_COMPRESSION)) {
+            myReplicationCompression = getBooleanValue(aValue);
+        } else if (aName.equals(Constants.REPLICATION_DELTA)) {
+            myReplicationDelta = getBooleanValue(aValue);
         } else if (aName.equals(Constants.CONCURRENT_ITERATOR)) {
             myConcurrentIterator = getBooleanValue(aValue);
         } else if (aName.equals(Constants.SLAVE_CONNECTION_TIMEOUT)) {
@@ -2141,6 +2389,8 @@ public class StorageImpl implements Storage {
             myCompatibilityMode = (int) getIntegerValue(aValue);
         } else if (aName.equals(Constants.SERIALIZE_SYSTEM_COLLECTIONS)) {
             mySerializeSystemCollections = getBooleanValue(aValue);
+        } else if (aName.equals(Constants.PAGE_SIZE)) {
+            checkPageSize(aValue);
         }
 
         if (myMulticlientSupport && myBackgroundGc) {
@@ -2189,7 +2439,11 @@ public class StorageImpl implements Storage {
     public ThreadTransactionContext setTransactionContext(final ThreadTransactionContext aContext) {
         final ThreadTransactionContext oldContext = (ThreadTransactionContext) myTransactionContext.get();
 
-        myTransactionContext.set(aContext);
+        if (aContext != null) {
+            myTransactionContext.set(aContext);
+        } else {
+            myTransactionContext.remove();
+        }
 
         return oldContext;
     }
@@ -2293,6 +2547,8 @@ public class StorageImpl implements Storage {
         myAllocatedDelta = 0;
 
         myReservedChain = null;
+        mySnapshots = new SnapshotStorageImpl[0];
+        myPinnedLocations = new TreeMap<>();
         myCloneList = null;
         myInsideCloneBitmap = false;
 
@@ -2300,7 +2556,8 @@ public class StorageImpl implements Storage {
         myNumOfBlockedTransactions = 0;
         myNumOfCommittedTransactions = 0;
         myScheduledCommitTime = Long.MAX_VALUE;
-        myTransactionMonitor = new Object();
+        myTransactionMonitor = new ReentrantLock();
+        myTransactionCommitted = myTransactionMonitor.newCondition();
         myTransactionLock = new PersistentResource();
 
         myModified = false;
@@ -2308,15 +2565,16 @@ public class StorageImpl implements Storage {
         myObjectCache = createObjectCache(myCacheKind, aPagePoolSize, myObjectCacheInitSize);
         myObjMap = new ObjectMap(myObjectCacheInitSize);
 
-        myClassDescriptorMap = new HashMap();
+        myClassDescriptorMap = new HashMap<>();
         myClassDescriptor = null;
 
-        myRecursiveLoadingPolicy = new HashMap();
+        myRecursiveLoadingPolicy = new HashMap<>();
         myRecursiveLoadingPolicyDefined = false;
 
         myHeader = new Header();
+        mySnapshotFile = new SnapshotFile(this, aFile);
         myPool = new PagePool((int) (aPagePoolSize / Page.PAGE_SIZE), myPagePoolLruLimit);
-        myPool.open(aFile);
+        myPool.open(mySnapshotFile);
     }
 
     protected boolean isDirty() {
@@ -2842,6 +3100,7 @@ public class StorageImpl implements Storage {
                     myPool.copy(newIndex, oldIndex, myCurrentIndexSize * 8L);
                     myHeader.myRoot[curr].myIndex = newIndex;
                     myHeader.myRoot[curr].myIndexSize = newIndexSize;
+                    preserveIndex(oldIndex, 0, oldIndexSize * 8L);
                     free(oldIndex, oldIndexSize * 8L);
                 } else {
                     // index was already reallocated
@@ -2983,7 +3242,7 @@ public class StorageImpl implements Storage {
         return (ClassDescriptor) myClassDescriptorMap.get(aClass);
     }
 
-    final ClassDescriptor findClassDescriptor(final int aOID) {
+    ClassDescriptor findClassDescriptor(final int aOID) {
         return (ClassDescriptor) lookupObject(aOID, ClassDescriptor.class);
     }
 
@@ -3140,7 +3399,7 @@ public class StorageImpl implements Storage {
         return myPool.getPage(position & ~DB_FLAGS_MASK);
     }
 
-    final long getPosition(final int aOid) {
+    long getPosition(final int aOid) {
         synchronized (myObjectCache) {
             if (aOid == 0 || aOid >= myCurrentIndexSize) {
                 throw new StorageError(StorageError.INVALID_OID);
@@ -4086,6 +4345,21 @@ public class StorageImpl implements Storage {
         return offset;
     }
 
+    /**
+     * Save images of the object index pages which are going to be changed for the snapshots using this index.
+     *
+     * @param aIndex position of the object index
+     * @param aOffset offset of the changed range in the index
+     * @param aSize size of the changed range
+     */
+    final void preserveIndex(final long aIndex, final long aOffset, final long aSize) {
+        for (final SnapshotStorageImpl snapshot : mySnapshots) {
+            if (snapshot.myIndex == aIndex) {
+                snapshot.saveIndexPages(aOffset, aSize);
+            }
+        }
+    }
+
     final Page putBitmapPage(final int aIndex) {
         return putPage(getBitmapPageId(aIndex));
     }
@@ -4140,6 +4414,60 @@ public class StorageImpl implements Storage {
         myModified = true;
     }
 
+    /**
+     * Close the snapshot and allow reuse of the object locations which are not visible in the other snapshots.
+     *
+     * @param aSnapshot closed snapshot
+     */
+    final void releaseSnapshot(final SnapshotStorageImpl aSnapshot) {
+        if (myObjectCache == null) {
+            return; // storage is already closed
+        }
+
+        synchronized (myObjectCache) {
+            final SnapshotStorageImpl[] snapshots = new SnapshotStorageImpl[mySnapshots.length - 1];
+            long oldestTransactionId = Long.MAX_VALUE;
+            int count = 0;
+
+            for (final SnapshotStorageImpl snapshot : mySnapshots) {
+                if (snapshot != aSnapshot) {
+                    snapshots[count++] = snapshot;
+                    oldestTransactionId = Math.min(oldestTransactionId, snapshot.myTransactionId);
+                }
+            }
+
+            mySnapshots = snapshots;
+
+            final Iterator<Map.Entry<Long, long[]>> iterator = myPinnedLocations.entrySet().iterator();
+            boolean released = false;
+
+            while (iterator.hasNext()) {
+                final Map.Entry<Long, long[]> entry = iterator.next();
+
+                // location is visible only in the snapshots of transactions not later than the one which freed it
+                if (entry.getValue()[1] < oldestTransactionId) {
+                    final long quantumNum = entry.getKey() >>> DB_ALLOCATION_QUANTUM_BITS;
+                    final int firstPage = (int) (quantumNum >>> Page.PAGE_SIZE_LOG + 3);
+                    final int lastPage = (int) (quantumNum + (entry.getValue()[0] >>> DB_ALLOCATION_QUANTUM_BITS) >>>
+                            Page.PAGE_SIZE_LOG + 3);
+
+                    for (int pageId = firstPage; pageId <= lastPage && pageId < myBitmapPageAvailableSpace.length;
+                            pageId++) {
+                        myBitmapPageAvailableSpace[pageId] = Integer.MAX_VALUE;
+                    }
+
+                    iterator.remove();
+                    released = true;
+                }
+            }
+
+            if (released) {
+                myCurrRBitmapPage = myCurrPBitmapPage = 0;
+                myCurrRBitmapOffs = myCurrPBitmapOffs = 0;
+            }
+        }
+    }
+
     void reloadScheme() {
         myClassDescriptorMap.clear();
         myCustomAllocatorMap = null;
@@ -4211,7 +4539,7 @@ public class StorageImpl implements Storage {
         myReservedChain = location;
     }
 
-    final void setDirty() {
+    void setDirty() {
         myModified = true;
 
         if (!myHeader.isDirty) {
@@ -4227,6 +4555,7 @@ public class StorageImpl implements Storage {
     final void setPosition(final int aOid, final long aPosition) {
         synchronized (myObjectCache) {
             myDirtyPagesMap[aOid >>> DB_HANDLES_PER_PAGE_BITS + 5] |= 1 << (aOid >>> DB_HANDLES_PER_PAGE_BITS & 31);
+            preserveIndex(myHeader.myRoot[1 - myCurrentIndex].myIndex, (long) aOid << 3, 8);
 
             final Page page = myPool.putPage(myHeader.myRoot[1 - myCurrentIndex].myIndex +
                     ((long) (aOid >>> DB_HANDLES_PER_PAGE_BITS) << Page.PAGE_SIZE_LOG));
@@ -5400,6 +5729,15 @@ public class StorageImpl implements Storage {
             }
         }
 
+        if (!myPinnedLocations.isEmpty()) {
+            // pinned locations don't overlap, so only the last one starting before the end can intersect
+            final Map.Entry<Long, long[]> pinned = myPinnedLocations.floorEntry(aPosition + aSize - 1);
+
+            if (pinned != null && pinned.getKey() + pinned.getValue()[0] > aPosition) {
+                return true;
+            }
+        }
+
         return false;
     }
 
@@ -5429,7 +5767,9 @@ public class StorageImpl implements Storage {
                         myTransactionLock.sharedLock();
                     }
 
-                    synchronized (myTransactionMonitor) {
+                    myTransactionMonitor.lock();
+
+                    try {
                         if (myNumOfNestedTransactions++ == 0) {
                             myFile.lock(aMode == COOPERATIVE_TRANSACTION);
 
@@ -5460,15 +5800,19 @@ public class StorageImpl implements Storage {
                                 myTransactionId = myHeader.myTransactionId;
                             }
                         }
+                    } finally {
+                        myTransactionMonitor.unlock();
                     }
                 } else {
-                    synchronized (myTransactionMonitor) {
+                    myTransactionMonitor.lock();
+
+                    try {
                         if (myScheduledCommitTime != Long.MAX_VALUE) {
                             myNumOfBlockedTransactions += 1;
 
                             while (System.currentTimeMillis() >= myScheduledCommitTime) {
                                 try {
-                                    myTransactionMonitor.wait();
+                                    myTransactionCommitted.await();
                                 } catch (final InterruptedException details) {
                                     LOGGER.warn(details.getMessage(), details);
                                 }
@@ -5478,6 +5822,8 @@ public class StorageImpl implements Storage {
                         }
 
                         myNumOfNestedTransactions += 1;
+                    } finally {
+                        myTransactionMonitor.unlock();
                     }
 
                     if (aMode == EXCLUSIVE_TRANSACTION) {
@@ -5499,11 +5845,15 @@ public class StorageImpl implements Storage {
         if (myMulticlientSupport) {
             LOGGER.debug(MessageCodes.SB_042); // multi-client rollback
 
-            synchronized (myTransactionMonitor) {
+            myTransactionMonitor.lock();
+
+            try {
                 myTransactionLock.reset();
                 rollback();
                 myFile.unlock();
                 myNumOfNestedTransactions = 0;
+            } finally {
+                myTransactionMonitor.unlock();
             }
 
             return;
@@ -5558,15 +5908,19 @@ public class StorageImpl implements Storage {
                 myListener.onTransactionRollback();
             }
         } else { // single-client exclusive or cooperative transaction rollback
-            synchronized (myTransactionMonitor) {
+            myTransactionMonitor.lock();
+
+            try {
                 myTransactionLock.reset();
                 myNumOfNestedTransactions = 0;
 
                 if (myNumOfBlockedTransactions != 0) {
-                    myTransactionMonitor.notifyAll();
+                    myTransactionCommitted.signalAll();
                 }
 
                 rollback();
+            } finally {
+                myTransactionMonitor.unlock();
             }
         }
     }
@@ -5602,6 +5956,7 @@ public class StorageImpl implements Storage {
             myHeader.myRoot[1 - current].myShadowIndex = newIndex;
             myHeader.myRoot[1 - current].myShadowIndexSize = newIndexSize;
 
+            preserveIndex(myHeader.myRoot[current].myIndex, 0, oldIndexSize * 8L);
             free(myHeader.myRoot[current].myIndex, oldIndexSize * 8L);
         }
 
@@ -5620,12 +5975,12 @@ public class StorageImpl implements Storage {
                     if (Bytes.unpack8(srcIndex.myData, jndex) != position && position < currentSize) {
                         if ((position & DB_FREE_HANDLE_FLAG) == 0) {
                             if ((position & DB_PAGE_OBJECT_FLAG) != 0) {
-                                free(position & ~DB_FLAGS_MASK, Page.PAGE_SIZE);
+                                freeVersion(position & ~DB_FLAGS_MASK, Page.PAGE_SIZE);
                             } else if (position != 0) {
                                 final int offset = (int) position & Page.PAGE_SIZE - 1;
 
                                 pg = myPool.getPage(position - offset);
-                                free(position, ObjectHeader.getSize(pg.myData, offset));
+                                freeVersion(position, ObjectHeader.getSize(pg.myData, offset));
                                 myPool.unfix(pg);
                             }
                         }
@@ -5652,12 +6007,12 @@ public class StorageImpl implements Storage {
                 if (Bytes.unpack8(srcIndex.myData, jndex) != position && position < currentSize) {
                     if ((position & DB_FREE_HANDLE_FLAG) == 0) {
                         if ((position & DB_PAGE_OBJECT_FLAG) != 0) {
-                            free(position & ~DB_FLAGS_MASK, Page.PAGE_SIZE);
+                            freeVersion(position & ~DB_FLAGS_MASK, Page.PAGE_SIZE);
                         } else if (position != 0) {
                             final int offset = (int) position & Page.PAGE_SIZE - 1;
 
                             pg = myPool.getPage(position - offset);
-                            free(position, ObjectHeader.getSize(pg.myData, offset));
+                            freeVersion(position, ObjectHeader.getSize(pg.myData, offset));
                             myPool.unfix(pg);
                         }
                     }
@@ -5672,6 +6027,7 @@ public class StorageImpl implements Storage {
 
         for (index = 0; index <= pageCount; index++) {
             if ((map[index >> 5] & 1 << (index & 31)) != 0) {
+                preserveIndex(myHeader.myRoot[1 - current].myIndex, (long) index * Page.PAGE_SIZE, Page.PAGE_SIZE);
                 pg = myPool.putPage(myHeader.myRoot[1 - current].myIndex + (long) index * Page.PAGE_SIZE);
 
                 for (jndex = 0; jndex < Page.PAGE_SIZE; jndex += 8) {
@@ -5688,6 +6044,8 @@ public class StorageImpl implements Storage {
                     ~(Page.PAGE_SIZE - 1);
 
             while (page < end) {
+                preserveIndex(myHeader.myRoot[1 - current].myIndex, page - myHeader.myRoot[1 - current].myIndex,
+                        Page.PAGE_SIZE);
                 pg = myPool.putPage(page);
 
                 for (jndex = 0; jndex < Page.PAGE_SIZE; jndex += 8) {
@@ -5724,6 +6082,7 @@ public class StorageImpl implements Storage {
             myHeader.myRoot[1 - current].myIndexSize = myHeader.myRoot[current].myShadowIndexSize;
             myHeader.myRoot[1 - current].myShadowIndex = myHeader.myRoot[current].myIndex;
             myHeader.myRoot[1 - current].myShadowIndexSize = myHeader.myRoot[current].myIndexSize;
+            preserveIndex(myHeader.myRoot[1 - current].myIndex, 0, myCurrentIndexSize * 8L);
             myPool.copy(myHeader.myRoot[1 - current].myIndex, myHeader.myRoot[current].myIndex, myCurrentIndexSize *
                     8L);
             index = myCurrentIndexSize + DB_HANDLES_PER_PAGE * 32 - 1 >>> DB_HANDLES_PER_PAGE_BITS + 5;
@@ -5735,6 +6094,8 @@ public class StorageImpl implements Storage {
             for (index = 0; index < pageCount; index++) {
                 if ((map[index >> 5] & 1 << (index & 31)) != 0) {
                     map[index >> 5] -= 1 << (index & 31);
+                    preserveIndex(myHeader.myRoot[1 - current].myIndex, (long) index * Page.PAGE_SIZE,
+                            Page.PAGE_SIZE);
                     myPool.copy(myHeader.myRoot[1 - current].myIndex + (long) index * Page.PAGE_SIZE,
                             myHeader.myRoot[current].myIndex + (long) index * Page.PAGE_SIZE, Page.PAGE_SIZE);
                 }
@@ -5742,6 +6103,8 @@ public class StorageImpl implements Storage {
 
             if (myCurrentIndexSize > index * DB_HANDLES_PER_PAGE && ((map[index >> 5] & 1 << (index & 31)) != 0 ||
                     myCurrentIndexSize != myCommittedIndexSize)) {
+                preserveIndex(myHeader.myRoot[1 - current].myIndex, (long) index * Page.PAGE_SIZE, 8L *
+                        myCurrentIndexSize - (long) index * Page.PAGE_SIZE);
                 myPool.copy(myHeader.myRoot[1 - current].myIndex + (long) index * Page.PAGE_SIZE,
                         myHeader.myRoot[current].myIndex + (long) index * Page.PAGE_SIZE, 8L * myCurrentIndexSize -
                                 (long) index * Page.PAGE_SIZE);
@@ -5772,6 +6135,20 @@ public class StorageImpl implements Storage {
         }
     }
 
+    /**
+     * Free the location of the object version replaced by the committed transaction. If there are open snapshots, the
+     * location remains pinned until they are closed.
+     */
+    private void freeVersion(final long aPosition, final long aSize) {
+        free(aPosition, aSize);
+
+        if (mySnapshots.length != 0) {
+            synchronized (myObjectCache) {
+                myPinnedLocations.put(aPosition, new long[] { aSize, myTransactionId });
+            }
+        }
+    }
+
     private void deallocateObject0(final Object aObj) {
         if (myListener != null) {
             myListener.onObjectDelete(aObj);
@@ -5780,6 +6157,10 @@ public class StorageImpl implements Storage {
         final int oid = getOid(aObj);
         final long pos = getPosition(oid);
 
+        if (!myRegisteredIndices.isEmpty()) {
+            removeFromRegisteredIndices(aObj, pos);
+        }
+
         myObjectCache.remove(oid);
 
         int offset = (int) pos & Page.PAGE_SIZE - 1;
@@ -5903,6 +6284,17 @@ public class StorageImpl implements Storage {
         throw new StorageError(StorageError.BAD_PROPERTY_VALUE);
     }
 
+    /**
+     * Page size is set for the whole JVM by the system property, so the storage property can only confirm it.
+     *
+     * @throws StorageError BAD_PROPERTY_VALUE if the value differs from the page size of the JVM
+     */
+    private void checkPageSize(final Object aValue) {
+        if (getIntegerValue(aValue) != Page.PAGE_SIZE) {
+            throw new StorageError(StorageError.BAD_PROPERTY_VALUE, Constants.PAGE_SIZE);
+        }
+    }
+
     private void mark() {
         final int bitmapSize = (int) (myHeader.myRoot[myCurrentIndex].mySize >>> DB_ALLOCATION_QUANTUM_BITS + 5) + 1;
         boolean existsNotMarkedObjects;
@@ -5943,7 +6335,8 @@ public class StorageImpl implements Storage {
                                     final ClassDescriptor desc = findClassDescriptor(typeOid);
 
                                     if (Btree.class.isAssignableFrom(desc.myClass)) {
-                                        final Btree btree = new Btree(page.myData, ObjectHeader.SIZE_OF + offset);
+                                        final Btree btree = new Btree(page.myData, ObjectHeader.SIZE_OF + offset,
+                                                getDatabaseFormatVersion());
 
                                         btree.assignOid(this, 0, false);
                                         btree.markTree();
@@ -5966,6 +6359,7 @@ public class StorageImpl implements Storage {
         final int[] map = myDirtyPagesMap;
 
         if (myHeader.myRoot[1 - current].myIndex != myHeader.myRoot[current].myShadowIndex) {
+            preserveIndex(myHeader.myRoot[current].myShadowIndex, 0, 8L * myCommittedIndexSize);
             myPool.copy(myHeader.myRoot[current].myShadowIndex, myHeader.myRoot[current].myIndex, 8L *
                     myCommittedIndexSize);
         } else {
@@ -5973,6 +6367,8 @@ public class StorageImpl implements Storage {
 
             for (int index = 0; index < pageCount; index++) {
                 if ((map[index >> 5] & 1 << (index & 31)) != 0) {
+                    preserveIndex(myHeader.myRoot[current].myShadowIndex, (long) index * Page.PAGE_SIZE,
+                            Page.PAGE_SIZE);
                     myPool.copy(myHeader.myRoot[current].myShadowIndex + (long) index * Page.PAGE_SIZE,
                             myHeader.myRoot[current].myIndex + (long) index * Page.PAGE_SIZE, Page.PAGE_SIZE);
                 }
@@ -6032,6 +6428,10 @@ public class StorageImpl implements Storage {
         final int newSize = ObjectHeader.getSize(data, 0);
         final CustomAllocator allocator = myCustomAllocatorMap != null ? getCustomAllocator(aObj.getClass()) : null;
 
+        if (!myRegisteredIndices.isEmpty()) {
+            trackIndexDelta(aObj, newObject ? 0 : getPosition(oid), data, newSize);
+        }
+
         long position;
 
         if (newObject || (position = getPosition(oid)) == 0) {
@@ -6093,6 +6493,277 @@ public class StorageImpl implements Storage {
         myPool.put(position, data, newSize);
     }
 
+    /**
+     * Get field indices registered for the class of the object or for its superclasses and interfaces.
+     *
+     * @return registered indices or <code>null</code> if objects of this class are not indexed
+     */
+    private FieldIndex<?>[] getRegisteredIndices(final Class<?> aClass) {
+        FieldIndex<?>[] indices = myRegisteredIndicesCache.get(aClass);
+
+        if (indices == null) {
+            final ArrayList<FieldIndex<?>> list = new ArrayList<>();
+
+            if (!SelfSerializable.class.isAssignableFrom(aClass) && !getClassDescriptor(aClass).isCustomSerializable) {
+                for (final Map.Entry<Class<?>, ArrayList<FieldIndex<?>>> entry : myRegisteredIndices.entrySet()) {
+                    if (entry.getKey().isAssignableFrom(aClass)) {
+                        list.addAll(entry.getValue());
+                    }
+                }
+            }
+
+            indices = list.toArray(new FieldIndex<?>[list.size()]);
+            myRegisteredIndicesCache.put(aClass, indices);
+        }
+
+        return indices.length != 0 ? indices : null;
+    }
+
+    /**
+     * Record change of the keys of the registered indices caused by storing the object. Images of the object are
+     * decoded only if the new image differs from the stored one, so storing unchanged objects costs no index work.
+     *
+     * @param aObj stored object
+     * @param aPosition position of the old image of the object or 0 if object was not stored yet
+     * @param aData new image of the object
+     * @param aSize size of the new image
+     */
+    private void trackIndexDelta(final Object aObj, final long aPosition, final byte[] aData, final int aSize) {
+        final FieldIndex<?>[] indices = getRegisteredIndices(aObj.getClass());
+
+        if (indices == null || (aPosition & (DB_FREE_HANDLE_FLAG | DB_PAGE_OBJECT_FLAG)) != 0) {
+            return;
+        }
+
+        byte[] body = null;
+
+        if (aPosition != 0) {
+            body = myPool.get(aPosition & ~DB_FLAGS_MASK);
+
+            if (ObjectHeader.getSize(body, 0) == aSize) {
+                int offset = ObjectHeader.SIZE_OF;
+
+                while (offset < aSize && body[offset] == aData[offset]) {
+                    offset += 1;
+                }
+
+                if (offset == aSize) {
+                    return;
+                }
+            }
+        }
+
+        final Object newImage = unpackImage(aData);
+        final IndexDelta delta = myIndexDeltas.get(aObj);
+
+        if (delta != null) {
+            // image at the last commit is already known
+            delta.myNewImage = newImage;
+            return;
+        }
+
+        final Object oldImage = body != null ? unpackImage(body) : null;
+
+        for (final FieldIndex<?> index : indices) {
+            if (isKeyChanged(index, oldImage, newImage)) {
+                myIndexDeltas.put(aObj, new IndexDelta(indices, oldImage, newImage));
+                break;
+            }
+        }
+    }
+
+    /**
+     * Remove deallocated object from the registered indices. It should be done immediately, because the object
+     * loses its OID after deallocation.
+     */
+    private void removeFromRegisteredIndices(final Object aObj, final long aPosition) {
+        final IndexDelta delta = myIndexDeltas.remove(aObj);
+        final FieldIndex<?>[] indices;
+        final Object image;
+
+        if (delta != null) {
+            indices = delta.myIndices;
+            image = delta.myOldImage;
+        } else {
+            indices = getRegisteredIndices(aObj.getClass());
+
+            if (indices == null || aPosition == 0 || (aPosition & (DB_FREE_HANDLE_FLAG | DB_PAGE_OBJECT_FLAG)) !=
+                    0) {
+                return;
+            }
+
+            image = unpackImage(myPool.get(aPosition & ~DB_FLAGS_MASK));
+        }
+
+        if (image != null) {
+            for (final FieldIndex<?> index : indices) {
+                ((StoredKeyIndex) index).removeStoredKey(image, aObj);
+            }
+        }
+    }
+
+    /**
+     * Replace the registered indices with their instances loaded after rollback. Indices created by the rolled back
+     * transaction are unregistered.
+     */
+    private void reloadRegisteredIndices() {
+        final Iterator<ArrayList<FieldIndex<?>>> iterator = myRegisteredIndices.values().iterator();
+
+        while (iterator.hasNext()) {
+            final ArrayList<FieldIndex<?>> indices = iterator.next();
+
+            for (int index = indices.size(); --index >= 0;) {
+                final int oid = getOid(indices.get(index));
+                final long position = oid != 0 && oid < myCurrentIndexSize ? getPosition(oid) : 0;
+
+                if (position != 0 && (position & (DB_FREE_HANDLE_FLAG | DB_PAGE_OBJECT_FLAG)) == 0) {
+                    final FieldIndex<?> reloaded = (FieldIndex<?>) lookupObject(oid, null);
+
+                    reloaded.load();
+                    indices.set(index, reloaded);
+                } else {
+                    indices.remove(index);
+                }
+            }
+
+            if (indices.isEmpty()) {
+                iterator.remove();
+            }
+        }
+
+        myRegisteredIndicesCache.clear();
+    }
+
+    /**
+     * Apply index changes collected since the last commit. Keys are extracted from the decoded images of the objects,
+     * so the objects themselves are not changed. Old keys are removed from all indices before the new keys are
+     * inserted, so objects can exchange values of unique keys. Changed index pages are stored, so the loop is repeated
+     * until there are no pending changes. If new key is not unique, the changes of the current pass are undone and
+     * its deltas are kept pending, so the application can correct the objects and commit again or roll back.
+     *
+     * @throws StorageError KEY_NOT_UNIQUE if new key of the object is already present in the unique index
+     */
+    private void applyIndexDeltas() {
+        while (true) {
+            final IdentityHashMap<Object, IndexDelta> deltas;
+
+            synchronized (myObjectCache) {
+                if (myIndexDeltas.isEmpty()) {
+                    return;
+                }
+
+                deltas = myIndexDeltas;
+                myIndexDeltas = new IdentityHashMap<>();
+            }
+
+            // entries changed by this pass: removed old keys followed by inserted new keys
+            final ArrayList<FieldIndex<?>> changedIndices = new ArrayList<>();
+            final ArrayList<Object> changedObjects = new ArrayList<>();
+
+            for (final Map.Entry<Object, IndexDelta> entry : deltas.entrySet()) {
+                final IndexDelta delta = entry.getValue();
+
+                if (delta.myOldImage != null) {
+                    for (final FieldIndex<?> index : delta.myIndices) {
+                        if (isKeyChanged(index, delta.myOldImage, delta.myNewImage) && ((StoredKeyIndex) index)
+                                .removeStoredKey(delta.myOldImage, entry.getKey())) {
+                            changedIndices.add(index);
+                            changedObjects.add(entry.getKey());
+                        }
+                    }
+                }
+            }
+
+            final int removedCount = changedIndices.size();
+
+            for (final Map.Entry<Object, IndexDelta> entry : deltas.entrySet()) {
+                final IndexDelta delta = entry.getValue();
+
+                for (final FieldIndex<?> index : delta.myIndices) {
+                    if (isKeyChanged(index, delta.myOldImage, delta.myNewImage)) {
+                        if (((StoredKeyIndex) index).insertStoredKey(delta.myNewImage, entry.getKey())) {
+                            changedIndices.add(index);
+                            changedObjects.add(entry.getKey());
+                        } else if (index.isUnique() && !Arrays.asList(getKey(index, delta.myNewImage)).contains(
+                                null)) {
+                            undoIndexDeltas(deltas, changedIndices, changedObjects, removedCount);
+                            throw new StorageError(StorageError.KEY_NOT_UNIQUE);
+                        }
+                    }
+                }
+            }
+
+            myObjectCache.flush();
+        }
+    }
+
+    /**
+     * Restore the indices changed by the failed pass of <code>applyIndexDeltas</code> and return its deltas to the
+     * pending ones.
+     *
+     * @param aDeltas deltas of the failed pass
+     * @param aIndices indices changed by the pass
+     * @param aObjects objects whose entries were changed
+     * @param aRemovedCount number of the leading changes which removed the old keys, the rest inserted the new keys
+     */
+    private void undoIndexDeltas(final IdentityHashMap<Object, IndexDelta> aDeltas,
+            final ArrayList<FieldIndex<?>> aIndices, final ArrayList<Object> aObjects, final int aRemovedCount) {
+        for (int index = aIndices.size(); --index >= 0;) {
+            final Object obj = aObjects.get(index);
+            final IndexDelta delta = aDeltas.get(obj);
+
+            if (index >= aRemovedCount) {
+                ((StoredKeyIndex) aIndices.get(index)).removeStoredKey(delta.myNewImage, obj);
+            } else {
+                ((StoredKeyIndex) aIndices.get(index)).insertStoredKey(delta.myOldImage, obj);
+            }
+        }
+
+        synchronized (myObjectCache) {
+            for (final Map.Entry<Object, IndexDelta> entry : aDeltas.entrySet()) {
+                if (!myIndexDeltas.containsKey(entry.getKey())) {
+                    myIndexDeltas.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Decode the stored image into the new instance of the class. It keeps the values of the fields at the moment the
+     * image was packed, so the keys of the registered indices are extracted from it.
+     */
+    private Object unpackImage(final byte[] aBody) {
+        final ClassDescriptor classDescriptor = findClassDescriptor(ObjectHeader.getType(aBody, 0));
+        final Object image = classDescriptor.newInstance();
+
+        try {
+            unpackObject(image, classDescriptor, false, aBody, ObjectHeader.SIZE_OF, image);
+        } catch (final Exception details) {
+            throw new StorageError(StorageError.ACCESS_VIOLATION, details);
+        }
+
+        return image;
+    }
+
+    private static boolean isKeyChanged(final FieldIndex<?> aIndex, final Object aOldImage, final Object aNewImage) {
+        return aOldImage == null || !Arrays.deepEquals(getKey(aIndex, aOldImage), getKey(aIndex, aNewImage));
+    }
+
+    private static Object[] getKey(final FieldIndex<?> aIndex, final Object aImage) {
+        final Field[] fields = aIndex.getKeyFields();
+        final Object[] key = new Object[fields.length];
+
+        try {
+            for (int index = 0; index < fields.length; index++) {
+                key[index] = fields[index].get(aImage);
+            }
+        } catch (final IllegalAccessException details) {
+            throw new StorageError(StorageError.ACCESS_VIOLATION, details);
+        }
+
+        return key;
+    }
+
     private int sweep() {
         int deallocatedCount = 0;
         long position;
@@ -6117,7 +6788,8 @@ public class StorageImpl implements Storage {
                             deallocatedCount += 1;
 
                             if (Btree.class.isAssignableFrom(classDescriptor.myClass)) {
-                                final Btree btree = new Btree(page.myData, ObjectHeader.SIZE_OF + offset);
+                                final Btree btree = new Btree(page.myData, ObjectHeader.SIZE_OF + offset,
+                                        getDatabaseFormatVersion());
 
                                 myPool.unfix(page);
                                 btree.assignOid(this, index, false);
@@ -6388,10 +7060,14 @@ public class StorageImpl implements Storage {
 
 class Header {
 
-    static final int SIZE_OF = 3 + RootPage.SIZEOF * 2 + 8;
+    static final int TRANSACTION_ID_OFFSET = 3 + RootPage.SIZEOF * 2;
+
+    static final int SIZE_OF = TRANSACTION_ID_OFFSET + 8 + 1; // page size log follows the transaction ID
 
     boolean isDirty; // database was not closed normally
 
+    byte myPageSizeLog; // 0 for databases created before page size became configurable, which use 4 KB pages
+
     int myCurrentRoot;
 
     byte myDatabaseFormatVersion;
@@ -6434,8 +7110,10 @@ class Header {
             offset += 4;
         }
 
+        Assert.that(offset == TRANSACTION_ID_OFFSET);
         Bytes.pack8(aRecord, offset, myTransactionId);
         offset += 8;
+        aRecord[offset++] = myPageSizeLog;
         Assert.that(offset == SIZE_OF);
     }
 
@@ -6477,6 +7155,7 @@ class Header {
 
         myTransactionId = Bytes.unpack8(aRecord, offset);
         offset += 8;
+        myPageSizeLog = aRecord[offset++];
         Assert.that(offset == SIZE_OF);
     }
 }
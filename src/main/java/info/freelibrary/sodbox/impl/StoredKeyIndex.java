@@ -0,0 +1,28 @@
+package info.freelibrary.sodbox.impl;
+
+/**
+ * Field index which can be maintained by the storage. Key is extracted from the copy of the object decoded from its
+ * stored image, while the index entry refers to the object itself, so the fields of the object are not accessed.
+ */
+interface StoredKeyIndex {
+
+    /**
+     * Include the object in the index using the key of its stored image.
+     *
+     * @param aImage copy of the object which keeps the values of the key fields
+     * @param aObject object to be included in the index
+     * @return <code>true</code> if object is included, <code>false</code> if the key is null or the index is unique
+     *         and already contains this key
+     */
+    boolean insertStoredKey(Object aImage, Object aObject);
+
+    /**
+     * Remove the object from the index using the key of its stored image.
+     *
+     * @param aImage copy of the object which keeps the values of the key fields
+     * @param aObject object to be removed from the index
+     * @return <code>true</code> if object was removed, <code>false</code> if there is no such entry in the index
+     */
+    boolean removeStoredKey(Object aImage, Object aObject);
+
+}
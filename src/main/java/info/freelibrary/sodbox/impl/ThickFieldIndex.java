@@ -20,7 +20,7 @@ import info.freelibrary.sodbox.StorageError;
 import info.freelibrary.util.Logger;
 import info.freelibrary.util.LoggerFactory;
 
-class ThickFieldIndex<T> extends ThickIndex<T> implements FieldIndex<T> {
+class ThickFieldIndex<T> extends ThickIndex<T> implements FieldIndex<T>, StoredKeyIndex {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ThickFieldIndex.class, Constants.MESSAGES);
 
@@ -197,6 +197,20 @@ class ThickFieldIndex<T> extends ThickIndex<T> implements FieldIndex<T> {
         return key != null && super.removeIfExists(key, (T) aObj);
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean insertStoredKey(final Object aImage, final Object aObj) {
+        final Key key = extractKey(aImage);
+        return key != null && super.put(key, (T) aObj);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean removeStoredKey(final Object aImage, final Object aObj) {
+        final Key key = extractKey(aImage);
+        return key != null && super.removeIfExists(key, (T) aObj);
+    }
+
     @Override
     public boolean containsObject(final T aObj) {
         final Key key = extractKey(aObj);
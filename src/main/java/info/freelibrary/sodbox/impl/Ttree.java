@@ -2,10 +2,12 @@
 package info.freelibrary.sodbox.impl;
 
 import java.lang.reflect.Array;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
+import info.freelibrary.sodbox.GenericIndex;
 import info.freelibrary.sodbox.IterableIterator;
 import info.freelibrary.sodbox.PersistentCollection;
 import info.freelibrary.sodbox.PersistentComparator;
@@ -140,6 +142,65 @@ public class Ttree<T> extends PersistentCollection<T> implements SortedCollectio
         return true;
     }
 
+    @Override
+    public int addAllSorted(final Iterator<? extends T> aMembers) {
+        int count = 0;
+
+        if (myRoot != null) {
+            while (aMembers.hasNext()) {
+                if (add(aMembers.next())) {
+                    count += 1;
+                }
+            }
+
+            return count;
+        }
+
+        final ArrayList<TtreePage> pages = new ArrayList<>();
+
+        Object[] items = new Object[TtreePage.MAX_ITEMS];
+        T prev = null;
+        int itemCount = 0;
+
+        while (aMembers.hasNext()) {
+            final T member = aMembers.next();
+
+            if (prev != null) {
+                final int diff = myComparator.compareMembers(prev, member);
+
+                if (diff > 0) {
+                    throw new StorageError(StorageError.INVALID_OPERATION, "members are not sorted");
+                }
+
+                if (diff == 0 && isUniqueKey) {
+                    continue;
+                }
+            }
+
+            if (itemCount == TtreePage.MAX_ITEMS) {
+                pages.add(new TtreePage(getStorage(), items, itemCount));
+                items = new Object[TtreePage.MAX_ITEMS];
+                itemCount = 0;
+            }
+
+            items[itemCount++] = member;
+            prev = member;
+            count += 1;
+        }
+
+        if (itemCount != 0) {
+            pages.add(new TtreePage(getStorage(), items, itemCount));
+        }
+
+        if (count != 0) {
+            myRoot = TtreePage.build(pages, 0, pages.size());
+            myMemberCount = count;
+            modify();
+        }
+
+        return count;
+    }
+
     /**
      * Check if collection contains the supplied member.
      *
@@ -290,6 +351,17 @@ public class Ttree<T> extends PersistentCollection<T> implements SortedCollectio
         return new TtreeIterator(list);
     }
 
+    @Override
+    public IterableIterator<T> cursor(final Object aFrom, final Object aTo, final int aOrder) {
+        return cursor(aFrom, true, aTo, true, aOrder, 0, -1);
+    }
+
+    @Override
+    public IterableIterator<T> cursor(final Object aFrom, final boolean aFromInclusive, final Object aTo,
+            final boolean aToInclusive, final int aOrder, final int aSkip, final int aLimit) {
+        return new TtreeCursor(aFrom, aFromInclusive, aTo, aToInclusive, aOrder, aSkip, aLimit);
+    }
+
     class TtreeIterator<T> extends IterableIterator<T> implements PersistentIterator {
 
         boolean isRemoved;
@@ -342,4 +414,238 @@ public class Ttree<T> extends PersistentCollection<T> implements SortedCollectio
             return myIndex + 1 < myList.size();
         }
     }
+
+    /**
+     * Cursor traversing pages of the tree in order using stack of the pages whose items are not yet visited. Only
+     * the first page is searched for the start boundary: all subsequent items are located after it. The end boundary
+     * is checked for each returned item.
+     */
+    class TtreeCursor extends IterableIterator<T> implements PersistentIterator {
+
+        private final ArrayDeque<TtreePage> myStack = new ArrayDeque<>();
+
+        private final Object myFrom;
+
+        private final boolean isFromInclusive;
+
+        private final Object myTo;
+
+        private final boolean isToInclusive;
+
+        private final boolean isAscent;
+
+        private int myLimit;
+
+        private TtreePage myPage; // page of the next member, null if there are no more members
+
+        private int myPosition; // number of the visited items of the page in the order of traversal
+
+        private T myCurrent;
+
+        TtreeCursor(final Object aFrom, final boolean aFromInclusive, final Object aTo, final boolean aToInclusive,
+                final int aOrder, final int aSkip, final int aLimit) {
+            myFrom = aFrom;
+            isFromInclusive = aFromInclusive;
+            myTo = aTo;
+            isToInclusive = aToInclusive;
+            isAscent = aOrder == GenericIndex.ASCENT_ORDER;
+            myLimit = aLimit;
+
+            seek(null);
+            skip(aSkip);
+        }
+
+        /**
+         * Check if the item precedes the start of the traversal: the start boundary or, when the cursor is
+         * repositioned after removal, the specified member.
+         */
+        private boolean precedesStart(final T aItem, final T aMember) {
+            final int diff;
+
+            if (aMember != null) {
+                diff = myComparator.compareMembers(aItem, aMember);
+
+                return isAscent ? diff < 0 : diff > 0;
+            }
+
+            if (isAscent) {
+                return myFrom != null && ((diff = myComparator.compareMemberWithKey(aItem, myFrom)) < 0 ||
+                        diff == 0 && !isFromInclusive);
+            } else {
+                return myTo != null && ((diff = myComparator.compareMemberWithKey(aItem, myTo)) > 0 ||
+                        diff == 0 && !isToInclusive);
+            }
+        }
+
+        private boolean followsEnd(final T aItem) {
+            final int diff;
+
+            if (isAscent) {
+                return myTo != null && ((diff = myComparator.compareMemberWithKey(aItem, myTo)) > 0 ||
+                        diff == 0 && !isToInclusive);
+            } else {
+                return myFrom != null && ((diff = myComparator.compareMemberWithKey(aItem, myFrom)) < 0 ||
+                        diff == 0 && !isFromInclusive);
+            }
+        }
+
+        private int getIndex(final TtreePage aPage, final int aPosition) {
+            return isAscent ? aPosition : aPage.myItemCount - aPosition - 1;
+        }
+
+        /**
+         * Load the member at the specified position of the page in the order of traversal.
+         */
+        @SuppressWarnings("unchecked")
+        private T getItem(final TtreePage aPage, final int aPosition) {
+            return (T) aPage.loadItem(getIndex(aPage, aPosition));
+        }
+
+        private TtreePage getNear(final TtreePage aPage) {
+            return isAscent ? aPage.myLeft : aPage.myRight;
+        }
+
+        private TtreePage getFar(final TtreePage aPage) {
+            return isAscent ? aPage.myRight : aPage.myLeft;
+        }
+
+        /**
+         * Position the cursor at the first item which doesn't precede the start of traversal.
+         */
+        private void seek(final T aMember) {
+            TtreePage page = myRoot;
+
+            myStack.clear();
+            myPage = null;
+
+            while (page != null) {
+                page.load();
+
+                if (precedesStart(getItem(page, page.myItemCount - 1), aMember)) {
+                    page = getFar(page);
+                } else {
+                    myStack.push(page);
+
+                    if (precedesStart(getItem(page, 0), aMember)) {
+                        break;
+                    }
+
+                    page = getNear(page);
+                }
+            }
+
+            if (!myStack.isEmpty()) {
+                myPage = myStack.pop();
+
+                int left = 0;
+                int right = myPage.myItemCount - 1;
+
+                while (left < right) {
+                    final int middle = left + right >> 1;
+
+                    if (precedesStart(getItem(myPage, middle), aMember)) {
+                        left = middle + 1;
+                    } else {
+                        right = middle;
+                    }
+                }
+
+                myPosition = right;
+            }
+        }
+
+        private void nextPage() {
+            TtreePage page = getFar(myPage);
+
+            while (page != null) {
+                page.load();
+                myStack.push(page);
+                page = getNear(page);
+            }
+
+            myPage = myStack.poll();
+            myPosition = 0;
+        }
+
+        @Override
+        public void skip(final int aCount) {
+            int count = aCount;
+
+            while (count > 0 && myPage != null) {
+                final int remaining = myPage.myItemCount - myPosition;
+
+                if (count < remaining) {
+                    myPosition += count;
+                    break;
+                }
+
+                count -= remaining;
+                nextPage();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (myLimit == 0 || myPage == null) {
+                return false;
+            }
+
+            if (followsEnd(getItem(myPage, myPosition))) {
+                myPage = null;
+                return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            myCurrent = getItem(myPage, myPosition);
+
+            if (++myPosition == myPage.myItemCount) {
+                nextPage();
+            }
+
+            if (myLimit > 0) {
+                myLimit -= 1;
+            }
+
+            return myCurrent;
+        }
+
+        @Override
+        public int nextOID() {
+            return hasNext() ? getStorage().getOid(next()) : 0;
+        }
+
+        /**
+         * Remove the current member. Removal can rebalance the tree, so the cursor is repositioned at the next
+         * member: tree is searched for its key and then members with the same key are scanned until it is found.
+         */
+        @Override
+        public void remove() {
+            if (myCurrent == null) {
+                throw new IllegalStateException();
+            }
+
+            final T next = myPage != null ? getItem(myPage, myPosition) : null;
+
+            Ttree.this.remove(myCurrent);
+            myCurrent = null;
+
+            if (next != null) {
+                seek(next);
+
+                while (myPage != null && myPage.myItems[getIndex(myPage, myPosition)] != next) {
+                    if (++myPosition == myPage.myItemCount) {
+                        nextPage();
+                    }
+                }
+            }
+        }
+    }
 }
@@ -44,6 +44,13 @@ public class TtreePage extends Persistent {
         myItems[0] = aObj;
     }
 
+    TtreePage(final Storage aStorage, final Object[] aItems, final int aItemCount) {
+        super(aStorage);
+
+        myItemCount = aItemCount;
+        myItems = aItems;
+    }
+
     @Override
     public boolean recursiveLoading() {
         return false;
@@ -59,14 +66,14 @@ public class TtreePage extends Persistent {
 
     final boolean find(final PersistentComparator aComparator, final Object aMinValue, final int aMinInclusive,
             final Object aMaxValue, final int aMaxInclusive, final ArrayList aSelection) {
-        final int count = myItemCount;
-
         int left;
         int right;
         int m;
 
         load();
 
+        final int count = myItemCount;
+
         if (aMinValue != null) {
             if (-aComparator.compareMemberWithKey(loadItem(0), aMinValue) >= aMinInclusive) {
                 if (-aComparator.compareMemberWithKey(loadItem(count - 1), aMinValue) >= aMinInclusive) {
@@ -128,14 +135,14 @@ public class TtreePage extends Persistent {
     }
 
     final boolean contains(final PersistentComparator aComparator, final Object aKey) {
-        final int count = myItemCount;
-
         int left;
         int right;
         int m;
 
         load();
 
+        final int count = myItemCount;
+
         if (aComparator.compareMembers(loadItem(0), aKey) < 0) {
             if (aComparator.compareMembers(loadItem(count - 1), aKey) < 0) {
                 if (myRight != null) {
@@ -198,14 +205,14 @@ public class TtreePage extends Persistent {
     }
 
     final boolean containsKey(final PersistentComparator aComparator, final Object aKey) {
-        final int count = myItemCount;
-
         int left;
         int right;
         int m;
 
         load();
 
+        final int count = myItemCount;
+
         if (aComparator.compareMemberWithKey(loadItem(0), aKey) < 0) {
             if (aComparator.compareMemberWithKey(loadItem(count - 1), aKey) < 0) {
                 if (myRight != null) {
@@ -268,14 +275,14 @@ public class TtreePage extends Persistent {
     }
 
     final boolean containsObject(final PersistentComparator aComparator, final Object aObj) {
-        final int count = myItemCount;
-
         int left;
         int right;
         int m;
 
         load();
 
+        final int count = myItemCount;
+
         if (aComparator.compareMembers(loadItem(0), aObj) < 0) {
             if (aComparator.compareMembers(loadItem(count - 1), aObj) < 0) {
                 if (myRight != null) {
@@ -810,6 +817,35 @@ public class TtreePage extends Persistent {
         deallocate();
     }
 
+    /**
+     * Link pages in balanced tree. Pages should be ordered by their items, all pages except the last one should be
+     * full. Middle page becomes the root, so the right subtree is never lower than the left one and the last page is
+     * always a leaf.
+     *
+     * @param aPages ordered list of the pages
+     * @param aFrom index of the first page (inclusive)
+     * @param aTo index of the last page (exclusive)
+     * @return root of the tree
+     */
+    static TtreePage build(final ArrayList<TtreePage> aPages, final int aFrom, final int aTo) {
+        if (aFrom == aTo) {
+            return null;
+        }
+
+        final int middle = aFrom + aTo - 1 >>> 1;
+        final TtreePage page = aPages.get(middle);
+
+        page.myLeft = build(aPages, aFrom, middle);
+        page.myRight = build(aPages, middle + 1, aTo);
+        page.myBalance = getHeight(aTo - middle - 1) - getHeight(middle - aFrom);
+
+        return page;
+    }
+
+    private static int getHeight(final int aPageCount) {
+        return 32 - Integer.numberOfLeadingZeros(aPageCount);
+    }
+
     static class PageReference {
 
         TtreePage myPage;
@@ -120,7 +120,7 @@ public class XMLExporter {
     }
 
     final void exportSet(final int aOid, final byte[] aData) throws IOException {
-        final Btree btree = new Btree(aData, ObjectHeader.SIZE_OF);
+        final Btree btree = new Btree(aData, ObjectHeader.SIZE_OF, myStorage.getDatabaseFormatVersion());
 
         myStorage.assignOid(btree, aOid, false);
         myWriter.write(" <" + PersistentSet.class.getName() + " id=\"" + aOid + "\" unique=\"" +
@@ -130,7 +130,7 @@ public class XMLExporter {
     }
 
     final void exportIndex(final int aOid, final byte[] aData, final String aName) throws IOException {
-        final Btree btree = new Btree(aData, ObjectHeader.SIZE_OF);
+        final Btree btree = new Btree(aData, ObjectHeader.SIZE_OF, myStorage.getDatabaseFormatVersion());
 
         myStorage.assignOid(btree, aOid, false);
         myWriter.write(" <" + aName + " id=\"" + aOid + "\" unique=\"" + (btree.isUniqueKeyIndex ? '1' : '0') +
@@ -140,7 +140,7 @@ public class XMLExporter {
     }
 
     final void exportFieldIndex(final int aOid, final byte[] aData, final String aName) throws IOException {
-        final Btree btree = new Btree(aData, ObjectHeader.SIZE_OF);
+        final Btree btree = new Btree(aData, ObjectHeader.SIZE_OF, myStorage.getDatabaseFormatVersion());
         int offset;
 
         myStorage.assignOid(btree, aOid, false);
@@ -160,7 +160,7 @@ public class XMLExporter {
     }
 
     final void exportMultiFieldIndex(final int aOid, final byte[] aData, final String aName) throws IOException {
-        final Btree btree = new Btree(aData, ObjectHeader.SIZE_OF);
+        final Btree btree = new Btree(aData, ObjectHeader.SIZE_OF, myStorage.getDatabaseFormatVersion());
 
         myStorage.assignOid(btree, aOid, false);
         myWriter.write(" <" + aName + " id=\"" + aOid + "\" unique=\"" + (btree.isUniqueKeyIndex ? '1' : '0') +
@@ -195,7 +195,7 @@ public class XMLExporter {
     }
 
     final void exportCompoundIndex(final int aOid, final byte[] aData) throws IOException {
-        final Btree btree = new Btree(aData, ObjectHeader.SIZE_OF);
+        final Btree btree = new Btree(aData, ObjectHeader.SIZE_OF, myStorage.getDatabaseFormatVersion());
 
         myStorage.assignOid(btree, aOid, false);
         myWriter.write(" <info.freelibrary.sodbox.impl.BtreeCompoundIndex id=\"" + aOid + "\" unique=\"" +
@@ -6,16 +6,24 @@ import java.io.Reader;
 import java.text.DateFormat;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import info.freelibrary.sodbox.Key;
 import info.freelibrary.sodbox.MessageCodes;
 import info.freelibrary.sodbox.XMLImportException;
 
+/**
+ * Imports the database from its XML export. Objects are packed straight from the tokens of the document by the
+ * parser thread, which runs ahead of the importing thread: the importing thread stores the packed objects, builds the
+ * indices from their references, which are exported in key order, and commits the transaction after each batch of
+ * the size set by the <code>sodbox.import.commit.batch</code> property. Storage is locked only for the short updates
+ * of its state, so that other threads are not blocked for the time of the import.
+ */
 public class XMLImporter {
 
     static final String DATE_FORMAT = "EEE, d MMM yyyy kk:mm:ss z";
@@ -40,12 +48,46 @@ public class XMLImporter {
 
     private static final String REF = "ref";
 
+    private static final int NO_VALUE = 0;
+
+    private static final int STRING_VALUE = 1;
+
+    private static final int INT_VALUE = 2;
+
+    private static final int REAL_VALUE = 3;
+
+    private static final int NULL_VALUE = 4;
+
+    /* Maximal number of parsed objects and index references waiting to be stored */
+    private static final int QUEUE_SIZE = 1024;
+
+    /* Marks the end of the references of an index and the end of the database's elements */
+    private static final Object END_OF_ELEMENTS = new Object();
+
     StorageImpl myStorage;
 
     XMLScanner myScanner;
 
     int[] myIDMap;
 
+    /* Objects, indices and references read ahead by the parser thread, or the exception which stopped it */
+    BlockingQueue<Object> myQueue;
+
+    /* Descriptors of the imported classes by the names of their elements */
+    final HashMap<String, ClassDescriptor> myClassDescriptors = new HashMap<>();
+
+    /* Attributes of the last start tag read by the parser thread */
+    final HashMap<String, String> myAttributes = new HashMap<>();
+
+    /* Value of the last element read by the parser thread */
+    int myValueType;
+
+    String myStringValue;
+
+    long myIntValue;
+
+    double myRealValue;
+
     /**
      * Constructs an XML importer.
      *
@@ -64,8 +106,6 @@ public class XMLImporter {
      */
     @SuppressWarnings("checkstyle:BooleanExpressionComplexity")
     public void importDatabase() throws XMLImportException {
-        int token;
-
         if (myScanner.scan() != XMLScanner.XML_LT || myScanner.scan() != XMLScanner.XML_IDENT || !DATABASE.equals(
                 myScanner.getIdentifier())) {
             throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_026);
@@ -86,54 +126,163 @@ public class XMLImporter {
         }
 
         myIDMap = new int[rootId * 2];
-        myIDMap[rootId] = myStorage.allocateId();
-        myStorage.myHeader.myRoot[1 - myStorage.myCurrentIndex].myRootObject = myIDMap[rootId];
+        myIDMap[rootId] = allocateId();
 
-        while ((token = myScanner.scan()) == XMLScanner.XML_LT) {
-            if (myScanner.scan() != XMLScanner.XML_IDENT) {
-                throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_005);
+        // Objects are parsed and packed on a separate thread while this one stores the previously packed ones
+        final XMLParser parser = new XMLParser();
+        final int commitBatch = myStorage.myImportCommitBatch;
+
+        myQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        parser.start();
+
+        try {
+            Object next;
+            int count = 0;
+
+            while ((next = nextItem()) != END_OF_ELEMENTS) {
+                if (next instanceof Btree) {
+                    createIndex((Btree) next);
+                } else {
+                    storeObject((PackedObject) next);
+                }
+
+                if (commitBatch > 0 && ++count % commitBatch == 0) {
+                    myStorage.commit();
+                }
             }
+        } finally {
+            parser.interrupt();
+        }
 
-            final String elementName = myScanner.getIdentifier();
+        // root is set once all objects are stored, so that it isn't committed before them
+        synchronized (myStorage) {
+            myStorage.myHeader.myRoot[1 - myStorage.myCurrentIndex].myRootObject = myIDMap[rootId];
+        }
 
-            if (Btree.class.getName().equals(elementName) || PersistentSet.class.getName().equals(elementName) ||
-                    elementName.equals(BtreeFieldIndex.class.getName()) || BtreeCaseInsensitiveFieldIndex.class
-                            .getName().equals(elementName) || BtreeCompoundIndex.class.getName().equals(
-                                    elementName) || BtreeMultiFieldIndex.class.getName().equals(elementName) ||
-                    BtreeCaseInsensitiveMultiFieldIndex.class.getName().equals(elementName)) {
-                createIndex(elementName);
-            } else {
-                createObject(readElement(elementName));
+        if (commitBatch > 0) {
+            myStorage.commit();
+        }
+    }
+
+    static boolean isIndex(final String aElementName) {
+        return Btree.class.getName().equals(aElementName) || PersistentSet.class.getName().equals(aElementName) ||
+                BtreeFieldIndex.class.getName().equals(aElementName) || BtreeCaseInsensitiveFieldIndex.class
+                        .getName().equals(aElementName) || BtreeCompoundIndex.class.getName().equals(aElementName) ||
+                BtreeMultiFieldIndex.class.getName().equals(aElementName) || BtreeCaseInsensitiveMultiFieldIndex.class
+                        .getName().equals(aElementName);
+    }
+
+    /**
+     * Gets the next item read by the parser thread.
+     *
+     * @return The next packed object, index or index reference, or the end marker
+     * @throws XMLImportException If the parser failed to read the item
+     */
+    final Object nextItem() throws XMLImportException {
+        final Object next;
+
+        try {
+            next = myQueue.take();
+        } catch (final InterruptedException details) {
+            Thread.currentThread().interrupt();
+            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_045);
+        }
+
+        if (next instanceof XMLImportException) {
+            throw (XMLImportException) next;
+        } else if (next instanceof RuntimeException) {
+            throw (RuntimeException) next;
+        } else if (next instanceof Error) {
+            throw (Error) next;
+        } else if (next instanceof Throwable) {
+            final Throwable failure = (Throwable) next;
+
+            throw new XMLImportException(failure instanceof Exception ? (Exception) failure : new Exception(failure),
+                    myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_047, failure.toString());
+        }
+
+        return next;
+    }
+
+    /**
+     * Builds the index from its references, which follow it in the queue. References are added to the pages of the
+     * index in the order of the export, as long as their keys are ascending, and inserted in the index after that.
+     */
+    final void createIndex(final Btree aIndex) throws XMLImportException {
+        final BtreeBuilder builder = new BtreeBuilder(aIndex);
+
+        boolean isOrdered = true;
+        Object next;
+
+        while ((next = nextItem()) != END_OF_ELEMENTS) {
+            final BtreeKey ref = (BtreeKey) next;
+
+            if (isOrdered) {
+                if (builder.add(ref.myKey, ref.myOID)) {
+                    continue;
+                }
+
+                builder.finish();
+                isOrdered = false;
             }
+
+            aIndex.insert(ref.myKey, new PersistentStub(myStorage, ref.myOID), false);
+        }
+
+        if (isOrdered) {
+            builder.finish();
         }
 
-        if (token != XMLScanner.XML_LTS || myScanner.scan() != XMLScanner.XML_IDENT || !DATABASE.equals(myScanner
-                .getIdentifier()) || myScanner.scan() != XMLScanner.XML_GT) {
-            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_023);
+        synchronized (myStorage) {
+            final byte[] data = myStorage.packObject(aIndex, false);
+
+            storeObject(new PackedObject(aIndex.getOid(), data, ObjectHeader.getSize(data, 0)));
         }
     }
 
-    final String getAttribute(final XMLElement aElement, final String aName) throws XMLImportException {
-        final String value = aElement.getAttribute(aName);
+    final void storeObject(final PackedObject aObject) {
+        synchronized (myStorage) {
+            final long position = myStorage.allocate(aObject.mySize, 0);
 
-        if (value == null) {
-            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_022, aName);
+            myStorage.setPosition(aObject.myOid, position | StorageImpl.DB_MODIFIED_FLAG);
+            myStorage.myPool.put(position, aObject.myData, aObject.mySize);
         }
+    }
 
-        return value;
+    /**
+     * Creates the exception at the current position of the scanner.
+     */
+    final XMLImportException error(final String aMessage) {
+        return new XMLImportException(myScanner.getLine(), myScanner.getColumn(), aMessage);
+    }
+
+    final XMLImportException error(final String aMessage, final String aDetail) {
+        return new XMLImportException(myScanner.getLine(), myScanner.getColumn(), aMessage, aDetail);
     }
 
-    final int getIntAttribute(final XMLElement aElement, final String aName) throws XMLImportException {
-        final String value = aElement.getAttribute(aName);
+    final String getAttribute(final String aName) throws XMLImportException {
+        final String value = myAttributes.get(aName);
 
         if (value == null) {
-            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_022, aName);
+            throw error(MessageCodes.SB_022, aName);
         }
 
+        return value;
+    }
+
+    final int getIntAttribute(final String aName) throws XMLImportException {
+        final String value = getAttribute(aName);
+
         try {
             return Integer.parseInt(value);
         } catch (final NumberFormatException details) {
-            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_021, value);
+            throw error(MessageCodes.SB_021, value);
+        }
+    }
+
+    final int allocateId() {
+        synchronized (myStorage) {
+            return myStorage.allocateId();
         }
     }
 
@@ -147,12 +296,12 @@ public class XMLImporter {
                 System.arraycopy(myIDMap, 0, newMap, 0, myIDMap.length);
 
                 myIDMap = newMap;
-                myIDMap[aID] = oid = myStorage.allocateId();
+                myIDMap[aID] = oid = allocateId();
             } else {
                 oid = myIDMap[aID];
 
                 if (oid == 0) {
-                    myIDMap[aID] = oid = myStorage.allocateId();
+                    myIDMap[aID] = oid = allocateId();
                 }
             }
         }
@@ -167,7 +316,23 @@ public class XMLImporter {
             }
         }
 
-        throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_020);
+        throw error(MessageCodes.SB_020);
+    }
+
+    final ClassDescriptor getClassDescriptor(final String aClassName) {
+        ClassDescriptor desc = myClassDescriptors.get(aClassName);
+
+        if (desc == null) {
+            final Class cls = ClassDescriptor.loadClass(myStorage, aClassName);
+
+            synchronized (myStorage) {
+                desc = myStorage.getClassDescriptor(cls);
+            }
+
+            myClassDescriptors.put(aClassName, desc);
+        }
+
+        return desc;
     }
 
     final Key createCompoundKey(final int[] aTypes, final String[] aValues) throws XMLImportException {
@@ -241,11 +406,11 @@ public class XMLImporter {
 
                         break;
                     default:
-                        throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_019);
+                        throw error(MessageCodes.SB_019);
                 }
             }
         } catch (final NumberFormatException details) {
-            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_018);
+            throw error(MessageCodes.SB_018);
         }
 
         return new Key(buffer.toArray());
@@ -294,17 +459,16 @@ public class XMLImporter {
                         date = HTTP_FORMATTER.parse(aValue, new ParsePosition(0));
 
                         if (date == null) {
-                            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                    MessageCodes.SB_007);
+                            throw error(MessageCodes.SB_007);
                         }
                     }
 
                     return new Key(date);
                 default:
-                    throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_019);
+                    throw error(MessageCodes.SB_019);
             }
         } catch (final NumberFormatException details) {
-            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_018);
+            throw error(MessageCodes.SB_018);
         }
     }
 
@@ -312,11 +476,14 @@ public class XMLImporter {
         try {
             return Integer.parseInt(aString);
         } catch (final NumberFormatException details) {
-            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_017, aString);
+            throw error(MessageCodes.SB_017, aString);
         }
     }
 
-    final void createIndex(final String aIndexType) throws XMLImportException {
+    /**
+     * Creates the index from the attributes of its start tag.
+     */
+    final Btree createIndex(final String aIndexType) throws XMLImportException {
         Btree btree = null;
         int oid = 0;
         boolean unique = false;
@@ -326,16 +493,10 @@ public class XMLImporter {
         int[] types = null;
         long autoinc = 0;
         String type = null;
-        int token;
-
-        while ((token = myScanner.scan()) == XMLScanner.XML_IDENT) {
-            final String attrName = myScanner.getIdentifier();
-
-            if (myScanner.scan() != XMLScanner.XML_EQ || myScanner.scan() != XMLScanner.XML_SCONST) {
-                throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_003);
-            }
 
-            final String attrValue = myScanner.getString();
+        for (final Map.Entry<String, String> attribute : myAttributes.entrySet()) {
+            final String attrName = attribute.getKey();
+            final String attrValue = attribute.getValue();
 
             if (ID.equals(attrName)) {
                 oid = mapId(parseInt(attrValue));
@@ -380,12 +541,8 @@ public class XMLImporter {
             }
         }
 
-        if (token != XMLScanner.XML_GT) {
-            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_016);
-        }
-
         if (oid == 0) {
-            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_015);
+            throw error(MessageCodes.SB_015);
         }
 
         if (className != null) {
@@ -404,7 +561,7 @@ public class XMLImporter {
                     btree = new BtreeMultiFieldIndex(cls, fieldNames, unique);
                 }
             } else {
-                throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_014);
+                throw error(MessageCodes.SB_014);
             }
         } else {
             if (types != null) {
@@ -413,7 +570,7 @@ public class XMLImporter {
                 if (PersistentSet.class.getName().equals(aIndexType)) {
                     btree = new PersistentSet(unique);
                 } else {
-                    throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_013);
+                    throw error(MessageCodes.SB_013);
                 }
             } else {
                 btree = new Btree(mapType(type), unique);
@@ -422,969 +579,936 @@ public class XMLImporter {
 
         myStorage.assignOid(btree, oid, false);
 
-        while ((token = myScanner.scan()) == XMLScanner.XML_LT) {
-            if (myScanner.scan() != XMLScanner.XML_IDENT || !REF.equals(myScanner.getIdentifier())) {
-                throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_012);
+        return btree;
+    }
+
+    /**
+     * Creates the key of the index from the attributes of the reference.
+     */
+    final Key createKey(final Btree aIndex) throws XMLImportException {
+        final int[] types;
+
+        if (aIndex instanceof BtreeMultiFieldIndex) {
+            types = ((BtreeMultiFieldIndex) aIndex).myTypes;
+        } else if (aIndex instanceof BtreeCompoundIndex) {
+            types = ((BtreeCompoundIndex) aIndex).myTypes;
+        } else {
+            return createKey(aIndex.myType, getAttribute(KEY));
+        }
+
+        final String[] values = new String[types.length];
+
+        for (int index = 0; index < values.length; index++) {
+            values[index] = getAttribute(KEY + index);
+        }
+
+        return createCompoundKey(types, values);
+    }
+
+    final int getHexValue(final char aChar) throws XMLImportException {
+        if (aChar >= '0' && aChar <= '9') {
+            return aChar - '0';
+        } else if (aChar >= 'A' && aChar <= 'F') {
+            return aChar - 'A' + 10;
+        } else if (aChar >= 'a' && aChar <= 'f') {
+            return aChar - 'a' + 10;
+        } else {
+            throw error(MessageCodes.SB_011);
+        }
+    }
+
+    /**
+     * Reads the name of the element which follows its opening bracket.
+     */
+    final String readName() throws XMLImportException {
+        if (myScanner.scan() != XMLScanner.XML_IDENT) {
+            throw error(MessageCodes.SB_005);
+        }
+
+        return myScanner.getIdentifier();
+    }
+
+    /**
+     * Reads the attributes of the start tag.
+     *
+     * @return True if the element has content, false if the tag is closed by itself
+     */
+    final boolean readAttributes() throws XMLImportException {
+        String attribute;
+
+        myAttributes.clear();
+
+        while (true) {
+            switch (myScanner.scan()) {
+                case XMLScanner.XML_GTS:
+                    return false;
+                case XMLScanner.XML_GT:
+                    return true;
+                case XMLScanner.XML_IDENT:
+                    attribute = myScanner.getIdentifier();
+
+                    if (myScanner.scan() != XMLScanner.XML_EQ || myScanner.scan() != XMLScanner.XML_SCONST) {
+                        throw error(MessageCodes.SB_003);
+                    }
+
+                    myAttributes.put(attribute, myScanner.getString());
+                    break;
+                default:
+                    throw error(MessageCodes.SB_002);
             }
+        }
+    }
+
+    final void checkEndTag(final int aToken, final String aName) throws XMLImportException {
+        if (aToken != XMLScanner.XML_LTS || myScanner.scan() != XMLScanner.XML_IDENT || !myScanner.getIdentifier()
+                .equals(aName) || myScanner.scan() != XMLScanner.XML_GT) {
+            throw error(MessageCodes.SB_004);
+        }
+    }
+
+    /**
+     * Skips the element whose name has been read.
+     */
+    final void skipElement(final String aName) throws XMLImportException {
+        if (readAttributes()) {
+            skipContent(aName);
+        }
+    }
 
-            final XMLElement ref = readElement(REF);
+    /**
+     * Skips the content of the element up to its end tag.
+     */
+    final void skipContent(final String aName) throws XMLImportException {
+        int token;
 
-            Key key = null;
+        while ((token = myScanner.scan()) != XMLScanner.XML_LTS) {
+            if (token == XMLScanner.XML_LT) {
+                skipElement(readName());
+            } else if (token == XMLScanner.XML_EOF) {
+                throw error(MessageCodes.SB_004);
+            }
+        }
 
-            if (fieldNames != null) {
-                final String[] values = new String[fieldNames.length];
+        checkEndTag(token, aName);
+    }
 
-                for (int index = 0; index < values.length; index++) {
-                    values[index] = getAttribute(ref, KEY + index);
-                }
+    /**
+     * Skips the elements following the value of the element up to its end tag.
+     */
+    final void skipChildren(final String aName) throws XMLImportException {
+        int token;
 
-                key = createCompoundKey(((BtreeMultiFieldIndex) btree).myTypes, values);
-            } else if (types != null) {
-                final String[] values = new String[types.length];
+        while ((token = myScanner.scan()) == XMLScanner.XML_LT) {
+            skipElement(readName());
+        }
 
-                for (int index = 0; index < values.length; index++) {
-                    values[index] = getAttribute(ref, KEY + index);
-                }
+        checkEndTag(token, aName);
+    }
 
-                key = createCompoundKey(types, values);
-            } else {
-                key = createKey(btree.myType, getAttribute(ref, KEY));
+    /**
+     * Reads the start tag of the next child of the element.
+     *
+     * @return The name of the child or null at the end tag of the element
+     */
+    final String nextChild(final String aName) throws XMLImportException {
+        final int token = myScanner.scan();
+
+        if (token == XMLScanner.XML_LT) {
+            return readName();
+        }
+
+        checkEndTag(token, aName);
+
+        return null;
+    }
+
+    /**
+     * Reads the start tag of the next item of the array, skipping the elements of other names.
+     *
+     * @param aToken A token following the previous item
+     * @param aName A name of the array element
+     * @return False at the end tag of the array
+     */
+    final boolean nextItem(final int aToken, final String aName) throws XMLImportException {
+        int token = aToken;
+
+        while (token == XMLScanner.XML_LT) {
+            final String name = readName();
+
+            if (ELEMENT.equals(name)) {
+                return true;
             }
 
-            btree.insert(key, new PersistentStub(myStorage, mapId(getIntAttribute(ref, ID))), false);
+            skipElement(name);
+            token = myScanner.scan();
+        }
+
+        checkEndTag(token, aName);
+
+        return false;
+    }
+
+    /**
+     * Reads the array element up to its first item.
+     *
+     * @return -1 if the array is null, 0 if it is empty or 1 if the start tag of its first item is read
+     */
+    final int startArray(final String aName) throws XMLImportException {
+        if (!readAttributes()) {
+            return 0;
+        }
+
+        int token = myScanner.scan();
+
+        if (token == XMLScanner.XML_IDENT && NULL.equals(myScanner.getIdentifier())) {
+            checkEndTag(myScanner.scan(), aName);
+            return -1;
+        }
+
+        if (token == XMLScanner.XML_SCONST || token == XMLScanner.XML_ICONST || token == XMLScanner.XML_FCONST ||
+                token == XMLScanner.XML_IDENT) {
+            token = myScanner.scan();
+        }
+
+        return nextItem(token, aName) ? 1 : 0;
+    }
+
+    /**
+     * Reads the value of the element, whose name has been read, up to its end tag. Elements preceding the value are
+     * skipped.
+     */
+    final void readValue(final String aName) throws XMLImportException {
+        myValueType = NO_VALUE;
+
+        if (!readAttributes()) {
+            return;
         }
 
-        if (token != XMLScanner.XML_LTS || myScanner.scan() != XMLScanner.XML_IDENT || !myScanner.getIdentifier()
-                .equals(aIndexType) || myScanner.scan() != XMLScanner.XML_GT) {
-            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_004);
+        int token;
+
+        while ((token = myScanner.scan()) == XMLScanner.XML_LT) {
+            skipElement(readName());
         }
 
-        final byte[] data = myStorage.packObject(btree, false);
-        final int size = ObjectHeader.getSize(data, 0);
-        final long pos = myStorage.allocate(size, 0);
+        switch (token) {
+            case XMLScanner.XML_SCONST:
+                myStringValue = myScanner.getString();
+                myValueType = STRING_VALUE;
+                token = myScanner.scan();
+                break;
+            case XMLScanner.XML_ICONST:
+                myIntValue = myScanner.getInt();
+                myValueType = INT_VALUE;
+                token = myScanner.scan();
+                break;
+            case XMLScanner.XML_FCONST:
+                myRealValue = myScanner.getReal();
+                myValueType = REAL_VALUE;
+                token = myScanner.scan();
+                break;
+            case XMLScanner.XML_IDENT:
+                if (myScanner.getIdentifier().equals(NULL)) {
+                    myValueType = NULL_VALUE;
+                } else {
+                    myStringValue = myScanner.getIdentifier();
+                    myValueType = STRING_VALUE;
+                }
+
+                token = myScanner.scan();
+                break;
+            default:
+                // element has no value
+        }
 
-        myStorage.setPosition(oid, pos | StorageImpl.DB_MODIFIED_FLAG);
-        myStorage.myPool.put(pos & ~StorageImpl.DB_FLAGS_MASK, data, size);
+        checkEndTag(token, aName);
     }
 
-    final void createObject(final XMLElement aElement) throws XMLImportException {
-        final Class clazz = ClassDescriptor.loadClass(myStorage, aElement.myName);
-        final ClassDescriptor classDescriptor = myStorage.getClassDescriptor(clazz);
-        final int oid = mapId(getIntAttribute(aElement, ID));
+    /**
+     * Reads the object, whose name has been read, and packs it.
+     */
+    final PackedObject parseObject(final String aName) throws XMLImportException {
+        final ClassDescriptor desc = getClassDescriptor(aName);
+        final boolean hasContent = readAttributes();
+        final int oid = mapId(getIntAttribute(ID));
         final ByteBuffer buffer = new ByteBuffer();
-        final long position;
 
         int offset = ObjectHeader.SIZE_OF;
 
         buffer.extend(offset);
-        offset = packObject(aElement, classDescriptor, offset, buffer);
+        offset = packObject(hasContent ? aName : null, desc, offset, buffer);
 
         ObjectHeader.setSize(buffer.myByteArray, 0, offset);
-        ObjectHeader.setType(buffer.myByteArray, 0, classDescriptor.getOid());
-
-        position = myStorage.allocate(offset, 0);
+        ObjectHeader.setType(buffer.myByteArray, 0, desc.getOid());
 
-        myStorage.setPosition(oid, position | StorageImpl.DB_MODIFIED_FLAG);
-        myStorage.myPool.put(position, buffer.myByteArray, offset);
+        return new PackedObject(oid, buffer.myByteArray, offset);
     }
 
-    final int getHexValue(final char aChar) throws XMLImportException {
-        if (aChar >= '0' && aChar <= '9') {
-            return aChar - '0';
-        } else if (aChar >= 'A' && aChar <= 'F') {
-            return aChar - 'A' + 10;
-        } else if (aChar >= 'a' && aChar <= 'f') {
-            return aChar - 'a' + 10;
-        } else {
-            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_011);
+    final int importBinary(final String aName, final int aOffset, final ByteBuffer aBuffer)
+            throws XMLImportException {
+        int offset = aOffset;
+
+        if (!readAttributes()) {
+            return aBuffer.packI4(offset, 0);
         }
-    }
 
-    final int importBinary(final XMLElement aElement, final int aOffset, final ByteBuffer aBuffer,
-            final String aFieldName) throws XMLImportException {
-        int offset = aOffset;
+        final int token = myScanner.scan();
 
-        if (aElement == null || aElement.isNullValue()) {
-            offset = aBuffer.packI4(aOffset, -1);
-        } else if (aElement.isStringValue()) {
-            final String hexStr = aElement.getStringValue();
+        if (token == XMLScanner.XML_IDENT && NULL.equals(myScanner.getIdentifier())) {
+            offset = aBuffer.packI4(offset, -1);
+            checkEndTag(myScanner.scan(), aName);
+        } else if (token == XMLScanner.XML_SCONST) {
+            final String hexStr = myScanner.getString();
             final int len = hexStr.length();
 
-            aBuffer.extend(aOffset + 4 + len / 2);
-            Bytes.pack4(aBuffer.myByteArray, aOffset, len / 2);
+            aBuffer.extend(offset + 4 + len / 2);
+            Bytes.pack4(aBuffer.myByteArray, offset, len / 2);
             offset += 4;
 
             for (int jndex = 0; jndex < len; jndex += 2) {
                 aBuffer.myByteArray[offset++] = (byte) (getHexValue(hexStr.charAt(jndex)) << 4 | getHexValue(hexStr
                         .charAt(jndex + 1)));
             }
+
+            checkEndTag(myScanner.scan(), aName);
         } else {
-            final XMLElement ref = aElement.getSibling(REF);
+            final int lengthOffset = offset;
 
-            if (ref != null) {
-                aBuffer.extend(aOffset + 4);
-                Bytes.pack4(aBuffer.myByteArray, aOffset, mapId(getIntAttribute(ref, ID)));
-                offset += 4;
-            } else {
-                XMLElement item = aElement.getSibling(ELEMENT);
-                int len = item == null ? 0 : item.getCounter();
-
-                aBuffer.extend(aOffset + 4 + len);
-                Bytes.pack4(aBuffer.myByteArray, aOffset, len);
-                offset += 4;
-
-                while (--len >= 0) {
-                    if (item.isIntValue()) {
-                        aBuffer.myByteArray[aOffset] = (byte) item.getIntValue();
-                    } else if (item.isRealValue()) {
-                        aBuffer.myByteArray[aOffset] = (byte) item.getRealValue();
-                    } else {
-                        throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_006,
-                                aFieldName);
-                    }
+            int len = 0;
 
-                    item = item.getNextSibling();
-                    offset += 1;
+            offset = aBuffer.packI4(offset, 0);
+
+            for (boolean hasItem = nextItem(token, aName); hasItem; hasItem = nextItem(myScanner.scan(), aName)) {
+                readValue(ELEMENT);
+                aBuffer.extend(offset + 1);
+
+                if (myValueType == INT_VALUE) {
+                    aBuffer.myByteArray[offset] = (byte) myIntValue;
+                } else if (myValueType == REAL_VALUE) {
+                    aBuffer.myByteArray[offset] = (byte) myRealValue;
+                } else {
+                    throw error(MessageCodes.SB_006, aName);
                 }
+
+                offset += 1;
+                len += 1;
             }
+
+            Bytes.pack4(aBuffer.myByteArray, lengthOffset, len);
         }
 
         return offset;
     }
 
-    int importRef(final XMLElement aElement, final int aOffset, final ByteBuffer aBuffer) throws XMLImportException {
+    /**
+     * Reads the reference, whose element name has been read, and packs it.
+     */
+    int importRef(final String aName, final int aOffset, final ByteBuffer aBuffer) throws XMLImportException {
         int offset = aOffset;
-        int oid = 0;
-
-        if (aElement != null) {
-            if (aElement.isStringValue()) {
-                final String str = aElement.getStringValue();
-
-                offset = aBuffer.packI4(offset, -1 - ClassDescriptor.TP_STRING);
-
-                return aBuffer.packString(offset, str);
-            } else {
-                final XMLElement value = aElement.getFirstSibling();
+        int token;
 
-                if (value == null) {
-                    throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_010);
-                }
+        if (!readAttributes()) {
+            throw error(MessageCodes.SB_010);
+        }
 
-                final String name = value.getName();
+        token = myScanner.scan();
 
-                if ("scalar".equals(name)) {
-                    final int tid = getIntAttribute(value, TYPE);
-                    final String hexStr = getAttribute(value, "value");
-                    final int len = hexStr.length();
+        if (token == XMLScanner.XML_SCONST || token == XMLScanner.XML_IDENT && !NULL.equals(myScanner
+                .getIdentifier())) {
+            final String str = token == XMLScanner.XML_SCONST ? myScanner.getString() : myScanner.getIdentifier();
 
-                    aBuffer.extend(offset + 4 + len / 2);
-                    Bytes.pack4(aBuffer.myByteArray, offset, -1 - tid);
-                    offset += 4;
+            offset = aBuffer.packI4(offset, -1 - ClassDescriptor.TP_STRING);
+            offset = aBuffer.packString(offset, str);
+            checkEndTag(myScanner.scan(), aName);
 
-                    if (tid == ClassDescriptor.TP_CUSTOM) {
-                        try {
-                            final Object obj = myStorage.mySerializer.parse(hexStr);
+            return offset;
+        }
 
-                            myStorage.mySerializer.pack(obj, aBuffer.getOutputStream());
-                            offset = aBuffer.size();
-                        } catch (final Exception details) {
-                            throw new XMLImportException(details, myScanner.getLine(), myScanner.getColumn(),
-                                    MessageCodes.SB_009, details.getMessage());
-                        }
-                    } else {
-                        for (int jndex = 0; jndex < len; jndex += 2) {
-                            aBuffer.myByteArray[offset++] = (byte) (getHexValue(hexStr.charAt(jndex)) << 4 |
-                                    getHexValue(hexStr.charAt(jndex + 1)));
-                        }
-                    }
+        if (token != XMLScanner.XML_LT) {
+            throw error(MessageCodes.SB_010);
+        }
 
-                    return offset;
-                } else if (name == CLASS) {
-                    final String className = getAttribute(value, "name");
-                    offset = aBuffer.packI4(offset, -1 - ClassDescriptor.TP_CLASS);
-                    return aBuffer.packString(offset, className);
-                } else if (REF.equals(name)) {
-                    oid = mapId(getIntAttribute(value, ID));
-                } else {
-                    final Class cls = ClassDescriptor.loadClass(myStorage, name);
-                    final ClassDescriptor desc = myStorage.getClassDescriptor(cls);
+        final String name = readName();
 
-                    offset = aBuffer.packI4(offset, -ClassDescriptor.TP_VALUE_TYPE_BIAS - desc.getOid());
+        final boolean hasContent = readAttributes();
 
-                    if (desc.isCollection) {
-                        XMLElement item = value.getSibling(ELEMENT);
-                        int len = item == null ? 0 : item.getCounter();
+        if ("scalar".equals(name)) {
+            final int tid = getIntAttribute(TYPE);
+            final String hexStr = getAttribute("value");
+            final int len = hexStr.length();
 
-                        offset = aBuffer.packI4(offset, len);
+            aBuffer.extend(offset + 4 + len / 2);
+            Bytes.pack4(aBuffer.myByteArray, offset, -1 - tid);
+            offset += 4;
 
-                        while (--len >= 0) {
-                            offset = importRef(item, offset, aBuffer);
-                            item = item.getNextSibling();
-                        }
-                    } else {
-                        offset = packObject(value, desc, offset, aBuffer);
-                    }
+            if (tid == ClassDescriptor.TP_CUSTOM) {
+                try {
+                    final Object obj = myStorage.mySerializer.parse(hexStr);
 
-                    return offset;
+                    myStorage.mySerializer.pack(obj, aBuffer.getOutputStream());
+                    offset = aBuffer.size();
+                } catch (final Exception details) {
+                    throw new XMLImportException(details, myScanner.getLine(), myScanner.getColumn(),
+                            MessageCodes.SB_009, details.getMessage());
+                }
+            } else {
+                for (int jndex = 0; jndex < len; jndex += 2) {
+                    aBuffer.myByteArray[offset++] = (byte) (getHexValue(hexStr.charAt(jndex)) << 4 | getHexValue(
+                            hexStr.charAt(jndex + 1)));
                 }
             }
-        }
+        } else if (CLASS.equals(name)) {
+            offset = aBuffer.packI4(offset, -1 - ClassDescriptor.TP_CLASS);
+            offset = aBuffer.packString(offset, getAttribute("name"));
+        } else if (REF.equals(name)) {
+            offset = aBuffer.packI4(offset, mapId(getIntAttribute(ID)));
+        } else {
+            final ClassDescriptor desc = getClassDescriptor(name);
 
-        return aBuffer.packI4(offset, oid);
-    }
+            offset = aBuffer.packI4(offset, -ClassDescriptor.TP_VALUE_TYPE_BIAS - desc.getOid());
 
-    final int packObject(final XMLElement aObjElem, final ClassDescriptor aClassDescriptor, final int aOffset,
-            final ByteBuffer aBuffer) throws XMLImportException {
-        final ClassDescriptor.FieldDescriptor[] fields = aClassDescriptor.myFields;
+            if (desc.isCollection) {
+                final int lengthOffset = offset;
 
-        int offset = aOffset;
+                int len = 0;
 
-        for (int index = 0, n = fields.length; index < n; index++) {
-            final ClassDescriptor.FieldDescriptor fileDescriptor = fields[index];
-            final String fieldName = fileDescriptor.myFieldName;
-            final XMLElement element = aObjElem != null ? aObjElem.getSibling(fieldName) : null;
+                offset = aBuffer.packI4(offset, 0);
 
-            switch (fileDescriptor.myType) {
-                case ClassDescriptor.TP_BYTE:
-                    aBuffer.extend(offset + 1);
-
-                    if (element != null) {
-                        if (element.isIntValue()) {
-                            aBuffer.myByteArray[offset] = (byte) element.getIntValue();
-                        } else if (element.isRealValue()) {
-                            aBuffer.myByteArray[offset] = (byte) element.getRealValue();
-                        } else {
-                            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                    MessageCodes.SB_006, fieldName);
-                        }
-                    }
+                for (boolean hasItem = hasContent && nextItem(myScanner.scan(), name); hasItem; hasItem = nextItem(
+                        myScanner.scan(), name)) {
+                    offset = importRef(ELEMENT, offset, aBuffer);
+                    len += 1;
+                }
 
-                    offset += 1;
-                    continue;
-                case ClassDescriptor.TP_BOOLEAN:
-                    aBuffer.extend(offset + 1);
-
-                    if (element != null) {
-                        if (element.isIntValue()) {
-                            aBuffer.myByteArray[offset] = (byte) (element.getIntValue() != 0 ? 1 : 0);
-                        } else if (element.isRealValue()) {
-                            aBuffer.myByteArray[offset] = (byte) (element.getRealValue() != 0.0 ? 1 : 0);
-                        } else {
-                            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                    MessageCodes.SB_006, fieldName);
-                        }
-                    }
+                Bytes.pack4(aBuffer.myByteArray, lengthOffset, len);
+            } else {
+                offset = packObject(hasContent ? name : null, desc, offset, aBuffer);
+            }
 
-                    offset += 1;
-                    continue;
-                case ClassDescriptor.TP_SHORT:
-                case ClassDescriptor.TP_CHAR:
-                    aBuffer.extend(offset + 2);
-
-                    if (element != null) {
-                        if (element.isIntValue()) {
-                            Bytes.pack2(aBuffer.myByteArray, offset, (short) element.getIntValue());
-                        } else if (element.isRealValue()) {
-                            Bytes.pack2(aBuffer.myByteArray, offset, (short) element.getRealValue());
-                        } else {
-                            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                    MessageCodes.SB_006, fieldName);
-                        }
-                    }
+            skipChildren(aName);
 
-                    offset += 2;
-                    continue;
-                case ClassDescriptor.TP_INT:
-                    aBuffer.extend(offset + 4);
-
-                    if (element != null) {
-                        if (element.isIntValue()) {
-                            Bytes.pack4(aBuffer.myByteArray, offset, (int) element.getIntValue());
-                        } else if (element.isRealValue()) {
-                            Bytes.pack4(aBuffer.myByteArray, offset, (int) element.getRealValue());
-                        } else {
-                            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                    MessageCodes.SB_006, fieldName);
-                        }
-                    }
+            return offset;
+        }
 
-                    offset += 4;
-                    continue;
-                case ClassDescriptor.TP_LONG:
-                    aBuffer.extend(offset + 8);
-
-                    if (element != null) {
-                        if (element.isIntValue()) {
-                            Bytes.pack8(aBuffer.myByteArray, offset, element.getIntValue());
-                        } else if (element.isRealValue()) {
-                            Bytes.pack8(aBuffer.myByteArray, offset, (long) element.getRealValue());
-                        } else {
-                            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                    MessageCodes.SB_006, fieldName);
-                        }
-                    }
+        if (hasContent) {
+            skipContent(name);
+        }
 
-                    offset += 8;
-                    continue;
-                case ClassDescriptor.TP_FLOAT:
-                    aBuffer.extend(offset + 4);
-
-                    if (element != null) {
-                        if (element.isIntValue()) {
-                            Bytes.pack4(aBuffer.myByteArray, offset, Float.floatToIntBits(element.getIntValue()));
-                        } else if (element.isRealValue()) {
-                            Bytes.pack4(aBuffer.myByteArray, offset, Float.floatToIntBits((float) element
-                                    .getRealValue()));
-                        } else {
-                            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                    MessageCodes.SB_006, fieldName);
-                        }
-                    }
+        skipChildren(aName);
 
-                    offset += 4;
-                    continue;
-                case ClassDescriptor.TP_DOUBLE:
-                    aBuffer.extend(offset + 8);
-
-                    if (element != null) {
-                        if (element.isIntValue()) {
-                            Bytes.pack8(aBuffer.myByteArray, offset, Double.doubleToLongBits(element.getIntValue()));
-                        } else if (element.isRealValue()) {
-                            Bytes.pack8(aBuffer.myByteArray, offset, Double.doubleToLongBits(element.getRealValue()));
-                        } else {
-                            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                    MessageCodes.SB_006, fieldName);
-                        }
-                    }
+        return offset;
+    }
 
-                    offset += 8;
-                    continue;
-                case ClassDescriptor.TP_ENUM:
-                    aBuffer.extend(offset + 4);
-
-                    if (element != null) {
-                        if (element.isIntValue()) {
-                            Bytes.pack4(aBuffer.myByteArray, offset, (int) element.getIntValue());
-                        } else if (element.isRealValue()) {
-                            Bytes.pack4(aBuffer.myByteArray, offset, (int) element.getRealValue());
-                        } else if (element.isNullValue()) {
-                            Bytes.pack4(aBuffer.myByteArray, offset, -1);
-                        } else if (element.isStringValue()) {
-                            Bytes.pack4(aBuffer.myByteArray, offset, Enum.valueOf((Class) fileDescriptor.myField
-                                    .getType(), element.getStringValue()).ordinal());
-                        } else {
-                            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                    MessageCodes.SB_006, fieldName);
-                        }
-                    }
+    /**
+     * Packs the fields of the object from the children of its element. Fields are exported in the order of the class
+     * descriptor, so each child is matched with the following fields of the descriptor: the fields which have no
+     * child get default values and the children which match no field are skipped.
+     *
+     * @param aName A name of the element whose start tag has been read, or null if the element has no content
+     */
+    final int packObject(final String aName, final ClassDescriptor aClassDescriptor, final int aOffset,
+            final ByteBuffer aBuffer) throws XMLImportException {
+        final ClassDescriptor.FieldDescriptor[] fields = aClassDescriptor.myFields;
 
-                    offset += 4;
-                    continue;
-                case ClassDescriptor.TP_DATE:
-                    aBuffer.extend(offset + 8);
-
-                    if (element != null) {
-                        if (element.isIntValue()) {
-                            Bytes.pack8(aBuffer.myByteArray, offset, element.getIntValue());
-                        } else if (element.isNullValue()) {
-                            Bytes.pack8(aBuffer.myByteArray, offset, -1);
-                        } else if (element.isStringValue()) {
-                            final Date date = HTTP_FORMATTER.parse(element.getStringValue(), new ParsePosition(0));
-                            if (date == null) {
-                                throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                        MessageCodes.SB_007);
-                            }
-                            Bytes.pack8(aBuffer.myByteArray, offset, date.getTime());
-                        } else {
-                            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                    MessageCodes.SB_006, fieldName);
-                        }
-                    }
+        String child = aName != null ? nextChild(aName) : null;
+        int offset = aOffset;
 
-                    offset += 8;
-                    continue;
-                case ClassDescriptor.TP_STRING:
-                case ClassDescriptor.TP_CLASS:
-                    if (element != null) {
-                        String value = null;
-
-                        if (element.isIntValue()) {
-                            value = Long.toString(element.getIntValue());
-                        } else if (element.isRealValue()) {
-                            value = Double.toString(element.getRealValue());
-                        } else if (element.isStringValue()) {
-                            value = element.getStringValue();
-                        } else if (element.isNullValue()) {
-                            value = null;
-                        } else {
-                            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                    MessageCodes.SB_006, fieldName);
-                        }
+        for (int index = 0, n = fields.length; index < n; index++) {
+            while (child != null && findField(fields, index, child) < 0) {
+                if (findField(fields, 0, child) >= 0) {
+                    throw error(MessageCodes.SB_048, child);
+                }
 
-                        offset = aBuffer.packString(offset, value);
-                        continue;
-                    }
+                skipElement(child);
+                child = nextChild(aName);
+            }
 
-                    offset = aBuffer.packI4(offset, -1);
-                    continue;
-                case ClassDescriptor.TP_OBJECT:
-                    offset = importRef(element, offset, aBuffer);
-                    continue;
-                case ClassDescriptor.TP_VALUE:
-                    offset = packObject(element, fileDescriptor.myClassDescriptor, offset, aBuffer);
-                    continue;
-                case ClassDescriptor.TP_RAW:
-                case ClassDescriptor.TP_ARRAY_OF_BYTES:
-                    offset = importBinary(element, offset, aBuffer, fieldName);
-                    continue;
-                case ClassDescriptor.TP_CUSTOM: {
-                    if (!element.isStringValue()) {
-                        throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_009);
-                    }
+            if (child != null && child.equals(fields[index].myFieldName)) {
+                offset = packField(fields[index], true, offset, aBuffer);
+                child = nextChild(aName);
+            } else {
+                offset = packField(fields[index], false, offset, aBuffer);
+            }
+        }
 
-                    final String string = element.getStringValue();
+        while (child != null) {
+            if (findField(fields, 0, child) >= 0) {
+                throw error(MessageCodes.SB_048, child);
+            }
 
-                    try {
-                        final Object obj = myStorage.mySerializer.parse(string);
+            skipElement(child);
+            child = nextChild(aName);
+        }
 
-                        myStorage.mySerializer.pack(obj, aBuffer.getOutputStream());
-                        offset = aBuffer.size();
-                    } catch (final Exception details) {
-                        throw new XMLImportException(details, myScanner.getLine(), myScanner.getColumn(),
-                                MessageCodes.SB_008, details.getMessage());
-                    }
+        return offset;
+    }
 
-                    break;
-                }
-                case ClassDescriptor.TP_ARRAY_OF_BOOLEANS:
-                    if (element == null || element.isNullValue()) {
-                        offset = aBuffer.packI4(offset, -1);
-                    } else {
-                        XMLElement item = element.getSibling(ELEMENT);
-                        int len = item == null ? 0 : item.getCounter();
-
-                        aBuffer.extend(offset + 4 + len);
-                        Bytes.pack4(aBuffer.myByteArray, offset, len);
-                        offset += 4;
-
-                        while (--len >= 0) {
-                            if (item.isIntValue()) {
-                                aBuffer.myByteArray[offset] = (byte) (item.getIntValue() != 0 ? 1 : 0);
-                            } else if (item.isRealValue()) {
-                                aBuffer.myByteArray[offset] = (byte) (item.getRealValue() != 0.0 ? 1 : 0);
-                            } else {
-                                throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                        MessageCodes.SB_006, fieldName);
-                            }
+    static int findField(final ClassDescriptor.FieldDescriptor[] aFields, final int aStart, final String aName) {
+        for (int index = aStart; index < aFields.length; index++) {
+            if (aFields[index].myFieldName.equals(aName)) {
+                return index;
+            }
+        }
 
-                            item = item.getNextSibling();
-                            offset += 1;
-                        }
-                    }
+        return -1;
+    }
 
-                    continue;
-                case ClassDescriptor.TP_ARRAY_OF_CHARS:
-                case ClassDescriptor.TP_ARRAY_OF_SHORTS:
-                    if (element == null || element.isNullValue()) {
-                        offset = aBuffer.packI4(offset, -1);
-                    } else {
-                        XMLElement item = element.getSibling(ELEMENT);
-                        int len = item == null ? 0 : item.getCounter();
-
-                        aBuffer.extend(offset + 4 + len * 2);
-                        Bytes.pack4(aBuffer.myByteArray, offset, len);
-                        offset += 4;
-
-                        while (--len >= 0) {
-                            if (item.isIntValue()) {
-                                Bytes.pack2(aBuffer.myByteArray, offset, (short) item.getIntValue());
-                            } else if (item.isRealValue()) {
-                                Bytes.pack2(aBuffer.myByteArray, offset, (short) item.getRealValue());
-                            } else {
-                                throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                        MessageCodes.SB_006, fieldName);
-                            }
+    /**
+     * Packs the field from its element, whose name has been read, or packs its default value.
+     *
+     * @param aIsPresent Whether the field has the element
+     */
+    final int packField(final ClassDescriptor.FieldDescriptor aField, final boolean aIsPresent, final int aOffset,
+            final ByteBuffer aBuffer) throws XMLImportException {
+        final String fieldName = aField.myFieldName;
 
-                            item = item.getNextSibling();
-                            offset += 2;
-                        }
-                    }
+        int offset = aOffset;
 
-                    continue;
-                case ClassDescriptor.TP_ARRAY_OF_INTS:
-                    if (element == null || element.isNullValue()) {
-                        offset = aBuffer.packI4(offset, -1);
-                    } else {
-                        XMLElement item = element.getSibling(ELEMENT);
-                        int len = item == null ? 0 : item.getCounter();
-
-                        aBuffer.extend(offset + 4 + len * 4);
-                        Bytes.pack4(aBuffer.myByteArray, offset, len);
-                        offset += 4;
-
-                        while (--len >= 0) {
-                            if (item.isIntValue()) {
-                                Bytes.pack4(aBuffer.myByteArray, offset, (int) item.getIntValue());
-                            } else if (item.isRealValue()) {
-                                Bytes.pack4(aBuffer.myByteArray, offset, (int) item.getRealValue());
-                            } else {
-                                throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                        MessageCodes.SB_006, fieldName);
-                            }
+        if (aIsPresent && (aField.myType < ClassDescriptor.TP_STRING || aField.myType == ClassDescriptor.TP_DATE ||
+                aField.myType == ClassDescriptor.TP_ENUM)) {
+            readValue(fieldName);
+        } else {
+            myValueType = NO_VALUE;
+        }
 
-                            item = item.getNextSibling();
-                            offset += 4;
-                        }
-                    }
+        switch (aField.myType) {
+            case ClassDescriptor.TP_BYTE:
+                aBuffer.extend(offset + 1);
 
-                    continue;
-                case ClassDescriptor.TP_ARRAY_OF_ENUMS:
-                    if (element == null || element.isNullValue()) {
-                        offset = aBuffer.packI4(offset, -1);
-                    } else {
-                        final Class enumType = fileDescriptor.myField.getType();
-
-                        XMLElement item = element.getSibling(ELEMENT);
-                        int len = item == null ? 0 : item.getCounter();
-
-                        aBuffer.extend(offset + 4 + len * 4);
-                        Bytes.pack4(aBuffer.myByteArray, offset, len);
-
-                        offset += 4;
-
-                        while (--len >= 0) {
-                            if (item.isIntValue()) {
-                                Bytes.pack4(aBuffer.myByteArray, offset, (int) item.getIntValue());
-                            } else if (item.isRealValue()) {
-                                Bytes.pack4(aBuffer.myByteArray, offset, (int) item.getRealValue());
-                            } else if (item.isNullValue()) {
-                                Bytes.pack4(aBuffer.myByteArray, offset, -1);
-                            } else if (item.isStringValue()) {
-                                Bytes.pack4(aBuffer.myByteArray, offset, Enum.valueOf(enumType, item.getStringValue())
-                                        .ordinal());
-                            } else {
-                                throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                        MessageCodes.SB_006, fieldName);
-                            }
+                if (myValueType == INT_VALUE) {
+                    aBuffer.myByteArray[offset] = (byte) myIntValue;
+                } else if (myValueType == REAL_VALUE) {
+                    aBuffer.myByteArray[offset] = (byte) myRealValue;
+                } else if (aIsPresent) {
+                    throw error(MessageCodes.SB_006, fieldName);
+                }
 
-                            item = item.getNextSibling();
-                            offset += 4;
-                        }
-                    }
+                return offset + 1;
+            case ClassDescriptor.TP_BOOLEAN:
+                aBuffer.extend(offset + 1);
 
-                    continue;
-                case ClassDescriptor.TP_ARRAY_OF_LONGS:
-                    if (element == null || element.isNullValue()) {
-                        offset = aBuffer.packI4(offset, -1);
-                    } else {
-                        XMLElement item = element.getSibling(ELEMENT);
-                        int len = item == null ? 0 : item.getCounter();
-
-                        aBuffer.extend(offset + 4 + len * 8);
-                        Bytes.pack4(aBuffer.myByteArray, offset, len);
-                        offset += 4;
-
-                        while (--len >= 0) {
-                            if (item.isIntValue()) {
-                                Bytes.pack8(aBuffer.myByteArray, offset, item.getIntValue());
-                            } else if (item.isRealValue()) {
-                                Bytes.pack8(aBuffer.myByteArray, offset, (long) item.getRealValue());
-                            } else {
-                                throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                        MessageCodes.SB_006, fieldName);
-                            }
+                if (myValueType == INT_VALUE) {
+                    aBuffer.myByteArray[offset] = (byte) (myIntValue != 0 ? 1 : 0);
+                } else if (myValueType == REAL_VALUE) {
+                    aBuffer.myByteArray[offset] = (byte) (myRealValue != 0.0 ? 1 : 0);
+                } else if (aIsPresent) {
+                    throw error(MessageCodes.SB_006, fieldName);
+                }
 
-                            item = item.getNextSibling();
-                            offset += 8;
-                        }
-                    }
+                return offset + 1;
+            case ClassDescriptor.TP_SHORT:
+            case ClassDescriptor.TP_CHAR:
+                aBuffer.extend(offset + 2);
+
+                if (myValueType == INT_VALUE) {
+                    Bytes.pack2(aBuffer.myByteArray, offset, (short) myIntValue);
+                } else if (myValueType == REAL_VALUE) {
+                    Bytes.pack2(aBuffer.myByteArray, offset, (short) myRealValue);
+                } else if (aIsPresent) {
+                    throw error(MessageCodes.SB_006, fieldName);
+                }
 
-                    continue;
-                case ClassDescriptor.TO_ARRAY_OF_FLOATS:
-                    if (element == null || element.isNullValue()) {
-                        offset = aBuffer.packI4(offset, -1);
-                    } else {
-                        XMLElement item = element.getSibling(ELEMENT);
-                        int len = item == null ? 0 : item.getCounter();
-
-                        aBuffer.extend(offset + 4 + len * 4);
-                        Bytes.pack4(aBuffer.myByteArray, offset, len);
-                        offset += 4;
-
-                        while (--len >= 0) {
-                            if (item.isIntValue()) {
-                                Bytes.pack4(aBuffer.myByteArray, offset, Float.floatToIntBits(item.getIntValue()));
-                            } else if (item.isRealValue()) {
-                                Bytes.pack4(aBuffer.myByteArray, offset, Float.floatToIntBits((float) item
-                                        .getRealValue()));
-                            } else {
-                                throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                        MessageCodes.SB_006, fieldName);
-                            }
+                return offset + 2;
+            case ClassDescriptor.TP_INT:
+                aBuffer.extend(offset + 4);
 
-                            item = item.getNextSibling();
-                            offset += 4;
-                        }
-                    }
+                if (myValueType == INT_VALUE) {
+                    Bytes.pack4(aBuffer.myByteArray, offset, (int) myIntValue);
+                } else if (myValueType == REAL_VALUE) {
+                    Bytes.pack4(aBuffer.myByteArray, offset, (int) myRealValue);
+                } else if (aIsPresent) {
+                    throw error(MessageCodes.SB_006, fieldName);
+                }
 
-                    continue;
-                case ClassDescriptor.TP_ARRAY_OF_DOUBLES:
-                    if (element == null || element.isNullValue()) {
-                        offset = aBuffer.packI4(offset, -1);
-                    } else {
-                        XMLElement item = element.getSibling(ELEMENT);
-                        int len = item == null ? 0 : item.getCounter();
-
-                        aBuffer.extend(offset + 4 + len * 8);
-                        Bytes.pack4(aBuffer.myByteArray, offset, len);
-                        offset += 4;
-
-                        while (--len >= 0) {
-                            if (item.isIntValue()) {
-                                Bytes.pack8(aBuffer.myByteArray, offset, Double.doubleToLongBits(item.getIntValue()));
-                            } else if (item.isRealValue()) {
-                                Bytes.pack8(aBuffer.myByteArray, offset, Double.doubleToLongBits(item
-                                        .getRealValue()));
-                            } else {
-                                throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                        MessageCodes.SB_006, fieldName);
-                            }
+                return offset + 4;
+            case ClassDescriptor.TP_LONG:
+                aBuffer.extend(offset + 8);
 
-                            item = item.getNextSibling();
-                            offset += 8;
-                        }
-                    }
+                if (myValueType == INT_VALUE) {
+                    Bytes.pack8(aBuffer.myByteArray, offset, myIntValue);
+                } else if (myValueType == REAL_VALUE) {
+                    Bytes.pack8(aBuffer.myByteArray, offset, (long) myRealValue);
+                } else if (aIsPresent) {
+                    throw error(MessageCodes.SB_006, fieldName);
+                }
 
-                    continue;
-                case ClassDescriptor.TP_ARRAY_OF_DATES:
-                    if (element == null || element.isNullValue()) {
-                        offset = aBuffer.packI4(offset, -1);
-                    } else {
-                        XMLElement item = element.getSibling(ELEMENT);
-                        int len = item == null ? 0 : item.getCounter();
-
-                        aBuffer.extend(offset + 4 + len * 8);
-                        Bytes.pack4(aBuffer.myByteArray, offset, len);
-                        offset += 4;
-
-                        while (--len >= 0) {
-                            if (item.isNullValue()) {
-                                Bytes.pack8(aBuffer.myByteArray, offset, -1);
-                            } else if (item.isStringValue()) {
-                                final Date date = HTTP_FORMATTER.parse(item.getStringValue(), new ParsePosition(0));
-
-                                if (date == null) {
-                                    throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                            MessageCodes.SB_007);
-                                }
+                return offset + 8;
+            case ClassDescriptor.TP_FLOAT:
+                aBuffer.extend(offset + 4);
 
-                                Bytes.pack8(aBuffer.myByteArray, offset, date.getTime());
-                            } else {
-                                throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                        MessageCodes.SB_006, fieldName);
-                            }
+                if (myValueType == INT_VALUE) {
+                    Bytes.pack4(aBuffer.myByteArray, offset, Float.floatToIntBits(myIntValue));
+                } else if (myValueType == REAL_VALUE) {
+                    Bytes.pack4(aBuffer.myByteArray, offset, Float.floatToIntBits((float) myRealValue));
+                } else if (aIsPresent) {
+                    throw error(MessageCodes.SB_006, fieldName);
+                }
 
-                            item = item.getNextSibling();
-                            offset += 8;
-                        }
-                    }
+                return offset + 4;
+            case ClassDescriptor.TP_DOUBLE:
+                aBuffer.extend(offset + 8);
 
-                    continue;
-                case ClassDescriptor.TP_ARRAY_OF_STRINGS:
-                    if (element == null || element.isNullValue()) {
-                        offset = aBuffer.packI4(offset, -1);
-                    } else {
-                        XMLElement item = element.getSibling(ELEMENT);
-                        int len = item == null ? 0 : item.getCounter();
-
-                        aBuffer.extend(offset + 4);
-                        Bytes.pack4(aBuffer.myByteArray, offset, len);
-                        offset += 4;
-
-                        while (--len >= 0) {
-                            String value = null;
-
-                            if (item.isIntValue()) {
-                                value = Long.toString(item.getIntValue());
-                            } else if (item.isRealValue()) {
-                                value = Double.toString(item.getRealValue());
-                            } else if (item.isStringValue()) {
-                                value = item.getStringValue();
-                            } else if (item.isNullValue()) {
-                                value = null;
-                            } else {
-                                throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                        MessageCodes.SB_006, fieldName);
-                            }
+                if (myValueType == INT_VALUE) {
+                    Bytes.pack8(aBuffer.myByteArray, offset, Double.doubleToLongBits(myIntValue));
+                } else if (myValueType == REAL_VALUE) {
+                    Bytes.pack8(aBuffer.myByteArray, offset, Double.doubleToLongBits(myRealValue));
+                } else if (aIsPresent) {
+                    throw error(MessageCodes.SB_006, fieldName);
+                }
 
-                            offset = aBuffer.packString(offset, value);
-                            item = item.getNextSibling();
-                        }
-                    }
+                return offset + 8;
+            case ClassDescriptor.TP_ENUM:
+                aBuffer.extend(offset + 4);
+
+                if (myValueType == INT_VALUE) {
+                    Bytes.pack4(aBuffer.myByteArray, offset, (int) myIntValue);
+                } else if (myValueType == REAL_VALUE) {
+                    Bytes.pack4(aBuffer.myByteArray, offset, (int) myRealValue);
+                } else if (myValueType == NULL_VALUE) {
+                    Bytes.pack4(aBuffer.myByteArray, offset, -1);
+                } else if (myValueType == STRING_VALUE) {
+                    Bytes.pack4(aBuffer.myByteArray, offset, Enum.valueOf((Class) aField.myField.getType(),
+                            myStringValue).ordinal());
+                } else if (aIsPresent) {
+                    throw error(MessageCodes.SB_006, fieldName);
+                }
 
-                    continue;
-                case ClassDescriptor.TP_ARRAY_OF_OBJECTS:
-                case ClassDescriptor.TP_LINK:
-                    if (element == null || element.isNullValue()) {
-                        offset = aBuffer.packI4(offset, -1);
-                    } else {
-                        XMLElement item = element.getSibling(ELEMENT);
-                        int len = item == null ? 0 : item.getCounter();
+                return offset + 4;
+            case ClassDescriptor.TP_DATE:
+                aBuffer.extend(offset + 8);
+
+                if (myValueType == INT_VALUE) {
+                    Bytes.pack8(aBuffer.myByteArray, offset, myIntValue);
+                } else if (myValueType == NULL_VALUE) {
+                    Bytes.pack8(aBuffer.myByteArray, offset, -1);
+                } else if (myValueType == STRING_VALUE) {
+                    Bytes.pack8(aBuffer.myByteArray, offset, parseDate(myStringValue));
+                } else if (aIsPresent) {
+                    throw error(MessageCodes.SB_006, fieldName);
+                }
 
-                        offset = aBuffer.packI4(offset, len);
+                return offset + 8;
+            case ClassDescriptor.TP_STRING:
+            case ClassDescriptor.TP_CLASS:
+                if (aIsPresent) {
+                    readValue(fieldName);
 
-                        while (--len >= 0) {
-                            offset = importRef(item, offset, aBuffer);
-                            item = item.getNextSibling();
-                        }
-                    }
+                    return aBuffer.packString(offset, getStringValue(fieldName));
+                }
 
-                    continue;
-                case ClassDescriptor.TP_ARRAY_OF_VALUES:
-                    if (element == null || element.isNullValue()) {
-                        offset = aBuffer.packI4(offset, -1);
-                    } else {
-                        final ClassDescriptor elemDesc = fileDescriptor.myClassDescriptor;
+                return aBuffer.packI4(offset, -1);
+            case ClassDescriptor.TP_OBJECT:
+                return aIsPresent ? importRef(fieldName, offset, aBuffer) : aBuffer.packI4(offset, 0);
+            case ClassDescriptor.TP_VALUE:
+                return packObject(aIsPresent && readAttributes() ? fieldName : null, aField.myClassDescriptor, offset,
+                        aBuffer);
+            case ClassDescriptor.TP_RAW:
+            case ClassDescriptor.TP_ARRAY_OF_BYTES:
+                return aIsPresent ? importBinary(fieldName, offset, aBuffer) : aBuffer.packI4(offset, -1);
+            case ClassDescriptor.TP_CUSTOM:
+                if (aIsPresent) {
+                    readValue(fieldName);
+                }
 
-                        XMLElement item = element.getSibling(ELEMENT);
-                        int len = item == null ? 0 : item.getCounter();
+                if (myValueType != STRING_VALUE) {
+                    throw error(MessageCodes.SB_009);
+                }
 
-                        offset = aBuffer.packI4(offset, len);
+                try {
+                    final Object obj = myStorage.mySerializer.parse(myStringValue);
 
-                        while (--len >= 0) {
-                            offset = packObject(item, elemDesc, offset, aBuffer);
-                            item = item.getNextSibling();
-                        }
-                    }
+                    myStorage.mySerializer.pack(obj, aBuffer.getOutputStream());
 
-                    continue;
-                default:
-                    // FIXME: Do what here?
-            }
+                    return aBuffer.size();
+                } catch (final Exception details) {
+                    throw new XMLImportException(details, myScanner.getLine(), myScanner.getColumn(),
+                            MessageCodes.SB_008, details.getMessage());
+                }
+            default:
+                return packArray(aField, aIsPresent ? startArray(fieldName) : -1, offset, aBuffer);
         }
-
-        return offset;
     }
 
-    final XMLElement readElement(final String aName) throws XMLImportException {
-        final XMLElement element = new XMLElement(aName);
-
-        String attribute;
-        int token;
-
-        while (true) {
-            switch (myScanner.scan()) {
-                case XMLScanner.XML_GTS:
-                    return element;
-                case XMLScanner.XML_GT:
-                    while ((token = myScanner.scan()) == XMLScanner.XML_LT) {
-                        if (myScanner.scan() != XMLScanner.XML_IDENT) {
-                            throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(),
-                                    MessageCodes.SB_005);
-                        }
-
-                        final String siblingName = myScanner.getIdentifier();
-                        final XMLElement sibling = readElement(siblingName);
-
-                        element.addSibling(sibling);
-                    }
-
-                    switch (token) {
-                        case XMLScanner.XML_SCONST:
-                            element.setStringValue(myScanner.getString());
-                            token = myScanner.scan();
-                            break;
-                        case XMLScanner.XML_ICONST:
-                            element.setIntValue(myScanner.getInt());
-                            token = myScanner.scan();
-                            break;
-                        case XMLScanner.XML_FCONST:
-                            element.setRealValue(myScanner.getReal());
-                            token = myScanner.scan();
-                            break;
-                        case XMLScanner.XML_IDENT:
-                            if (myScanner.getIdentifier().equals(NULL)) {
-                                element.setNullValue();
-                            } else {
-                                element.setStringValue(myScanner.getIdentifier());
-                            }
-
-                            token = myScanner.scan();
-                            break;
-                        default:
-                            // FIXME: Do what here?
-                    }
-
-                    if (token != XMLScanner.XML_LTS || myScanner.scan() != XMLScanner.XML_IDENT || !myScanner
-                            .getIdentifier().equals(aName) || myScanner.scan() != XMLScanner.XML_GT) {
-                        throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_004);
-                    }
-
-                    return element;
-                case XMLScanner.XML_IDENT:
-                    attribute = myScanner.getIdentifier();
+    /**
+     * Packs the items of the array field.
+     *
+     * @param aStart A result of reading the start of the array element
+     */
+    final int packArray(final ClassDescriptor.FieldDescriptor aField, final int aStart, final int aOffset,
+            final ByteBuffer aBuffer) throws XMLImportException {
+        final String fieldName = aField.myFieldName;
+        final int lengthOffset = aOffset;
 
-                    if (myScanner.scan() != XMLScanner.XML_EQ || myScanner.scan() != XMLScanner.XML_SCONST) {
-                        throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_003);
-                    }
+        if (aStart < 0) {
+            return aBuffer.packI4(aOffset, -1);
+        }
 
-                    element.addAttribute(attribute, myScanner.getString());
+        int offset = aBuffer.packI4(aOffset, 0);
+        int len = 0;
 
-                    continue;
+        for (boolean hasItem = aStart > 0; hasItem; hasItem = nextItem(myScanner.scan(), fieldName)) {
+            switch (aField.myType) {
+                case ClassDescriptor.TP_ARRAY_OF_OBJECTS:
+                case ClassDescriptor.TP_LINK:
+                    offset = importRef(ELEMENT, offset, aBuffer);
+                    break;
+                case ClassDescriptor.TP_ARRAY_OF_VALUES:
+                    offset = packObject(readAttributes() ? ELEMENT : null, aField.myClassDescriptor, offset, aBuffer);
+                    break;
+                case ClassDescriptor.TP_ARRAY_OF_STRINGS:
+                    readValue(ELEMENT);
+                    offset = aBuffer.packString(offset, getStringValue(fieldName));
+                    break;
                 default:
-                    throw new XMLImportException(myScanner.getLine(), myScanner.getColumn(), MessageCodes.SB_002);
+                    readValue(ELEMENT);
+                    offset = packItem(aField, offset, aBuffer);
             }
-        }
-    }
 
-    static class XMLElement {
+            len += 1;
+        }
 
-        static final int NO_VALUE = 0;
+        Bytes.pack4(aBuffer.myByteArray, lengthOffset, len);
 
-        static final int STRING_VALUE = 1;
+        return offset;
+    }
 
-        static final int INT_VALUE = 2;
+    /**
+     * Packs the value of the array item which has been read.
+     */
+    final int packItem(final ClassDescriptor.FieldDescriptor aField, final int aOffset, final ByteBuffer aBuffer)
+            throws XMLImportException {
+        final int offset = aOffset;
+
+        switch (aField.myType) {
+            case ClassDescriptor.TP_ARRAY_OF_BOOLEANS:
+                aBuffer.extend(offset + 1);
+
+                if (myValueType == INT_VALUE) {
+                    aBuffer.myByteArray[offset] = (byte) (myIntValue != 0 ? 1 : 0);
+                } else if (myValueType == REAL_VALUE) {
+                    aBuffer.myByteArray[offset] = (byte) (myRealValue != 0.0 ? 1 : 0);
+                } else {
+                    throw error(MessageCodes.SB_006, aField.myFieldName);
+                }
 
-        static final int REAL_VALUE = 3;
+                return offset + 1;
+            case ClassDescriptor.TP_ARRAY_OF_CHARS:
+            case ClassDescriptor.TP_ARRAY_OF_SHORTS:
+                aBuffer.extend(offset + 2);
 
-        static final int NULL_VALUE = 4;
+                if (myValueType == INT_VALUE) {
+                    Bytes.pack2(aBuffer.myByteArray, offset, (short) myIntValue);
+                } else if (myValueType == REAL_VALUE) {
+                    Bytes.pack2(aBuffer.myByteArray, offset, (short) myRealValue);
+                } else {
+                    throw error(MessageCodes.SB_006, aField.myFieldName);
+                }
 
-        static final Collection<XMLElement> EMPTY_COLLECTION = new ArrayList<>();
+                return offset + 2;
+            case ClassDescriptor.TP_ARRAY_OF_INTS:
+                aBuffer.extend(offset + 4);
 
-        private XMLElement myNext;
+                if (myValueType == INT_VALUE) {
+                    Bytes.pack4(aBuffer.myByteArray, offset, (int) myIntValue);
+                } else if (myValueType == REAL_VALUE) {
+                    Bytes.pack4(aBuffer.myByteArray, offset, (int) myRealValue);
+                } else {
+                    throw error(MessageCodes.SB_006, aField.myFieldName);
+                }
 
-        private XMLElement myPrev;
+                return offset + 4;
+            case ClassDescriptor.TP_ARRAY_OF_ENUMS:
+                aBuffer.extend(offset + 4);
+
+                if (myValueType == INT_VALUE) {
+                    Bytes.pack4(aBuffer.myByteArray, offset, (int) myIntValue);
+                } else if (myValueType == REAL_VALUE) {
+                    Bytes.pack4(aBuffer.myByteArray, offset, (int) myRealValue);
+                } else if (myValueType == NULL_VALUE) {
+                    Bytes.pack4(aBuffer.myByteArray, offset, -1);
+                } else if (myValueType == STRING_VALUE) {
+                    Bytes.pack4(aBuffer.myByteArray, offset, Enum.valueOf((Class) aField.myField.getType()
+                            .getComponentType(), myStringValue).ordinal());
+                } else {
+                    throw error(MessageCodes.SB_006, aField.myFieldName);
+                }
 
-        private final String myName;
+                return offset + 4;
+            case ClassDescriptor.TP_ARRAY_OF_LONGS:
+                aBuffer.extend(offset + 8);
 
-        private HashMap<String, XMLElement> mySiblings;
+                if (myValueType == INT_VALUE) {
+                    Bytes.pack8(aBuffer.myByteArray, offset, myIntValue);
+                } else if (myValueType == REAL_VALUE) {
+                    Bytes.pack8(aBuffer.myByteArray, offset, (long) myRealValue);
+                } else {
+                    throw error(MessageCodes.SB_006, aField.myFieldName);
+                }
 
-        private HashMap<String, String> myAttributes;
+                return offset + 8;
+            case ClassDescriptor.TO_ARRAY_OF_FLOATS:
+                aBuffer.extend(offset + 4);
 
-        private String myStringValue;
+                if (myValueType == INT_VALUE) {
+                    Bytes.pack4(aBuffer.myByteArray, offset, Float.floatToIntBits(myIntValue));
+                } else if (myValueType == REAL_VALUE) {
+                    Bytes.pack4(aBuffer.myByteArray, offset, Float.floatToIntBits((float) myRealValue));
+                } else {
+                    throw error(MessageCodes.SB_006, aField.myFieldName);
+                }
 
-        private long myIntValue;
+                return offset + 4;
+            case ClassDescriptor.TP_ARRAY_OF_DOUBLES:
+                aBuffer.extend(offset + 8);
 
-        private double myRealValue;
+                if (myValueType == INT_VALUE) {
+                    Bytes.pack8(aBuffer.myByteArray, offset, Double.doubleToLongBits(myIntValue));
+                } else if (myValueType == REAL_VALUE) {
+                    Bytes.pack8(aBuffer.myByteArray, offset, Double.doubleToLongBits(myRealValue));
+                } else {
+                    throw error(MessageCodes.SB_006, aField.myFieldName);
+                }
 
-        private int myValueType;
+                return offset + 8;
+            case ClassDescriptor.TP_ARRAY_OF_DATES:
+                aBuffer.extend(offset + 8);
 
-        private int myCounter;
+                if (myValueType == NULL_VALUE) {
+                    Bytes.pack8(aBuffer.myByteArray, offset, -1);
+                } else if (myValueType == STRING_VALUE) {
+                    Bytes.pack8(aBuffer.myByteArray, offset, parseDate(myStringValue));
+                } else {
+                    throw error(MessageCodes.SB_006, aField.myFieldName);
+                }
 
-        XMLElement(final String aName) {
-            myName = aName;
-            myValueType = NO_VALUE;
+                return offset + 8;
+            default:
+                throw error(MessageCodes.SB_006, aField.myFieldName);
         }
+    }
 
-        final void addSibling(final XMLElement aElement) {
-            if (mySiblings == null) {
-                mySiblings = new HashMap<>();
-            }
+    /**
+     * Gets the value which has been read as a string.
+     */
+    final String getStringValue(final String aFieldName) throws XMLImportException {
+        switch (myValueType) {
+            case INT_VALUE:
+                return Long.toString(myIntValue);
+            case REAL_VALUE:
+                return Double.toString(myRealValue);
+            case STRING_VALUE:
+                return myStringValue;
+            case NULL_VALUE:
+                return null;
+            default:
+                throw error(MessageCodes.SB_006, aFieldName);
+        }
+    }
 
-            final XMLElement prev = mySiblings.get(aElement.myName);
+    final long parseDate(final String aValue) throws XMLImportException {
+        final Date date = HTTP_FORMATTER.parse(aValue, new ParsePosition(0));
 
-            if (prev != null) {
-                aElement.myNext = null;
-                aElement.myPrev = prev.myPrev;
-                aElement.myPrev.myNext = aElement;
-                prev.myPrev = aElement;
-                prev.myCounter += 1;
-            } else {
-                mySiblings.put(aElement.myName, aElement);
-                aElement.myPrev = aElement;
-                aElement.myCounter = 1;
-            }
+        if (date == null) {
+            throw error(MessageCodes.SB_007);
         }
 
-        final void addAttribute(final String aName, final String aValue) {
-            if (myAttributes == null) {
-                myAttributes = new HashMap();
-            }
+        return date.getTime();
+    }
 
-            myAttributes.put(aName, aValue);
-        }
+    /**
+     * Object packed by the parser thread.
+     */
+    static class PackedObject {
 
-        final XMLElement getSibling(final String aName) {
-            if (mySiblings != null) {
-                return mySiblings.get(aName);
-            }
+        final int myOid;
 
-            return null;
-        }
+        final byte[] myData;
+
+        final int mySize;
 
-        final Collection<XMLElement> getSiblings() {
-            return mySiblings != null ? mySiblings.values() : EMPTY_COLLECTION;
+        PackedObject(final int aOid, final byte[] aData, final int aSize) {
+            myOid = aOid;
+            myData = aData;
+            mySize = aSize;
         }
 
-        final XMLElement getFirstSibling() {
-            for (final XMLElement element : getSiblings()) {
-                return element;
-            }
+    }
 
-            return null;
-        }
+    /**
+     * Reads the elements of the database on a separate thread, so that parsing and packing of the objects overlaps
+     * with their storing. Items are passed through the queue: each object packed, each index created from its start
+     * tag followed by its references and an end marker.
+     */
+    class XMLParser extends Thread {
 
-        final XMLElement getNextSibling() {
-            return myNext;
+        XMLParser() {
+            super("XMLImporter parser");
+            setDaemon(true);
         }
 
-        final String getName() {
-            return myName;
+        @Override
+        public void run() {
+            try {
+                try {
+                    parse();
+                } catch (final InterruptedException details) {
+                    throw details;
+                } catch (final Throwable details) {
+                    // failure is rethrown by the storing thread, which otherwise would wait for the next item
+                    myQueue.put(details);
+                }
+            } catch (final InterruptedException details) {
+                // import was stopped by the storing thread
+            }
         }
 
-        final int getCounter() {
-            return myCounter;
-        }
+        private void parse() throws XMLImportException, InterruptedException {
+            int token;
 
-        final String getAttribute(final String aName) {
-            return myAttributes != null ? myAttributes.get(aName) : null;
-        }
+            while ((token = myScanner.scan()) == XMLScanner.XML_LT) {
+                final String elementName = readName();
 
-        final void setIntValue(final long aValue) {
-            myIntValue = aValue;
-            myValueType = INT_VALUE;
-        }
+                if (isIndex(elementName)) {
+                    parseIndex(elementName);
+                } else {
+                    myQueue.put(parseObject(elementName));
+                }
+            }
 
-        final void setRealValue(final double aValue) {
-            myRealValue = aValue;
-            myValueType = REAL_VALUE;
-        }
+            if (token != XMLScanner.XML_LTS || myScanner.scan() != XMLScanner.XML_IDENT || !DATABASE.equals(myScanner
+                    .getIdentifier()) || myScanner.scan() != XMLScanner.XML_GT) {
+                throw error(MessageCodes.SB_023);
+            }
 
-        final void setStringValue(final String aValue) {
-            myStringValue = aValue;
-            myValueType = STRING_VALUE;
+            myQueue.put(END_OF_ELEMENTS);
         }
 
-        final void setNullValue() {
-            myValueType = NULL_VALUE;
-        }
+        private void parseIndex(final String aIndexType) throws XMLImportException, InterruptedException {
+            if (!readAttributes()) {
+                throw error(MessageCodes.SB_016);
+            }
 
-        final String getStringValue() {
-            return myStringValue;
-        }
+            final Btree index = createIndex(aIndexType);
 
-        final long getIntValue() {
-            return myIntValue;
-        }
+            int token;
 
-        final double getRealValue() {
-            return myRealValue;
-        }
+            myQueue.put(index);
 
-        final boolean isIntValue() {
-            return myValueType == INT_VALUE;
-        }
+            while ((token = myScanner.scan()) == XMLScanner.XML_LT) {
+                if (myScanner.scan() != XMLScanner.XML_IDENT || !REF.equals(myScanner.getIdentifier())) {
+                    throw error(MessageCodes.SB_012);
+                }
 
-        final boolean isRealValue() {
-            return myValueType == REAL_VALUE;
-        }
+                final boolean hasContent = readAttributes();
 
-        final boolean isStringValue() {
-            return myValueType == STRING_VALUE;
-        }
+                myQueue.put(new BtreeKey(createKey(index), mapId(getIntAttribute(ID))));
+
+                if (hasContent) {
+                    skipContent(REF);
+                }
+            }
 
-        final boolean isNullValue() {
-            return myValueType == NULL_VALUE;
+            checkEndTag(token, aIndexType);
+            myQueue.put(END_OF_ELEMENTS);
         }
     }
 
@@ -1410,8 +1534,16 @@ public class XMLImporter {
 
         static final int XML_EOF = 9;
 
+        static final int BUFFER_SIZE = 64 * 1024;
+
         Reader myReader;
 
+        char[] myBuffer;
+
+        int myBufferPos;
+
+        int myBufferUsed;
+
         int myLine;
 
         int myColumn;
@@ -1434,6 +1566,7 @@ public class XMLImporter {
 
         XMLScanner(final Reader aReader) {
             myReader = aReader;
+            myBuffer = new char[BUFFER_SIZE];
             myStringConst = new char[mySize = 1024];
             myLine = 1;
             myColumn = 0;
@@ -1447,22 +1580,32 @@ public class XMLImporter {
                 return myUngetChar;
             }
 
-            try {
-                final int character = myReader.read();
+            if (myBufferPos == myBufferUsed) {
+                myBufferPos = 0;
 
-                if (character == '\n') {
-                    myLine += 1;
-                    myColumn = 0;
-                } else if (character == '\t') {
-                    myColumn += myColumn + 8 & ~7;
-                } else {
-                    myColumn += 1;
+                try {
+                    myBufferUsed = Math.max(myReader.read(myBuffer, 0, BUFFER_SIZE), 0);
+                } catch (final IOException x) {
+                    throw new XMLImportException(myLine, myColumn, x.getMessage());
+                }
+
+                if (myBufferUsed == 0) {
+                    return -1;
                 }
+            }
+
+            final int character = myBuffer[myBufferPos++];
 
-                return character;
-            } catch (final IOException x) {
-                throw new XMLImportException(myLine, myColumn, x.getMessage());
+            if (character == '\n') {
+                myLine += 1;
+                myColumn = 0;
+            } else if (character == '\t') {
+                myColumn += myColumn + 8 & ~7;
+            } else {
+                myColumn += 1;
             }
+
+            return character;
         }
 
         final void unget(final int aCharacter) {
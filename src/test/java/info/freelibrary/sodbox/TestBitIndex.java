@@ -0,0 +1,176 @@
+package info.freelibrary.sodbox;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import info.freelibrary.util.Logger;
+import info.freelibrary.util.LoggerFactory;
+
+/**
+ * Checks the bit index by comparing objects selected by the iterator with the brute-force scan of the masks, after
+ * inserts spanning several commits, after updates and removals, and after the storage is reopened.
+ */
+public final class TestBitIndex {
+
+    static final int RECORD_COUNT = 50000;
+
+    static final int COMMIT_INTERVAL = 10000;
+
+    static final int UPDATE_INTERVAL = 7;
+
+    static final int RARE_BIT = 1 << 20;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestBitIndex.class, Constants.MESSAGES);
+
+    private static final String DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testbitindex.dbs";
+
+    private TestBitIndex() {
+    }
+
+    /**
+     * Runs the main program.
+     *
+     * @param aArgsArray Arguments to the main program
+     */
+    @SuppressWarnings("uncommentedmain")
+    public static void main(final String[] aArgsArray) {
+        new File(DB_FILE_PATH).delete();
+
+        final Random random = new Random(2018);
+        final HashMap<Integer, Integer> masks = new HashMap<>();
+        Storage storage = StorageFactory.getInstance().createStorage();
+
+        storage.open(DB_FILE_PATH);
+
+        Root root = new Root();
+
+        root.myIndex = storage.createBitIndex();
+        root.myRecords = storage.createIndex(int.class, true);
+        storage.setRoot(root);
+
+        // mostly small masks, so that some bits are dense and some are sparse
+        for (int id = 0; id < RECORD_COUNT; id++) {
+            final Record record = new Record(id);
+            final int mask = random.nextInt(4) == 0 ? random.nextInt() : random.nextInt(16) | (id % 3 == 0
+                    ? RARE_BIT : 0);
+
+            root.myRecords.put(new Key(id), record);
+            root.myIndex.put(record, mask);
+            masks.put(id, mask);
+
+            if (id % COMMIT_INTERVAL == 0) {
+                storage.commit();
+                check(root, masks, random);
+            }
+        }
+
+        storage.commit();
+        check(root, masks, random);
+
+        // masks of some objects are replaced and other objects are removed
+        for (int id = 0; id < RECORD_COUNT; id += UPDATE_INTERVAL) {
+            final Record record = root.myRecords.get(new Key(id));
+
+            if (id % 2 == 0) {
+                Assert.that(root.myIndex.remove(record));
+                Assert.that(!root.myIndex.remove(record));
+                masks.remove(id);
+            } else {
+                final int mask = random.nextInt();
+
+                root.myIndex.put(record, mask);
+                masks.put(id, mask);
+            }
+        }
+
+        check(root, masks, random);
+        storage.commit();
+        storage.close();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH);
+        root = (Root) storage.getRoot();
+        check(root, masks, random);
+
+        for (final Record record : root.myRecords) {
+            final Integer mask = masks.get(record.myId);
+
+            if (mask != null) {
+                Assert.that(root.myIndex.getMask(record) == mask);
+            } else {
+                try {
+                    root.myIndex.getMask(record);
+                    Assert.failed("removed object is found");
+                } catch (final StorageError details) {
+                    Assert.that(details.getErrorCode() == StorageError.KEY_NOT_FOUND);
+                }
+            }
+        }
+
+        for (final Record record : root.myRecords) {
+            root.myIndex.remove(record);
+        }
+
+        storage.commit();
+        Assert.that(root.myIndex.size() == 0);
+        Assert.that(!root.myIndex.iterator(0, 0).hasNext());
+        storage.close();
+
+        new File(DB_FILE_PATH).delete();
+
+        LOGGER.info(MessageCodes.SBT_007, TestBitIndex.class.getSimpleName());
+    }
+
+    /**
+     * Compares the selections of the iterator with the objects whose masks match the set and clear bits.
+     */
+    private static void check(final Root aRoot, final Map<Integer, Integer> aMasks, final Random aRandom) {
+        final int[][] queries = { { 0, 0 }, { 1, 0 }, { 1, 2 }, { 3, 4 }, { RARE_BIT, 1 }, { 0, RARE_BIT }, {
+            aRandom.nextInt(), 0 }, { 0, aRandom.nextInt() }, { 5, 10 }, { 1 << 31, 0 } };
+
+        Assert.that(aRoot.myIndex.size() == aMasks.size());
+
+        for (final int[] query : queries) {
+            final HashSet<Integer> expected = new HashSet<>();
+            final HashSet<Integer> selected = new HashSet<>();
+
+            for (final Map.Entry<Integer, Integer> entry : aMasks.entrySet()) {
+                if ((entry.getValue() & query[0]) == query[0] && (entry.getValue() & query[1]) == 0) {
+                    expected.add(entry.getKey());
+                }
+            }
+
+            for (final Record record : aRoot.myIndex.iterator(query[0], query[1])) {
+                Assert.that(selected.add(record.myId));
+            }
+
+            Assert.that(selected.equals(expected));
+        }
+    }
+
+    static class Root extends Persistent {
+
+        BitIndex<Record> myIndex;
+
+        Index<Record> myRecords;
+
+    }
+
+    static class Record extends Persistent {
+
+        int myId;
+
+        Record() {
+        }
+
+        Record(final int aId) {
+            myId = aId;
+        }
+
+    }
+
+}
@@ -0,0 +1,167 @@
+package info.freelibrary.sodbox;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import info.freelibrary.util.Logger;
+import info.freelibrary.util.LoggerFactory;
+
+/**
+ * Checks that two transactions locking the same resources in opposite order don't hang: exactly one of the lock
+ * requests closing the cycle is refused with <code>StorageError(DEADLOCK)</code> and the other is granted when the
+ * refused transaction releases its locks.
+ */
+public final class TestDeadlock {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestDeadlock.class, Constants.MESSAGES);
+
+    private static final String DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testdeadlock.dbs";
+
+    private TestDeadlock() {
+    }
+
+    /**
+     * Runs the main program.
+     *
+     * @param aArgsArray Arguments to the main program
+     */
+    @SuppressWarnings("uncommentedmain")
+    public static void main(final String[] aArgsArray) throws InterruptedException {
+        new File(DB_FILE_PATH).delete();
+
+        final Storage storage = StorageFactory.getInstance().createStorage();
+
+        storage.open(DB_FILE_PATH);
+
+        final Root root = new Root(storage);
+
+        root.myFirst = new Resource(storage);
+        root.mySecond = new Resource(storage);
+        storage.setRoot(root);
+        storage.commit();
+
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final AtomicInteger deadlocks = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+        final Thread first = new Thread(new Transaction(root.myFirst, root.mySecond, barrier, deadlocks, completed));
+        final Thread second = new Thread(new Transaction(root.mySecond, root.myFirst, barrier, deadlocks, completed));
+
+        first.start();
+        second.start();
+        first.join();
+        second.join();
+
+        Assert.that(deadlocks.get() == 1);
+        Assert.that(completed.get() == 1);
+
+        // both second lock requests had to wait and one of them was refused
+        final HashMap<Class<?>, LockUsage> usage = storage.getLockUsage();
+        final LockUsage resourceUsage = usage.get(Resource.class);
+
+        Assert.that(usage.size() == 1);
+        Assert.that(resourceUsage.myWaitCount == 2);
+        Assert.that(resourceUsage.myDeadlockCount == 1);
+        Assert.that(resourceUsage.myMaxWaitTime > 0);
+        Assert.that(resourceUsage.myTotalWaitTime >= resourceUsage.myMaxWaitTime);
+
+        long histogramCount = 0;
+
+        for (final long count : resourceUsage.myWaitHistogram) {
+            histogramCount += count;
+        }
+
+        Assert.that(histogramCount == resourceUsage.myWaitCount);
+
+        // locks of both transactions are released
+        Assert.that(root.myFirst.exclusiveLock(0));
+        Assert.that(root.mySecond.exclusiveLock(0));
+        root.myFirst.unlock();
+        root.mySecond.unlock();
+
+        storage.close();
+        new File(DB_FILE_PATH).delete();
+
+        LOGGER.info(MessageCodes.SBT_007, TestDeadlock.class.getSimpleName());
+    }
+
+    /**
+     * Transaction locking two resources: both transactions hold their first lock before requesting the second one.
+     */
+    static class Transaction implements Runnable {
+
+        private final Resource myFirst;
+
+        private final Resource mySecond;
+
+        private final CyclicBarrier myBarrier;
+
+        private final AtomicInteger myDeadlocks;
+
+        private final AtomicInteger myCompleted;
+
+        Transaction(final Resource aFirst, final Resource aSecond, final CyclicBarrier aBarrier,
+                final AtomicInteger aDeadlocks, final AtomicInteger aCompleted) {
+            myFirst = aFirst;
+            mySecond = aSecond;
+            myBarrier = aBarrier;
+            myDeadlocks = aDeadlocks;
+            myCompleted = aCompleted;
+        }
+
+        @Override
+        public void run() {
+            myFirst.exclusiveLock();
+
+            try {
+                myBarrier.await();
+
+                try {
+                    mySecond.exclusiveLock();
+                } catch (final StorageError details) {
+                    Assert.that(details.getErrorCode() == StorageError.DEADLOCK);
+                    myDeadlocks.incrementAndGet();
+                    return;
+                }
+
+                mySecond.unlock();
+                myCompleted.incrementAndGet();
+            } catch (final InterruptedException | BrokenBarrierException details) {
+                throw new AssertionFailed(details.toString());
+            } finally {
+                myFirst.unlock();
+            }
+        }
+
+    }
+
+    static class Root extends Persistent {
+
+        Resource myFirst;
+
+        Resource mySecond;
+
+        Root() {
+        }
+
+        Root(final Storage aStorage) {
+            super(aStorage);
+        }
+
+    }
+
+    static class Resource extends PersistentResource {
+
+        Resource() {
+        }
+
+        Resource(final Storage aStorage) {
+            super(aStorage);
+        }
+
+    }
+
+}
@@ -0,0 +1,189 @@
+package info.freelibrary.sodbox;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Random;
+
+import info.freelibrary.sodbox.fulltext.FullTextIndex;
+import info.freelibrary.sodbox.fulltext.FullTextSearchHit;
+import info.freelibrary.sodbox.fulltext.FullTextSearchResult;
+import info.freelibrary.util.Logger;
+import info.freelibrary.util.LoggerFactory;
+
+/**
+ * Checks the top results of the full-text search, which skips the documents and the posting blocks whose rank bound
+ * doesn't exceed the lowest rank of the results found so far: the top results of the disjunction, conjunction and
+ * phrase queries are compared with the head of the full ranked result, after the documents are added, after some of
+ * them are deleted and after the storage is reopened.
+ */
+public final class TestFullTextTopK {
+
+    static final int DOCUMENT_COUNT = 5000;
+
+    static final int VOCABULARY_SIZE = 1000;
+
+    static final int MAX_DOCUMENT_LENGTH = 100;
+
+    static final int PHRASE_INTERVAL = 5;
+
+    static final int[] RESULT_COUNTS = { 1, 3, 10, 50 };
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestFullTextTopK.class, Constants.MESSAGES);
+
+    private static final String DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testfulltexttopk.dbs";
+
+    private TestFullTextTopK() {
+    }
+
+    /**
+     * Runs the main program.
+     *
+     * @param aArgsArray Arguments to the main program
+     */
+    @SuppressWarnings("uncommentedmain")
+    public static void main(final String[] aArgsArray) {
+        new File(DB_FILE_PATH).delete();
+
+        final Random random = new Random(2018);
+        final String[] vocabulary = new String[VOCABULARY_SIZE];
+        Storage storage = StorageFactory.getInstance().createStorage();
+
+        for (int index = 0; index < vocabulary.length; index++) {
+            vocabulary[index] = "w" + Integer.toString(index, 36) + "x";
+        }
+
+        storage.open(DB_FILE_PATH);
+
+        Root root = new Root();
+
+        root.myIndex = storage.createFullTextIndex();
+        root.myDocs = storage.createLink();
+        storage.setRoot(root);
+
+        for (int id = 0; id < DOCUMENT_COUNT; id++) {
+            final Doc doc = new Doc(id);
+
+            storage.makePersistent(doc);
+            root.myDocs.add(doc);
+            root.myIndex.add(doc, new StringReader(getText(vocabulary, random)), "en");
+        }
+
+        storage.commit();
+        check(root, vocabulary);
+
+        // deleted documents leave the posting blocks partly empty
+        for (int index = root.myDocs.size() - 1; index >= 0; index -= 3) {
+            root.myIndex.delete(root.myDocs.remove(index));
+        }
+
+        storage.commit();
+        check(root, vocabulary);
+        storage.close();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH);
+        root = (Root) storage.getRoot();
+        check(root, vocabulary);
+        storage.close();
+
+        new File(DB_FILE_PATH).delete();
+
+        LOGGER.info(MessageCodes.SBT_007, TestFullTextTopK.class.getSimpleName());
+    }
+
+    /**
+     * Text of words with the skewed distribution, in which the words are repeated a varying number of times so that
+     * the ranks of the documents differ. Some documents contain the phrases of the adjacent words.
+     */
+    private static String getText(final String[] aVocabulary, final Random aRandom) {
+        final StringBuilder text = new StringBuilder();
+        final int length = 5 + aRandom.nextInt(MAX_DOCUMENT_LENGTH);
+
+        for (int index = 0; index < length; index++) {
+            final int word = (int) Math.min(aVocabulary.length - 1, Math.abs(aRandom.nextGaussian()) *
+                    aVocabulary.length / 8);
+
+            text.append(aVocabulary[word]).append(' ');
+
+            if (index % PHRASE_INTERVAL == 0 && word + 1 < aVocabulary.length) {
+                text.append(aVocabulary[word + 1]).append(' ');
+            }
+        }
+
+        return text.toString();
+    }
+
+    /**
+     * Compares the top results of each query with the head of its full result.
+     */
+    private static void check(final Root aRoot, final String[] aVocabulary) {
+        final String[] queries = {
+            // single words and disjunctions of the frequent and rare words
+            aVocabulary[0],
+            aVocabulary[50],
+            aVocabulary[0] + " OR " + aVocabulary[1],
+            aVocabulary[1] + " OR " + aVocabulary[300],
+            aVocabulary[2] + " OR " + aVocabulary[3] + " OR " + aVocabulary[400],
+            aVocabulary[350] + " OR " + aVocabulary[450],
+            // conjunctions
+            aVocabulary[0] + " " + aVocabulary[1],
+            aVocabulary[4] + " " + aVocabulary[200],
+            aVocabulary[5] + " " + aVocabulary[6] + " " + aVocabulary[7],
+            // phrases
+            "\"" + aVocabulary[0] + " " + aVocabulary[1] + "\"",
+            "\"" + aVocabulary[10] + " " + aVocabulary[11] + "\""
+        };
+
+        for (final String query : queries) {
+            final FullTextSearchHit[] all = aRoot.myIndex.search(query, "en", DOCUMENT_COUNT, Integer.MAX_VALUE).myHits;
+            final HashMap<Integer, Float> ranks = new HashMap<>();
+
+            Assert.that(all.length > 0);
+
+            for (int index = 0; index < all.length; index++) {
+                Assert.that(index == 0 || all[index - 1].myRank >= all[index].myRank);
+                ranks.put(((Doc) all[index].getDocument()).myId, all[index].myRank);
+            }
+
+            for (final int count : RESULT_COUNTS) {
+                final FullTextSearchResult result = aRoot.myIndex.search(query, "en", count, Integer.MAX_VALUE);
+                final FullTextSearchHit[] top = result.myHits;
+
+                Assert.that(top.length == Math.min(count, all.length));
+                Assert.that(result.myEstimation >= top.length);
+
+                for (int index = 0; index < top.length; index++) {
+                    final Float rank = ranks.get(((Doc) top[index].getDocument()).myId);
+
+                    // documents with equal ranks may be chosen differently, but the ranks must be the same
+                    Assert.that(top[index].myRank == all[index].myRank);
+                    Assert.that(rank != null && rank.floatValue() == top[index].myRank);
+                }
+            }
+        }
+    }
+
+    static class Root extends Persistent {
+
+        FullTextIndex myIndex;
+
+        Link<Doc> myDocs;
+
+    }
+
+    static class Doc extends Persistent {
+
+        int myId;
+
+        Doc() {
+        }
+
+        Doc(final int aId) {
+            myId = aId;
+        }
+
+    }
+
+}
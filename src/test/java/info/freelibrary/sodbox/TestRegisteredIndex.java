@@ -0,0 +1,260 @@
+package info.freelibrary.sodbox;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import info.freelibrary.util.Logger;
+import info.freelibrary.util.LoggerFactory;
+
+/**
+ * Checks the field indices maintained by the storage: objects are included when they are stored for the first time,
+ * unique keys are exchanged between objects, a commit failing because of the duplicate key leaves the indices as
+ * they were at the last commit and can be retried or rolled back, deallocated objects are removed, and indices are
+ * registered again after the storage is reopened.
+ */
+public final class TestRegisteredIndex {
+
+    static final int RECORD_COUNT = 2000;
+
+    static final int CATEGORY_COUNT = 17;
+
+    static final int UPDATE_INTERVAL = 5;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestRegisteredIndex.class, Constants.MESSAGES);
+
+    private static final String DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testregisteredindex.dbs";
+
+    private TestRegisteredIndex() {
+    }
+
+    /**
+     * Runs the main program.
+     *
+     * @param aArgsArray Arguments to the main program
+     */
+    @SuppressWarnings("uncommentedmain")
+    public static void main(final String[] aArgsArray) {
+        new File(DB_FILE_PATH).delete();
+
+        final Random random = new Random(2018);
+        final HashMap<Integer, Integer> codes = new HashMap<>();
+        final HashMap<Integer, String> categories = new HashMap<>();
+        Storage storage = StorageFactory.getInstance().createStorage();
+
+        storage.open(DB_FILE_PATH);
+
+        Root root = new Root();
+
+        root.myCodes = storage.createFieldIndex(Record.class, "myCode", true);
+        root.myCategories = storage.createRandomAccessFieldIndex(Record.class, "myCategory", false);
+        root.myRecords = storage.createLink();
+        storage.setRoot(root);
+        register(storage, root);
+
+        // new objects are included in the indices when they are stored
+        for (int id = 0; id < RECORD_COUNT; id++) {
+            final Record record = new Record(id, id * 2, "c" + random.nextInt(CATEGORY_COUNT));
+
+            root.myRecords.add(record);
+            codes.put(id, record.myCode);
+            categories.put(id, record.myCategory);
+        }
+
+        storage.commit();
+        check(root, codes, categories);
+
+        // neighbours exchange their unique codes and some objects change category
+        for (int index = 0; index + 1 < root.myRecords.size(); index += 2) {
+            final Record first = root.myRecords.get(index);
+            final Record second = root.myRecords.get(index + 1);
+            final int code = first.myCode;
+
+            first.setCode(second.myCode);
+            second.setCode(code);
+            codes.put(first.myId, first.myCode);
+            codes.put(second.myId, second.myCode);
+
+            if (index % UPDATE_INTERVAL == 0) {
+                first.setCategory("c" + random.nextInt(CATEGORY_COUNT));
+                categories.put(first.myId, first.myCategory);
+            }
+        }
+
+        storage.commit();
+        check(root, codes, categories);
+
+        // commit with the duplicate key fails without changing the indices and succeeds once the key is corrected
+        Record duplicate = changeWithDuplicate(root);
+
+        failCommit(storage);
+        check(root, codes, categories);
+        failCommit(storage);
+        check(root, codes, categories);
+
+        duplicate.setCode(-1);
+
+        for (final Record record : root.myRecords) {
+            codes.put(record.myId, record.myCode);
+            categories.put(record.myId, record.myCategory);
+        }
+
+        storage.commit();
+        check(root, codes, categories);
+
+        // failed commit is rolled back, and the indices are still maintained afterwards
+        changeWithDuplicate(root);
+        failCommit(storage);
+        storage.rollback();
+        root = (Root) storage.getRoot();
+        check(root, codes, categories);
+
+        duplicate = root.myRecords.get(0);
+        duplicate.setCode(-2);
+        codes.put(duplicate.myId, duplicate.myCode);
+        storage.commit();
+        check(root, codes, categories);
+
+        // deallocated objects are removed from the indices immediately
+        for (int index = root.myRecords.size() - 1; index >= 0; index -= 3) {
+            final Record record = root.myRecords.remove(index);
+
+            codes.remove(record.myId);
+            categories.remove(record.myId);
+            record.deallocate();
+        }
+
+        check(root, codes, categories);
+        storage.commit();
+        check(root, codes, categories);
+        storage.close();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH);
+        root = (Root) storage.getRoot();
+        check(root, codes, categories);
+        register(storage, root);
+
+        for (int index = 0; index < root.myRecords.size(); index += UPDATE_INTERVAL) {
+            final Record record = root.myRecords.get(index);
+
+            record.setCode(RECORD_COUNT * 2 + index);
+            record.setCategory("d" + random.nextInt(CATEGORY_COUNT));
+            codes.put(record.myId, record.myCode);
+            categories.put(record.myId, record.myCategory);
+        }
+
+        storage.commit();
+        check(root, codes, categories);
+        storage.close();
+
+        new File(DB_FILE_PATH).delete();
+
+        LOGGER.info(MessageCodes.SBT_007, TestRegisteredIndex.class.getSimpleName());
+    }
+
+    private static void register(final Storage aStorage, final Root aRoot) {
+        aStorage.registerIndex(aRoot.myCodes);
+        aStorage.registerIndex(aRoot.myCategories);
+    }
+
+    /**
+     * Changes the codes and categories of several objects, one of which gets the code of an unchanged object.
+     *
+     * @return object with the duplicate code
+     */
+    private static Record changeWithDuplicate(final Root aRoot) {
+        final int last = aRoot.myRecords.size() - 1;
+
+        for (int index = 0; index < last; index += UPDATE_INTERVAL) {
+            final Record record = aRoot.myRecords.get(index);
+
+            record.setCode(RECORD_COUNT * 4 + index);
+            record.setCategory("x" + index % CATEGORY_COUNT);
+        }
+
+        final Record duplicate = aRoot.myRecords.get(last / 2 + 1);
+
+        duplicate.setCode(aRoot.myRecords.get(last).myCode);
+
+        return duplicate;
+    }
+
+    private static void failCommit(final Storage aStorage) {
+        try {
+            aStorage.commit();
+            Assert.failed("duplicate key is committed");
+        } catch (final StorageError details) {
+            Assert.that(details.getErrorCode() == StorageError.KEY_NOT_UNIQUE);
+        }
+    }
+
+    /**
+     * Compares the entries of the indices with the expected keys of the objects.
+     */
+    private static void check(final Root aRoot, final Map<Integer, Integer> aCodes,
+            final Map<Integer, String> aCategories) {
+        final HashMap<Integer, Integer> codes = new HashMap<>();
+        final HashSet<String> categories = new HashSet<>();
+        final HashSet<String> expected = new HashSet<>();
+
+        for (final Map.Entry<Object, Record> entry : aRoot.myCodes.entryIterator()) {
+            Assert.that(codes.put(entry.getValue().myId, (Integer) entry.getKey()) == null);
+        }
+
+        for (final Map.Entry<Object, Record> entry : aRoot.myCategories.entryIterator()) {
+            Assert.that(categories.add(entry.getKey() + ":" + entry.getValue().myId));
+        }
+
+        for (final Map.Entry<Integer, String> entry : aCategories.entrySet()) {
+            expected.add(entry.getValue() + ":" + entry.getKey());
+        }
+
+        Assert.that(codes.equals(aCodes));
+        Assert.that(categories.equals(expected));
+        Assert.that(aRoot.myCodes.size() == aCodes.size() && aRoot.myCategories.size() == aCategories.size());
+    }
+
+    static class Root extends Persistent {
+
+        FieldIndex<Record> myCodes;
+
+        FieldIndex<Record> myCategories;
+
+        Link<Record> myRecords;
+
+    }
+
+    static class Record extends Persistent {
+
+        int myId;
+
+        int myCode;
+
+        String myCategory;
+
+        Record() {
+        }
+
+        Record(final int aId, final int aCode, final String aCategory) {
+            myId = aId;
+            myCode = aCode;
+            myCategory = aCategory;
+        }
+
+        void setCode(final int aCode) {
+            myCode = aCode;
+            modify();
+        }
+
+        void setCategory(final String aCategory) {
+            myCategory = aCategory;
+            modify();
+        }
+
+    }
+
+}
@@ -0,0 +1,146 @@
+package info.freelibrary.sodbox;
+
+import java.io.File;
+
+import info.freelibrary.util.Logger;
+import info.freelibrary.util.LoggerFactory;
+
+/**
+ * Checks the lag of the replica measured by the pool: the transaction ID received by the slave node follows the ID
+ * of the master after each commit, the lag grows while the slave is kept from applying transactions by the read
+ * transaction, and reads are started at the master while the lag exceeds the bound.
+ */
+public final class TestReplicaPool {
+
+    static final int PORT = 6131;
+
+    static final int TRANSACTION_COUNT = 10;
+
+    static final int DELAYED_COUNT = 3;
+
+    static final long TIMEOUT = 10000; // milliseconds
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestReplicaPool.class, Constants.MESSAGES);
+
+    private static final String DIR = System.getProperty("java.io.tmpdir") + File.separator;
+
+    private static final String[] FILES = { DIR + "testreplicamaster.dbs", DIR + "testreplicaslave.dbs", DIR +
+        "testreplicamaster.ts", DIR + "testreplicaslave.ts" };
+
+    private TestReplicaPool() {
+    }
+
+    /**
+     * Runs the main program.
+     *
+     * @param aArgsArray Arguments to the main program
+     */
+    @SuppressWarnings("uncommentedmain")
+    public static void main(final String[] aArgsArray) throws InterruptedException {
+        delete();
+
+        final ReplicationMasterStorage master = StorageFactory.getInstance().createReplicationMasterStorage(PORT,
+                new String[0], 0, FILES[2]);
+
+        master.open(FILES[0]);
+
+        final Root root = new Root();
+
+        root.myIndex = master.createIndex(int.class, true);
+        master.setRoot(root);
+        master.commit();
+
+        final ReplicationSlaveStorage slave = StorageFactory.getInstance().addReplicationSlaveStorage("localhost",
+                PORT, FILES[3]);
+
+        slave.open(FILES[1]);
+
+        final ReplicaPool pool = new ReplicaPool(master, new ReplicationSlaveStorage[] { slave }, 0);
+
+        // slave receives the transaction ID stored in the database header with each commit
+        for (int id = 0; id < TRANSACTION_COUNT; id++) {
+            root.myIndex.put(new Key(id), new Record(id));
+            master.commit();
+            waitForSlave(master, slave);
+            Assert.that(pool.getLag(0) == 0);
+        }
+
+        // read transaction keeps the slave from applying the commits
+        final Storage replica = pool.beginRead();
+
+        Assert.that(replica == slave && pool.getNumberOfReads(0) == 1);
+
+        for (int id = TRANSACTION_COUNT; id < TRANSACTION_COUNT + DELAYED_COUNT; id++) {
+            root.myIndex.put(new Key(id), new Record(id));
+            master.commit();
+        }
+
+        Assert.that(pool.getLag(0) == DELAYED_COUNT);
+        Assert.that(((Root) replica.getRoot()).myIndex.size() == TRANSACTION_COUNT);
+
+        final Storage storage = pool.beginRead();
+
+        Assert.that(storage == master && pool.getNumberOfMasterReads() == 1);
+        pool.endRead(storage);
+        pool.endRead(replica);
+
+        waitForSlave(master, slave);
+        Assert.that(pool.getLag(0) == 0);
+
+        final Storage updated = pool.beginRead();
+
+        Assert.that(updated == slave);
+        Assert.that(((Root) updated.getRoot()).myIndex.size() == TRANSACTION_COUNT + DELAYED_COUNT);
+        pool.endRead(updated);
+
+        // slave is disconnected when the master is closed
+        master.close();
+        slave.close();
+        Assert.that(pool.getLag(0) < 0);
+
+        delete();
+
+        LOGGER.info(MessageCodes.SBT_007, TestReplicaPool.class.getSimpleName());
+    }
+
+    private static void waitForSlave(final ReplicationMasterStorage aMaster, final ReplicationSlaveStorage aSlave)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (aSlave.getReplicatedTransactionId() != aMaster.getTransactionId()) {
+            Assert.that(aSlave.getReplicatedTransactionId() < aMaster.getTransactionId());
+
+            if (System.currentTimeMillis() > deadline) {
+                Assert.failed("slave has not received the transaction");
+            }
+
+            Thread.sleep(1);
+        }
+    }
+
+    private static void delete() {
+        for (final String file : FILES) {
+            new File(file).delete();
+        }
+    }
+
+    static class Root extends Persistent {
+
+        Index<Record> myIndex;
+
+    }
+
+    static class Record extends Persistent {
+
+        int myId;
+
+        Record() {
+        }
+
+        Record(final int aId) {
+            myId = aId;
+        }
+
+    }
+
+}
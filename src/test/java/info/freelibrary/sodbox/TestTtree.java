@@ -0,0 +1,266 @@
+package info.freelibrary.sodbox;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import info.freelibrary.util.Logger;
+import info.freelibrary.util.LoggerFactory;
+
+/**
+ * Checks the sorted collection built bottom-up from sorted members and the cursors traversing it: members returned
+ * by the cursors with all combinations of boundaries, order, skip and limit are compared with the selection of the
+ * iterator, and members removed through the cursor are checked not to disturb the traversal.
+ */
+public final class TestTtree {
+
+    static final int RECORD_COUNT = 20000;
+
+    static final int DUPLICATE_COUNT = 3;
+
+    static final int QUERY_COUNT = 500;
+
+    static final int MAX_SKIP = 100;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestTtree.class, Constants.MESSAGES);
+
+    private static final String DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testttree.dbs";
+
+    private TestTtree() {
+    }
+
+    /**
+     * Runs the main program.
+     *
+     * @param aArgsArray Arguments to the main program
+     */
+    @SuppressWarnings("uncommentedmain")
+    public static void main(final String[] aArgsArray) {
+        new File(DB_FILE_PATH).delete();
+
+        final Random random = new Random(2018);
+        Storage storage = StorageFactory.getInstance().createStorage();
+
+        storage.open(DB_FILE_PATH);
+
+        Root root = new Root();
+        final ArrayList<Record> records = new ArrayList<>(RECORD_COUNT);
+
+        for (int index = 0; index < RECORD_COUNT; index++) {
+            records.add(new Record(index / DUPLICATE_COUNT));
+        }
+
+        root.myRecords = storage.createSortedCollection(new RecordComparator(), false);
+        root.myUniqueRecords = storage.createSortedCollection(new RecordComparator(), true);
+        storage.setRoot(root);
+
+        // empty collections are built from the sorted members, duplicates are skipped by the unique collection
+        Assert.that(root.myRecords.addAllSorted(records.iterator()) == RECORD_COUNT);
+        Assert.that(root.myUniqueRecords.addAllSorted(records.iterator()) == (RECORD_COUNT + DUPLICATE_COUNT - 1) /
+                DUPLICATE_COUNT);
+        Assert.that(root.myRecords.size() == RECORD_COUNT);
+
+        int index = 0;
+
+        for (final Record record : root.myRecords) {
+            Assert.that(record == records.get(index++));
+        }
+
+        index = 0;
+
+        // the first of the members with the same key is kept
+        for (final Record record : root.myUniqueRecords) {
+            Assert.that(record == records.get(index));
+            index += DUPLICATE_COUNT;
+        }
+
+        Assert.that(index >= RECORD_COUNT);
+
+        checkUnsorted(storage);
+
+        // members are inserted one by one in the collection which is not empty
+        final ArrayList<Record> added = new ArrayList<>();
+
+        for (int key = -10; key < 0; key++) {
+            added.add(new Record(key));
+        }
+
+        Assert.that(root.myRecords.addAllSorted(added.iterator()) == added.size());
+        Assert.that(root.myRecords.size() == RECORD_COUNT + added.size());
+        Assert.that(root.myRecords.iterator().next() == added.get(0));
+        storage.commit();
+
+        checkCursors(root.myRecords, random);
+        checkRemove(root.myRecords, random, GenericIndex.ASCENT_ORDER);
+        checkRemove(root.myRecords, random, GenericIndex.DESCENT_ORDER);
+        storage.commit();
+        storage.close();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH);
+        root = (Root) storage.getRoot();
+        checkCursors(root.myRecords, random);
+        checkCursors(root.myUniqueRecords, random);
+        storage.close();
+
+        new File(DB_FILE_PATH).delete();
+
+        LOGGER.info(MessageCodes.SBT_007, TestTtree.class.getSimpleName());
+    }
+
+    /**
+     * Members which are not sorted are rejected when the collection is built bottom-up.
+     */
+    private static void checkUnsorted(final Storage aStorage) {
+        final SortedCollection<Record> collection = aStorage.createSortedCollection(new RecordComparator(), false);
+        final ArrayList<Record> records = new ArrayList<>();
+
+        records.add(new Record(2));
+        records.add(new Record(1));
+
+        try {
+            collection.addAllSorted(records.iterator());
+            Assert.failed("unsorted members are added");
+        } catch (final StorageError details) {
+            Assert.that(details.getErrorCode() == StorageError.INVALID_OPERATION);
+        }
+    }
+
+    /**
+     * Compares the cursor with the selection of the iterator for random boundaries, order, skip and limit.
+     */
+    private static void checkCursors(final SortedCollection<Record> aCollection, final Random aRandom) {
+        final int maxKey = RECORD_COUNT / DUPLICATE_COUNT + 10;
+
+        for (int query = 0; query < QUERY_COUNT; query++) {
+            final Integer from = query % 5 == 0 ? null : aRandom.nextInt(maxKey) - 10;
+            final Integer to = query % 7 == 0 ? null : (from == null ? 0 : from) + aRandom.nextInt(maxKey / 4);
+            final boolean fromInclusive = aRandom.nextBoolean();
+            final boolean toInclusive = aRandom.nextBoolean();
+            final int order = query % 2 == 0 ? GenericIndex.ASCENT_ORDER : GenericIndex.DESCENT_ORDER;
+            final int skip = query % 3 == 0 ? 0 : aRandom.nextInt(MAX_SKIP);
+            final int limit = query % 4 == 0 ? -1 : aRandom.nextInt(MAX_SKIP);
+            final ArrayList<Record> expected = select(aCollection, from, fromInclusive, to, toInclusive, order, skip,
+                    limit);
+            final IterableIterator<Record> cursor = aCollection.cursor(from, fromInclusive, to, toInclusive, order,
+                    skip, limit);
+            int index = 0;
+
+            for (final Record record : cursor) {
+                Assert.that(record == expected.get(index++));
+            }
+
+            Assert.that(index == expected.size());
+            Assert.that(!cursor.hasNext());
+        }
+
+        Assert.that(count(aCollection.cursor(null, null, GenericIndex.ASCENT_ORDER)) == aCollection.size());
+        Assert.that(count(aCollection.cursor(null, null, GenericIndex.DESCENT_ORDER)) == aCollection.size());
+    }
+
+    /**
+     * Removes every other member returned by the cursor and checks that the cursor still returns the selection made
+     * before the removal and that only the removed members are gone from the collection.
+     */
+    private static void checkRemove(final SortedCollection<Record> aCollection, final Random aRandom,
+            final int aOrder) {
+        final int from = aRandom.nextInt(RECORD_COUNT / DUPLICATE_COUNT / 2);
+        final int to = from + RECORD_COUNT / DUPLICATE_COUNT / 4;
+        final int skip = aRandom.nextInt(MAX_SKIP);
+        final int limit = RECORD_COUNT / 4;
+        final int size = aCollection.size();
+        final ArrayList<Record> expected = select(aCollection, from, true, to, false, aOrder, skip, limit);
+        final ArrayList<Record> removed = new ArrayList<>();
+        final IterableIterator<Record> cursor = aCollection.cursor(from, true, to, false, aOrder, skip, limit);
+        int index = 0;
+
+        while (cursor.hasNext()) {
+            final Record record = cursor.next();
+
+            Assert.that(record == expected.get(index));
+
+            if (index++ % 2 == 0) {
+                cursor.remove();
+                removed.add(record);
+            }
+        }
+
+        Assert.that(index == expected.size());
+        Assert.that(aCollection.size() == size - removed.size());
+
+        for (final Record record : removed) {
+            Assert.that(!aCollection.contains(record));
+        }
+
+        for (index = 1; index < expected.size(); index += 2) {
+            Assert.that(aCollection.contains(expected.get(index)));
+        }
+    }
+
+    /**
+     * Selects members with the iterator and applies order, skip and limit to the selection.
+     */
+    private static ArrayList<Record> select(final SortedCollection<Record> aCollection, final Integer aFrom,
+            final boolean aFromInclusive, final Integer aTo, final boolean aToInclusive, final int aOrder,
+            final int aSkip, final int aLimit) {
+        final ArrayList<Record> selection = aCollection.getList(aFrom, aFromInclusive, aTo, aToInclusive);
+
+        if (aOrder == GenericIndex.DESCENT_ORDER) {
+            Collections.reverse(selection);
+        }
+
+        final int start = Math.min(aSkip, selection.size());
+        final int end = aLimit < 0 ? selection.size() : Math.min(start + aLimit, selection.size());
+
+        return new ArrayList<>(selection.subList(start, end));
+    }
+
+    private static int count(final IterableIterator<Record> aCursor) {
+        int count = 0;
+
+        for (final Record record : aCursor) {
+            Assert.that(record != null);
+            count += 1;
+        }
+
+        return count;
+    }
+
+    static class Root extends Persistent {
+
+        SortedCollection<Record> myRecords;
+
+        SortedCollection<Record> myUniqueRecords;
+
+    }
+
+    static class Record extends Persistent {
+
+        int myKey;
+
+        Record() {
+        }
+
+        Record(final int aKey) {
+            myKey = aKey;
+        }
+
+    }
+
+    static class RecordComparator extends PersistentComparator<Record> {
+
+        @Override
+        public int compareMembers(final Record a1stMember, final Record a2ndMember) {
+            return Integer.compare(a1stMember.myKey, a2ndMember.myKey);
+        }
+
+        @Override
+        public int compareMemberWithKey(final Record aMember, final Object aKey) {
+            return Integer.compare(aMember.myKey, (Integer) aKey);
+        }
+
+    }
+
+}
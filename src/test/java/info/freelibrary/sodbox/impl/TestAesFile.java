@@ -0,0 +1,200 @@
+package info.freelibrary.sodbox.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashSet;
+
+import info.freelibrary.sodbox.Assert;
+import info.freelibrary.sodbox.Constants;
+import info.freelibrary.sodbox.Index;
+import info.freelibrary.sodbox.Key;
+import info.freelibrary.sodbox.MessageCodes;
+import info.freelibrary.sodbox.Persistent;
+import info.freelibrary.sodbox.Storage;
+import info.freelibrary.sodbox.StorageError;
+import info.freelibrary.sodbox.StorageFactory;
+import info.freelibrary.util.Logger;
+import info.freelibrary.util.LoggerFactory;
+
+/**
+ * Checks the encrypted page file: a wrong key is rejected, a database encrypted with RC4 can be migrated, and each
+ * rewrite of a page is encrypted with its own keystream.
+ */
+public final class TestAesFile {
+
+    static final int RECORD_COUNT = 10000;
+
+    static final int REWRITE_COUNT = 4;
+
+    static final String CIPHER_KEY = "2718281828";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestAesFile.class, Constants.MESSAGES);
+
+    private static final String DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testaes.dbs";
+
+    private static final String RC4_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testrc4.dbs";
+
+    private TestAesFile() {
+    }
+
+    /**
+     * Runs the main program.
+     *
+     * @param aArgsArray Arguments to the main program
+     */
+    @SuppressWarnings("uncommentedmain")
+    public static void main(final String[] aArgsArray) throws IOException {
+        new File(DB_FILE_PATH).delete();
+        new File(RC4_FILE_PATH).delete();
+
+        checkWrongKey();
+        checkMigration();
+        checkKeystreams();
+
+        new File(DB_FILE_PATH).delete();
+        new File(RC4_FILE_PATH).delete();
+
+        LOGGER.info(MessageCodes.SBT_007, TestAesFile.class.getSimpleName());
+    }
+
+    /**
+     * Database created with the cipher key can't be opened with another key.
+     */
+    private static void checkWrongKey() {
+        Storage storage = StorageFactory.getInstance().createStorage();
+
+        storage.open(DB_FILE_PATH, Storage.DEFAULT_PAGE_POOL_SIZE, CIPHER_KEY);
+        populate(storage);
+        storage.close();
+
+        Assert.that(AesFile.isAesFile(DB_FILE_PATH));
+
+        try {
+            new AesFile(DB_FILE_PATH, true, false, CIPHER_KEY + "0");
+            Assert.failed("wrong key is accepted");
+        } catch (final StorageError details) {
+            Assert.that(details.getErrorCode() == StorageError.WRONG_CIPHER_KEY);
+        }
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH, Storage.DEFAULT_PAGE_POOL_SIZE, CIPHER_KEY);
+        check(storage);
+        storage.close();
+
+        new File(DB_FILE_PATH).delete();
+    }
+
+    /**
+     * Pages of the database encrypted with RC4 are copied to the new file and the database is opened from it.
+     */
+    private static void checkMigration() {
+        Storage storage = StorageFactory.getInstance().createStorage();
+
+        storage.open(new Rc4File(RC4_FILE_PATH, false, false, CIPHER_KEY), Storage.DEFAULT_PAGE_POOL_SIZE);
+        populate(storage);
+        storage.close();
+
+        Assert.that(!AesFile.isAesFile(RC4_FILE_PATH));
+
+        final Rc4File source = new Rc4File(RC4_FILE_PATH, true, false, CIPHER_KEY);
+        final AesFile target = new AesFile(DB_FILE_PATH, false, false, CIPHER_KEY);
+
+        AesFile.migrate(source, target);
+        Assert.that(target.length() == source.length());
+        source.close();
+        target.close();
+
+        Assert.that(AesFile.isAesFile(DB_FILE_PATH));
+
+        // file is recognized as encrypted with AES when opened by path
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH, Storage.DEFAULT_PAGE_POOL_SIZE, CIPHER_KEY);
+        check(storage);
+        storage.close();
+
+        new File(DB_FILE_PATH).delete();
+    }
+
+    /**
+     * Page of zeros is written several times at the same position: as the ciphertext of a zero block is the
+     * keystream itself, all cipher blocks of all versions of the page should be different.
+     */
+    private static void checkKeystreams() throws IOException {
+        final AesFile file = new AesFile(DB_FILE_PATH, false, true, CIPHER_KEY);
+        final byte[] page = new byte[Page.PAGE_SIZE];
+        final HashSet<ByteBuffer> blocks = new HashSet<>();
+
+        for (int rewrite = 0; rewrite < REWRITE_COUNT; rewrite++) {
+            file.write(0, page);
+
+            final byte[] image = Files.readAllBytes(new File(DB_FILE_PATH).toPath());
+
+            for (int offset = 0; offset < Page.PAGE_SIZE; offset += 16) {
+                final byte[] block = new byte[16];
+
+                System.arraycopy(image, AesFile.HEADER_SIZE + AesFile.RECORD_HEADER_SIZE + offset, block, 0, 16);
+                Assert.that(blocks.add(ByteBuffer.wrap(block)));
+            }
+        }
+
+        final byte[] buffer = new byte[Page.PAGE_SIZE];
+
+        Assert.that(file.read(0, buffer) == Page.PAGE_SIZE);
+
+        for (final byte b : buffer) {
+            Assert.that(b == 0);
+        }
+
+        file.close();
+        new File(DB_FILE_PATH).delete();
+    }
+
+    private static void populate(final Storage aStorage) {
+        final Root root = new Root();
+
+        root.myIndex = aStorage.createIndex(long.class, true);
+        aStorage.setRoot(root);
+
+        for (long key = 0; key < RECORD_COUNT; key++) {
+            final Record record = new Record();
+
+            record.myKey = key;
+            record.myText = Long.toString(key);
+            root.myIndex.put(new Key(key), record);
+        }
+
+        aStorage.commit();
+    }
+
+    private static void check(final Storage aStorage) {
+        final Index<Record> index = ((Root) aStorage.getRoot()).myIndex;
+
+        Assert.that(index.size() == RECORD_COUNT);
+
+        for (long key = 0; key < RECORD_COUNT; key++) {
+            final Record record = index.get(new Key(key));
+
+            Assert.that(record.myKey == key);
+            Assert.that(record.myText.equals(Long.toString(key)));
+        }
+    }
+
+    static class Root extends Persistent {
+
+        Index<Record> myIndex;
+
+    }
+
+    static class Record extends Persistent {
+
+        long myKey;
+
+        String myText;
+
+    }
+
+}
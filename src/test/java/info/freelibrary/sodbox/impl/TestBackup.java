@@ -0,0 +1,215 @@
+package info.freelibrary.sodbox.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import info.freelibrary.sodbox.Assert;
+import info.freelibrary.sodbox.Constants;
+import info.freelibrary.sodbox.Index;
+import info.freelibrary.sodbox.Key;
+import info.freelibrary.sodbox.MessageCodes;
+import info.freelibrary.sodbox.Persistent;
+import info.freelibrary.sodbox.Storage;
+import info.freelibrary.sodbox.StorageError;
+import info.freelibrary.sodbox.StorageFactory;
+import info.freelibrary.util.Logger;
+import info.freelibrary.util.LoggerFactory;
+
+/**
+ * Checks the full backup taken while transactions are committed, and the incremental backup applied to the restored
+ * full backup. Transaction ids are moved past the range of <code>int</code> to check that the changed pages are
+ * still found.
+ */
+public final class TestBackup {
+
+    static final int RECORD_COUNT = 20000;
+
+    static final int UPDATE_COUNT = 100;
+
+    static final int COMMIT_COUNT = 10;
+
+    static final long FIRST_TRANSACTION_ID = 1L << 32;
+
+    static final String RATE_LIMIT = "4000000";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestBackup.class, Constants.MESSAGES);
+
+    private static final String DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testbackup.dbs";
+
+    private static final String FULL_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testbackup-full.dbs";
+
+    private static final String ONLINE_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testbackup-online.dbs";
+
+    private TestBackup() {
+    }
+
+    /**
+     * Runs the main program.
+     *
+     * @param aArgsArray Arguments to the main program
+     */
+    @SuppressWarnings("uncommentedmain")
+    public static void main(final String[] aArgsArray) throws IOException, InterruptedException {
+        deleteFiles();
+
+        final StorageImpl storage = (StorageImpl) StorageFactory.getInstance().createStorage();
+
+        storage.open(DB_FILE_PATH);
+        storage.myTransactionId = FIRST_TRANSACTION_ID;
+        storage.myHeader.myTransactionId = FIRST_TRANSACTION_ID;
+
+        final Root root = new Root();
+        final long[] values = new long[RECORD_COUNT];
+
+        root.myIndex = storage.createIndex(long.class, true);
+        storage.setRoot(root);
+
+        for (long key = 0; key < RECORD_COUNT; key++) {
+            root.myIndex.put(new Key(key), new Record(key, 0));
+        }
+
+        storage.commit();
+
+        final long fullTransactionId;
+
+        try (OutputStream outputStream = new FileOutputStream(FULL_FILE_PATH)) {
+            fullTransactionId = storage.backup(outputStream, 0);
+        }
+
+        Assert.that(fullTransactionId > Integer.MAX_VALUE);
+
+        // throttled backup runs while the records are updated, but it saves the state committed when it started
+        final AtomicLong onlineTransactionId = new AtomicLong();
+        final Thread backup = new Thread(() -> {
+            try (OutputStream outputStream = new FileOutputStream(ONLINE_FILE_PATH)) {
+                onlineTransactionId.set(storage.backup(outputStream, 0));
+            } catch (final IOException details) {
+                throw new StorageError(StorageError.FILE_ACCESS_ERROR, details);
+            }
+        });
+
+        storage.setProperty(Constants.BACKUP_RATE_LIMIT, RATE_LIMIT);
+        backup.start();
+
+        while (!isBackupRunning(storage)) {
+            Thread.sleep(1);
+        }
+
+        for (int commit = 1; commit <= COMMIT_COUNT; commit++) {
+            update(root, values, commit);
+            storage.commit();
+        }
+
+        Assert.that(isBackupRunning(storage));
+        backup.join();
+        storage.setProperty(Constants.BACKUP_RATE_LIMIT, "0");
+        Assert.that(onlineTransactionId.get() == fullTransactionId);
+
+        // incremental backup contains only the pages changed by the updates
+        final ByteArrayOutputStream increment = new ByteArrayOutputStream();
+        final long incrementTransactionId = storage.backup(increment, fullTransactionId);
+
+        Assert.that(incrementTransactionId == fullTransactionId + COMMIT_COUNT);
+        Assert.that(increment.size() < new File(FULL_FILE_PATH).length() / 2);
+        storage.close();
+
+        checkFile(ONLINE_FILE_PATH, new long[RECORD_COUNT]);
+        checkFile(FULL_FILE_PATH, new long[RECORD_COUNT]);
+
+        StorageFactory.getInstance().createStorage().restore(FULL_FILE_PATH, null, new ByteArrayInputStream(increment
+                .toByteArray()));
+        checkFile(FULL_FILE_PATH, values);
+        checkFile(DB_FILE_PATH, values);
+
+        // increment can't be applied to the database which isn't in the state it is based on
+        try {
+            StorageFactory.getInstance().createStorage().restore(FULL_FILE_PATH, null, new ByteArrayInputStream(
+                    increment.toByteArray()));
+            Assert.failed("increment is applied twice");
+        } catch (final StorageError details) {
+            Assert.that(details.getErrorCode() == StorageError.INVALID_OPERATION);
+        }
+
+        deleteFiles();
+
+        LOGGER.info(MessageCodes.SBT_007, TestBackup.class.getSimpleName());
+    }
+
+    /**
+     * Sets the value of a range of records, which is different for each update.
+     */
+    private static void update(final Root aRoot, final long[] aValues, final int aUpdate) {
+        final int start = aUpdate * RECORD_COUNT / (COMMIT_COUNT + 1);
+
+        for (int key = start; key < start + UPDATE_COUNT; key++) {
+            final Record record = aRoot.myIndex.get(new Key((long) key));
+
+            record.myValue = aUpdate;
+            record.modify();
+            aValues[key] = aUpdate;
+        }
+    }
+
+    private static boolean isBackupRunning(final StorageImpl aStorage) {
+        synchronized (aStorage.mySnapshotFile) {
+            return aStorage.mySnapshotFile.mySnapshotSize != 0;
+        }
+    }
+
+    private static void checkFile(final String aFilePath, final long[] aValues) {
+        final Storage storage = StorageFactory.getInstance().createStorage();
+
+        storage.open(aFilePath);
+
+        final Index<Record> index = ((Root) storage.getRoot()).myIndex;
+        int count = 0;
+
+        Assert.that(index.size() == RECORD_COUNT);
+
+        for (final Record record : index) {
+            Assert.that(record.myKey == count);
+            Assert.that(record.myValue == aValues[count]);
+            count += 1;
+        }
+
+        Assert.that(count == RECORD_COUNT);
+        storage.close();
+    }
+
+    private static void deleteFiles() {
+        new File(DB_FILE_PATH).delete();
+        new File(FULL_FILE_PATH).delete();
+        new File(ONLINE_FILE_PATH).delete();
+    }
+
+    static class Root extends Persistent {
+
+        Index<Record> myIndex;
+
+    }
+
+    static class Record extends Persistent {
+
+        long myKey;
+
+        long myValue;
+
+        Record() {
+        }
+
+        Record(final long aKey, final long aValue) {
+            myKey = aKey;
+            myValue = aValue;
+        }
+
+    }
+
+}
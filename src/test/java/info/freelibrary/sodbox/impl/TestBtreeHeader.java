@@ -0,0 +1,147 @@
+package info.freelibrary.sodbox.impl;
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import info.freelibrary.sodbox.Assert;
+import info.freelibrary.sodbox.Constants;
+import info.freelibrary.sodbox.Index;
+import info.freelibrary.sodbox.Key;
+import info.freelibrary.sodbox.MessageCodes;
+import info.freelibrary.sodbox.Persistent;
+import info.freelibrary.sodbox.Storage;
+import info.freelibrary.sodbox.StorageFactory;
+import info.freelibrary.util.Logger;
+import info.freelibrary.util.LoggerFactory;
+
+/**
+ * Checks that the header of the packed B-tree is read in the field order of the database format version: it is used
+ * by garbage collector, memory dump and XML export, which don't load the B-tree objects.
+ */
+public final class TestBtreeHeader {
+
+    static final int RECORD_COUNT = 10000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestBtreeHeader.class, Constants.MESSAGES);
+
+    private static final String DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testbtree.dbs";
+
+    private static final String XML_DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testbtreexml.dbs";
+
+    private TestBtreeHeader() {
+    }
+
+    /**
+     * Runs the main program.
+     *
+     * @param aArgsArray Arguments to the main program
+     */
+    @SuppressWarnings("uncommentedmain")
+    public static void main(final String[] aArgsArray) throws Exception {
+        new File(DB_FILE_PATH).delete();
+        new File(XML_DB_FILE_PATH).delete();
+
+        final StorageImpl storage = (StorageImpl) StorageFactory.getInstance().createStorage();
+
+        storage.open(DB_FILE_PATH);
+
+        // current format: fields are packed in name order
+        final Btree btree = new Btree(long.class, true);
+
+        btree.myRoot = 1001;
+        btree.myHeight = 3;
+        btree.myNumOfElems = 12345;
+        checkHeader(new Btree(storage.packObject(btree, false), ObjectHeader.SIZE_OF, storage
+                .getDatabaseFormatVersion()), btree);
+
+        // format version 1: fields are packed in declaration order
+        final byte[] packed = new byte[ObjectHeader.SIZE_OF + 17];
+
+        Bytes.pack4(packed, ObjectHeader.SIZE_OF, btree.myRoot);
+        Bytes.pack4(packed, ObjectHeader.SIZE_OF + 4, btree.myHeight);
+        Bytes.pack4(packed, ObjectHeader.SIZE_OF + 8, btree.myType);
+        Bytes.pack4(packed, ObjectHeader.SIZE_OF + 12, btree.myNumOfElems);
+        packed[ObjectHeader.SIZE_OF + 16] = 1;
+        checkHeader(new Btree(packed, ObjectHeader.SIZE_OF, 1), btree);
+
+        // garbage collector deallocates pages of the unreachable B-tree using the packed header
+        final Root root = new Root();
+
+        root.myLive = storage.createIndex(long.class, false);
+        storage.setRoot(root);
+
+        Index<Record> garbage = storage.createIndex(long.class, true);
+
+        root.myGarbage = garbage;
+
+        for (long key = 0; key < RECORD_COUNT; key++) {
+            final Record record = new Record();
+
+            record.myKey = key;
+            root.myLive.put(new Key(key), record);
+            garbage.put(new Key(key), record);
+        }
+
+        storage.commit();
+
+        root.myGarbage = null;
+        root.modify();
+        garbage = null;
+        storage.commit();
+        storage.gc();
+        storage.commit();
+        checkIndex(root.myLive);
+
+        // XML export reads the header of the packed B-tree too
+        final StringWriter writer = new StringWriter();
+
+        storage.exportXML(writer);
+        storage.close();
+
+        final Storage imported = StorageFactory.getInstance().createStorage();
+
+        imported.open(XML_DB_FILE_PATH);
+        imported.importXML(new StringReader(writer.toString()));
+        checkIndex(((Root) imported.getRoot()).myLive);
+        imported.close();
+
+        new File(DB_FILE_PATH).delete();
+        new File(XML_DB_FILE_PATH).delete();
+
+        LOGGER.info(MessageCodes.SBT_007, TestBtreeHeader.class.getSimpleName());
+    }
+
+    private static void checkHeader(final Btree aUnpacked, final Btree aExpected) {
+        Assert.that(aUnpacked.myRoot == aExpected.myRoot);
+        Assert.that(aUnpacked.myHeight == aExpected.myHeight);
+        Assert.that(aUnpacked.myType == aExpected.myType);
+        Assert.that(aUnpacked.myNumOfElems == aExpected.myNumOfElems);
+        Assert.that(aUnpacked.isUniqueKeyIndex == aExpected.isUniqueKeyIndex);
+    }
+
+    private static void checkIndex(final Index<Record> aIndex) {
+        Assert.that(aIndex.size() == RECORD_COUNT);
+
+        for (long key = 0; key < RECORD_COUNT; key++) {
+            Assert.that(aIndex.get(new Key(key)).myKey == key);
+        }
+    }
+
+    static class Root extends Persistent {
+
+        Index<Record> myLive;
+
+        Index<Record> myGarbage;
+
+    }
+
+    static class Record extends Persistent {
+
+        long myKey;
+
+    }
+
+}
@@ -0,0 +1,273 @@
+package info.freelibrary.sodbox.impl;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+import info.freelibrary.sodbox.Assert;
+import info.freelibrary.sodbox.Constants;
+import info.freelibrary.sodbox.IPersistentHash;
+import info.freelibrary.sodbox.MessageCodes;
+import info.freelibrary.sodbox.Persistent;
+import info.freelibrary.sodbox.Storage;
+import info.freelibrary.sodbox.StorageFactory;
+import info.freelibrary.util.Logger;
+import info.freelibrary.util.LoggerFactory;
+
+/**
+ * Checks the extendible hash with small buckets against a map: buckets are split as the table grows, buckets of keys
+ * with equal hash codes can't be split and are enlarged instead, and entries are removed by key and through the
+ * iterator. The table is checked after each stage and after the storage is reopened.
+ */
+public final class TestExtendibleHash {
+
+    static final int ENTRY_COUNT = 20000;
+
+    static final int COLLISION_COUNT = 300;
+
+    static final int COMMIT_INTERVAL = 5000;
+
+    static final int BUCKET_SIZE = 16;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestExtendibleHash.class, Constants.MESSAGES);
+
+    private static final String DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testexthash.dbs";
+
+    private TestExtendibleHash() {
+    }
+
+    /**
+     * Runs the main program.
+     *
+     * @param aArgsArray Arguments to the main program
+     */
+    @SuppressWarnings("uncommentedmain")
+    public static void main(final String[] aArgsArray) {
+        new File(DB_FILE_PATH).delete();
+
+        final Random random = new Random(2018);
+        final HashMap<Object, Object> entries = new HashMap<>();
+        Storage storage = StorageFactory.getInstance().createStorage();
+
+        storage.open(DB_FILE_PATH);
+
+        Root root = new Root();
+
+        root.myHash = storage.createExtendibleHash(BUCKET_SIZE);
+        storage.setRoot(root);
+
+        // buckets are split and the directory is doubled as the entries are added
+        for (int index = 0; index < ENTRY_COUNT; index++) {
+            final Object key = getKey(index);
+
+            Assert.that(root.myHash.put(key, "v" + index) == null);
+            entries.put(key, "v" + index);
+
+            if (index % COMMIT_INTERVAL == 0) {
+                storage.commit();
+            }
+        }
+
+        storage.commit();
+        check(root.myHash, entries);
+        Assert.that(getDirectory(root.myHash).myDepth > 0);
+        Assert.that(checkBuckets(root.myHash).size() > ENTRY_COUNT / BUCKET_SIZE);
+
+        // keys with the same hash code fill a bucket which can't be split
+        for (int index = 0; index < COLLISION_COUNT; index++) {
+            final Long key = (long) index << 32 | index;
+            final Collider collider = new Collider("c" + index);
+
+            root.myHash.put(key, index);
+            root.myHash.put(collider, collider);
+            entries.put(key, index);
+            entries.put(collider, collider);
+        }
+
+        storage.commit();
+        check(root.myHash, entries);
+        Assert.that(getMaxCapacity(checkBuckets(root.myHash)) >= COLLISION_COUNT);
+
+        // entries are removed by key, including all the colliding ones, and values are replaced
+        for (int index = 0; index < ENTRY_COUNT / 3; index++) {
+            final Object key = getKey(random.nextInt(ENTRY_COUNT));
+
+            Assert.that(Objects.equals(root.myHash.remove(key), entries.remove(key)));
+        }
+
+        for (int index = 0; index < COLLISION_COUNT; index += 2) {
+            final Long key = (long) index << 32 | index;
+            final Collider collider = new Collider("c" + index);
+
+            Assert.that(root.myHash.remove(key).equals(index));
+            Assert.that(root.myHash.remove(collider) == entries.remove(collider));
+            Assert.that(root.myHash.remove(collider) == null);
+            entries.remove(key);
+        }
+
+        for (int index = 0; index < ENTRY_COUNT; index += 5) {
+            final Object key = getKey(index);
+
+            if (entries.containsKey(key)) {
+                Assert.that(root.myHash.put(key, null).equals(entries.put(key, null)));
+            }
+        }
+
+        storage.commit();
+        check(root.myHash, entries);
+        storage.close();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH);
+        root = (Root) storage.getRoot();
+        check(root.myHash, entries);
+
+        // every other entry is removed through the iterator and values of the rest are replaced
+        final Iterator<Map.Entry<Object, Object>> iterator = root.myHash.entrySet().iterator();
+        int count = 0;
+
+        while (iterator.hasNext()) {
+            final Map.Entry<Object, Object> entry = iterator.next();
+
+            if (count++ % 2 == 0) {
+                iterator.remove();
+                entries.remove(entry.getKey());
+            } else {
+                entry.setValue("x");
+                entries.put(entry.getKey(), "x");
+            }
+        }
+
+        Assert.that(root.myHash.size() == count / 2);
+        storage.commit();
+        storage.close();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH);
+        root = (Root) storage.getRoot();
+        check(root.myHash, entries);
+
+        root.myHash.clear();
+        Assert.that(root.myHash.size() == 0 && root.myHash.get(getKey(0)) == null);
+        storage.close();
+
+        new File(DB_FILE_PATH).delete();
+
+        LOGGER.info(MessageCodes.SBT_007, TestExtendibleHash.class.getSimpleName());
+    }
+
+    private static Object getKey(final int aIndex) {
+        return aIndex % 2 == 0 ? "k" + aIndex : Integer.valueOf(aIndex * 7);
+    }
+
+    private static void check(final IPersistentHash<Object, Object> aHash, final HashMap<Object, Object> aEntries) {
+        int count = 0;
+
+        Assert.that(aHash.size() == aEntries.size());
+
+        for (final Map.Entry<Object, Object> entry : aEntries.entrySet()) {
+            Assert.that(aHash.containsKey(entry.getKey()));
+            Assert.that(Objects.equals(aHash.get(entry.getKey()), entry.getValue()));
+        }
+
+        for (final Map.Entry<Object, Object> entry : aHash.entrySet()) {
+            Assert.that(aEntries.containsKey(entry.getKey()));
+            Assert.that(Objects.equals(aEntries.get(entry.getKey()), entry.getValue()));
+            count += 1;
+        }
+
+        Assert.that(count == aEntries.size());
+        Assert.that(checkBuckets(aHash).size() > 0);
+    }
+
+    private static ExtendibleHashImpl.Directory getDirectory(final IPersistentHash<Object, Object> aHash) {
+        final ExtendibleHashImpl.Directory directory = ((ExtendibleHashImpl<Object, Object>) aHash).myDirectory;
+
+        directory.load();
+
+        return directory;
+    }
+
+    /**
+     * Checks that each bucket is referenced by the directory entries matching the low bits of the hash codes of its
+     * entries and that the size of the bucket is the number of its entries.
+     *
+     * @return map of the buckets to their directory depth
+     */
+    private static IdentityHashMap<ExtendibleHashImpl.Bucket, Integer> checkBuckets(
+            final IPersistentHash<Object, Object> aHash) {
+        final ExtendibleHashImpl.Directory directory = getDirectory(aHash);
+        final IdentityHashMap<ExtendibleHashImpl.Bucket, Integer> buckets = new IdentityHashMap<>();
+
+        Assert.that(directory.myBuckets.length == 1 << directory.myDepth);
+
+        for (int index = 0; index < directory.myBuckets.length; index++) {
+            final ExtendibleHashImpl.Bucket bucket = directory.getBucket(index);
+            final int mask = (1 << bucket.myDepth) - 1;
+            int size = 0;
+
+            Assert.that(bucket.myDepth <= directory.myDepth);
+            Assert.that(directory.myBuckets[index & mask] == bucket);
+
+            for (int slot = 0; slot < bucket.myKeys.length; slot++) {
+                if (bucket.myKeys[slot] != null) {
+                    Assert.that((ExtendibleHashImpl.mix(bucket.myHashCodes[slot]) & mask) == (index & mask));
+                    size += 1;
+                }
+            }
+
+            Assert.that(size == bucket.mySize);
+            buckets.put(bucket, bucket.myDepth);
+        }
+
+        return buckets;
+    }
+
+    private static int getMaxCapacity(final IdentityHashMap<ExtendibleHashImpl.Bucket, Integer> aBuckets) {
+        int capacity = 0;
+
+        for (final ExtendibleHashImpl.Bucket bucket : aBuckets.keySet()) {
+            capacity = Math.max(capacity, bucket.myKeys.length);
+        }
+
+        return capacity;
+    }
+
+    static class Root extends Persistent {
+
+        IPersistentHash<Object, Object> myHash;
+
+    }
+
+    /**
+     * Persistent key whose hash code is the same for all instances.
+     */
+    static class Collider extends Persistent {
+
+        String myName;
+
+        Collider() {
+        }
+
+        Collider(final String aName) {
+            myName = aName;
+        }
+
+        @Override
+        public boolean equals(final Object aObject) {
+            return aObject instanceof Collider && ((Collider) aObject).myName.equals(myName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 1;
+        }
+
+    }
+
+}
@@ -0,0 +1,264 @@
+package info.freelibrary.sodbox.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+
+import info.freelibrary.sodbox.Assert;
+import info.freelibrary.sodbox.Constants;
+import info.freelibrary.sodbox.Link;
+import info.freelibrary.sodbox.MessageCodes;
+import info.freelibrary.sodbox.Persistent;
+import info.freelibrary.sodbox.Storage;
+import info.freelibrary.sodbox.StorageFactory;
+import info.freelibrary.util.Logger;
+import info.freelibrary.util.LoggerFactory;
+
+/**
+ * Checks the k-d tree built from a collection as a balanced tree and the tree with leaf buckets filled by ordered
+ * inserts, which split full buckets: query results are compared with the brute-force scan of the points after
+ * inserts, removals, optimization and reopening of the storage.
+ */
+public final class TestKDTree {
+
+    static final int POINT_COUNT = 10000;
+
+    static final int QUERY_COUNT = 200;
+
+    static final int BUCKET_SIZE = 8;
+
+    static final int COORDINATE_RANGE = 1000;
+
+    static final String[] FIELD_NAMES = { "myX", "myY", "myZ" };
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestKDTree.class, Constants.MESSAGES);
+
+    private static final String DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testkdtree.dbs";
+
+    private TestKDTree() {
+    }
+
+    /**
+     * Runs the main program.
+     *
+     * @param aArgsArray Arguments to the main program
+     */
+    @SuppressWarnings("uncommentedmain")
+    public static void main(final String[] aArgsArray) {
+        new File(DB_FILE_PATH).delete();
+
+        final Random random = new Random(2018);
+        Storage storage = StorageFactory.getInstance().createStorage();
+
+        storage.open(DB_FILE_PATH);
+
+        Root root = new Root();
+        final ArrayList<Point> points = new ArrayList<>(POINT_COUNT);
+
+        for (int index = 0; index < POINT_COUNT; index++) {
+            points.add(new Point(random.nextInt(COORDINATE_RANGE), random.nextInt(COORDINATE_RANGE), random
+                    .nextInt(COORDINATE_RANGE)));
+        }
+
+        root.myPoints = storage.createLink(POINT_COUNT);
+        root.myPoints.addAll(points);
+        root.myBalanced = (KDTree<Point>) storage.<Point>createMultidimensionalIndex(Point.class, FIELD_NAMES,
+                false);
+        root.myBucketed = (KDTree<Point>) storage.<Point>createMultidimensionalIndex(Point.class, FIELD_NAMES,
+                false, BUCKET_SIZE);
+        storage.setRoot(root);
+
+        // an empty index is built as a balanced tree from the collection
+        Assert.that(root.myBalanced.addAll(points));
+        checkBalanced(root.myBalanced, 1);
+
+        // ordered inserts fill the buckets one after another, so each new point splits a full bucket
+        Collections.sort(points);
+
+        for (final Point point : points) {
+            root.myBucketed.add(point);
+        }
+
+        Assert.that(checkBuckets(root.myBucketed) > POINT_COUNT / BUCKET_SIZE);
+        storage.commit();
+        check(root, random);
+
+        // removals empty some of the buckets and leave deleted objects in the inner nodes
+        for (int index = 0; index < POINT_COUNT; index += 2) {
+            final Point point = root.myPoints.get(index);
+
+            Assert.that(root.myBalanced.remove(point));
+            Assert.that(root.myBucketed.remove(point));
+        }
+
+        for (int index = POINT_COUNT - 2; index >= 0; index -= 2) {
+            root.myPoints.remove(index).deallocate();
+        }
+
+        storage.commit();
+        check(root, random);
+        storage.close();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH);
+        root = (Root) storage.getRoot();
+        check(root, random);
+
+        // optimized indices are rebuilt as balanced trees
+        root.myBalanced.optimize();
+        root.myBucketed.optimize();
+        checkBalanced(root.myBalanced, 1);
+        checkBalanced(root.myBucketed, BUCKET_SIZE);
+        checkBuckets(root.myBucketed);
+        storage.commit();
+        storage.close();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH);
+        root = (Root) storage.getRoot();
+        check(root, random);
+        storage.close();
+
+        new File(DB_FILE_PATH).delete();
+
+        LOGGER.info(MessageCodes.SBT_007, TestKDTree.class.getSimpleName());
+    }
+
+    /**
+     * Compares results of the range and exact match queries in both indices with the brute-force scan of the points.
+     */
+    private static void check(final Root aRoot, final Random aRandom) {
+        Assert.that(aRoot.myBalanced.size() == aRoot.myPoints.size());
+        Assert.that(aRoot.myBucketed.size() == aRoot.myPoints.size());
+        Assert.that(count(aRoot.myBalanced) == aRoot.myPoints.size());
+        Assert.that(count(aRoot.myBucketed) == aRoot.myPoints.size());
+
+        for (int query = 0; query < QUERY_COUNT; query++) {
+            final int x = aRandom.nextInt(COORDINATE_RANGE);
+            final int y = aRandom.nextInt(COORDINATE_RANGE);
+            final int z = aRandom.nextInt(COORDINATE_RANGE);
+            final Point low = new Point(x, y, z);
+            final Point high = new Point(x + aRandom.nextInt(COORDINATE_RANGE / 4), y + aRandom.nextInt(
+                    COORDINATE_RANGE / 4), query % 2 == 0 ? Integer.MAX_VALUE : z + aRandom.nextInt(
+                            COORDINATE_RANGE / 4));
+            final HashSet<Point> expected = new HashSet<>();
+
+            for (final Point point : aRoot.myPoints) {
+                if (point.isBetween(low, high)) {
+                    expected.add(point);
+                }
+            }
+
+            checkResult(aRoot.myBalanced.queryByExample(low, high), expected);
+            checkResult(aRoot.myBucketed.queryByExample(low, high), expected);
+        }
+
+        for (int index = 0; index < aRoot.myPoints.size(); index += aRoot.myPoints.size() / QUERY_COUNT) {
+            final Point point = aRoot.myPoints.get(index);
+
+            Assert.that(aRoot.myBalanced.queryByExample(point).contains(point));
+            Assert.that(aRoot.myBucketed.queryByExample(point).contains(point));
+        }
+    }
+
+    private static void checkResult(final ArrayList<Point> aResult, final HashSet<Point> aExpected) {
+        Assert.that(aResult.size() == aExpected.size());
+        Assert.that(aExpected.containsAll(aResult));
+    }
+
+    private static int count(final KDTree<Point> aIndex) {
+        int count = 0;
+
+        for (final Point point : aIndex) {
+            Assert.that(point != null);
+            count += 1;
+        }
+
+        return count;
+    }
+
+    /**
+     * Checks that the height of the tree is logarithmic in the number of its members.
+     */
+    private static void checkBalanced(final KDTree<Point> aIndex, final int aBucketSize) {
+        final int leaves = (aIndex.size() + aBucketSize - 1) / aBucketSize;
+        final int height = 32 - Integer.numberOfLeadingZeros(leaves) + 1;
+
+        Assert.that(aIndex.getHeight() <= height);
+    }
+
+    /**
+     * Checks that no leaf bucket holds more objects than the bucket size and that buckets are found only in leaves.
+     *
+     * @return number of inner nodes of the tree
+     */
+    private static int checkBuckets(final KDTree<Point> aIndex) {
+        return checkBuckets(aIndex.myRoot);
+    }
+
+    private static int checkBuckets(final KDTree.KDTreeNode<?> aNode) {
+        if (aNode == null) {
+            return 0;
+        }
+
+        aNode.load();
+
+        if (aNode.myBucket != null) {
+            Assert.that(aNode.myBucket.size() > 0 && aNode.myBucket.size() <= BUCKET_SIZE);
+            Assert.that(aNode.myLeftNode == null && aNode.myRightNode == null);
+
+            return 0;
+        }
+
+        return 1 + checkBuckets(aNode.myLeftNode) + checkBuckets(aNode.myRightNode);
+    }
+
+    static class Root extends Persistent {
+
+        Link<Point> myPoints;
+
+        KDTree<Point> myBalanced;
+
+        KDTree<Point> myBucketed;
+
+    }
+
+    static class Point extends Persistent implements Comparable<Point> {
+
+        int myX;
+
+        int myY;
+
+        int myZ;
+
+        Point() {
+        }
+
+        Point(final int aX, final int aY, final int aZ) {
+            myX = aX;
+            myY = aY;
+            myZ = aZ;
+        }
+
+        boolean isBetween(final Point aLow, final Point aHigh) {
+            return myX >= aLow.myX && myX <= aHigh.myX && myY >= aLow.myY && myY <= aHigh.myY && myZ >= aLow.myZ &&
+                    myZ <= aHigh.myZ;
+        }
+
+        @Override
+        public int compareTo(final Point aPoint) {
+            if (myX != aPoint.myX) {
+                return myX < aPoint.myX ? -1 : 1;
+            } else if (myY != aPoint.myY) {
+                return myY < aPoint.myY ? -1 : 1;
+            } else {
+                return myZ < aPoint.myZ ? -1 : myZ == aPoint.myZ ? 0 : 1;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,243 @@
+package info.freelibrary.sodbox.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import info.freelibrary.sodbox.Assert;
+import info.freelibrary.sodbox.Constants;
+import info.freelibrary.sodbox.Index;
+import info.freelibrary.sodbox.Key;
+import info.freelibrary.sodbox.MessageCodes;
+import info.freelibrary.sodbox.Persistent;
+import info.freelibrary.sodbox.Storage;
+import info.freelibrary.sodbox.StorageError;
+import info.freelibrary.sodbox.StorageFactory;
+import info.freelibrary.util.Logger;
+import info.freelibrary.util.LoggerFactory;
+
+/**
+ * Measures the indices with the page size of the JVM, which is set by the <code>sodbox.page.size</code> system
+ * property, so the program should be run once for each compared page size. Records are inserted in the indices of
+ * long and string keys, some of them long, looked up after the storage is reopened, iterated and half of them are
+ * removed. Then the page size stored in the database header is checked: database of another page size can't be
+ * opened and the storage property can't change the page size.
+ */
+public final class TestPageSize {
+
+    static final int RECORD_COUNT = 100000;
+
+    static final int LONG_KEY_INTERVAL = 97;
+
+    static final int LONG_KEY_LENGTH = 300;
+
+    static final long PAGE_POOL_SIZE = 64L << 20;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestPageSize.class, Constants.MESSAGES);
+
+    // page size log follows the transaction ID in the database header
+    private static final int PAGE_SIZE_LOG_OFFSET = ReplicationSlaveStorageImpl.DB_HDR_TRANSACTION_ID_OFFSET + 8;
+
+    private static final String DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testpagesize.dbs";
+
+    private TestPageSize() {
+    }
+
+    /**
+     * Runs the main program.
+     *
+     * @param aArgsArray Arguments to the main program
+     */
+    @SuppressWarnings("uncommentedmain")
+    public static void main(final String[] aArgsArray) throws IOException {
+        new File(DB_FILE_PATH).delete();
+
+        Storage storage = StorageFactory.getInstance().createStorage();
+
+        storage.open(DB_FILE_PATH, PAGE_POOL_SIZE);
+
+        Root root = new Root();
+
+        root.myLongKeys = storage.createIndex(long.class, true);
+        root.myStringKeys = storage.createIndex(String.class, true);
+        storage.setRoot(root);
+
+        long start = System.currentTimeMillis();
+        long key = 1999;
+
+        for (int index = 0; index < RECORD_COUNT; index++) {
+            final Record record = new Record();
+
+            key = nextKey(key);
+            record.myLongKey = key;
+            record.myStringKey = getStringKey(key, index);
+            root.myLongKeys.put(new Key(record.myLongKey), record);
+            root.myStringKeys.put(new Key(record.myStringKey), record);
+        }
+
+        storage.commit();
+        LOGGER.info(MessageCodes.SBT_001, RECORD_COUNT, System.currentTimeMillis() - start);
+        storage.close();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH, PAGE_POOL_SIZE);
+        root = (Root) storage.getRoot();
+        start = System.currentTimeMillis();
+        key = 1999;
+
+        for (int index = 0; index < RECORD_COUNT; index++) {
+            key = nextKey(key);
+
+            final Record record = root.myLongKeys.get(new Key(key));
+
+            Assert.that(record != null && root.myStringKeys.get(new Key(getStringKey(key, index))) == record);
+        }
+
+        LOGGER.info(MessageCodes.SBT_002, RECORD_COUNT * 2, System.currentTimeMillis() - start);
+        start = System.currentTimeMillis();
+
+        long previous = -1;
+        int count = 0;
+
+        for (final Record record : root.myLongKeys) {
+            Assert.that(record.myLongKey > previous);
+            previous = record.myLongKey;
+            count += 1;
+        }
+
+        String previousString = "";
+
+        for (final Record record : root.myStringKeys) {
+            Assert.that(record.myStringKey.compareTo(previousString) > 0);
+            previousString = record.myStringKey;
+            count += 1;
+        }
+
+        Assert.that(count == RECORD_COUNT * 2);
+        LOGGER.info(MessageCodes.SBT_008, count, System.currentTimeMillis() - start);
+        start = System.currentTimeMillis();
+        key = 1999;
+
+        for (int index = 0; index < RECORD_COUNT; index++) {
+            key = nextKey(key);
+
+            if (index % 2 == 0) {
+                final Record record = root.myLongKeys.remove(new Key(key));
+
+                root.myStringKeys.remove(new Key(record.myStringKey), record);
+                record.deallocate();
+            }
+        }
+
+        storage.commit();
+        LOGGER.info(MessageCodes.SBT_003, RECORD_COUNT / 2, System.currentTimeMillis() - start);
+        Assert.that(root.myLongKeys.size() == RECORD_COUNT / 2 && root.myStringKeys.size() == RECORD_COUNT / 2);
+        storage.close();
+
+        LOGGER.info(MessageCodes.SBT_009, Page.PAGE_SIZE, new File(DB_FILE_PATH).length() >> 10);
+
+        checkHeader();
+        new File(DB_FILE_PATH).delete();
+
+        LOGGER.info(MessageCodes.SBT_007, TestPageSize.class.getSimpleName());
+    }
+
+    /**
+     * Checks that the page size is stored in the database header and that database with another page size can't be
+     * opened. Databases created before the page size was stored have 4 KB pages.
+     */
+    private static void checkHeader() throws IOException {
+        final int otherPageSizeLog = Page.PAGE_SIZE_LOG == Page.DEFAULT_PAGE_SIZE_LOG ? Page.MAX_PAGE_SIZE_LOG
+                : Page.DEFAULT_PAGE_SIZE_LOG;
+
+        Assert.that(readPageSizeLog() == Page.PAGE_SIZE_LOG);
+
+        writePageSizeLog(otherPageSizeLog);
+        openWithError(null, StorageError.INCOMPATIBLE_PAGE_SIZE);
+
+        writePageSizeLog(0);
+
+        if (Page.PAGE_SIZE_LOG == Page.DEFAULT_PAGE_SIZE_LOG) {
+            final Storage storage = StorageFactory.getInstance().createStorage();
+
+            storage.open(DB_FILE_PATH, PAGE_POOL_SIZE);
+            Assert.that(((Root) storage.getRoot()).myLongKeys.size() == RECORD_COUNT / 2);
+            storage.close();
+        } else {
+            openWithError(null, StorageError.INCOMPATIBLE_PAGE_SIZE);
+        }
+
+        writePageSizeLog(Page.PAGE_SIZE_LOG);
+        openWithError(Integer.toString(1 << otherPageSizeLog), StorageError.BAD_PROPERTY_VALUE);
+
+        final Storage storage = StorageFactory.getInstance().createStorage();
+
+        storage.setProperty(Constants.PAGE_SIZE, Page.PAGE_SIZE);
+        storage.open(DB_FILE_PATH, PAGE_POOL_SIZE);
+        storage.close();
+    }
+
+    private static void openWithError(final String aPageSize, final int aErrorCode) {
+        final Storage storage = StorageFactory.getInstance().createStorage();
+
+        try {
+            if (aPageSize != null) {
+                storage.setProperty(Constants.PAGE_SIZE, aPageSize);
+            }
+
+            storage.open(DB_FILE_PATH, PAGE_POOL_SIZE);
+            storage.close();
+            Assert.failed("storage is opened with another page size");
+        } catch (final StorageError details) {
+            Assert.that(details.getErrorCode() == aErrorCode);
+        }
+    }
+
+    private static int readPageSizeLog() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(DB_FILE_PATH, "r")) {
+            file.seek(PAGE_SIZE_LOG_OFFSET);
+            return file.read();
+        }
+    }
+
+    private static void writePageSizeLog(final int aPageSizeLog) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(DB_FILE_PATH, "rw")) {
+            file.seek(PAGE_SIZE_LOG_OFFSET);
+            file.write(aPageSizeLog);
+        }
+    }
+
+    private static long nextKey(final long aKey) {
+        return (3141592621L * aKey + 2718281829L) % 1000000007L;
+    }
+
+    private static String getStringKey(final long aKey, final int aIndex) {
+        final StringBuilder key = new StringBuilder(Long.toString(aKey));
+
+        if (aIndex % LONG_KEY_INTERVAL == 0) {
+            while (key.length() < LONG_KEY_LENGTH) {
+                key.append('z');
+            }
+        }
+
+        return key.toString();
+    }
+
+    static class Root extends Persistent {
+
+        Index<Record> myLongKeys;
+
+        Index<Record> myStringKeys;
+
+    }
+
+    static class Record extends Persistent {
+
+        long myLongKey;
+
+        String myStringKey;
+
+    }
+
+}
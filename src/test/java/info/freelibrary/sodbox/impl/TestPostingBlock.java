@@ -0,0 +1,610 @@
+package info.freelibrary.sodbox.impl;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import info.freelibrary.sodbox.Assert;
+import info.freelibrary.sodbox.Constants;
+import info.freelibrary.sodbox.Key;
+import info.freelibrary.sodbox.Link;
+import info.freelibrary.sodbox.MessageCodes;
+import info.freelibrary.sodbox.Persistent;
+import info.freelibrary.sodbox.Storage;
+import info.freelibrary.sodbox.StorageFactory;
+import info.freelibrary.sodbox.fulltext.FullTextSearchHit;
+import info.freelibrary.sodbox.fulltext.FullTextSearchResult;
+import info.freelibrary.sodbox.impl.FullTextIndexImpl.Document;
+import info.freelibrary.sodbox.impl.FullTextIndexImpl.DocumentOccurrences;
+import info.freelibrary.sodbox.impl.FullTextIndexImpl.InverseList;
+import info.freelibrary.sodbox.impl.FullTextIndexImpl.PostingBlock;
+import info.freelibrary.util.Logger;
+import info.freelibrary.util.LoggerFactory;
+
+/**
+ * Checks the compressed inverse lists of the full-text index: OIDs packed with every bit width of the differences,
+ * blocks split when the postings are inserted in the middle of the list, removal of all the postings, and the index
+ * in which the compressed lists are mixed with the lists of the old format.
+ */
+public final class TestPostingBlock {
+
+    static final int MAX_WIDTH = 31;
+
+    static final int APPEND_COUNT = 2000;
+
+    static final int APPEND_BATCH = 100;
+
+    static final int OID_STEP = 10;
+
+    static final int SPLIT_BLOCK = 3;
+
+    static final int CHECK_INTERVAL = 250;
+
+    static final int DOCUMENT_COUNT = 3000;
+
+    static final int VOCABULARY_SIZE = 300;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestPostingBlock.class, Constants.MESSAGES);
+
+    private static final String DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testpostingblock.dbs";
+
+    private TestPostingBlock() {
+    }
+
+    /**
+     * Runs the main program.
+     *
+     * @param aArgsArray Arguments to the main program
+     */
+    @SuppressWarnings("uncommentedmain")
+    public static void main(final String[] aArgsArray) {
+        new File(DB_FILE_PATH).delete();
+
+        final Random random = new Random(2018);
+        Storage storage = StorageFactory.getInstance().createStorage();
+
+        storage.open(DB_FILE_PATH);
+
+        Root root = new Root();
+
+        root.myBlocks = storage.createLink();
+        storage.setRoot(root);
+
+        // blocks with differences of each bit width, the whole arrays and their tails
+        for (int width = 0; width <= MAX_WIDTH; width++) {
+            final int[] oids = getOIDs(width, new Random(width));
+
+            for (int from = 0; from < 2; from++) {
+                final PostingBlock block = new PostingBlock(storage);
+
+                block.setPostings(oids, getNumWordsInDoc(oids), getOccurrences(oids), from, oids.length);
+                checkBlock(block, oids, from);
+                Assert.that(from > 0 || block.myOIDs[0] == width);
+                root.myBlocks.add(block);
+            }
+        }
+
+        storage.commit();
+        storage.close();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH);
+        root = (Root) storage.getRoot();
+
+        for (int index = 0; index < root.myBlocks.size(); index++) {
+            final int width = index / 2;
+            final PostingBlock block = root.myBlocks.get(index);
+
+            block.load();
+            checkBlock(block, getOIDs(width, new Random(width)), index % 2);
+        }
+
+        final TreeSet<Integer> expected = new TreeSet<>();
+
+        root.myList = new InverseList(storage, OID_STEP, getDocumentOccurrences(OID_STEP), 1);
+        expected.add(OID_STEP);
+        root.modify();
+
+        // postings appended in batches fill the blocks one after another
+        for (int start = 2; start <= APPEND_COUNT; start += APPEND_BATCH) {
+            final ArrayList<Integer> oids = new ArrayList<>();
+
+            for (int index = start; index < start + APPEND_BATCH && index <= APPEND_COUNT; index++) {
+                oids.add(index * OID_STEP);
+            }
+
+            addAll(root.myList, oids, expected);
+        }
+
+        final int blockCount = checkList(root.myList, expected);
+
+        Assert.that(blockCount >= APPEND_COUNT / (2 * InverseList.POSTING_BLOCK_SIZE));
+
+        // postings inserted in the range of a single block overflow it and it's split
+        final PostingBlock block = (PostingBlock) root.myList.myBlocks.get(SPLIT_BLOCK);
+        final PostingBlock previous = (PostingBlock) root.myList.myBlocks.get(SPLIT_BLOCK - 1);
+        final ArrayList<Integer> inserted = new ArrayList<>();
+
+        block.load();
+        previous.load();
+
+        for (int oid = previous.myLastOID + 1; oid < block.myLastOID; oid++) {
+            if (oid % OID_STEP != 0) {
+                inserted.add(oid);
+            }
+        }
+
+        Assert.that(inserted.size() + block.mySize > 2 * InverseList.POSTING_BLOCK_SIZE);
+        addAll(root.myList, inserted, expected);
+        Assert.that(checkList(root.myList, expected) > blockCount + 2);
+
+        // the widest differences are appended to the last block
+        addAll(root.myList, Arrays.asList(1 << 30, Integer.MAX_VALUE - 1, Integer.MAX_VALUE), expected);
+        checkList(root.myList, expected);
+        storage.commit();
+        storage.close();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH);
+        root = (Root) storage.getRoot();
+        checkList(root.myList, expected);
+
+        // postings are removed in random order until the list is empty
+        final ArrayList<Integer> removed = new ArrayList<>(expected);
+
+        Collections.shuffle(removed, random);
+
+        for (int index = 0; index < removed.size(); index++) {
+            root.myList.remove(removed.get(index).intValue());
+            expected.remove(removed.get(index));
+
+            if (index % CHECK_INTERVAL == 0) {
+                checkList(root.myList, expected);
+            }
+
+            if (index == removed.size() / 2) {
+                storage.commit();
+                storage.close();
+                storage = StorageFactory.getInstance().createStorage();
+                storage.open(DB_FILE_PATH);
+                root = (Root) storage.getRoot();
+            }
+        }
+
+        Assert.that(checkList(root.myList, expected) == 0);
+        Assert.that(root.myList.size() == 0 && root.myList.first() == 0 && root.myList.last() == 0);
+        Assert.that(!root.myList.iterator(0).hasNext());
+
+        // empty list gets a new block
+        addAll(root.myList, Arrays.asList(OID_STEP), expected);
+        Assert.that(checkList(root.myList, expected) == 1);
+        storage.commit();
+
+        checkMixedFormats(storage, root, random);
+
+        new File(DB_FILE_PATH).delete();
+
+        LOGGER.info(MessageCodes.SBT_007, TestPostingBlock.class.getSimpleName());
+    }
+
+    /**
+     * Converts every other inverse list of the index to the old format and compares the search results with the
+     * documents containing the words, before and after the documents are added and deleted. The storage is closed
+     * when the check is completed.
+     */
+    private static void checkMixedFormats(final Storage aStorage, final Root aRoot, final Random aRandom) {
+        final HashMap<Integer, HashSet<String>> words = new HashMap<>();
+        final String[] vocabulary = new String[VOCABULARY_SIZE];
+        Storage storage = aStorage;
+        Root root = aRoot;
+
+        for (int index = 0; index < vocabulary.length; index++) {
+            vocabulary[index] = "w" + Integer.toString(index, 36) + "x";
+        }
+
+        root.myIndex = (FullTextIndexImpl) storage.createFullTextIndex();
+        root.myDocs = storage.createLink();
+        root.modify();
+
+        for (int id = 0; id < DOCUMENT_COUNT; id++) {
+            addDocument(storage, root, id, vocabulary, words, aRandom);
+        }
+
+        storage.commit();
+
+        final HashSet<String> converted = new HashSet<>();
+        int arrays = 0;
+        int trees = 0;
+
+        for (int index = 0; index < vocabulary.length; index += 2) {
+            final InverseList list = root.myIndex.getInverseList(vocabulary[index]);
+
+            if (list != null) {
+                toOldFormat(root.myIndex, list);
+                converted.add(vocabulary[index]);
+
+                if (list.myOIDs != null) {
+                    arrays += 1;
+                } else {
+                    trees += 1;
+                }
+            }
+        }
+
+        Assert.that(arrays > 0 && trees > 0);
+        storage.commit();
+        checkSearch(root, vocabulary, words);
+
+        // lists of both formats are updated by the new documents and the deleted ones
+        for (int id = DOCUMENT_COUNT; id < DOCUMENT_COUNT * 5 / 4; id++) {
+            addDocument(storage, root, id, vocabulary, words, aRandom);
+        }
+
+        for (int index = 0; index < DOCUMENT_COUNT / 2; index++) {
+            final Doc doc = root.myDocs.get(aRandom.nextInt(root.myDocs.size()));
+
+            if (words.remove(doc.myId) != null) {
+                root.myIndex.delete(doc);
+            }
+        }
+
+        storage.commit();
+        checkSearch(root, vocabulary, words);
+        storage.close();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH);
+        root = (Root) storage.getRoot();
+
+        for (int index = 0; index < vocabulary.length; index++) {
+            final InverseList list = root.myIndex.getInverseList(vocabulary[index]);
+
+            if (list != null) {
+                list.load();
+                Assert.that(list.isCompressed == !converted.contains(vocabulary[index]));
+            }
+        }
+
+        checkSearch(root, vocabulary, words);
+        storage.close();
+    }
+
+    /**
+     * Adds the document with the words of the skewed distribution, so that the lists of the frequent words are
+     * stored in the B-tree once they are converted to the old format.
+     */
+    private static void addDocument(final Storage aStorage, final Root aRoot, final int aId,
+            final String[] aVocabulary, final HashMap<Integer, HashSet<String>> aWords, final Random aRandom) {
+        final Doc doc = new Doc(aId);
+        final HashSet<String> words = new HashSet<>();
+        final StringBuilder text = new StringBuilder();
+        final int length = 5 + aRandom.nextInt(50);
+
+        for (int index = 0; index < length; index++) {
+            final int word = (int) Math.min(aVocabulary.length - 1, Math.abs(aRandom.nextGaussian()) *
+                    aVocabulary.length / 6);
+
+            text.append(aVocabulary[word]).append(' ');
+            words.add(aVocabulary[word]);
+        }
+
+        aStorage.makePersistent(doc);
+        aRoot.myDocs.add(doc);
+        aRoot.myIndex.add(doc, new StringReader(text.toString()), "en");
+        aWords.put(aId, words);
+    }
+
+    /**
+     * Moves the postings of the compressed list to the array or the B-tree of the old format, in which each posting
+     * is the persistent object referenced by the document.
+     */
+    @SuppressWarnings("unchecked")
+    private static void toOldFormat(final FullTextIndexImpl aIndex, final InverseList aList) {
+        final Storage storage = aIndex.getStorage();
+        final ArrayList<Integer> oids = new ArrayList<>();
+        final ArrayList<DocumentOccurrences> occurrences = new ArrayList<>();
+        aList.load();
+
+        final Iterator<?> iterator = aList.iterator(0);
+
+        while (iterator.hasNext()) {
+            final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) iterator.next();
+
+            oids.add((Integer) entry.getKey());
+            occurrences.add((DocumentOccurrences) entry.getValue());
+        }
+
+        for (int index = 0; index < aList.myBlocks.size(); index++) {
+            ((PostingBlock) aList.myBlocks.get(index)).deallocate();
+        }
+
+        aList.myBlocks = null;
+        aList.isCompressed = false;
+        aList.mySize = 0;
+
+        if (oids.size() <= InverseList.BTREE_THRESHOLD) {
+            aList.myOIDs = new int[oids.size()];
+            aList.myDocs = storage.createLink(oids.size());
+        }
+
+        for (int index = 0; index < oids.size(); index++) {
+            final int oid = oids.get(index);
+            final DocumentOccurrences occurrence = occurrences.get(index);
+            final Document doc = (Document) aIndex.myDocuments.get(new Key(storage.getObjectByOID(oid)));
+
+            occurrence.myInverseList = aList;
+            storage.makePersistent(occurrence);
+
+            if (aList.myOIDs != null) {
+                aList.myOIDs[index] = oid;
+                aList.myDocs.add(occurrence);
+            } else {
+                aList.put(new Key(oid), occurrence);
+            }
+
+            doc.myOccurrences.set(doc.myOccurrences.indexOf(aList), occurrence);
+            doc.modify();
+        }
+
+        aList.modify();
+    }
+
+    /**
+     * Compares the documents found by the single word, conjunction and disjunction queries with the documents
+     * containing the words.
+     */
+    private static void checkSearch(final Root aRoot, final String[] aVocabulary,
+            final HashMap<Integer, HashSet<String>> aWords) {
+        for (int index = 0; index + 1 < aVocabulary.length; index += 7) {
+            final String first = aVocabulary[index];
+            final String second = aVocabulary[index + 1];
+            final HashSet<Integer> both = new HashSet<>();
+            final HashSet<Integer> either = new HashSet<>();
+            final HashSet<Integer> only = new HashSet<>();
+
+            for (final Map.Entry<Integer, HashSet<String>> entry : aWords.entrySet()) {
+                final boolean hasFirst = entry.getValue().contains(first);
+                final boolean hasSecond = entry.getValue().contains(second);
+
+                if (hasFirst) {
+                    only.add(entry.getKey());
+                }
+
+                if (hasFirst && hasSecond) {
+                    both.add(entry.getKey());
+                }
+
+                if (hasFirst || hasSecond) {
+                    either.add(entry.getKey());
+                }
+            }
+
+            Assert.that(getFound(aRoot, first).equals(only));
+            Assert.that(getFound(aRoot, first + " " + second).equals(both));
+            Assert.that(getFound(aRoot, first + " OR " + second).equals(either));
+
+            final InverseList list = aRoot.myIndex.getInverseList(first);
+
+            if (list != null) {
+                list.load();
+            }
+
+            Assert.that(list == null ? only.isEmpty() : list.size() == only.size());
+        }
+    }
+
+    private static HashSet<Integer> getFound(final Root aRoot, final String aQuery) {
+        final FullTextSearchResult result = aRoot.myIndex.search(aQuery, "en", DOCUMENT_COUNT * 2, Integer.MAX_VALUE);
+        final HashSet<Integer> found = new HashSet<>();
+
+        for (final FullTextSearchHit hit : result.myHits) {
+            Assert.that(found.add(((Doc) hit.getDocument()).myId));
+        }
+
+        return found;
+    }
+
+    /**
+     * Ascending OIDs whose widest difference minus one has exactly the specified number of bits.
+     */
+    private static int[] getOIDs(final int aWidth, final Random aRandom) {
+        final int[] oids = new int[InverseList.POSTING_BLOCK_SIZE];
+        int count = 1;
+
+        oids[0] = 1 + aRandom.nextInt(1000);
+
+        while (count < oids.length) {
+            final long delta;
+
+            if (aWidth == 0) {
+                delta = 0;
+            } else if (count == 1) {
+                delta = 1L << aWidth - 1;
+            } else {
+                delta = aRandom.nextInt(1 << aWidth - 1);
+            }
+
+            if (oids[count - 1] + delta + 1 > Integer.MAX_VALUE) {
+                break;
+            }
+
+            oids[count] = (int) (oids[count - 1] + delta + 1);
+            count += 1;
+        }
+
+        return Arrays.copyOf(oids, count);
+    }
+
+    private static int[] getNumWordsInDoc(final int[] aOIDs) {
+        final int[] numWordsInDoc = new int[aOIDs.length];
+
+        for (int index = 0; index < aOIDs.length; index++) {
+            numWordsInDoc[index] = getDocumentOccurrences(aOIDs[index]).myNumWordsInDoc;
+        }
+
+        return numWordsInDoc;
+    }
+
+    private static byte[][] getOccurrences(final int[] aOIDs) {
+        final byte[][] occurrences = new byte[aOIDs.length][];
+
+        for (int index = 0; index < aOIDs.length; index++) {
+            occurrences[index] = getDocumentOccurrences(aOIDs[index]).myOccurrences;
+        }
+
+        return occurrences;
+    }
+
+    /**
+     * Occurrences of the word in the document, which depend on the OID of the document.
+     */
+    private static DocumentOccurrences getDocumentOccurrences(final int aOID) {
+        final DocumentOccurrences occurrences = new DocumentOccurrences();
+
+        occurrences.myNumWordsInDoc = aOID % 1000 + 1;
+        occurrences.setOccurrences(getPositions(aOID));
+
+        return occurrences;
+    }
+
+    private static int[] getPositions(final int aOID) {
+        final int[] positions = new int[1 + aOID % 3];
+
+        for (int index = 0; index < positions.length; index++) {
+            positions[index] = index * 3 + aOID % 5;
+        }
+
+        return positions;
+    }
+
+    private static void checkBlock(final PostingBlock aBlock, final int[] aOIDs, final int aFrom) {
+        final int[] oids = Arrays.copyOfRange(aOIDs, aFrom, aOIDs.length);
+        final int[] numWordsInDoc = aBlock.getNumWordsInDoc();
+        final byte[][] occurrences = aBlock.getOccurrences();
+        int minWordsInDoc = Integer.MAX_VALUE;
+        int maxFrequency = 0;
+
+        Assert.that(aBlock.mySize == oids.length);
+        Assert.that(Arrays.equals(aBlock.getOIDs(), oids));
+        Assert.that(aBlock.myFirstOID == oids[0] && aBlock.myLastOID == oids[oids.length - 1]);
+
+        for (int index = 0; index < oids.length; index++) {
+            final DocumentOccurrences expected = getDocumentOccurrences(oids[index]);
+
+            Assert.that(numWordsInDoc[index] == expected.myNumWordsInDoc);
+            Assert.that(Arrays.equals(occurrences[index], expected.myOccurrences));
+            Assert.that(Arrays.equals(aBlock.getDocumentOccurrences(index).getOccurrences(), getPositions(
+                    oids[index])));
+            minWordsInDoc = Math.min(minWordsInDoc, expected.myNumWordsInDoc);
+            maxFrequency = Math.max(maxFrequency, expected.getFrequency());
+        }
+
+        Assert.that(aBlock.myMinWordsInDoc == minWordsInDoc && aBlock.myMaxFrequency == maxFrequency);
+    }
+
+    private static void addAll(final InverseList aList, final List<Integer> aOIDs,
+            final TreeSet<Integer> aExpected) {
+        final int[] oids = new int[aOIDs.size()];
+        final DocumentOccurrences[] occurrences = new DocumentOccurrences[oids.length];
+
+        for (int index = 0; index < oids.length; index++) {
+            oids[index] = aOIDs.get(index);
+            occurrences[index] = getDocumentOccurrences(oids[index]);
+            aExpected.add(oids[index]);
+        }
+
+        aList.addAll(oids, occurrences, 0);
+    }
+
+    /**
+     * Compares the postings of the list with the expected OIDs and checks that the blocks are ordered and none of
+     * them exceeds twice the block size.
+     *
+     * @return number of blocks of the list
+     */
+    private static int checkList(final InverseList aList, final TreeSet<Integer> aExpected) {
+        int lastOID = Integer.MIN_VALUE;
+        int size = 0;
+
+        aList.load();
+
+        final Link<?> blocks = aList.myBlocks;
+
+        Assert.that(aList.isCompressed && aList.size() == aExpected.size());
+
+        for (int index = 0; index < blocks.size(); index++) {
+            final PostingBlock block = (PostingBlock) blocks.get(index);
+
+            block.load();
+
+            final int[] oids = block.getOIDs();
+
+            Assert.that(block.mySize > 0 && block.mySize <= 2 * InverseList.POSTING_BLOCK_SIZE);
+            Assert.that(block.myFirstOID > lastOID && block.myFirstOID == oids[0]);
+            Assert.that(block.myLastOID == oids[oids.length - 1]);
+            lastOID = block.myLastOID;
+            size += block.mySize;
+        }
+
+        Assert.that(size == aExpected.size());
+
+        final Iterator<?> iterator = aList.iterator(0);
+
+        for (final Integer oid : aExpected) {
+            final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) iterator.next();
+            final DocumentOccurrences occurrences = (DocumentOccurrences) entry.getValue();
+
+            Assert.that(entry.getKey().equals(oid));
+            Assert.that(occurrences.myNumWordsInDoc == oid % 1000 + 1);
+            Assert.that(Arrays.equals(occurrences.getOccurrences(), getPositions(oid)));
+        }
+
+        Assert.that(!iterator.hasNext());
+
+        if (!aExpected.isEmpty()) {
+            final int middle = (aExpected.first() + aExpected.last()) >>> 1;
+
+            Assert.that(aList.first() == aExpected.first() && aList.last() == aExpected.last());
+            Assert.that(((Map.Entry<?, ?>) aList.iterator(middle).next()).getKey().equals(aExpected.ceiling(
+                    middle)));
+        }
+
+        return blocks.size();
+    }
+
+    static class Root extends Persistent {
+
+        Link<PostingBlock> myBlocks;
+
+        InverseList myList;
+
+        FullTextIndexImpl myIndex;
+
+        Link<Doc> myDocs;
+
+    }
+
+    static class Doc extends Persistent {
+
+        int myId;
+
+        Doc() {
+        }
+
+        Doc(final int aId) {
+            myId = aId;
+        }
+
+    }
+
+}
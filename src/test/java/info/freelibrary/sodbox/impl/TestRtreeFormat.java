@@ -0,0 +1,266 @@
+package info.freelibrary.sodbox.impl;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import info.freelibrary.sodbox.Assert;
+import info.freelibrary.sodbox.Constants;
+import info.freelibrary.sodbox.Link;
+import info.freelibrary.sodbox.MessageCodes;
+import info.freelibrary.sodbox.Persistent;
+import info.freelibrary.sodbox.Rectangle;
+import info.freelibrary.sodbox.RectangleR2;
+import info.freelibrary.sodbox.SpatialIndex;
+import info.freelibrary.sodbox.SpatialIndexR2;
+import info.freelibrary.sodbox.Storage;
+import info.freelibrary.sodbox.StorageFactory;
+import info.freelibrary.util.Logger;
+import info.freelibrary.util.LoggerFactory;
+
+/**
+ * Checks that R-tree pages stored in the format with the array of rectangle objects are converted to the flat
+ * coordinate array when loaded, are searched correctly and are written in the new format once modified.
+ */
+public final class TestRtreeFormat {
+
+    static final int ITEM_COUNT = 5000;
+
+    static final int QUERY_COUNT = 200;
+
+    static final int COORDINATE_RANGE = 100000;
+
+    static final int MAX_SIZE = 1000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestRtreeFormat.class, Constants.MESSAGES);
+
+    private static final String DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testrtree.dbs";
+
+    private TestRtreeFormat() {
+    }
+
+    /**
+     * Runs the main program.
+     *
+     * @param aArgsArray Arguments to the main program
+     */
+    @SuppressWarnings("uncommentedmain")
+    public static void main(final String[] aArgsArray) throws ReflectiveOperationException {
+        new File(DB_FILE_PATH).delete();
+
+        final Random random = new Random(2018);
+        Storage storage = StorageFactory.getInstance().createStorage();
+
+        storage.open(DB_FILE_PATH);
+
+        Root root = new Root();
+
+        root.myIndex = storage.createSpatialIndex();
+        root.myIndexR2 = storage.createSpatialIndexR2();
+        root.myItems = storage.createLink();
+        storage.setRoot(root);
+        addItems(storage, root, random, ITEM_COUNT);
+        storage.commit();
+
+        // rewrite all pages in the format with rectangle objects
+        Assert.that(toLegacyFormat(getRoot(root.myIndex)) > 1);
+        Assert.that(toLegacyFormat(getRoot(root.myIndexR2)) > 1);
+        storage.close();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH);
+        root = (Root) storage.getRoot();
+        check(root, random);
+
+        // loaded pages are converted to the flat format, which is used when they are stored again
+        addItems(storage, root, random, ITEM_COUNT / 10);
+        storage.commit();
+        Assert.that(!isLegacyFormat(getRoot(root.myIndex)));
+        Assert.that(!isLegacyFormat(getRoot(root.myIndexR2)));
+        storage.close();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH);
+        root = (Root) storage.getRoot();
+        check(root, random);
+        storage.close();
+
+        new File(DB_FILE_PATH).delete();
+
+        LOGGER.info(MessageCodes.SBT_007, TestRtreeFormat.class.getSimpleName());
+    }
+
+    private static void addItems(final Storage aStorage, final Root aRoot, final Random aRandom, final int aCount) {
+        for (int index = 0; index < aCount; index++) {
+            final Item item = new Item();
+            final int top = aRandom.nextInt(COORDINATE_RANGE);
+            final int left = aRandom.nextInt(COORDINATE_RANGE);
+
+            item.myTop = top;
+            item.myLeft = left;
+            item.myBottom = top + aRandom.nextInt(MAX_SIZE);
+            item.myRight = left + aRandom.nextInt(MAX_SIZE);
+            aStorage.makePersistent(item);
+            aRoot.myItems.add(item);
+            aRoot.myIndex.put(item.getRectangle(), item);
+            aRoot.myIndexR2.put(item.getRectangleR2(), item);
+        }
+    }
+
+    /**
+     * Compares results of the searches in both indices with the brute-force scan of the items.
+     */
+    private static void check(final Root aRoot, final Random aRandom) {
+        Assert.that(count(aRoot.myIndex.iterator()) == aRoot.myItems.size());
+        Assert.that(count(aRoot.myIndexR2.iterator()) == aRoot.myItems.size());
+
+        for (int query = 0; query < QUERY_COUNT; query++) {
+            final int top = aRandom.nextInt(COORDINATE_RANGE);
+            final int left = aRandom.nextInt(COORDINATE_RANGE);
+            final Rectangle rect = new Rectangle(top, left, top + aRandom.nextInt(MAX_SIZE * 10), left + aRandom
+                    .nextInt(MAX_SIZE * 10));
+            final RectangleR2 rectR2 = new RectangleR2(rect.getTop(), rect.getLeft(), rect.getBottom(), rect
+                    .getRight());
+            int expected = 0;
+
+            for (final Item item : aRoot.myItems) {
+                if (item.getRectangle().intersects(rect)) {
+                    expected += 1;
+                }
+            }
+
+            Assert.that(checkItems(aRoot.myIndex.get(rect), rect) == expected);
+            Assert.that(checkItems(aRoot.myIndexR2.get(rectR2), rect) == expected);
+        }
+    }
+
+    private static int count(final Iterator<Item> aIterator) {
+        int count = 0;
+
+        while (aIterator.hasNext()) {
+            aIterator.next();
+            count += 1;
+        }
+
+        return count;
+    }
+
+    private static int checkItems(final Object[] aItems, final Rectangle aRect) {
+        final int[] ids = new int[aItems.length];
+
+        for (int index = 0; index < aItems.length; index++) {
+            final Item item = (Item) aItems[index];
+
+            Assert.that(item.getRectangle().intersects(aRect));
+            ids[index] = item.getOid();
+        }
+
+        Arrays.sort(ids);
+
+        for (int index = 1; index < ids.length; index++) {
+            Assert.that(ids[index - 1] != ids[index]);
+        }
+
+        return aItems.length;
+    }
+
+    /**
+     * Moves rectangles of the page and its child pages to the array of rectangle objects.
+     *
+     * @return number of converted pages
+     */
+    private static int toLegacyFormat(final Object aPage) {
+        int count = 1;
+
+        if (aPage instanceof RtreePage) {
+            final RtreePage page = (RtreePage) aPage;
+
+            page.myRectangle = new Rectangle[RtreePage.CARD];
+
+            // like in the old format, unused branches have empty rectangles
+            for (int index = 0; index < RtreePage.CARD; index++) {
+                if (index < page.myIndex) {
+                    page.myRectangle[index] = page.getRectangle(index);
+                    count += isPage(page.myBranch.get(index)) ? toLegacyFormat(page.myBranch.get(index)) : 0;
+                } else {
+                    page.myRectangle[index] = new Rectangle();
+                }
+            }
+
+            page.myCoords = null;
+            page.modify();
+        } else {
+            final RtreeR2Page page = (RtreeR2Page) aPage;
+
+            page.myRectR2 = new RectangleR2[RtreeR2Page.CARD];
+
+            for (int index = 0; index < RtreeR2Page.CARD; index++) {
+                if (index < page.myCount) {
+                    page.myRectR2[index] = page.getRectangle(index);
+                    count += isPage(page.myBranch.get(index)) ? toLegacyFormat(page.myBranch.get(index)) : 0;
+                } else {
+                    page.myRectR2[index] = new RectangleR2();
+                }
+            }
+
+            page.myCoords = null;
+            page.modify();
+        }
+
+        return count;
+    }
+
+    private static boolean isLegacyFormat(final Object aPage) {
+        if (aPage instanceof RtreePage) {
+            return ((RtreePage) aPage).myRectangle != null || ((RtreePage) aPage).myCoords == null;
+        } else {
+            return ((RtreeR2Page) aPage).myRectR2 != null || ((RtreeR2Page) aPage).myCoords == null;
+        }
+    }
+
+    private static boolean isPage(final Object aObject) {
+        return aObject instanceof RtreePage || aObject instanceof RtreeR2Page;
+    }
+
+    private static Object getRoot(final Object aIndex) throws ReflectiveOperationException {
+        final Field field = aIndex.getClass().getDeclaredField("myRoot");
+
+        field.setAccessible(true);
+
+        return field.get(aIndex);
+    }
+
+    static class Root extends Persistent {
+
+        SpatialIndex<Item> myIndex;
+
+        SpatialIndexR2<Item> myIndexR2;
+
+        Link<Item> myItems;
+
+    }
+
+    static class Item extends Persistent {
+
+        int myTop;
+
+        int myLeft;
+
+        int myBottom;
+
+        int myRight;
+
+        Rectangle getRectangle() {
+            return new Rectangle(myTop, myLeft, myBottom, myRight);
+        }
+
+        RectangleR2 getRectangleR2() {
+            return new RectangleR2(myTop, myLeft, myBottom, myRight);
+        }
+
+    }
+
+}
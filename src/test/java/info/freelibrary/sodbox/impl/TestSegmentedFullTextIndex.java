@@ -0,0 +1,317 @@
+package info.freelibrary.sodbox.impl;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Random;
+
+import info.freelibrary.sodbox.Assert;
+import info.freelibrary.sodbox.Constants;
+import info.freelibrary.sodbox.Link;
+import info.freelibrary.sodbox.MessageCodes;
+import info.freelibrary.sodbox.Persistent;
+import info.freelibrary.sodbox.Storage;
+import info.freelibrary.sodbox.StorageFactory;
+import info.freelibrary.sodbox.fulltext.FullTextIndex;
+import info.freelibrary.sodbox.fulltext.FullTextSearchHelper;
+import info.freelibrary.sodbox.fulltext.FullTextSearchHit;
+import info.freelibrary.util.Logger;
+import info.freelibrary.util.LoggerFactory;
+
+/**
+ * Checks the segmented full-text index against the full-text index updated in place: documents kept in the buffer
+ * and committed without flush, documents flushed to the segments merged in the background, the merge abandoned by
+ * rollback, the merge interrupted by closing of the storage, and the index merged in one segment.
+ */
+public final class TestSegmentedFullTextIndex {
+
+    static final int BUFFER_SIZE = 100;
+
+    static final int BUFFERED_COUNT = BUFFER_SIZE / 2;
+
+    static final int DOCUMENT_COUNT = 8000;
+
+    static final int COMMIT_INTERVAL = 1000;
+
+    static final int UPDATE_INTERVAL = 7;
+
+    static final int VOCABULARY_SIZE = 500;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestSegmentedFullTextIndex.class,
+            Constants.MESSAGES);
+
+    private static final String DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testsegmentedfulltext.dbs";
+
+    private static final String[] VOCABULARY = new String[VOCABULARY_SIZE];
+
+    static {
+        for (int index = 0; index < VOCABULARY.length; index++) {
+            VOCABULARY[index] = "w" + Integer.toString(index, 36) + "x";
+        }
+    }
+
+    private TestSegmentedFullTextIndex() {
+    }
+
+    /**
+     * Runs the main program.
+     *
+     * @param aArgsArray Arguments to the main program
+     */
+    @SuppressWarnings("uncommentedmain")
+    public static void main(final String[] aArgsArray) throws InterruptedException {
+        new File(DB_FILE_PATH).delete();
+
+        final Random random = new Random(2018);
+        Storage storage = StorageFactory.getInstance().createStorage();
+
+        storage.open(DB_FILE_PATH);
+
+        Root root = new Root();
+
+        root.myIndex = storage.createFullTextIndex();
+        root.mySegmentedIndex = (SegmentedFullTextIndexImpl) storage.createSegmentedFullTextIndex(
+                new FullTextSearchHelper(storage), BUFFER_SIZE);
+        root.myDocs = storage.createLink();
+        storage.setRoot(root);
+
+        // buffered documents and deletions are flushed by the commit
+        for (int id = 0; id < BUFFERED_COUNT; id++) {
+            add(storage, root, id, random);
+        }
+
+        delete(root, root.myDocs.get(0));
+        check(root, false);
+        Assert.that(root.mySegmentedIndex.getNumberOfSegments() == 0);
+        storage.commit();
+        storage.close();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH);
+        root = (Root) storage.getRoot();
+        Assert.that(root.mySegmentedIndex.getNumberOfSegments() == 1);
+        check(root, false);
+
+        // full buffers are flushed as segments and merged in the background, documents are replaced and deleted
+        boolean isInterrupted = false;
+
+        for (int id = BUFFERED_COUNT; id < DOCUMENT_COUNT; id++) {
+            add(storage, root, id, random);
+
+            if (id % UPDATE_INTERVAL == 0) {
+                final Doc doc = root.myDocs.get(random.nextInt(root.myDocs.size()));
+
+                if (random.nextBoolean()) {
+                    delete(root, doc);
+                } else {
+                    update(root, doc, random);
+                }
+            }
+
+            if (id % COMMIT_INTERVAL == 0) {
+                storage.commit();
+            }
+
+            // chunks of the running merge have been written, the rest of the merge is lost by closing of the storage
+            final SegmentedFullTextIndexImpl.SegmentMerger merger = root.mySegmentedIndex.myMerger;
+
+            if (!isInterrupted && merger != null && merger.myWrittenWords > 0 && merger.isAlive()) {
+                storage.commit();
+
+                if (root.mySegmentedIndex.myMergeTarget != null) { // the merge may have been completed by the commit
+                    isInterrupted = true;
+                    storage.close();
+
+                    storage = StorageFactory.getInstance().createStorage();
+                    storage.open(DB_FILE_PATH);
+                    root = (Root) storage.getRoot();
+                    Assert.that(root.mySegmentedIndex.myMergeTarget != null);
+                    check(root, false);
+                    Assert.that(root.mySegmentedIndex.myMergeTarget == null);
+                }
+            }
+        }
+
+        Assert.that(isInterrupted);
+        waitForMerges(root.mySegmentedIndex);
+        check(root, false);
+        storage.commit();
+        storage.close();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH);
+        root = (Root) storage.getRoot();
+        check(root, false);
+
+        // merge started by the rolled back transaction is abandoned, whether the objects are reloaded or not
+        final int segmentCount = root.mySegmentedIndex.getNumberOfSegments();
+
+        root.mySegmentedIndex.merge();
+        storage.commit();
+        Assert.that(segmentCount > 1);
+        root = checkRollback(storage, root, random);
+        storage.setProperty(Constants.RELOAD_OBJECTS_ON_ROLLBACK, "true");
+        Assert.that(checkRollback(storage, root, random) == root);
+
+        // all segments are merged in one and the deleted documents are dropped
+        for (int id = DOCUMENT_COUNT; id < DOCUMENT_COUNT + BUFFER_SIZE * 3 / 2; id++) {
+            add(storage, root, id, random);
+        }
+
+        delete(root, root.myDocs.get(root.myDocs.size() - 1));
+        root.mySegmentedIndex.merge();
+        Assert.that(root.mySegmentedIndex.getNumberOfSegments() == 1);
+        Assert.that(root.mySegmentedIndex.myDeletedOIDs.length == 0);
+        check(root, true);
+        storage.commit();
+        storage.close();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(DB_FILE_PATH);
+        root = (Root) storage.getRoot();
+        check(root, true);
+        storage.close();
+
+        new File(DB_FILE_PATH).delete();
+
+        LOGGER.info(MessageCodes.SBT_007, TestSegmentedFullTextIndex.class.getSimpleName());
+    }
+
+    /**
+     * Adds the documents filling the segments which are merged in the background and rolls back the transaction.
+     *
+     * @return root object after rollback
+     */
+    private static Root checkRollback(final Storage aStorage, final Root aRoot, final Random aRandom) {
+        for (int id = DOCUMENT_COUNT; id < DOCUMENT_COUNT + SegmentedFullTextIndexImpl.MERGE_FACTOR * BUFFER_SIZE;
+                id++) {
+            add(aStorage, aRoot, id, aRandom);
+        }
+
+        Assert.that(aRoot.mySegmentedIndex.myMerger != null);
+        aStorage.rollback();
+
+        final Root root = (Root) aStorage.getRoot();
+
+        root.mySegmentedIndex.flush();
+        Assert.that(root.mySegmentedIndex.myMerger == null && root.mySegmentedIndex.myMergeTarget == null);
+        Assert.that(root.mySegmentedIndex.getNumberOfSegments() == 1);
+        check(root, true);
+
+        return root;
+    }
+
+    private static void add(final Storage aStorage, final Root aRoot, final int aId, final Random aRandom) {
+        final Doc doc = new Doc(aId, getText(aRandom));
+
+        aStorage.makePersistent(doc);
+        aRoot.myDocs.add(doc);
+        aRoot.myIndex.add(doc, new StringReader(doc.myText), "en");
+        aRoot.mySegmentedIndex.add(doc, new StringReader(doc.myText), "en");
+    }
+
+    private static void update(final Root aRoot, final Doc aDoc, final Random aRandom) {
+        aDoc.myText = getText(aRandom);
+        aDoc.modify();
+        aRoot.myIndex.add(aDoc, new StringReader(aDoc.myText), "en");
+        aRoot.mySegmentedIndex.add(aDoc, new StringReader(aDoc.myText), "en");
+    }
+
+    private static void delete(final Root aRoot, final Doc aDoc) {
+        aRoot.myIndex.delete(aDoc);
+        aRoot.mySegmentedIndex.delete(aDoc);
+    }
+
+    private static String getText(final Random aRandom) {
+        final StringBuilder text = new StringBuilder();
+        final int length = 5 + aRandom.nextInt(60);
+
+        for (int index = 0; index < length; index++) {
+            final int word = (int) Math.min(VOCABULARY.length - 1, Math.abs(aRandom.nextGaussian()) *
+                    VOCABULARY.length / 6);
+
+            text.append(VOCABULARY[word]).append(' ');
+        }
+
+        return text.toString();
+    }
+
+    /**
+     * Writes the chunks received from the background merges until no merge is running.
+     */
+    private static void waitForMerges(final SegmentedFullTextIndexImpl aIndex) throws InterruptedException {
+        while (aIndex.myMerger != null) {
+            Thread.sleep(1);
+            aIndex.flush();
+        }
+    }
+
+    /**
+     * Compares the documents found in both indices by the single word, conjunction, disjunction, phrase and negation
+     * queries. Ranks are the same once the segments are merged in one, because statistics of the words include
+     * deleted documents until then.
+     */
+    private static void check(final Root aRoot, final boolean aCheckRanks) {
+        final String[] queries = {
+            VOCABULARY[0],
+            VOCABULARY[300],
+            VOCABULARY[1] + " OR " + VOCABULARY[2],
+            VOCABULARY[3] + " " + VOCABULARY[4],
+            "\"" + VOCABULARY[0] + " " + VOCABULARY[1] + "\"",
+            VOCABULARY[0] + " NOT " + VOCABULARY[1]
+        };
+
+        Assert.that(aRoot.mySegmentedIndex.getNumberOfDocuments() == aRoot.myIndex.getNumberOfDocuments());
+
+        for (final String query : queries) {
+            final HashMap<Integer, Float> expected = getRanks(aRoot.myIndex, query);
+            final HashMap<Integer, Float> found = getRanks(aRoot.mySegmentedIndex, query);
+
+            Assert.that(found.keySet().equals(expected.keySet()));
+
+            if (aCheckRanks) {
+                for (final Integer id : expected.keySet()) {
+                    Assert.that(Math.abs(expected.get(id) - found.get(id)) < 1e-4);
+                }
+            }
+        }
+    }
+
+    private static HashMap<Integer, Float> getRanks(final FullTextIndex aIndex, final String aQuery) {
+        final HashMap<Integer, Float> ranks = new HashMap<>();
+
+        for (final FullTextSearchHit hit : aIndex.search(aQuery, "en", Integer.MAX_VALUE, Integer.MAX_VALUE).myHits) {
+            Assert.that(ranks.put(((Doc) hit.getDocument()).myId, hit.myRank) == null);
+        }
+
+        return ranks;
+    }
+
+    static class Root extends Persistent {
+
+        FullTextIndex myIndex;
+
+        SegmentedFullTextIndexImpl mySegmentedIndex;
+
+        Link<Doc> myDocs;
+
+    }
+
+    static class Doc extends Persistent {
+
+        int myId;
+
+        String myText;
+
+        Doc() {
+        }
+
+        Doc(final int aId, final String aText) {
+            myId = aId;
+            myText = aText;
+        }
+
+    }
+
+}
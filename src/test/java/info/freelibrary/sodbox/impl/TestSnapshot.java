@@ -0,0 +1,166 @@
+package info.freelibrary.sodbox.impl;
+
+import java.io.File;
+
+import info.freelibrary.sodbox.Assert;
+import info.freelibrary.sodbox.Constants;
+import info.freelibrary.sodbox.Index;
+import info.freelibrary.sodbox.Key;
+import info.freelibrary.sodbox.MessageCodes;
+import info.freelibrary.sodbox.Persistent;
+import info.freelibrary.sodbox.Storage;
+import info.freelibrary.sodbox.StorageError;
+import info.freelibrary.sodbox.StorageFactory;
+import info.freelibrary.util.Logger;
+import info.freelibrary.util.LoggerFactory;
+
+/**
+ * Checks that the snapshot keeps the committed state of the storage while the following transactions are committed,
+ * and that the object locations freed by those transactions are pinned until the snapshots are closed.
+ */
+public final class TestSnapshot {
+
+    static final int RECORD_COUNT = 10000;
+
+    static final int UPDATE_COUNT = 5;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestSnapshot.class, Constants.MESSAGES);
+
+    private static final String DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testsnapshot.dbs";
+
+    private TestSnapshot() {
+    }
+
+    /**
+     * Runs the main program.
+     *
+     * @param aArgsArray Arguments to the main program
+     */
+    @SuppressWarnings("uncommentedmain")
+    public static void main(final String[] aArgsArray) {
+        new File(DB_FILE_PATH).delete();
+
+        final StorageImpl storage = (StorageImpl) StorageFactory.getInstance().createStorage();
+
+        storage.open(DB_FILE_PATH);
+
+        final Root root = new Root();
+
+        root.myIndex = storage.createIndex(long.class, true);
+        storage.setRoot(root);
+
+        for (long key = 0; key < RECORD_COUNT; key++) {
+            root.myIndex.put(new Key(key), new Record(key, 0));
+        }
+
+        storage.commit();
+
+        final Storage snapshot = storage.createSnapshot();
+
+        Assert.that(storage.mySnapshots.length == 1);
+        checkState(snapshot, RECORD_COUNT, 0);
+
+        // replaced versions of the objects are pinned while the snapshot is open
+        for (int version = 1; version <= UPDATE_COUNT; version++) {
+            update(root, version);
+            storage.commit();
+            Assert.that(!storage.myPinnedLocations.isEmpty());
+        }
+
+        checkState(storage, RECORD_COUNT / 2, UPDATE_COUNT);
+
+        // reloading objects from the storage must not see the committed changes
+        snapshot.clearObjectCache();
+        checkState(snapshot, RECORD_COUNT, 0);
+
+        try {
+            ((Root) snapshot.getRoot()).modify();
+            Assert.failed("snapshot is modified");
+        } catch (final StorageError details) {
+            Assert.that(details.getErrorCode() == StorageError.READ_ONLY_DATABASE);
+        }
+
+        // newer snapshot can't release the locations which are still visible in the older one
+        final Storage newerSnapshot = storage.createSnapshot();
+
+        checkState(newerSnapshot, RECORD_COUNT / 2, UPDATE_COUNT);
+        newerSnapshot.close();
+        Assert.that(storage.mySnapshots.length == 1);
+        Assert.that(!storage.myPinnedLocations.isEmpty());
+
+        snapshot.close();
+        Assert.that(storage.mySnapshots.length == 0);
+        Assert.that(storage.myPinnedLocations.isEmpty());
+
+        // replaced versions are not pinned when there are no snapshots
+        update(root, UPDATE_COUNT + 1);
+        storage.commit();
+        Assert.that(storage.myPinnedLocations.isEmpty());
+        checkState(storage, RECORD_COUNT / 2, UPDATE_COUNT + 1);
+        storage.close();
+
+        new File(DB_FILE_PATH).delete();
+
+        LOGGER.info(MessageCodes.SBT_007, TestSnapshot.class.getSimpleName());
+    }
+
+    /**
+     * Sets the value of the records with even keys and removes the records with odd keys.
+     */
+    private static void update(final Root aRoot, final long aValue) {
+        for (long key = 0; key < RECORD_COUNT; key++) {
+            final Record record = aRoot.myIndex.get(new Key(key));
+
+            if (record == null) {
+                continue;
+            }
+
+            if ((key & 1) == 0) {
+                record.myValue = aValue;
+                record.modify();
+            } else {
+                aRoot.myIndex.remove(new Key(key), record);
+                record.deallocate();
+            }
+        }
+    }
+
+    private static void checkState(final Storage aStorage, final int aCount, final long aValue) {
+        final Index<Record> index = ((Root) aStorage.getRoot()).myIndex;
+        int count = 0;
+
+        Assert.that(index.size() == aCount);
+
+        for (final Record record : index) {
+            Assert.that(record.myValue == aValue);
+            Assert.that(aCount == RECORD_COUNT || (record.myKey & 1) == 0);
+            count += 1;
+        }
+
+        Assert.that(count == aCount);
+    }
+
+    static class Root extends Persistent {
+
+        Index<Record> myIndex;
+
+    }
+
+    static class Record extends Persistent {
+
+        long myKey;
+
+        long myValue;
+
+        Record() {
+        }
+
+        Record(final long aKey, final long aValue) {
+            myKey = aKey;
+            myValue = aValue;
+        }
+
+    }
+
+}
@@ -0,0 +1,477 @@
+package info.freelibrary.sodbox.impl;
+
+import java.io.File;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import info.freelibrary.sodbox.Assert;
+import info.freelibrary.sodbox.Constants;
+import info.freelibrary.sodbox.FieldIndex;
+import info.freelibrary.sodbox.IPersistentSet;
+import info.freelibrary.sodbox.IValue;
+import info.freelibrary.sodbox.Index;
+import info.freelibrary.sodbox.Key;
+import info.freelibrary.sodbox.Link;
+import info.freelibrary.sodbox.MessageCodes;
+import info.freelibrary.sodbox.Persistent;
+import info.freelibrary.sodbox.Storage;
+import info.freelibrary.sodbox.StorageFactory;
+import info.freelibrary.sodbox.XMLImportException;
+import info.freelibrary.util.Logger;
+import info.freelibrary.util.LoggerFactory;
+
+/**
+ * Checks the streaming XML import: records of varied fields and the indices of long, string, field, multi-field and
+ * compound keys are exported and imported in batches, which are committed as they are imported, while another thread
+ * uses the storage. The index of long keys fills the leaves and the pages above them, so the bulk-built tree is
+ * checked page by page. Imported indices are updated and checked again after the storage is reopened. The import of
+ * a written document checks the missing and unknown fields, the unordered references of an index and the fields out
+ * of order.
+ */
+public final class TestXMLImport {
+
+    static final int RECORD_COUNT = 1000;
+
+    static final int COMMIT_BATCH = 100;
+
+    static final int LONG_KEY_INTERVAL = 50;
+
+    static final int LONG_KEY_LENGTH = 1000;
+
+    static final int UPDATE_INTERVAL = 3;
+
+    static final long TIMEOUT = 10000; // milliseconds
+
+    // last leaf of the long keys is the only child of the last page of the upper level, unless it is rebalanced
+    static final int LEAF_CAPACITY = BtreePage.KEY_SPACE / 12;
+
+    static final int LONG_KEY_COUNT = LEAF_CAPACITY * LEAF_CAPACITY + 1;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestXMLImport.class, Constants.MESSAGES);
+
+    private static final String DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testxmlexport.dbs";
+
+    private static final String XML_DB_FILE_PATH = System.getProperty("java.io.tmpdir") + File.separator +
+            "testxmlimport.dbs";
+
+    private static final String ROOT = Root.class.getName().replace('$', '-');
+
+    private static final String RECORD = Record.class.getName().replace('$', '-');
+
+    private static final String BTREE = Btree.class.getName();
+
+    private TestXMLImport() {
+    }
+
+    /**
+     * Runs the main program.
+     *
+     * @param aArgsArray Arguments to the main program
+     */
+    @SuppressWarnings("uncommentedmain")
+    public static void main(final String[] aArgsArray) throws Exception {
+        new File(DB_FILE_PATH).delete();
+        new File(XML_DB_FILE_PATH).delete();
+
+        final Storage storage = StorageFactory.getInstance().createStorage();
+
+        storage.open(DB_FILE_PATH);
+
+        final Root root = new Root();
+
+        root.myLongs = storage.createIndex(long.class, true);
+        root.myStrings = storage.createIndex(String.class, false);
+        root.myNames = storage.createFieldIndex(Record.class, "myName", true);
+        root.myCaselessNames = storage.createFieldIndex(Record.class, "myName", true, true);
+        root.myNumbersAndNames = storage.createFieldIndex(Record.class, new String[] { "myNumber", "myName" }, true);
+        root.myCompound = storage.createIndex(new Class[] { int.class, String.class }, true);
+        root.mySet = storage.createSet();
+        root.myRecords = storage.createLink();
+        storage.setRoot(root);
+
+        Record previous = null;
+
+        for (int index = 0; index < RECORD_COUNT; index++) {
+            final Record record = new Record(index, previous);
+
+            root.myRecords.add(record);
+            root.myStrings.put(new Key(getStringKey(index)), record);
+            root.myNames.put(record);
+            root.myCaselessNames.put(record);
+            root.myNumbersAndNames.put(record);
+            root.myCompound.put(new Key(new Object[] { index, record.myName }), record);
+
+            if (index % UPDATE_INTERVAL == 0) {
+                root.mySet.add(record);
+            }
+
+            previous = record;
+        }
+
+        for (long key = 0; key < LONG_KEY_COUNT; key++) {
+            root.myLongs.put(new Key(key), root.myRecords.get((int) (key % RECORD_COUNT)));
+        }
+
+        storage.commit();
+
+        final StringWriter writer = new StringWriter();
+
+        storage.exportXML(writer);
+        storage.close();
+
+        // batches are committed while the storage is used by another thread
+        StorageImpl imported = (StorageImpl) StorageFactory.getInstance().createStorage();
+
+        imported.setProperty(Constants.IMPORT_COMMIT_BATCH, COMMIT_BATCH);
+        imported.open(XML_DB_FILE_PATH);
+
+        final long transactionId = imported.myTransactionId;
+
+        final long start = System.currentTimeMillis();
+
+        imported.importXML(new WaitingReader(new StringReader(writer.toString()), imported));
+        LOGGER.info(MessageCodes.SBT_001, RECORD_COUNT + LONG_KEY_COUNT, System.currentTimeMillis() - start);
+        Assert.that(imported.myTransactionId - transactionId > RECORD_COUNT / COMMIT_BATCH);
+
+        Root importedRoot = (Root) imported.getRoot();
+
+        check(importedRoot, 0);
+        checkPages(imported, (Btree) importedRoot.myLongs);
+        update(importedRoot);
+        check(importedRoot, 1);
+        imported.close();
+
+        imported = (StorageImpl) StorageFactory.getInstance().createStorage();
+        imported.open(XML_DB_FILE_PATH);
+        importedRoot = (Root) imported.getRoot();
+        check(importedRoot, 1);
+        imported.close();
+
+        new File(DB_FILE_PATH).delete();
+        new File(XML_DB_FILE_PATH).delete();
+
+        checkDocument();
+
+        LOGGER.info(MessageCodes.SBT_007, TestXMLImport.class.getSimpleName());
+    }
+
+    /**
+     * Imports the written document, whose objects miss some fields, have unknown fields and whose index has unordered
+     * references and a duplicate of the unique key. Then checks that the fields out of order are reported.
+     */
+    private static void checkDocument() throws XMLImportException {
+        final String document = "<database root=\"1\">\n" + " <" + ROOT + " id=\"1\">\n" +
+                "  <myExtra><element>1</element></myExtra>\n" + "  <myLongs><ref id=\"2\"/></myLongs>\n" + " </" +
+                ROOT + ">\n" + " <" + BTREE + " id=\"2\" unique=\"1\" type=\"long\">\n" +
+                "  <ref id=\"3\" key=\"5\"/>\n" + "  <ref id=\"4\" key=\"1\"/>\n" + "  <ref id=\"3\" key=\"7\"/>\n" +
+                "  <ref id=\"4\" key=\"7\"/>\n" + " </" + BTREE + ">\n" + " <" + RECORD + " id=\"3\">\n" +
+                "  <myName>\"three\"</myName>\n" + "  <myNumber>3</myNumber>\n" + "  <myUnknown>4</myUnknown>\n" +
+                " </" + RECORD + ">\n" + " <" + RECORD + " id=\"4\"/>\n" + "</database>\n";
+
+        Storage storage = StorageFactory.getInstance().createStorage();
+
+        storage.open(XML_DB_FILE_PATH);
+        storage.importXML(new StringReader(document));
+
+        final Root root = (Root) storage.getRoot();
+
+        Assert.that(root.myRecords == null && root.myStrings == null);
+        Assert.that(root.myLongs.size() == 3);
+
+        final Record three = root.myLongs.get(new Key(5L));
+        final Record four = root.myLongs.get(new Key(1L));
+
+        Assert.that(root.myLongs.get(new Key(7L)) == three);
+        Assert.that("three".equals(three.myName) && three.myNumber == 3 && three.myValues == null);
+        Assert.that(three.myPoint != null && three.myPoint.myX == 0 && three.myNext == null);
+        Assert.that(four.myName == null && four.myNumber == 0 && four.myTags == null && four.myBytes == null);
+
+        int count = 0;
+
+        for (final Record record : root.myLongs) {
+            Assert.that(record == three || record == four);
+            count += 1;
+        }
+
+        Assert.that(count == 3);
+        storage.close();
+        new File(XML_DB_FILE_PATH).delete();
+
+        storage = StorageFactory.getInstance().createStorage();
+        storage.open(XML_DB_FILE_PATH);
+
+        try {
+            storage.importXML(new StringReader("<database root=\"1\">\n" + " <" + RECORD + " id=\"1\">\n" +
+                    "  <myNumber>3</myNumber>\n" + "  <myName>\"three\"</myName>\n" + " </" + RECORD + ">\n" +
+                    "</database>\n"));
+            Assert.failed("fields out of order are imported");
+        } catch (final XMLImportException details) {
+            Assert.that(details.getLine() == 4);
+        }
+
+        storage.close();
+        new File(XML_DB_FILE_PATH).delete();
+    }
+
+    /**
+     * Walks the pages of the bulk-built index: leaves are full except the last one, and internal pages have keys.
+     */
+    private static void checkPages(final StorageImpl aStorage, final Btree aIndex) {
+        Assert.that(aIndex.myHeight == 3);
+        Assert.that(countLeaves(aStorage, aIndex.myRoot, aIndex.myHeight) == LEAF_CAPACITY + 1);
+    }
+
+    private static int countLeaves(final StorageImpl aStorage, final int aPageId, final int aHeight) {
+        final Page page = aStorage.getPage(aPageId);
+        final int count = BtreePage.getnItems(page);
+
+        try {
+            if (aHeight == 1) {
+                Assert.that(count == LEAF_CAPACITY || count == 1);
+                return 1;
+            }
+
+            Assert.that(count > 0);
+
+            int leaves = 0;
+
+            for (int index = 0; index <= count; index++) {
+                leaves += countLeaves(aStorage, BtreePage.getReference(page, BtreePage.MAX_ITEMS - index - 1),
+                        aHeight - 1);
+            }
+
+            return leaves;
+        } finally {
+            aStorage.myPool.unfix(page);
+        }
+    }
+
+    /**
+     * Removes some keys of the imported indices and adds the other ones.
+     */
+    private static void update(final Root aRoot) {
+        for (long key = 0; key < LONG_KEY_COUNT; key += UPDATE_INTERVAL) {
+            final Record record = aRoot.myLongs.remove(new Key(key));
+
+            aRoot.myLongs.put(new Key(-key - 1), record);
+        }
+
+        for (int index = 0; index < RECORD_COUNT; index += UPDATE_INTERVAL) {
+            final Record record = aRoot.myRecords.get(index);
+
+            aRoot.myStrings.remove(new Key(getStringKey(index)), record);
+            aRoot.myStrings.put(new Key("updated" + getStringKey(index)), record);
+            aRoot.mySet.remove(record);
+        }
+    }
+
+    /**
+     * Checks the imported records and indices.
+     *
+     * @param aUpdates A number of updates of the indices
+     */
+    private static void check(final Root aRoot, final int aUpdates) {
+        Assert.that(aRoot.myRecords.size() == RECORD_COUNT);
+
+        for (int index = 0; index < RECORD_COUNT; index++) {
+            final Record record = aRoot.myRecords.get(index);
+            final Object[] strings = aRoot.myStrings.get(new Key(getStringKey(index)), new Key(getStringKey(index)));
+            final boolean isUpdated = aUpdates > 0 && index % UPDATE_INTERVAL == 0;
+
+            record.check(index);
+            Assert.that(aRoot.myNames.get(new Key("Name" + index)) == record);
+            Assert.that(aRoot.myCaselessNames.get(new Key("NAME" + index)) == record);
+            Assert.that(aRoot.myNumbersAndNames.get(new Key(new Object[] { index, "Name" + index })) == record);
+            Assert.that(aRoot.myCompound.get(new Key(new Object[] { index, "Name" + index })) == record);
+            Assert.that(aRoot.mySet.contains(record) == (index % UPDATE_INTERVAL == 0 && !isUpdated));
+
+            if (isUpdated) {
+                Assert.that(aRoot.myStrings.get(new Key("updated" + getStringKey(index))) == record);
+            }
+
+            // records of the same string key follow each other
+            Assert.that(strings.length == countStringKeys(index / 2 * 2, aUpdates) + countStringKeys(index / 2 * 2 +
+                    1, aUpdates));
+        }
+
+        Assert.that(aRoot.myStrings.size() == RECORD_COUNT);
+        Assert.that(aRoot.myLongs.size() == LONG_KEY_COUNT);
+
+        long previous = Long.MIN_VALUE;
+        int count = 0;
+
+        for (final Map.Entry<Object, Record> entry : aRoot.myLongs.entryIterator()) {
+            final long key = (Long) entry.getKey();
+            final long expected = key < 0 ? -key - 1 : key;
+
+            Assert.that(key > previous);
+            Assert.that(entry.getValue() == aRoot.myRecords.get((int) (expected % RECORD_COUNT)));
+            Assert.that((key < 0) == (aUpdates > 0 && expected % UPDATE_INTERVAL == 0));
+            previous = key;
+            count += 1;
+        }
+
+        Assert.that(count == LONG_KEY_COUNT);
+    }
+
+    private static int countStringKeys(final int aIndex, final int aUpdates) {
+        return aIndex < RECORD_COUNT && (aUpdates == 0 || aIndex % UPDATE_INTERVAL != 0) ? 1 : 0;
+    }
+
+    /**
+     * Key shared by two records, some of which are long.
+     */
+    private static String getStringKey(final int aIndex) {
+        final StringBuilder key = new StringBuilder("key").append(aIndex / 2);
+
+        if (aIndex / 2 % LONG_KEY_INTERVAL == 0) {
+            while (key.length() < LONG_KEY_LENGTH) {
+                key.append('z');
+            }
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Reader which waits for another thread to use the storage before the rest of the document is read.
+     */
+    static class WaitingReader extends FilterReader {
+
+        private final Storage myStorage;
+
+        private int myReadCount;
+
+        WaitingReader(final Reader aReader, final Storage aStorage) {
+            super(aReader);
+            myStorage = aStorage;
+        }
+
+        @Override
+        public int read(final char[] aBuffer, final int aOffset, final int aLength) throws IOException {
+            if (myReadCount++ == 1) {
+                final CountDownLatch done = new CountDownLatch(1);
+
+                new Thread(() -> {
+                    myStorage.createIndex(long.class, true);
+                    done.countDown();
+                }).start();
+
+                try {
+                    Assert.that(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+                } catch (final InterruptedException details) {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            return super.read(aBuffer, aOffset, aLength);
+        }
+
+    }
+
+    static class Root extends Persistent {
+
+        Index<Record> myLongs;
+
+        Index<Record> myStrings;
+
+        FieldIndex<Record> myNames;
+
+        FieldIndex<Record> myCaselessNames;
+
+        FieldIndex<Record> myNumbersAndNames;
+
+        Index<Record> myCompound;
+
+        IPersistentSet<Record> mySet;
+
+        Link<Record> myRecords;
+
+    }
+
+    enum State {
+        NEW, USED
+    }
+
+    static class Point implements IValue {
+
+        int myX;
+
+        int myY;
+
+    }
+
+    static class Record extends Persistent {
+
+        boolean isOdd;
+
+        int myNumber;
+
+        double myRatio;
+
+        String myName;
+
+        Date myDate;
+
+        State myState;
+
+        int[] myValues;
+
+        String[] myTags;
+
+        byte[] myBytes;
+
+        Point myPoint;
+
+        Record myNext;
+
+        Record() {
+        }
+
+        Record(final int aNumber, final Record aNext) {
+            isOdd = aNumber % 2 != 0;
+            myNumber = aNumber;
+            myRatio = aNumber / 8.0;
+            myName = "Name" + aNumber;
+            myDate = aNumber % 5 == 0 ? null : new Date(aNumber * 1000L);
+            myState = isOdd ? State.USED : State.NEW;
+            myValues = aNumber % 7 == 0 ? null : new int[] { aNumber, -aNumber };
+            myTags = new String[aNumber % 3];
+
+            for (int index = 0; index < myTags.length; index++) {
+                myTags[index] = index == 0 ? null : "tag \"" + index + "\" <" + aNumber + ">";
+            }
+
+            myBytes = new byte[] { (byte) aNumber, (byte) (aNumber >> 8) };
+            myPoint = new Point();
+            myPoint.myX = aNumber;
+            myPoint.myY = -aNumber;
+            myNext = aNext;
+        }
+
+        void check(final int aNumber) {
+            final Record expected = new Record(aNumber, null);
+
+            Assert.that(isOdd == expected.isOdd && myNumber == aNumber && myRatio == expected.myRatio);
+            Assert.that(myName.equals(expected.myName) && myState == expected.myState);
+            Assert.that(myDate == null ? expected.myDate == null : myDate.equals(expected.myDate));
+            Assert.that(Arrays.equals(myValues, expected.myValues));
+            Assert.that(Arrays.equals(myTags, expected.myTags));
+            Assert.that(Arrays.equals(myBytes, expected.myBytes));
+            Assert.that(myPoint.myX == aNumber && myPoint.myY == -aNumber);
+            Assert.that(aNumber == 0 ? myNext == null : myNext.myNumber == aNumber - 1);
+        }
+
+    }
+
+}